@@ -0,0 +1,54 @@
+package Trabalho_2.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.servidor.ConexaoMemoria;
+import Trabalho_2.servidor.Servidor;
+
+/*
+ * Benchmark JMH do caminho de recebimento de uma mensagem pública no servidor, do quadro recebido
+ * (como o cliente o envia, com os nomes em texto) até o enfileiramento em 10 clientes em memória:
+ * decodificação, despacho, codificação única e fan-out. Feito para ser executado com o profiler de
+ * GC, que mostra os bytes alocados por mensagem (gc.alloc.rate.norm):
+ *     java -jar benchmark/target/benchmarks.jar BenchmarkAlocacao -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkAlocacao {
+    private Servidor servidor;
+    private List<ConexaoMemoria> clientes;
+    private byte[] quadro;
+
+    @Setup
+    public void preparar() throws IOException {
+        servidor = new Servidor();
+        clientes = ClientesMemoria.conectar(servidor, 11);
+        Mensagem mensagem = new Mensagem("usuario0", null, "alguém viu o jogo ontem? que virada no fim");
+        mensagem.setTipo(Mensagem.Tipo.PUBLICA);
+        quadro = Protocolo.codificarQuadro(mensagem);
+    }
+
+    // Só a decodificação do quadro recebido:
+    @Benchmark
+    public Mensagem decodificar() throws IOException {
+        return Protocolo.decodificar(quadro, Protocolo.TAMANHO_CABECALHO, quadro.length - Protocolo.TAMANHO_CABECALHO,
+            servidor.getTabelaNomes());
+    }
+
+    // O caminho completo, do quadro recebido às filas de saída dos destinatários:
+    @Benchmark
+    public long receberEDistribuir() throws IOException {
+        clientes.get(0).receberQuadro(quadro);
+        return clientes.get(1).getQuadrosRecebidos();
+    }
+}
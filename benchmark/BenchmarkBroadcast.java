@@ -0,0 +1,42 @@
+package Trabalho_2.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.servidor.ConexaoMemoria;
+import Trabalho_2.servidor.Servidor;
+
+/*
+ * Benchmark JMH do fan-out de um broadcast: uma mensagem pública entregue a 10, 1.000 e
+ * 10.000 clientes em memória. Mede o custo por broadcast (codificação única, percurso do
+ * instantâneo do registro e enfileiramento em cada conexão), sem a interferência da rede.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkBroadcast {
+    @Param({"10", "1000", "10000"})
+    public int destinatarios;
+
+    private Servidor servidor;
+    private List<ConexaoMemoria> clientes;
+
+    @Setup
+    public void preparar() throws IOException {
+        servidor = new Servidor();
+        clientes = ClientesMemoria.conectar(servidor, destinatarios + 1);  // O remetente não recebe a própria mensagem.
+    }
+
+    @Benchmark
+    public long broadcast() {
+        servidor.broadcast(new Mensagem("usuario0", null, "mensagem de teste"), "usuario0");
+        return clientes.get(1).getQuadrosRecebidos();
+    }
+}
@@ -0,0 +1,84 @@
+package Trabalho_2.benchmark;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.historico.Consulta;
+import Trabalho_2.historico.IndiceBusca;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Benchmark JMH das consultas do /buscar sobre o índice invertido, já compactado, com milhões de
+ * mensagens sintéticas: dez palavras por mensagem, sorteadas com frequência decrescente (poucas
+ * palavras muito comuns e muitas raras), 1.000 usuários, 50 salas e 10% de mensagens privadas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class BenchmarkBusca {
+    private static final int VOCABULARIO = 50_000;
+
+    @Param({"1000000", "4000000"})
+    public int mensagens;
+
+    private IndiceBusca indice;
+    private Consulta termoRaro;
+    private Consulta termosComuns;
+    private Consulta comFiltros;
+    private Set<String> salas;
+
+    @Setup
+    public void preparar() {
+        Random aleatorio = new Random(42);
+        indice = new IndiceBusca(0, new RegistroMetricas());
+        LocalDateTime inicio = LocalDateTime.now().minusDays(30);
+        StringBuilder texto = new StringBuilder();
+        for (int i = 0; i < mensagens; i++) {
+            texto.setLength(0);
+            for (int j = 0; j < 10; j++) {
+                texto.append(palavra(aleatorio)).append(' ');
+            }
+            String remetente = "usuario" + aleatorio.nextInt(1000);
+            Mensagem mensagem = new Mensagem(remetente, aleatorio.nextInt(10) == 0 ? "usuario" + aleatorio.nextInt(1000) : null,
+                texto.toString(), inicio.plusSeconds(i * 2L));
+            if (mensagem.getDestinatario() == null && aleatorio.nextBoolean()) {
+                mensagem.setSala("sala" + aleatorio.nextInt(50));
+            }
+            indice.indexar(i, mensagem);
+        }
+        indice.compactar(0);
+        salas = Set.of("sala1", "sala2", "sala3");
+        termoRaro = new Consulta(List.of("p" + (VOCABULARIO - 7)), null, null, Long.MIN_VALUE, Long.MAX_VALUE);
+        termosComuns = new Consulta(List.of("p1", "p2"), null, null, Long.MIN_VALUE, Long.MAX_VALUE);
+        comFiltros = Consulta.interpretar("p1 p30 de:usuario7 sala:sala2");
+    }
+
+    // Palavra com probabilidade aproximadamente proporcional a 1/posição:
+    private static String palavra(Random aleatorio) {
+        return "p" + (int) Math.pow(VOCABULARIO, aleatorio.nextDouble());
+    }
+
+    @Benchmark
+    public long[] termoRaro() {
+        return indice.buscar(termoRaro, "usuario1", salas, 20, 0);
+    }
+
+    @Benchmark
+    public long[] termosComuns() {
+        return indice.buscar(termosComuns, "usuario1", salas, 20, 0);
+    }
+
+    @Benchmark
+    public long[] comFiltros() {
+        return indice.buscar(comFiltros, "usuario1", salas, 20, 0);
+    }
+}
@@ -0,0 +1,63 @@
+package Trabalho_2.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.chat.TabelaNomes;
+
+/*
+ * Benchmark JMH da codificação de uma Mensagem: formato serializado (versão 0, clientes antigos)
+ * contra o formato binário (versão 1), com os nomes já registrados na tabela como no servidor.
+ * A decodificação parte de quadros prontos, sem o prefixo de tamanho, como faz o ClienteHandler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkCodificacao {
+    @Param({"16", "256"})
+    public int tamanhoConteudo;
+
+    private Mensagem mensagem;
+    private TabelaNomes tabela;
+    private byte[] quadroSerializado;
+    private byte[] quadroBinario;
+
+    @Setup
+    public void preparar() throws IOException {
+        tabela = new TabelaNomes();
+        tabela.id("remetente");  // Registrados como o servidor registra os usuários aceitos.
+        tabela.id("destinatario");
+        mensagem = new Mensagem("remetente", "destinatario", "x".repeat(tamanhoConteudo));
+        quadroSerializado = Protocolo.codificarQuadroSerializado(mensagem);
+        quadroBinario = Protocolo.codificarQuadro(mensagem, tabela);
+    }
+
+    @Benchmark
+    public byte[] codificarSerializado() throws IOException {
+        return Protocolo.codificarQuadroSerializado(mensagem);
+    }
+
+    @Benchmark
+    public byte[] codificarBinario() throws IOException {
+        return Protocolo.codificarQuadro(mensagem, tabela);
+    }
+
+    @Benchmark
+    public Mensagem decodificarSerializado() throws IOException {
+        return Protocolo.decodificar(quadroSerializado, Protocolo.TAMANHO_CABECALHO,
+            quadroSerializado.length - Protocolo.TAMANHO_CABECALHO, tabela);
+    }
+
+    @Benchmark
+    public Mensagem decodificarBinario() throws IOException {
+        return Protocolo.decodificar(quadroBinario, Protocolo.TAMANHO_CABECALHO,
+            quadroBinario.length - Protocolo.TAMANHO_CABECALHO, tabela);
+    }
+}
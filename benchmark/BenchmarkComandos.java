@@ -0,0 +1,57 @@
+package Trabalho_2.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.servidor.ConexaoMemoria;
+import Trabalho_2.servidor.Servidor;
+
+/*
+ * Benchmark JMH do despacho de mensagens recebidas (ClienteHandler.processarMensagem): texto
+ * público, mensagem privada e os comandos /usuarios e /salas, com poucos clientes conectados
+ * para que o custo medido seja o da identificação e tratamento de cada tipo de mensagem.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkComandos {
+    private static final int CLIENTES = 10;
+
+    @Param({"publica", "privada", "/usuarios", "/salas"})
+    public String tipo;
+
+    private ConexaoMemoria remetente;
+    private String destinatario;
+    private String conteudo;
+
+    @Setup
+    public void preparar() throws IOException {
+        Servidor servidor = new Servidor();
+        List<ConexaoMemoria> clientes = ClientesMemoria.conectar(servidor, CLIENTES);
+        remetente = clientes.get(0);
+        switch (tipo) {
+            case "publica":
+                conteudo = "mensagem de teste";
+                break;
+            case "privada":
+                destinatario = "usuario1";
+                conteudo = "/privado:mensagem de teste";
+                break;
+            default:
+                conteudo = tipo;
+        }
+    }
+
+    @Benchmark
+    public void processar() {
+        // A mensagem é recriada a cada operação porque o tratamento de /privado: altera o conteúdo:
+        remetente.receber(new Mensagem("usuario0", destinatario, conteudo));
+    }
+}
@@ -0,0 +1,88 @@
+package Trabalho_2.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.Compressao;
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.chat.TabelaNomes;
+
+/*
+ * Benchmark JMH da compressão de um lote de quadros de mensagens de chat no contexto de deflate da
+ * conexão (que, como no servidor, acumula o histórico dos lotes anteriores), por nível e por tamanho
+ * do lote. Ao final, imprime quantos bytes cada mil bytes de entrada viraram, para comparar a economia
+ * com o custo de CPU medido.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkCompressao {
+    private static final String[] PALAVRAS = {"oi", "pessoal", "alguém", "viu", "o", "jogo", "ontem", "que", "não",
+        "sei", "amanhã", "reunião", "às", "dez", "horas", "vocês", "vão", "sim", "também", "acho", "melhor", "depois"};
+
+    @Param({"1", "6"})
+    public int nivel;
+
+    @Param({"1", "16"})
+    public int quadros;
+
+    private Deflater compressor;
+    private byte[][] lotes;
+    private int proximo = 0;
+    private long bytesEntrada = 0;
+    private long bytesSaida = 0;
+
+    @Setup
+    public void preparar() throws IOException {
+        Random aleatorio = new Random(42);
+        TabelaNomes tabela = new TabelaNomes();
+        for (int i = 0; i < 50; i++) {
+            tabela.id("usuario" + i);  // Usuários e salas registrados, como no servidor.
+        }
+        for (int i = 0; i < 5; i++) {
+            tabela.id("sala" + i);
+        }
+        compressor = Compressao.novoCompressor(nivel);
+        lotes = new byte[1024][];
+        for (int i = 0; i < lotes.length; i++) {
+            byte[] lote = new byte[0];
+            for (int j = 0; j < quadros; j++) {
+                StringBuilder texto = new StringBuilder();
+                for (int k = 3 + aleatorio.nextInt(12); k > 0; k--) {
+                    texto.append(PALAVRAS[aleatorio.nextInt(PALAVRAS.length)]).append(' ');
+                }
+                Mensagem mensagem = new Mensagem("usuario" + aleatorio.nextInt(50), null, texto.toString().trim());
+                mensagem.setSala("sala" + aleatorio.nextInt(5));
+                byte[] quadro = Protocolo.codificarQuadro(mensagem, tabela, i * quadros + j + 1);
+                byte[] maior = new byte[lote.length + quadro.length];
+                System.arraycopy(lote, 0, maior, 0, lote.length);
+                System.arraycopy(quadro, 0, maior, lote.length, quadro.length);
+                lote = maior;
+            }
+            lotes[i] = lote;
+        }
+    }
+
+    @TearDown
+    public void encerrar() {
+        compressor.end();
+        System.out.println("\nBytes gerados a cada mil comprimidos: " + (bytesSaida * 1000 / Math.max(1, bytesEntrada)));
+    }
+
+    @Benchmark
+    public byte[] comprimirLote() {
+        byte[] lote = lotes[proximo++ & (lotes.length - 1)];
+        byte[] comprimido = Compressao.comprimir(compressor, lote, lote.length);
+        bytesEntrada += lote.length;
+        bytesSaida += comprimido.length;
+        return comprimido;
+    }
+}
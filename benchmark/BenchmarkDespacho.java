@@ -0,0 +1,125 @@
+package Trabalho_2.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.servidor.Comandos;
+
+/*
+ * Microbenchmark JMH só da identificação das mensagens recebidas, sem entrega: a cadeia de
+ * startsWith usada antes em ClienteHandler.processarMensagem (reproduzida abaixo) contra o
+ * despacho pelo tipo da mensagem com a tabela de Comandos. Os comandos registrados não fazem
+ * nada além de consumir o argumento, para que o custo medido seja o da escolha do tratamento.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkDespacho {
+    // Resultados do despacho (qual tratamento seria executado):
+    private static final int PUBLICA = 0;
+    private static final int PRIVADA = 1;
+    private static final int SALA = 2;
+    private static final int COMANDO = 3;
+
+    @Param({"publica", "privada", "/usuarios", "/stats"})
+    public String tipo;
+
+    private Mensagem legada;   // Como enviada antes: sem tipo, privadas com o prefixo /privado:.
+    private Mensagem tipada;   // Como enviada pelos clientes atuais.
+    private Comandos comandos;
+    private Blackhole blackhole;
+
+    @Setup
+    public void preparar(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        comandos = new Comandos();
+        for (String verbo : new String[] {"usuarios", "entrar", "sair", "salas", "historico", "stats", "privado"}) {
+            comandos.registrar(verbo, (cliente, mensagem, argumento) -> blackhole.consume(argumento));
+        }
+        switch (tipo) {
+            case "publica":
+                legada = new Mensagem("usuario0", null, "mensagem de teste");
+                tipada = new Mensagem("usuario0", null, "mensagem de teste");
+                tipada.setTipo(Mensagem.Tipo.PUBLICA);
+                break;
+            case "privada":
+                legada = new Mensagem("usuario0", "usuario1", "/privado:mensagem de teste");
+                tipada = new Mensagem("usuario0", "usuario1", "mensagem de teste");
+                tipada.setTipo(Mensagem.Tipo.PRIVADA);
+                break;
+            default:
+                legada = new Mensagem("usuario0", null, tipo);
+                tipada = new Mensagem("usuario0", null, tipo);
+                tipada.setTipo(Mensagem.Tipo.COMANDO);
+        }
+    }
+
+    @Benchmark
+    public int cadeia() {
+        return despacharCadeia(legada);
+    }
+
+    @Benchmark
+    public int tabela() {
+        return despacharTabela(tipada);
+    }
+
+    // Mensagens sem tipo (clientes antigos) também passam pela tabela, com o tipo deduzido:
+    @Benchmark
+    public int tabelaLegada() {
+        return despacharTabela(legada);
+    }
+
+    private int despacharTabela(Mensagem mensagem) {
+        switch (mensagem.getTipo()) {
+            case PUBLICA:
+                return mensagem.getSala() != null ? SALA : PUBLICA;
+            case PRIVADA:
+                return PRIVADA;
+            case COMANDO:
+                return comandos.executar(null, mensagem) ? COMANDO : PUBLICA;
+            default:
+                return -1;
+        }
+    }
+
+    // Cadeia anterior, sem alterar a mensagem (o /privado: removia o prefixo do conteúdo):
+    private int despacharCadeia(Mensagem mensagem) {
+        String conteudo = mensagem.getConteudo();
+        if (conteudo.startsWith("/usuarios")) {
+            return COMANDO;
+        }
+        if (conteudo.startsWith("/entrar ")) {
+            blackhole.consume(conteudo.substring(8).trim());
+            return COMANDO;
+        }
+        if (conteudo.startsWith("/sair ")) {
+            blackhole.consume(conteudo.substring(6).trim());
+            return COMANDO;
+        }
+        if (conteudo.startsWith("/salas")) {
+            return COMANDO;
+        }
+        if (conteudo.startsWith("/historico")) {
+            blackhole.consume(conteudo.substring(10).trim());
+            return COMANDO;
+        }
+        if (conteudo.startsWith("/stats")) {
+            return COMANDO;
+        }
+        if (conteudo.startsWith("/privado:")) {
+            blackhole.consume(conteudo.substring(9));
+            return PRIVADA;
+        }
+        if (mensagem.getSala() != null && mensagem.getDestinatario() == null) {
+            return SALA;
+        }
+        return mensagem.getDestinatario() == null ? PUBLICA : -1;
+    }
+}
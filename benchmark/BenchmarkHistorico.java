@@ -0,0 +1,93 @@
+package Trabalho_2.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.historico.LogMensagens;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Benchmark JMH do custo que o log persistente acrescenta ao caminho das mensagens: o tempo
+ * de registrar() (codificação e enfileiramento), enquanto a escritora grava e sincroniza os
+ * lotes em segundo plano num diretório temporário.
+ *
+ * Um produtor sem pausas enche a fila do log em poucos milissegundos e passa a medir só o
+ * descarte. Por isso cada invocação registra um lote menor que a fila, começando com a
+ * escritora em dia, e a execução falha se alguma mensagem for descartada.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+public class BenchmarkHistorico {
+    private static final int LOTE = 50_000;  // Metade da fila de pendentes do log.
+
+    private Path diretorio;
+    private RegistroMetricas metricas;
+    private LogMensagens log;
+    private Mensagem mensagem;
+    private long enviadas;
+
+    @Setup
+    public void preparar() throws IOException {
+        diretorio = Files.createTempDirectory("historico");
+        metricas = new RegistroMetricas();
+        log = new LogMensagens(diretorio, 64 * 1024 * 1024, 2, true, metricas);
+        mensagem = new Mensagem("remetente", null, "mensagem de teste com um tamanho típico de chat");
+    }
+
+    // Espera a escritora gravar tudo o que foi registrado antes da próxima iteração:
+    @Setup(Level.Iteration)
+    public void esperarEscritora() throws InterruptedException {
+        long prazo = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (metrica("chat_historico_registradas_total") + metrica("chat_historico_descartadas_total") < enviadas) {
+            if (System.nanoTime() > prazo) {
+                throw new IllegalStateException("A escritora do log não esvaziou a fila em 30 s");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void conferirDescartes() {
+        long descartadas = metrica("chat_historico_descartadas_total");
+        if (descartadas > 0) {
+            throw new IllegalStateException(descartadas + " mensagens descartadas: a medida não é de enfileiramentos");
+        }
+    }
+
+    @TearDown
+    public void encerrar() throws IOException {
+        log.fechar();
+        try (Stream<Path> arquivos = Files.walk(diretorio)) {
+            arquivos.sorted(Comparator.reverseOrder()).forEach(arquivo -> arquivo.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOTE)
+    public void registrar() {
+        for (int i = 0; i < LOTE; i++) {
+            log.registrar(mensagem);
+        }
+        enviadas += LOTE;
+    }
+
+    private long metrica(String nome) {
+        for (String linha : metricas.exportarPrometheus().split("\n")) {
+            if (linha.startsWith(nome + " ")) {
+                return Long.parseLong(linha.substring(nome.length() + 1));
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,91 @@
+package Trabalho_2.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.servidor.ConexaoMemoria;
+import Trabalho_2.servidor.Servidor;
+
+/*
+ * Benchmark JMH de contenção no registro de clientes:
+ * - broadcastSemTrava / broadcastTravaGlobal: várias threads remetentes fazem broadcast ao mesmo
+ *   tempo; compara o caminho atual (sem trava global) com uma trava única em volta do broadcast,
+ *   como nos antigos métodos synchronized do Servidor. Varie as threads com -t (ex.: -t 1, -t 8).
+ * - consulta: buscas de usuários enquanto outra thread conecta e desconecta clientes sem parar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkRegistro {
+    @Param({"1000"})
+    public int destinatarios;
+
+    private Servidor servidor;
+    private List<ConexaoMemoria> clientes;
+    private final AtomicInteger proximoRemetente = new AtomicInteger();
+    private final AtomicInteger proximoTemporario = new AtomicInteger();
+
+    @Setup
+    public void preparar() throws IOException {
+        servidor = new Servidor();
+        clientes = ClientesMemoria.conectar(servidor, destinatarios);
+        ClientesMemoria.silenciarConsole();  // As entradas e saídas do grupo "consulta" imprimem avisos.
+    }
+
+    @TearDown
+    public void encerrar() {
+        ClientesMemoria.restaurarConsole();
+    }
+
+    // Cada thread do benchmark representa um remetente diferente:
+    @State(Scope.Thread)
+    public static class Remetente {
+        ConexaoMemoria conexao;
+        String nome;
+
+        @Setup
+        public void preparar(BenchmarkRegistro estado) {
+            conexao = estado.clientes.get(estado.proximoRemetente.getAndIncrement() % estado.clientes.size());
+            nome = conexao.getHandler().getNomeUsuario();
+        }
+    }
+
+    @Benchmark
+    public void broadcastSemTrava(Remetente remetente) {
+        remetente.conexao.receber(new Mensagem(remetente.nome, null, "mensagem de teste"));
+    }
+
+    @Benchmark
+    public void broadcastTravaGlobal(Remetente remetente) {
+        synchronized (servidor) {
+            remetente.conexao.receber(new Mensagem(remetente.nome, null, "mensagem de teste"));
+        }
+    }
+
+    @Benchmark
+    @Group("consulta")
+    @GroupThreads(3)
+    public boolean buscarUsuario() {
+        return servidor.usuarioExiste("usuario" + ThreadLocalRandom.current().nextInt(destinatarios));
+    }
+
+    @Benchmark
+    @Group("consulta")
+    @GroupThreads(1)
+    public boolean entrarESair() throws IOException {
+        // Os nomes se repetem em rodízio, como usuários que entram e saem várias vezes:
+        ConexaoMemoria temporario = new ConexaoMemoria(servidor);
+        boolean entrou = temporario.entrar("temporario" + proximoTemporario.getAndIncrement() % destinatarios);
+        temporario.sair();
+        return entrou;
+    }
+}
@@ -0,0 +1,211 @@
+package Trabalho_2.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.openjdk.jmh.annotations.*;
+
+import Trabalho_2.chat.ContextoTls;
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.servidor.Configuracao;
+import Trabalho_2.servidor.Servidor;
+
+/*
+ * Benchmark JMH do TLS num servidor real, na interface de loopback, com e sem TLS e nos modos NIO
+ * (SSLEngine no reator) e threads (SSLSocket). Mede a taxa de handshakes completos (sem sessão no
+ * cache do cliente) e retomados (com a sessão da conexão anterior), e a vazão de mensagens de um
+ * remetente para um destinatário (cada operação é uma mensagem). Sem TLS, os handshakes medem apenas
+ * a abertura da conexão TCP, como referência. O keystore de teste, autoassinado, é gerado com o keytool
+ * do próprio JDK num diretório temporário.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkTls {
+    private static final int MENSAGENS = 100;  // Mensagens enviadas antes de esperar pelo destinatário.
+    private static final char[] SENHA = "benchmark".toCharArray();
+
+    @Param({"nio", "threads"})
+    public String modo;
+
+    @Param({"false", "true"})
+    public boolean tls;
+
+    private Path diretorio;
+    private Servidor servidor;
+    private int porta;
+    private SSLContext contextoRetomada;  // Guarda as sessões: as conexões seguintes as retomam.
+    private SSLContext contextoCompleto;  // Cada sessão é invalidada ao fechar: todo handshake é completo.
+    private Socket remetente;
+    private Socket destinatario;
+    private OutputStream saidaRemetente;
+    private DataInputStream entradaDestinatario;
+    private byte[] lote;
+
+    @Setup
+    public void preparar() throws Exception {
+        diretorio = Files.createTempDirectory("chat-tls");
+        String keystore = diretorio.resolve("servidor.p12").toString();
+        gerarKeystore(keystore);
+        contextoRetomada = ContextoTls.cliente(keystore, SENHA);
+        contextoCompleto = ContextoTls.cliente(keystore, SENHA);
+
+        try (ServerSocket livre = new ServerSocket(0)) {
+            porta = livre.getLocalPort();
+        }
+        Configuracao configuracao = new Configuracao();
+        configuracao.porta = porta;
+        configuracao.modo = modo;
+        configuracao.tls = tls;
+        configuracao.keystoreTls = keystore;
+        configuracao.senhaTls = new String(SENHA);
+        configuracao.limiteMensagens = configuracao.limiteBytes = 0;
+        configuracao.limiteIpMensagens = configuracao.limiteIpBytes = 0;
+        configuracao.intervaloBatimento = 0;
+        configuracao.esperaLegado = 0;  // Os handshakes medem a conexão até a solicitação de nome, sem esperar por clientes legados.
+        configuracao.diretorioHistorico = "";
+        configuracao.diretorioCaixasPostais = diretorio.resolve("offline").toString();
+        servidor = new Servidor(configuracao);
+        Thread thread = new Thread(servidor::iniciar, "servidor");
+        thread.setDaemon(true);
+        thread.start();
+
+        destinatario = entrar("destino");
+        remetente = entrar("remetente");
+        entradaDestinatario = new DataInputStream(new BufferedInputStream(destinatario.getInputStream(), 64 * 1024));
+        saidaRemetente = new BufferedOutputStream(remetente.getOutputStream(), 64 * 1024);
+        descartarPendentes(destinatario);
+
+        char[] texto = new char[200];
+        Arrays.fill(texto, 'a');
+        byte[] quadro = Protocolo.codificarQuadro(new Mensagem("remetente", null, new String(texto)));
+        lote = new byte[quadro.length * MENSAGENS];
+        for (int i = 0; i < MENSAGENS; i++) {
+            System.arraycopy(quadro, 0, lote, i * quadro.length, quadro.length);
+        }
+    }
+
+    @TearDown
+    public void encerrar() throws IOException {
+        for (String linha : servidor.estatisticas().split("\n")) {
+            if (linha.contains("chat_tls_handshakes_total") || linha.contains("chat_tls_sessoes_retomadas_total")) {
+                System.out.println("\n" + linha.trim());
+            }
+        }
+        remetente.close();
+        destinatario.close();
+        servidor.parar();
+        try (Stream<Path> arquivos = Files.walk(diretorio)) {
+            arquivos.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    // Cada operação conecta e espera o primeiro quadro do servidor (a solicitação do nome). Com TLS 1.3,
+    // a leitura também recebe o ticket da sessão, que o cliente só guarda ao ler depois do handshake:
+    @Benchmark
+    public int handshakeCompleto() throws IOException {
+        Socket socket = conectar(contextoCompleto);
+        int tamanho = Protocolo.lerQuadro(new DataInputStream(socket.getInputStream())).length;
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).getSession().invalidate();
+        }
+        fechar(socket);
+        return tamanho;
+    }
+
+    @Benchmark
+    public int handshakeRetomado() throws IOException {
+        Socket socket = conectar(contextoRetomada);
+        int tamanho = Protocolo.lerQuadro(new DataInputStream(socket.getInputStream())).length;
+        fechar(socket);
+        return tamanho;
+    }
+
+    // Fecha sem deixar a porta local em TIME_WAIT, que se esgotaria com milhares de conexões por segundo:
+    private static void fechar(Socket socket) throws IOException {
+        socket.setSoLinger(true, 0);
+        socket.close();
+    }
+
+    // Envia um lote de mensagens e espera o destinatário receber todas:
+    @Benchmark
+    @OperationsPerInvocation(MENSAGENS)
+    public int transmitir() throws IOException {
+        saidaRemetente.write(lote);
+        saidaRemetente.flush();
+        int bytes = 0;
+        for (int i = 0; i < MENSAGENS; i++) {
+            bytes += Protocolo.lerQuadro(entradaDestinatario).length;
+        }
+        return bytes;
+    }
+
+    private Socket conectar(SSLContext contexto) throws IOException {
+        IOException ultima = null;
+        for (int tentativa = 0; tentativa < 50; tentativa++) {  // O servidor pode ainda estar iniciando.
+            try {
+                Socket socket = tls ? contexto.getSocketFactory().createSocket("127.0.0.1", porta)
+                    : new Socket("127.0.0.1", porta);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                ultima = e;
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrompido) {
+                    break;
+                }
+            }
+        }
+        throw ultima;
+    }
+
+    private Socket entrar(String nome) throws IOException {
+        Socket socket = conectar(contextoRetomada);
+        Protocolo.escrever(socket.getOutputStream(), new Mensagem(nome, null, nome));
+        return socket;
+    }
+
+    // Lê as mensagens do sistema (boas-vindas, entrada do remetente) até o destinatário ficar em silêncio:
+    private void descartarPendentes(Socket socket) throws IOException {
+        socket.setSoTimeout(500);
+        try {
+            while (true) {
+                Protocolo.lerQuadro(entradaDestinatario);
+            }
+        } catch (SocketTimeoutException e) {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    private void gerarKeystore(String arquivo) throws IOException, InterruptedException {
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process processo = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+            "-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "2", "-keystore", arquivo,
+            "-storetype", "PKCS12", "-storepass", new String(SENHA)).redirectErrorStream(true).start();
+        processo.getInputStream().transferTo(OutputStream.nullOutputStream());
+        if (processo.waitFor() != 0) {
+            throw new IOException("keytool falhou ao gerar o keystore de teste");
+        }
+    }
+}
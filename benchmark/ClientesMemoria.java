@@ -0,0 +1,51 @@
+package Trabalho_2.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import Trabalho_2.servidor.ConexaoMemoria;
+import Trabalho_2.servidor.Servidor;
+
+/*
+ * Utilitários comuns aos benchmarks: conexão de clientes em memória a um servidor e supressão
+ * dos avisos de entrada e saída que o servidor imprime no console.
+ */
+final class ClientesMemoria {
+    private static PrintStream saidaOriginal;
+
+    private ClientesMemoria() {}
+
+    // Conecta os clientes "usuario0".."usuarioN-1" sem poluir o console com os avisos de entrada:
+    static List<ConexaoMemoria> conectar(Servidor servidor, int quantidade) throws IOException {
+        silenciarConsole();
+        try {
+            List<ConexaoMemoria> clientes = new ArrayList<>(quantidade);
+            for (int i = 0; i < quantidade; i++) {
+                ConexaoMemoria cliente = new ConexaoMemoria(servidor);
+                cliente.entrar("usuario" + i);
+                clientes.add(cliente);
+            }
+            return clientes;
+        } finally {
+            restaurarConsole();
+        }
+    }
+
+    // Descarta o que for impresso em System.out até restaurarConsole():
+    static synchronized void silenciarConsole() {
+        if (saidaOriginal == null) {
+            saidaOriginal = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+    }
+
+    static synchronized void restaurarConsole() {
+        if (saidaOriginal != null) {
+            System.setOut(saidaOriginal);
+            saidaOriginal = null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package Trabalho_2.servidor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+
+/*
+ * Conexão em memória, sem socket: os quadros enviados ao cliente são apenas contados.
+ * Usada pelos benchmarks para exercitar o caminho das mensagens no servidor (handshake,
+ * comandos, broadcast) sem a interferência da rede. Fica no pacote do servidor para
+ * implementar a Conexao, mas o fonte é dos benchmarks e não entra no servidor compilado.
+ */
+public class ConexaoMemoria implements Conexao {
+    private final ClienteHandler handler;
+    private final LongAdder quadros = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public ConexaoMemoria(Servidor servidor) {
+        this.handler = new ClienteHandler(this, servidor);
+    }
+
+    // Faz o handshake no formato binário; retorna false se o nome foi recusado pelo servidor:
+    public boolean entrar(String nome) throws IOException {
+        handler.iniciar();
+        receberQuadro(Protocolo.codificarQuadro(new Mensagem(nome, null, nome)));
+        return nome.equals(handler.getNomeUsuario());
+    }
+
+    // Simula o recebimento de uma mensagem enviada por este cliente:
+    public void receber(Mensagem mensagem) {
+        handler.receber(mensagem);
+    }
+
+    // Simula o recebimento de um quadro completo (prefixo de tamanho incluído), decodificado como os da rede:
+    public void receberQuadro(byte[] quadro) throws IOException {
+        handler.receberQuadro(quadro, Protocolo.TAMANHO_CABECALHO, quadro.length - Protocolo.TAMANHO_CABECALHO);
+    }
+
+    public void sair() {
+        handler.desconectar();
+    }
+
+    public ClienteHandler getHandler() { return handler; }
+    public long getQuadrosRecebidos() { return quadros.sum(); }
+    public long getBytesRecebidos() { return bytes.sum(); }
+
+    @Override
+    public void enviar(ByteBuffer quadro) {
+        quadros.increment();
+        bytes.add(quadro.remaining());
+    }
+
+    @Override
+    public void enviarControle(ByteBuffer quadro) {
+        enviar(quadro);
+    }
+
+    @Override
+    public void ativarCompressao(CompressorSaida compressor) {
+        compressor.liberar();  // Sem rede, não há o que economizar.
+    }
+
+    @Override
+    public boolean envioPendente() {
+        return false;
+    }
+
+    @Override
+    public void fechar() {}
+
+    @Override
+    public String enderecoRemoto() {
+        return "memoria";
+    }
+
+    @Override
+    public InetAddress enderecoIp() {
+        return InetAddress.getLoopbackAddress();  // Sem limite por IP, como as conexões locais.
+    }
+}
@@ -0,0 +1,273 @@
+package Trabalho_2.carga;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.chat.TabelaNomes;
+import Trabalho_2.metricas.Histograma;
+
+/*
+ * Gerador de carga sem interface gráfica: abre muitas conexões com um Servidor local, faz o
+ * mesmo handshake do ClienteSwing (responde a SOLICITAR_NOME) e envia mensagens públicas e
+ * privadas numa taxa configurada. Cada mensagem carrega o instante planejado do
+ * envio, e cada cliente que a recebe registra a latência de ponta a ponta em um histograma.
+ * Ao final, exibe os percentis de latência (p50/p99/p999) e as mensagens entregues por segundo.
+ *
+ * Cada conexão usa uma thread virtual para ler e outra para enviar (threads de plataforma em
+ * JDKs sem threads virtuais). Por segurança, só aceita endereços de loopback.
+ *
+ * Uso: java -Dcarga.clientes=1000 -Dcarga.taxa=2000 Trabalho_2.carga.GeradorCarga
+ */
+public class GeradorCarga {
+    // Configurações (propriedades de sistema -Dcarga.*):
+    private final String host = System.getProperty("carga.host", "127.0.0.1");
+    private final int porta = Integer.getInteger("carga.porta", 12345);
+    private final int quantidadeClientes = Integer.getInteger("carga.clientes", 100);
+    private final int taxa = Integer.getInteger("carga.taxa", 1000);           // Mensagens enviadas por segundo (total).
+    private final double fracaoPrivadas = Double.parseDouble(System.getProperty("carga.privadas", "0.1"));
+    private final int tamanho = Integer.getInteger("carga.tamanho", 64);       // Bytes de conteúdo por mensagem.
+    private final int aquecimento = Integer.getInteger("carga.aquecimento", 5); // Segundos descartados no início.
+    private final int duracao = Integer.getInteger("carga.segundos", 30);      // Segundos de medição.
+    private final String prefixo = System.getProperty("carga.prefixo", "carga");
+
+    private final Histograma latencias = new Histograma();
+    private final LongAdder publicasEnviadas = new LongAdder();
+    private final LongAdder privadasEnviadas = new LongAdder();
+    private final LongAdder entregues = new LongAdder();
+    private final LongAdder erros = new LongAdder();
+    private final List<ClienteCarga> clientes = new ArrayList<>();
+    private volatile boolean rodando = true;
+
+    private final ExecutorService executor = novoExecutor();
+
+    public static void main(String[] args) throws Exception {
+        new GeradorCarga().executar();
+    }
+
+    private void executar() throws Exception {
+        InetAddress endereco = InetAddress.getByName(host);
+        if (!endereco.isLoopbackAddress()) {
+            System.err.println("O gerador de carga só pode ser usado contra um servidor local (loopback): " + host);
+            System.exit(1);
+        }
+
+        System.out.println("Conectando " + quantidadeClientes + " clientes a " + host + ":" + porta + "...");
+        conectarTodos(new InetSocketAddress(endereco, porta));
+        if (clientes.size() < 2) {
+            System.err.println("São necessários ao menos 2 clientes conectados.");
+            encerrar();
+            return;
+        }
+        System.out.println(clientes.size() + " clientes conectados. Enviando " + taxa + " mensagens/s ("
+            + Math.round(fracaoPrivadas * 100) + "% privadas, " + tamanho + " bytes)...");
+
+        long inicio = System.nanoTime();
+        long intervalo = TimeUnit.SECONDS.toNanos(1) * clientes.size() / Math.max(1, taxa);
+        for (ClienteCarga cliente : clientes) {
+            // Início espalhado no primeiro intervalo para não enviar tudo em rajadas sincronizadas:
+            long primeiroEnvio = inicio + ThreadLocalRandom.current().nextLong(Math.max(1, intervalo));
+            executor.execute(() -> cliente.enviarPeriodicamente(primeiroEnvio, intervalo));
+        }
+
+        TimeUnit.SECONDS.sleep(aquecimento);
+        latencias.limpar();
+        publicasEnviadas.reset();
+        privadasEnviadas.reset();
+        entregues.reset();
+
+        long comecoMedicao = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duracao);
+        double segundos = (System.nanoTime() - comecoMedicao) / 1e9;
+        exibirRelatorio(segundos);
+        encerrar();
+    }
+
+    // Conecta os clientes em paralelo e aguarda todos concluírem o handshake (ou falharem):
+    private void conectarTodos(InetSocketAddress endereco) throws InterruptedException {
+        CountDownLatch conectados = new CountDownLatch(quantidadeClientes);
+        List<ClienteCarga> novos = new ArrayList<>();
+        for (int i = 0; i < quantidadeClientes; i++) {
+            ClienteCarga cliente = new ClienteCarga(prefixo + i);
+            novos.add(cliente);
+            executor.execute(() -> {
+                try {
+                    cliente.conectar(endereco);
+                } catch (IOException e) {
+                    erros.increment();
+                    System.err.println("Falha ao conectar " + cliente.nome + ": " + e.getMessage());
+                } finally {
+                    conectados.countDown();
+                }
+            });
+        }
+        conectados.await();
+        for (ClienteCarga cliente : novos) {
+            if (cliente.conectado) {
+                clientes.add(cliente);
+                executor.execute(cliente::receber);
+            }
+        }
+    }
+
+    private void exibirRelatorio(double segundos) {
+        long publicas = publicasEnviadas.sum();
+        long privadas = privadasEnviadas.sum();
+        System.out.println("\n=== RESULTADO (" + String.format("%.1f", segundos) + " s) ===");
+        System.out.println("Conexões:             " + clientes.size());
+        System.out.printf("Enviadas:             %d (%.0f/s; %d públicas, %d privadas)%n",
+            publicas + privadas, (publicas + privadas) / segundos, publicas, privadas);
+        System.out.printf("Entregues:            %d (%.0f/s)%n", entregues.sum(), entregues.sum() / segundos);
+        System.out.printf("Latência p50:         %.3f ms%n", latencias.percentil(0.50) / 1e6);
+        System.out.printf("Latência p99:         %.3f ms%n", latencias.percentil(0.99) / 1e6);
+        System.out.printf("Latência p999:        %.3f ms%n", latencias.percentil(0.999) / 1e6);
+        System.out.printf("Latência máxima:      %.3f ms%n", latencias.maximo() / 1e6);
+        System.out.println("Erros:                " + erros.sum());
+    }
+
+    private void encerrar() {
+        rodando = false;
+        for (ClienteCarga cliente : clientes) {
+            cliente.fechar();
+        }
+        executor.shutdownNow();
+    }
+
+    // Threads virtuais (JDK 21) são obtidas por reflexão, como no servidor, para compilar com JDKs anteriores:
+    private static ExecutorService novoExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /*
+     * Uma conexão simulada: a thread leitora consome tudo o que o servidor envia e mede as
+     * mensagens do gerador; a thread de envio é a única que escreve no socket após o handshake.
+     */
+    private class ClienteCarga {
+        private final String nome;
+        private final TabelaNomes tabelaNomes = new TabelaNomes();
+        private Socket socket;
+        private DataInputStream entrada;
+        private OutputStream saida;
+        private volatile boolean conectado = false;
+
+        ClienteCarga(String nome) {
+            this.nome = nome;
+        }
+
+        // Handshake igual ao do ClienteSwing: aguarda SOLICITAR_NOME, responde o nome e espera as boas-vindas:
+        void conectar(InetSocketAddress endereco) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(endereco);
+            entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            saida = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                Mensagem mensagem = Protocolo.ler(entrada, tabelaNomes);
+                if (!"SISTEMA".equals(mensagem.getRemetente())) {
+                    continue;
+                }
+                String conteudo = mensagem.getConteudo();
+                if ("SOLICITAR_NOME".equals(conteudo)) {
+                    Protocolo.escrever(saida, new Mensagem(nome, null, nome));
+                } else if (conteudo.startsWith("Bem-vindo")) {
+                    conectado = true;
+                    return;
+                } else if (conteudo.startsWith("Nome já em uso")) {
+                    throw new IOException("nome recusado pelo servidor");
+                }
+            }
+        }
+
+        // Envia uma mensagem a cada intervalo. O horário registrado é o planejado, não o real: se o
+        // envio atrasar, o atraso entra na latência medida em vez de ser escondido (omissão coordenada).
+        void enviarPeriodicamente(long primeiroEnvio, long intervalo) {
+            long planejado = primeiroEnvio;
+            StringBuilder enchimento = new StringBuilder();
+            while (enchimento.length() < tamanho) {
+                enchimento.append('x');
+            }
+            try {
+                while (rodando) {
+                    long espera = planejado - System.nanoTime();
+                    if (espera > 0) {
+                        LockSupport.parkNanos(espera);
+                        continue;
+                    }
+                    String carga = planejado + " " + enchimento;
+                    Mensagem mensagem;
+                    if (ThreadLocalRandom.current().nextDouble() < fracaoPrivadas) {
+                        mensagem = new Mensagem(nome, outroCliente().nome, carga);
+                        mensagem.setTipo(Mensagem.Tipo.PRIVADA);
+                        privadasEnviadas.increment();
+                    } else {
+                        mensagem = new Mensagem(nome, null, carga);
+                        mensagem.setTipo(Mensagem.Tipo.PUBLICA);
+                        publicasEnviadas.increment();
+                    }
+                    Protocolo.escrever(saida, mensagem);
+                    planejado += intervalo;
+                }
+            } catch (IOException e) {
+                if (rodando) {
+                    erros.increment();
+                }
+            }
+        }
+
+        private ClienteCarga outroCliente() {
+            while (true) {
+                ClienteCarga outro = clientes.get(ThreadLocalRandom.current().nextInt(clientes.size()));
+                if (outro != this) {
+                    return outro;
+                }
+            }
+        }
+
+        // Laço de leitura: toda mensagem vinda de outro cliente do gerador tem a latência registrada:
+        void receber() {
+            try {
+                while (rodando) {
+                    Mensagem mensagem = Protocolo.ler(entrada, tabelaNomes);
+                    String remetente = mensagem.getRemetente();
+                    if (remetente == null || !remetente.startsWith(prefixo)) {
+                        continue;
+                    }
+                    String conteudo = mensagem.getConteudo();
+                    int espaco = conteudo.indexOf(' ');
+                    if (espaco > 0) {
+                        latencias.registrar(System.nanoTime() - Long.parseLong(conteudo.substring(0, espaco)));
+                        entregues.increment();
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                if (rodando) {
+                    erros.increment();
+                }
+            }
+        }
+
+        void fechar() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Encerrando: nada a fazer.
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package Trabalho_2.chat;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Codificador escrito à mão para o formato binário (versão 1) das mensagens, sem reflexão.
+ * Layout do conteúdo de um quadro de mensagem:
+ *     versão (1 byte) | tipo (1 byte) | horário em epoch millis (8 bytes)
+ *     | remetente (ref) | destinatário (ref) | tamanho do conteúdo (varint) | conteúdo UTF-8
+ *     [| sala (ref) [| tipo da mensagem (1 byte, Mensagem.Tipo) [| sequência (varint de 64 bits)]]]
+ * Campos entre colchetes são opcionais e ficam ao final: só são escritos quando presentes e só
+ * são lidos se ainda houver bytes no quadro, mantendo a compatibilidade com versões anteriores.
+ * Uma ref de nome é um varint: 0 = ausente (null), 1 = texto literal a seguir
+ * (tamanho varint + UTF-8), n >= 2 = identificador n - 2 da TabelaNomes.
+ * Quadros de definição de nome: versão | tipo | identificador (varint) | tamanho (varint) | nome UTF-8.
+ * Quadros de batimento: versão | tipo (PING ou PONG) | marca (8 bytes) [| intervalo em ms (varint), no PING].
+ * O PONG devolve a marca do PING respondido; o intervalo informa de quanto em quanto tempo o servidor
+ * envia PINGs (0 no PING com que o cliente anuncia que responde a eles).
+ * Quadros de compressão: versão | tipo | algoritmo (1 byte, Compressao.NENHUMA ou DEFLATE); o cliente
+ * anuncia o que entende e o servidor responde com o que vai usar. Quadros comprimidos: versão | tipo
+ * | dados deflate, que descomprimem para um ou mais quadros completos (ver Compressao).
+ */
+public final class CodecBinario {
+    public static final byte VERSAO = 1;
+
+    // Tipos de quadro do formato binário:
+    public static final byte TIPO_MENSAGEM = 1;
+    public static final byte TIPO_DEFINICAO_NOME = 2;
+    public static final byte TIPO_PING = 3;
+    public static final byte TIPO_PONG = 4;
+    public static final byte TIPO_COMPRESSAO = 5;
+    public static final byte TIPO_COMPRIMIDO = 6;
+
+    private static final int REF_AUSENTE = 0;
+    private static final int REF_LITERAL = 1;
+    private static final int REF_PRIMEIRO_ID = 2;
+
+    private static final Mensagem.Tipo[] TIPOS = Mensagem.Tipo.values();  // values() copia o array a cada chamada.
+
+    private CodecBinario() {}
+
+    // Codifica o conteúdo do quadro. Com tabela == null os nomes são enviados como texto (usado pelo cliente);
+    // uma sequência > 0 numera o quadro (usado pelo servidor nas mensagens enviadas aos clientes):
+    public static byte[] codificar(Mensagem mensagem, TabelaNomes tabela, long sequencia) {
+        return codificar(mensagem, tabela, sequencia, 0);
+    }
+
+    // Idem, deixando os primeiros bytes do array livres (para o prefixo de tamanho, sem copiar o quadro
+    // depois). O conteúdo é escrito em UTF-8 direto no array, sem um byte[] intermediário:
+    static byte[] codificar(Mensagem mensagem, TabelaNomes tabela, long sequencia, int reserva) {
+        byte[] remetente = literal(mensagem.getRemetente(), tabela);
+        byte[] destinatario = literal(mensagem.getDestinatario(), tabela);
+        String conteudo = mensagem.getConteudo() != null ? mensagem.getConteudo() : "";
+        int tamanhoConteudo = tamanhoUtf8(conteudo);
+        byte[] sala = literal(mensagem.getSala(), tabela);
+        // O tipo só vai no quadro quando informado ou antes da sequência; para escrevê-lo, a sala (mesmo
+        // ausente) vem antes:
+        boolean comSequencia = sequencia > 0;
+        boolean comTipo = mensagem.isTipoInformado() || comSequencia;
+
+        int tamanho = 2 + 8
+            + tamanhoRef(mensagem.getRemetente(), remetente, tabela)
+            + tamanhoRef(mensagem.getDestinatario(), destinatario, tabela)
+            + tamanhoVarint(tamanhoConteudo) + tamanhoConteudo
+            + (mensagem.getSala() != null || comTipo ? tamanhoRef(mensagem.getSala(), sala, tabela) : 0)
+            + (comTipo ? 1 : 0)
+            + (comSequencia ? tamanhoVarlong(sequencia) : 0);
+
+        ByteBuffer buffer = ByteBuffer.allocate(reserva + tamanho);
+        buffer.position(reserva);
+        buffer.put(VERSAO).put(TIPO_MENSAGEM).putLong(mensagem.getHorarioMillis());
+        escreverRef(buffer, mensagem.getRemetente(), remetente, tabela);
+        escreverRef(buffer, mensagem.getDestinatario(), destinatario, tabela);
+        escreverVarint(buffer, tamanhoConteudo);
+        escreverUtf8(buffer, conteudo, tamanhoConteudo);
+        if (mensagem.getSala() != null || comTipo) {
+            escreverRef(buffer, mensagem.getSala(), sala, tabela);
+        }
+        if (comTipo) {
+            buffer.put((byte) mensagem.getTipo().ordinal());
+        }
+        if (comSequencia) {
+            escreverVarlong(buffer, sequencia);
+        }
+        return buffer.array();
+    }
+
+    // Codifica o conteúdo de um quadro de definição de nome:
+    public static byte[] codificarDefinicao(int id, String nome) {
+        byte[] texto = utf8(nome);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + tamanhoVarint(id) + tamanhoVarint(texto.length) + texto.length);
+        buffer.put(VERSAO).put(TIPO_DEFINICAO_NOME);
+        escreverVarint(buffer, id);
+        escreverVarint(buffer, texto.length);
+        buffer.put(texto);
+        return buffer.array();
+    }
+
+    // Codifica o conteúdo de um quadro de batimento (PING com o intervalo ou PONG):
+    public static byte[] codificarBatimento(byte tipo, long marca, int intervalo) {
+        boolean comIntervalo = tipo == TIPO_PING;
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 8 + (comIntervalo ? tamanhoVarint(intervalo) : 0));
+        buffer.put(VERSAO).put(tipo).putLong(marca);
+        if (comIntervalo) {
+            escreverVarint(buffer, intervalo);
+        }
+        return buffer.array();
+    }
+
+    // Codifica o conteúdo de um quadro de compressão:
+    public static byte[] codificarCompressao(byte algoritmo) {
+        return new byte[] {VERSAO, TIPO_COMPRESSAO, algoritmo};
+    }
+
+    // Algoritmo informado num quadro de compressão:
+    public static byte lerAlgoritmo(byte[] dados, int inicio, int tamanho) throws IOException {
+        if (tamanho < 3) {
+            throw new StreamCorruptedException("Quadro de compressão malformado");
+        }
+        return dados[inicio + 2];
+    }
+
+    // Tipo de um quadro binário (0 se o quadro não está no formato binário):
+    public static byte tipoQuadro(byte[] dados, int inicio, int tamanho) {
+        return tamanho >= 2 && dados[inicio] == VERSAO ? dados[inicio + 1] : 0;
+    }
+
+    // Marca de um quadro de batimento:
+    public static long lerMarca(byte[] dados, int inicio, int tamanho) throws IOException {
+        if (tamanho < 10) {
+            throw new StreamCorruptedException("Quadro de batimento malformado");
+        }
+        return ByteBuffer.wrap(dados, inicio + 2, 8).getLong();
+    }
+
+    // Intervalo informado num PING, em milissegundos (0 se ausente):
+    public static int lerIntervalo(byte[] dados, int inicio, int tamanho) throws IOException {
+        if (tamanho <= 10) {
+            return 0;
+        }
+        try {
+            return lerVarint(ByteBuffer.wrap(dados, inicio + 10, tamanho - 10));
+        } catch (RuntimeException e) {
+            throw new StreamCorruptedException("Quadro de batimento malformado: " + e);
+        }
+    }
+
+    // Decodifica o conteúdo de um quadro binário. Quadros de definição atualizam a tabela e retornam null,
+    // assim como os de batimento e de compressão (tratados antes por quem responde a eles):
+    public static Mensagem decodificar(byte[] dados, int inicio, int tamanho, TabelaNomes tabela) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dados, inicio, tamanho);
+        try {
+            if (buffer.get() != VERSAO) {
+                throw new StreamCorruptedException("Versão de protocolo desconhecida");
+            }
+            byte tipo = buffer.get();
+            switch (tipo) {
+                case TIPO_MENSAGEM: {
+                    long horario = buffer.getLong();
+                    String remetente = lerRef(buffer, tabela);
+                    String destinatario = lerRef(buffer, tabela);
+                    String conteudo = lerTexto(buffer);
+                    Mensagem mensagem = new Mensagem(remetente, destinatario, conteudo, horario);
+                    if (buffer.hasRemaining()) {
+                        mensagem.setSala(lerRef(buffer, tabela));
+                    }
+                    if (buffer.hasRemaining()) {
+                        mensagem.setTipo(lerTipo(buffer.get()));
+                    }
+                    if (buffer.hasRemaining()) {
+                        mensagem.setSequencia(lerVarlong(buffer));
+                    }
+                    return mensagem;
+                }
+                case TIPO_DEFINICAO_NOME:
+                    tabela.definir(lerVarint(buffer), lerTexto(buffer));
+                    return null;
+                case TIPO_PING:
+                case TIPO_PONG:
+                case TIPO_COMPRESSAO:
+                case TIPO_COMPRIMIDO:
+                    return null;
+                default:
+                    throw new StreamCorruptedException("Tipo de quadro desconhecido: " + tipo);
+            }
+        } catch (RuntimeException e) {  // BufferUnderflowException e afins: quadro truncado.
+            throw new StreamCorruptedException("Quadro binário malformado: " + e);
+        }
+    }
+
+    private static Mensagem.Tipo lerTipo(byte valor) throws IOException {
+        if (valor < 0 || valor >= TIPOS.length) {
+            throw new StreamCorruptedException("Tipo de mensagem desconhecido: " + valor);
+        }
+        return TIPOS[valor];
+    }
+
+    // Métodos auxiliares para refs de nomes, textos e varints:
+    // Sem tabela, ou para um nome sem identificador registrado, a ref leva o texto do nome:
+    private static byte[] literal(String nome, TabelaNomes tabela) {
+        return (nome == null || (tabela != null && tabela.procurar(nome) >= 0)) ? null : utf8(nome);
+    }
+
+    private static int tamanhoRef(String nome, byte[] literal, TabelaNomes tabela) {
+        if (nome == null) {
+            return 1;
+        }
+        if (literal == null) {
+            return tamanhoVarint(tabela.procurar(nome) + REF_PRIMEIRO_ID);
+        }
+        return 1 + tamanhoVarint(literal.length) + literal.length;
+    }
+
+    private static void escreverRef(ByteBuffer buffer, String nome, byte[] literal, TabelaNomes tabela) {
+        if (nome == null) {
+            escreverVarint(buffer, REF_AUSENTE);
+        } else if (literal == null) {
+            escreverVarint(buffer, tabela.procurar(nome) + REF_PRIMEIRO_ID);
+        } else {
+            escreverVarint(buffer, REF_LITERAL);
+            escreverVarint(buffer, literal.length);
+            buffer.put(literal);
+        }
+    }
+
+    private static String lerRef(ByteBuffer buffer, TabelaNomes tabela) throws IOException {
+        int ref = lerVarint(buffer);
+        if (ref == REF_AUSENTE) {
+            return null;
+        }
+        if (ref == REF_LITERAL) {
+            if (tabela == null) {
+                return lerTexto(buffer);
+            }
+            // Nomes repetidos são reconhecidos pelos bytes, sem criar uma String a cada mensagem:
+            int tamanho = lerVarint(buffer);
+            if (tamanho > buffer.remaining()) {
+                throw new StreamCorruptedException("Texto maior que o quadro: " + tamanho);
+            }
+            String nome = tabela.internar(buffer.array(), buffer.arrayOffset() + buffer.position(), tamanho);
+            buffer.position(buffer.position() + tamanho);
+            return nome;
+        }
+        String nome = tabela != null ? tabela.nome(ref - REF_PRIMEIRO_ID) : null;
+        if (nome == null) {
+            throw new StreamCorruptedException("Identificador de nome desconhecido: " + (ref - REF_PRIMEIRO_ID));
+        }
+        return nome;
+    }
+
+    private static String lerTexto(ByteBuffer buffer) throws IOException {
+        int tamanho = lerVarint(buffer);
+        if (tamanho > buffer.remaining()) {
+            throw new StreamCorruptedException("Texto maior que o quadro: " + tamanho);
+        }
+        String texto = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), tamanho, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + tamanho);
+        return texto;
+    }
+
+    private static byte[] utf8(String texto) {
+        return texto == null ? new byte[0] : texto.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Bytes do texto em UTF-8. Um surrogate sem par vira U+FFFD (3 bytes), de modo que o total só é igual
+    // ao número de chars quando o texto é todo ASCII:
+    static int tamanhoUtf8(String texto) {
+        int bytes = 0;
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < texto.length() && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // Escreve o texto (de tamanhoUtf8() bytes) em UTF-8 direto no array do buffer. Texto só com ASCII, o
+    // caso comum, é copiado de uma vez: getBytes(int, int, byte[], int) copia o byte baixo de cada char,
+    // que nesse caso é exatamente o UTF-8:
+    @SuppressWarnings("deprecation")
+    static void escreverUtf8(ByteBuffer buffer, String texto, int bytes) {
+        byte[] destino = buffer.array();
+        int posicao = buffer.arrayOffset() + buffer.position();
+        int tamanho = texto.length();
+        if (bytes == tamanho) {
+            texto.getBytes(0, tamanho, destino, posicao);
+            buffer.position(buffer.position() + tamanho);
+            return;
+        }
+        for (int i = 0; i < tamanho; i++) {
+            char c = texto.charAt(i);
+            if (c < 0x80) {
+                destino[posicao++] = (byte) c;
+            } else if (c < 0x800) {
+                destino[posicao++] = (byte) (0xC0 | (c >> 6));
+                destino[posicao++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < tamanho && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                int codigo = Character.toCodePoint(c, texto.charAt(++i));
+                destino[posicao++] = (byte) (0xF0 | (codigo >> 18));
+                destino[posicao++] = (byte) (0x80 | ((codigo >> 12) & 0x3F));
+                destino[posicao++] = (byte) (0x80 | ((codigo >> 6) & 0x3F));
+                destino[posicao++] = (byte) (0x80 | (codigo & 0x3F));
+            } else {
+                c = Character.isSurrogate(c) ? '\uFFFD' : c;
+                destino[posicao++] = (byte) (0xE0 | (c >> 12));
+                destino[posicao++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                destino[posicao++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer.position(posicao - buffer.arrayOffset());
+    }
+
+    static int tamanhoVarint(int valor) {
+        int bytes = 1;
+        while ((valor & ~0x7F) != 0) {
+            valor >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    static void escreverVarint(ByteBuffer buffer, int valor) {
+        while ((valor & ~0x7F) != 0) {
+            buffer.put((byte) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        buffer.put((byte) valor);
+    }
+
+    static int tamanhoVarlong(long valor) {
+        int bytes = 1;
+        while ((valor & ~0x7FL) != 0) {
+            valor >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    static void escreverVarlong(ByteBuffer buffer, long valor) {
+        while ((valor & ~0x7FL) != 0) {
+            buffer.put((byte) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        buffer.put((byte) valor);
+    }
+
+    static long lerVarlong(ByteBuffer buffer) throws IOException {
+        long valor = 0;
+        for (int deslocamento = 0; deslocamento < 64; deslocamento += 7) {
+            byte b = buffer.get();
+            valor |= (long) (b & 0x7F) << deslocamento;
+            if ((b & 0x80) == 0) {
+                return valor;
+            }
+        }
+        throw new StreamCorruptedException("Varint malformado");
+    }
+
+    static int lerVarint(ByteBuffer buffer) throws IOException {
+        int valor = 0;
+        for (int deslocamento = 0; deslocamento < 32; deslocamento += 7) {
+            byte b = buffer.get();
+            valor |= (b & 0x7F) << deslocamento;
+            if ((b & 0x80) == 0) {
+                return valor;
+            }
+        }
+        throw new StreamCorruptedException("Varint malformado");
+    }
+}
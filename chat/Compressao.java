@@ -0,0 +1,131 @@
+package Trabalho_2.chat;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compressão opcional dos quadros enviados pelo servidor, negociada por conexão. O cliente anuncia o
+ * algoritmo que entende num quadro de compressão enviado antes do nome, e o servidor responde com o
+ * algoritmo aceito (ou NENHUMA). A partir daí, os lotes de quadros que o escritor da conexão junta
+ * podem seguir num quadro comprimido: deflate sem cabeçalho, com um dicionário inicial comum aos dois
+ * lados e um único contexto para toda a conexão, de modo que mensagens pequenas e repetitivas
+ * aproveitem o que já foi enviado. Cada quadro comprimido termina com um SYNC_FLUSH (sem os 4 bytes
+ * finais 00 00 FF FF, sempre iguais) e descomprime para um ou mais quadros completos, com os prefixos
+ * de tamanho. Lotes pequenos continuam indo sem compressão, intercalados com os comprimidos.
+ */
+public final class Compressao {
+    public static final byte NENHUMA = 0;
+    public static final byte DEFLATE = 1;
+
+    private static final byte[] FIM_SINCRONIZACAO = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    private static final int MAXIMO_DESCOMPRIMIDO = 1024 * 1024;  // Por quadro comprimido.
+
+    // Dicionário inicial: textos frequentes nas mensagens do chat, os mais comuns por último (mais perto
+    // dos dados, com distâncias menores):
+    private static final byte[] DICIONARIO = (
+        "Nenhuma mensagem encontrada. mensagens encontradas: Últimas mensagens: Usuários conectados "
+        + "Você entrou na sala #Você saiu da sala # mensagens recebidas enquanto estava desconectado. "
+        + "obrigado obrigada por favor tudo bem bom dia boa tarde boa noite olá oi pessoal alguém "
+        + "você vocês está estou isso aqui agora então também porque quando muito mais para com uma que não "
+        + " saiu do chat! entrou no chat! Bem-vindo ao chat, SISTEMA"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private Compressao() {}
+
+    // Compressor com o dicionário já carregado (um por conexão, usado apenas pelo escritor dela):
+    public static Deflater novoCompressor(int nivel) {
+        Deflater compressor = new Deflater(nivel, true);
+        compressor.setDictionary(DICIONARIO);
+        return compressor;
+    }
+
+    // Comprime os bytes no contexto da conexão e retorna o conteúdo do quadro comprimido
+    // (versão | tipo | dados deflate), a partir da posição reservada para o prefixo de tamanho:
+    public static byte[] comprimir(Deflater compressor, byte[] entrada, int tamanho) {
+        compressor.setInput(entrada, 0, tamanho);
+        byte[] saida = new byte[Protocolo.TAMANHO_CABECALHO + 2 + tamanho / 2 + 64];
+        int escritos = Protocolo.TAMANHO_CABECALHO + 2;
+        while (true) {
+            escritos += compressor.deflate(saida, escritos, saida.length - escritos, Deflater.SYNC_FLUSH);
+            if (escritos < saida.length) {
+                break;  // Sobrou espaço: toda a entrada foi comprimida e descarregada.
+            }
+            saida = Arrays.copyOf(saida, saida.length * 2);
+        }
+        int tamanhoQuadro = escritos - FIM_SINCRONIZACAO.length;
+        byte[] quadro = Arrays.copyOf(saida, tamanhoQuadro);
+        int conteudo = tamanhoQuadro - Protocolo.TAMANHO_CABECALHO;
+        quadro[0] = (byte) (conteudo >>> 24);
+        quadro[1] = (byte) (conteudo >>> 16);
+        quadro[2] = (byte) (conteudo >>> 8);
+        quadro[3] = (byte) conteudo;
+        quadro[4] = CodecBinario.VERSAO;
+        quadro[5] = CodecBinario.TIPO_COMPRIMIDO;
+        return quadro;
+    }
+
+    /*
+     * Lado do cliente: mantém o contexto de descompressão da conexão e devolve o conteúdo dos quadros
+     * contidos em cada quadro comprimido recebido, na ordem.
+     */
+    public static final class Descompressor {
+        private final Inflater descompressor = new Inflater(true);
+        private byte[] saida = new byte[4096];
+
+        public Descompressor() {
+            descompressor.setDictionary(DICIONARIO);
+        }
+
+        public List<byte[]> descomprimir(byte[] dados, int inicio, int tamanho) throws IOException {
+            byte[] entrada = Arrays.copyOfRange(dados, inicio + 2, inicio + tamanho + FIM_SINCRONIZACAO.length);
+            System.arraycopy(FIM_SINCRONIZACAO, 0, entrada, tamanho - 2, FIM_SINCRONIZACAO.length);
+            descompressor.setInput(entrada);
+            int total = 0;
+            try {
+                while (descompressor.getRemaining() > 0) {
+                    if (total == saida.length) {
+                        if (total >= MAXIMO_DESCOMPRIMIDO) {
+                            throw new StreamCorruptedException("Quadro comprimido grande demais");
+                        }
+                        saida = Arrays.copyOf(saida, saida.length * 2);
+                    }
+                    int lidos = descompressor.inflate(saida, total, saida.length - total);
+                    if (lidos == 0 && descompressor.needsInput()) {
+                        break;
+                    }
+                    total += lidos;
+                }
+            } catch (DataFormatException e) {
+                throw new StreamCorruptedException("Quadro comprimido inválido: " + e.getMessage());
+            }
+
+            List<byte[]> quadros = new ArrayList<>();
+            int posicao = 0;
+            while (posicao < total) {
+                if (total - posicao < Protocolo.TAMANHO_CABECALHO) {
+                    throw new StreamCorruptedException("Quadro incompleto dentro do quadro comprimido");
+                }
+                int tamanhoQuadro = Protocolo.validarTamanho(((saida[posicao] & 0xFF) << 24) | ((saida[posicao + 1] & 0xFF) << 16)
+                    | ((saida[posicao + 2] & 0xFF) << 8) | (saida[posicao + 3] & 0xFF));
+                posicao += Protocolo.TAMANHO_CABECALHO;
+                if (posicao + tamanhoQuadro > total) {
+                    throw new StreamCorruptedException("Quadro incompleto dentro do quadro comprimido");
+                }
+                quadros.add(Arrays.copyOfRange(saida, posicao, posicao + tamanhoQuadro));
+                posicao += tamanhoQuadro;
+            }
+            return quadros;
+        }
+
+        public void liberar() {
+            descompressor.end();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package Trabalho_2.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/*
+ * Criação dos contextos TLS do servidor (com o certificado e a chave de um keystore) e do cliente
+ * (confiando nos certificados de um truststore, ou nos padrões do JDK). O mesmo contexto deve ser
+ * usado por todas as conexões de um lado: é nele que fica o cache de sessões que permite às
+ * reconexões retomarem a sessão anterior, com um handshake abreviado, sem a troca de chaves completa.
+ * Os keystores podem ser PKCS12 ou JKS (o tipo é detectado pelo conteúdo do arquivo).
+ */
+public final class ContextoTls {
+    private ContextoTls() {}
+
+    // Contexto do servidor; o cache de sessões guarda até `sessoes` sessões por `validade` segundos
+    // (0 = sem limite), e é ele que atende as retomadas dos clientes que reconectam:
+    public static SSLContext servidor(String keystore, char[] senha, int sessoes, int validade)
+            throws IOException, GeneralSecurityException {
+        KeyManagerFactory chaves = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        chaves.init(carregar(keystore, senha), senha);
+        SSLContext contexto = SSLContext.getInstance("TLS");
+        contexto.init(chaves.getKeyManagers(), null, null);
+        SSLSessionContext cache = contexto.getServerSessionContext();
+        cache.setSessionCacheSize(Math.max(0, sessoes));
+        cache.setSessionTimeout(Math.max(0, validade));
+        return contexto;
+    }
+
+    // Contexto do cliente; sem truststore, valem os certificados confiáveis do JDK (ou os de
+    // javax.net.ssl.trustStore):
+    public static SSLContext cliente(String truststore, char[] senha) throws IOException, GeneralSecurityException {
+        if (truststore == null || truststore.isEmpty()) {
+            return SSLContext.getDefault();
+        }
+        TrustManagerFactory confianca = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        confianca.init(carregar(truststore, senha));
+        SSLContext contexto = SSLContext.getInstance("TLS");
+        contexto.init(null, confianca.getTrustManagers(), null);
+        return contexto;
+    }
+
+    private static KeyStore carregar(String arquivo, char[] senha) throws IOException, GeneralSecurityException {
+        KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream entrada = Files.newInputStream(Paths.get(arquivo))) {
+            keystore.load(entrada, senha);
+        }
+        return keystore;
+    }
+}
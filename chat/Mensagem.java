@@ -1,35 +1,121 @@
 package Trabalho_2.chat;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
+/*
+ * Mensagem trocada entre cliente e servidor. O horário fica guardado como epoch millis (um long, sem
+ * objetos de data a cada mensagem) e só vira LocalDateTime quando alguém pede; no formato serializado
+ * (versão 0) ele continua indo como o campo DataEHorario, igual ao dos clientes antigos.
+ */
 public class Mensagem implements Serializable {
+    private static final long serialVersionUID = 5169676926947111388L;  // Fixado para manter compatibilidade com clientes antigos.
+
+    // Campos do formato serializado, os mesmos da classe antiga (o horário como LocalDateTime):
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("remetente", String.class),
+        new ObjectStreamField("destinatario", String.class),
+        new ObjectStreamField("sala", String.class),
+        new ObjectStreamField("conteudo", String.class),
+        new ObjectStreamField("DataEHorario", LocalDateTime.class),
+    };
+
+    private static final ZoneId FUSO = ZoneId.systemDefault();
+    private static final DateTimeFormatter FORMATO_HORARIO = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").withZone(FUSO);
+
+    // Tipo da mensagem, que define o tratamento no servidor sem examinar o conteúdo
+    // (PRESENCA e SESSAO só são enviadas a clientes que pediram as atualizações de presença ou uma sessão):
+    public enum Tipo { PUBLICA, PRIVADA, COMANDO, SISTEMA, PRESENCA, SESSAO }
+
     private String remetente;
     private String destinatario; // null para broadcast
+    private String sala;         // null para mensagens fora de salas
     private String conteudo;
-    private LocalDateTime DataEHorario;
+    private transient long horario;   // Epoch millis.
+    private transient Tipo tipo; // null quando o cliente não informou (formato serializado ou versão antiga)
+    private transient long sequencia; // Número atribuído pelo servidor ao quadro enviado (0 = sem número)
 
     public Mensagem(String remetente, String destinatario, String conteudo) {
+        this(remetente, destinatario, conteudo, System.currentTimeMillis());
+    }
+
+    // Usado na decodificação, em que o horário (em epoch millis) vem do quadro recebido:
+    public Mensagem(String remetente, String destinatario, String conteudo, long horario) {
         this.remetente = remetente;
         this.destinatario = destinatario;
         this.conteudo = conteudo;
-        this.DataEHorario = LocalDateTime.now();
+        this.horario = horario;
+    }
+
+    public Mensagem(String remetente, String destinatario, String conteudo, LocalDateTime dataEHorario) {
+        this(remetente, destinatario, conteudo, paraMillis(dataEHorario));
     }
 
     // Getters
     public String getRemetente() { return remetente; }
     public String getDestinatario() { return destinatario; }
     public String getConteudo() { return conteudo; }
-    public LocalDateTime getHorario() { return DataEHorario; }
+    public long getHorarioMillis() { return horario; }
+    public LocalDateTime getHorario() { return LocalDateTime.ofInstant(Instant.ofEpochMilli(horario), FUSO); }
+    public String getSala() { return sala; }
+
+    // Tipo informado pelo cliente; sem ele, é deduzido como nas versões anteriores (comandos começam com "/"):
+    public Tipo getTipo() {
+        if (tipo != null) {
+            return tipo;
+        }
+        if ("SISTEMA".equals(remetente)) {
+            return Tipo.SISTEMA;
+        }
+        if (conteudo != null && !conteudo.isEmpty() && conteudo.charAt(0) == '/') {
+            return Tipo.COMANDO;
+        }
+        return destinatario != null ? Tipo.PRIVADA : Tipo.PUBLICA;
+    }
+
+    public boolean isTipoInformado() { return tipo != null; }
+    public long getSequencia() { return sequencia; }
 
     // Setters para processamento no servidor
     public void setConteudo(String conteudo) { this.conteudo = conteudo; }
+    public void setSala(String sala) { this.sala = sala; }
+    public void setTipo(Tipo tipo) { this.tipo = tipo; }
+    public void setSequencia(long sequencia) { this.sequencia = sequencia; }
 
     @Override
     public String toString() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
-        String destino = (destinatario == null) ? "Todos" : destinatario;
-        return "[" + DataEHorario.format(formatter) + "] " + remetente + " -> " + destino + ": " + conteudo;
+        String destino = (sala != null) ? "#" + sala : (destinatario == null) ? "Todos" : destinatario;
+        return "[" + FORMATO_HORARIO.format(Instant.ofEpochMilli(horario)) + "] " + remetente + " -> " + destino + ": " + conteudo;
+    }
+
+    private static long paraMillis(LocalDateTime dataEHorario) {
+        return dataEHorario == null ? System.currentTimeMillis() : dataEHorario.atZone(FUSO).toInstant().toEpochMilli();
+    }
+
+    // Formato serializado: escreve e lê os campos da classe antiga, convertendo o horário:
+    private void writeObject(ObjectOutputStream saida) throws IOException {
+        ObjectOutputStream.PutField campos = saida.putFields();
+        campos.put("remetente", remetente);
+        campos.put("destinatario", destinatario);
+        campos.put("sala", sala);
+        campos.put("conteudo", conteudo);
+        campos.put("DataEHorario", getHorario());
+        saida.writeFields();
+    }
+
+    private void readObject(ObjectInputStream entrada) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField campos = entrada.readFields();
+        remetente = (String) campos.get("remetente", null);
+        destinatario = (String) campos.get("destinatario", null);
+        sala = (String) campos.get("sala", null);
+        conteudo = (String) campos.get("conteudo", null);
+        horario = paraMillis((LocalDateTime) campos.get("DataEHorario", null));
     }
 }
@@ -0,0 +1,125 @@
+package Trabalho_2.chat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/*
+ * Atualizações de presença (quem está conectado) enviadas aos clientes que as pedem com /presenca.
+ * Em vez de uma lista formatada a cada pedido, o cliente recebe um instantâneo ao assinar e depois
+ * lotes com as entradas e saídas, numerados por uma sequência global de eventos:
+ *     instantâneo: "I <sequência> <partes restantes>" e um nome por linha;
+ *     lote:        "D <sequência do primeiro evento>" e uma linha "+nome" ou "-nome" por evento.
+ * Instantâneos e lotes grandes são divididos em várias mensagens para caber no quadro.
+ *
+ * Do lado do cliente, uma instância guarda a lista de usuários e aplica as mensagens recebidas:
+ * eventos já contidos no instantâneo são ignorados, e um salto na sequência indica que algo se
+ * perdeu (ex.: fila de saída cheia) e que um novo instantâneo deve ser pedido.
+ */
+public final class Presenca {
+    public static final String COMANDO = "/presenca";
+    private static final int CARACTERES_POR_MENSAGEM = 16 * 1024;  // Até 48 KB em UTF-8, abaixo do limite do quadro.
+
+    // Resultado da aplicação de uma mensagem de presença:
+    public enum Resultado { ATUALIZADA, IGNORADA, LACUNA }
+
+    private final TreeSet<String> usuarios = new TreeSet<>();
+    private final List<String> parcial = new ArrayList<>();  // Partes já recebidas de um instantâneo.
+    private long sequenciaParcial = -1;
+    private long sequencia = -1;  // -1 até o primeiro instantâneo completo.
+
+    // Codificação (servidor):
+    public static List<Mensagem> instantaneo(long sequencia, Collection<String> nomes) {
+        List<StringBuilder> partes = new ArrayList<>();
+        StringBuilder atual = null;
+        for (String nome : nomes) {
+            if (atual == null || atual.length() + nome.length() > CARACTERES_POR_MENSAGEM) {
+                atual = new StringBuilder();
+                partes.add(atual);
+            }
+            atual.append('\n').append(nome);
+        }
+        if (partes.isEmpty()) {
+            partes.add(new StringBuilder());
+        }
+        List<Mensagem> mensagens = new ArrayList<>(partes.size());
+        for (int i = 0; i < partes.size(); i++) {
+            mensagens.add(mensagem("I " + sequencia + " " + (partes.size() - 1 - i) + partes.get(i)));
+        }
+        return mensagens;
+    }
+
+    // Eventos no formato "+nome" (entrou) ou "-nome" (saiu), em ordem, a partir da sequência informada:
+    public static List<Mensagem> lote(long primeiro, List<String> eventos) {
+        List<Mensagem> mensagens = new ArrayList<>(1);
+        StringBuilder atual = null;
+        long sequencia = primeiro;
+        for (String evento : eventos) {
+            if (atual == null || atual.length() + evento.length() > CARACTERES_POR_MENSAGEM) {
+                if (atual != null) {
+                    mensagens.add(mensagem(atual.toString()));
+                }
+                atual = new StringBuilder("D ").append(sequencia);
+            }
+            atual.append('\n').append(evento);
+            sequencia++;
+        }
+        if (atual != null) {
+            mensagens.add(mensagem(atual.toString()));
+        }
+        return mensagens;
+    }
+
+    private static Mensagem mensagem(String conteudo) {
+        Mensagem mensagem = new Mensagem("SISTEMA", null, conteudo);
+        mensagem.setTipo(Mensagem.Tipo.PRESENCA);
+        return mensagem;
+    }
+
+    // Aplicação (cliente):
+    public Resultado aplicar(Mensagem mensagem) {
+        String[] linhas = mensagem.getConteudo().split("\n");
+        String[] cabecalho = linhas[0].split(" ");
+        long numero = Long.parseLong(cabecalho[1]);
+        if (cabecalho[0].equals("I")) {
+            if (numero != sequenciaParcial) {
+                parcial.clear();
+                sequenciaParcial = numero;
+            }
+            for (int i = 1; i < linhas.length; i++) {
+                parcial.add(linhas[i]);
+            }
+            if (Integer.parseInt(cabecalho[2]) > 0) {
+                return Resultado.IGNORADA;
+            }
+            usuarios.clear();
+            usuarios.addAll(parcial);
+            parcial.clear();
+            sequenciaParcial = -1;
+            sequencia = numero;
+            return Resultado.ATUALIZADA;
+        }
+        if (sequencia < 0) {
+            return Resultado.IGNORADA;  // Aguardando o instantâneo.
+        }
+        if (numero > sequencia + 1) {
+            return Resultado.LACUNA;
+        }
+        boolean alterada = false;
+        for (int i = 1; i < linhas.length; i++, numero++) {
+            if (numero <= sequencia) {
+                continue;  // Já contido no instantâneo.
+            }
+            String nome = linhas[i].substring(1);
+            alterada |= linhas[i].charAt(0) == '+' ? usuarios.add(nome) : usuarios.remove(nome);
+            sequencia = numero;
+        }
+        return alterada ? Resultado.ATUALIZADA : Resultado.IGNORADA;
+    }
+
+    public SortedSet<String> getUsuarios() { return Collections.unmodifiableSortedSet(usuarios); }
+    public long getSequencia() { return sequencia; }
+}
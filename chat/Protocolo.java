@@ -0,0 +1,247 @@
+package Trabalho_2.chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/*
+ * Define o formato de quadro usado na comunicação entre cliente e servidor.
+ * Cada mensagem é enviada como um quadro: um inteiro de 4 bytes com o tamanho do conteúdo,
+ * seguido da mensagem codificada. O prefixo de tamanho permite que o servidor em modo NIO
+ * separe as mensagens de cada conexão sem precisar de uma thread bloqueada em readObject().
+ *
+ * O primeiro byte do conteúdo identifica a versão do formato:
+ *   - 0xAC: versão 0, mensagem serializada com ObjectOutputStream (clientes antigos);
+ *   - 0x01: versão 1, formato binário compacto (CodecBinario).
+ * A versão usada pelo servidor para cada cliente é a mesma da resposta à solicitação de nome.
+ *
+ * Os clientes legados (a primeira versão do ClienteSwing) não usam quadros: trocam as mensagens por um
+ * único ObjectOutputStream aberto sobre o socket, cujo cabeçalho são os primeiros bytes da conexão.
+ */
+public final class Protocolo {
+    public static final int TAMANHO_CABECALHO = 4;             // Bytes do prefixo de tamanho.
+    public static final int TAMANHO_MAXIMO_QUADRO = 64 * 1024;  // Limite para evitar alocações gigantes.
+
+    public static final byte VERSAO_SERIALIZADA = 0;
+    public static final byte VERSAO_BINARIA = CodecBinario.VERSAO;
+    private static final byte INICIO_SERIALIZACAO = (byte) 0xAC;  // Primeiro byte do STREAM_MAGIC.
+
+    // Cabeçalho do stream de um cliente legado (STREAM_MAGIC e STREAM_VERSION). Lido como prefixo de tamanho
+    // ele é negativo, então nunca se confunde com o início de um quadro:
+    public static final int CABECALHO_LEGADO = 0xACED0005;
+    private static final byte REINICIO_STREAM = 0x79;  // TC_RESET: o leitor descarta os objetos anteriores.
+
+    // Filtro da desserialização da versão 0: aceita apenas as classes de uma Mensagem (o horário chega
+    // como java.time.Ser e vira LocalDateTime) e limita profundidade e referências, de modo que um quadro
+    // malicioso não consiga montar grafos de objetos arbitrários:
+    private static final ObjectInputFilter FILTRO_MENSAGEM = ObjectInputFilter.Config.createFilter(
+        "maxdepth=4;maxrefs=16;maxarray=0;Trabalho_2.chat.Mensagem;java.lang.String;java.time.Ser;java.time.LocalDateTime;!*");
+
+    // Filtro do stream de um cliente legado: as mesmas classes, mas as referências e os bytes se acumulam
+    // durante toda a conexão (o cliente nunca reinicia o stream), então os limites valem para a conexão inteira:
+    private static final ObjectInputFilter FILTRO_LEGADO = ObjectInputFilter.Config.createFilter(
+        "maxdepth=4;maxrefs=200000;maxbytes=67108864;maxarray=0;"
+        + "Trabalho_2.chat.Mensagem;java.lang.String;java.time.Ser;java.time.LocalDateTime;!*");
+
+    private Protocolo() {}
+
+    // Gera o quadro binário com os nomes como texto (usado pelo cliente):
+    public static byte[] codificarQuadro(Mensagem mensagem) throws IOException {
+        return codificarQuadro(mensagem, null);
+    }
+
+    // Gera o quadro binário com os nomes substituídos pelos identificadores da tabela:
+    public static byte[] codificarQuadro(Mensagem mensagem, TabelaNomes tabela) throws IOException {
+        return codificarQuadro(mensagem, tabela, 0);
+    }
+
+    // Gera o quadro binário numerado pelo servidor (o cliente informa o último número recebido ao retomar a sessão):
+    public static byte[] codificarQuadro(Mensagem mensagem, TabelaNomes tabela, long sequencia) throws IOException {
+        return prefixar(CodecBinario.codificar(mensagem, tabela, sequencia, TAMANHO_CABECALHO));
+    }
+
+    // Gera o quadro de definição de um nome para o formato binário:
+    public static byte[] codificarQuadroDefinicao(int id, String nome) throws IOException {
+        return emQuadro(CodecBinario.codificarDefinicao(id, nome));
+    }
+
+    // Gera os quadros de batimento: o PING leva uma marca (devolvida no PONG) e o intervalo entre PINGs em ms:
+    public static byte[] codificarQuadroPing(long marca, int intervalo) throws IOException {
+        return emQuadro(CodecBinario.codificarBatimento(CodecBinario.TIPO_PING, marca, intervalo));
+    }
+
+    public static byte[] codificarQuadroPong(long marca) throws IOException {
+        return emQuadro(CodecBinario.codificarBatimento(CodecBinario.TIPO_PONG, marca, 0));
+    }
+
+    public static boolean ehPing(byte[] dados, int inicio, int tamanho) {
+        return CodecBinario.tipoQuadro(dados, inicio, tamanho) == CodecBinario.TIPO_PING;
+    }
+
+    public static boolean ehPong(byte[] dados, int inicio, int tamanho) {
+        return CodecBinario.tipoQuadro(dados, inicio, tamanho) == CodecBinario.TIPO_PONG;
+    }
+
+    public static long marcaBatimento(byte[] dados, int inicio, int tamanho) throws IOException {
+        return CodecBinario.lerMarca(dados, inicio, tamanho);
+    }
+
+    public static int intervaloPing(byte[] dados, int inicio, int tamanho) throws IOException {
+        return CodecBinario.lerIntervalo(dados, inicio, tamanho);
+    }
+
+    // Gera o quadro de compressão (o cliente anuncia o algoritmo que entende e o servidor responde com o escolhido):
+    public static byte[] codificarQuadroCompressao(byte algoritmo) throws IOException {
+        return emQuadro(CodecBinario.codificarCompressao(algoritmo));
+    }
+
+    public static boolean ehCompressao(byte[] dados, int inicio, int tamanho) {
+        return CodecBinario.tipoQuadro(dados, inicio, tamanho) == CodecBinario.TIPO_COMPRESSAO;
+    }
+
+    public static boolean ehDefinicaoNome(byte[] dados, int inicio, int tamanho) {
+        return CodecBinario.tipoQuadro(dados, inicio, tamanho) == CodecBinario.TIPO_DEFINICAO_NOME;
+    }
+
+    public static boolean ehComprimido(byte[] dados, int inicio, int tamanho) {
+        return CodecBinario.tipoQuadro(dados, inicio, tamanho) == CodecBinario.TIPO_COMPRIMIDO;
+    }
+
+    public static byte algoritmoCompressao(byte[] dados, int inicio, int tamanho) throws IOException {
+        return CodecBinario.lerAlgoritmo(dados, inicio, tamanho);
+    }
+
+    // Gera o quadro no formato da versão 0 (mensagem serializada), entendido pelos clientes antigos:
+    public static byte[] codificarQuadroSerializado(Mensagem mensagem) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream objeto = new ObjectOutputStream(bytes);
+        objeto.writeObject(mensagem);
+        objeto.flush();
+        return emQuadro(bytes.toByteArray());
+    }
+
+    // Acrescenta o prefixo de tamanho ao conteúdo:
+    private static byte[] emQuadro(byte[] conteudo) throws IOException {
+        byte[] quadro = new byte[TAMANHO_CABECALHO + conteudo.length];
+        System.arraycopy(conteudo, 0, quadro, TAMANHO_CABECALHO, conteudo.length);
+        return prefixar(quadro);
+    }
+
+    // Preenche o prefixo de tamanho de um quadro codificado com o espaço dele já reservado:
+    private static byte[] prefixar(byte[] quadro) throws IOException {
+        int tamanho = quadro.length - TAMANHO_CABECALHO;
+        if (tamanho > TAMANHO_MAXIMO_QUADRO) {
+            throw new IOException("Mensagem excede o tamanho máximo do quadro: " + tamanho + " bytes");
+        }
+        quadro[0] = (byte) (tamanho >>> 24);
+        quadro[1] = (byte) (tamanho >>> 16);
+        quadro[2] = (byte) (tamanho >>> 8);
+        quadro[3] = (byte) tamanho;
+        return quadro;
+    }
+
+    // Identifica a versão do formato a partir do primeiro byte do conteúdo do quadro:
+    public static byte versao(byte[] dados, int inicio) throws IOException {
+        byte primeiro = dados[inicio];
+        if (primeiro == INICIO_SERIALIZACAO) {
+            return VERSAO_SERIALIZADA;
+        }
+        if (primeiro == VERSAO_BINARIA) {
+            return VERSAO_BINARIA;
+        }
+        throw new StreamCorruptedException("Versão de protocolo desconhecida: " + primeiro);
+    }
+
+    // Reconstrói a mensagem a partir do conteúdo de um quadro (sem o prefixo de tamanho).
+    // Retorna null para quadros de controle, como definições de nomes:
+    public static Mensagem decodificar(byte[] dados, int inicio, int tamanho, TabelaNomes tabela) throws IOException {
+        if (versao(dados, inicio) == VERSAO_BINARIA) {
+            return CodecBinario.decodificar(dados, inicio, tamanho, tabela);
+        }
+        try (ObjectInputStream objeto = new ObjectInputStream(new ByteArrayInputStream(dados, inicio, tamanho))) {
+            objeto.setObjectInputFilter(FILTRO_MENSAGEM);
+            return (Mensagem) objeto.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new InvalidObjectException("Quadro não contém uma mensagem válida: " + e.getMessage());
+        }
+    }
+
+    // Se os primeiros bytes recebidos de uma conexão coincidem com o início do cabeçalho de um cliente legado
+    // (com menos de 4 bytes, ainda pode ser um):
+    public static boolean inicioLegado(byte[] dados, int inicio, int tamanho) {
+        for (int i = 0; i < Math.min(tamanho, TAMANHO_CABECALHO); i++) {
+            if (dados[inicio + i] != (byte) (CABECALHO_LEGADO >>> (24 - 8 * i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Abre a leitura do stream de um cliente legado (o construtor consome o cabeçalho):
+    public static ObjectInputStream abrirLegado(InputStream entrada) throws IOException {
+        ObjectInputStream objetos = new ObjectInputStream(entrada);
+        objetos.setObjectInputFilter(FILTRO_LEGADO);
+        return objetos;
+    }
+
+    // Lê a próxima mensagem do stream de um cliente legado:
+    public static Mensagem lerLegado(ObjectInputStream objetos) throws IOException {
+        try {
+            return (Mensagem) objetos.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new InvalidObjectException("Stream não contém uma mensagem válida: " + e.getMessage());
+        }
+    }
+
+    // Converte quadros da versão 0 (um ou vários seguidos, como num lote) no trecho equivalente do stream de
+    // um cliente legado: cada mensagem vira um TC_RESET seguido do objeto, sem o prefixo de tamanho e sem o
+    // cabeçalho do stream (enviado uma única vez). O reinício faz cada objeto, serializado de forma
+    // independente, ser lido como se fosse o primeiro do stream:
+    public static ByteBuffer paraStreamLegado(ByteBuffer quadros) throws IOException {
+        ByteBuffer trecho = ByteBuffer.allocate(quadros.remaining());  // Cada quadro perde 8 bytes e ganha 1.
+        int posicao = quadros.position();
+        while (posicao < quadros.limit()) {
+            int inicio = posicao + TAMANHO_CABECALHO;
+            int fim = inicio + quadros.getInt(posicao);
+            if (fim <= inicio + 4 || fim > quadros.limit() || quadros.getInt(inicio) != CABECALHO_LEGADO) {
+                throw new IOException("Quadro sem mensagem serializada para o cliente legado");
+            }
+            trecho.put(REINICIO_STREAM);
+            trecho.put(quadros.duplicate().limit(fim).position(inicio + 4));
+            posicao = fim;
+        }
+        return trecho.flip();
+    }
+
+    // Valida o tamanho anunciado no prefixo de um quadro:
+    public static int validarTamanho(int tamanho) throws IOException {
+        if (tamanho <= 0 || tamanho > TAMANHO_MAXIMO_QUADRO) {
+            throw new StreamCorruptedException("Tamanho de quadro inválido: " + tamanho);
+        }
+        return tamanho;
+    }
+
+    // Lê o conteúdo de um quadro completo de um stream bloqueante:
+    public static byte[] lerQuadro(DataInputStream entrada) throws IOException {
+        int tamanho = validarTamanho(entrada.readInt());
+        byte[] dados = new byte[tamanho];
+        entrada.readFully(dados);
+        return dados;
+    }
+
+    // Lê a próxima mensagem de um stream bloqueante, tratando os quadros de controle no caminho:
+    public static Mensagem ler(DataInputStream entrada, TabelaNomes tabela) throws IOException {
+        while (true) {
+            byte[] dados = lerQuadro(entrada);
+            Mensagem mensagem = decodificar(dados, 0, dados.length, tabela);
+            if (mensagem != null) {
+                return mensagem;
+            }
+        }
+    }
+
+    // Escreve uma mensagem como quadro binário em um stream bloqueante:
+    public static void escrever(OutputStream saida, Mensagem mensagem) throws IOException {
+        saida.write(codificarQuadro(mensagem));
+        saida.flush();
+    }
+}
@@ -0,0 +1,126 @@
+package Trabalho_2.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Tabela que associa cada nome de usuário a um identificador numérico. No protocolo binário
+ * os nomes viajam como identificadores; o texto do nome é enviado uma única vez por conexão,
+ * em um quadro de definição. O servidor mantém uma tabela global (que atribui os identificadores)
+ * e cada cliente mantém a sua, preenchida pelas definições recebidas.
+ *
+ * Só recebem identificador os nomes registrados explicitamente (no servidor, usuários aceitos e salas
+ * criadas), até o limite da tabela; os demais viajam como texto. Nomes vindos de fora (remetentes,
+ * destinatários e salas nos quadros dos clientes) nunca criam identificadores, de modo que a tabela
+ * (e o conjunto de nomes já definidos de cada conexão) não cresce com nomes inventados.
+ *
+ * Os nomes que chegam como texto nos quadros dos clientes passam por um cache indexado pelo hash dos
+ * bytes UTF-8: um nome já visto é reconhecido comparando os bytes, sem criar uma String por mensagem.
+ */
+public class TabelaNomes {
+    public static final int LIMITE_PADRAO = 1 << 16;  // Identificadores atribuídos no máximo.
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] nomes = new String[64];  // Índice = identificador.
+    private int proximoId = 0;
+    private final int limite;
+
+    // Cache de mapeamento direto dos nomes recebidos como texto. As entradas são imutáveis, então uma
+    // thread que leia uma entrada antiga (ou a perca para outra) apenas cria a String de novo:
+    private static final int TAMANHO_CACHE = 4096;
+    private final Literal[] literais = new Literal[TAMANHO_CACHE];
+
+    private static final class Literal {
+        final byte[] utf8;
+        final String nome;
+
+        Literal(byte[] utf8, String nome) {
+            this.utf8 = utf8;
+            this.nome = nome;
+        }
+    }
+
+    public TabelaNomes() {
+        this(LIMITE_PADRAO);
+    }
+
+    public TabelaNomes(int limite) {
+        this.limite = limite;
+    }
+
+    // Registra o nome e retorna o seu identificador, atribuindo um novo se ainda não existir
+    // (-1 se a tabela está cheia: o nome continua sendo enviado como texto):
+    public int id(String nome) {
+        Integer id = ids.get(nome);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(nome);
+            if (id == null) {
+                if (proximoId >= limite) {
+                    return -1;
+                }
+                id = proximoId++;
+                guardar(id, nome);
+                ids.put(nome, id);
+            }
+            return id;
+        }
+    }
+
+    // Identificador de um nome já registrado, sem registrá-lo (-1 se ele não tem um):
+    public int procurar(String nome) {
+        Integer id = ids.get(nome);
+        return id != null ? id : -1;
+    }
+
+    // Retorna o nome associado ao identificador (ou null se desconhecido):
+    public String nome(int id) {
+        String[] atual = nomes;
+        return (id >= 0 && id < atual.length) ? atual[id] : null;
+    }
+
+    // Registra um nome com identificador definido pelo outro lado da conexão (usado pelo cliente; o
+    // servidor recusa definições). Identificadores fora do limite são recusados antes de alocar:
+    public synchronized void definir(int id, String nome) {
+        if (id < 0 || id >= limite) {
+            throw new IllegalArgumentException("Identificador de nome fora do limite: " + id);
+        }
+        guardar(id, nome);
+        ids.put(nome, id);
+    }
+
+    // Devolve a instância canônica do nome, se ele está registrado, para que mensagens repetidas não
+    // dupliquem a mesma string (um nome sem registro é devolvido como veio, sem ganhar identificador):
+    public String internar(String nome) {
+        int id = procurar(nome);
+        return id >= 0 ? nome(id) : nome;
+    }
+
+    // Instância canônica do nome cujos bytes UTF-8 estão em dados[inicio, inicio + tamanho):
+    public String internar(byte[] dados, int inicio, int tamanho) {
+        int hash = 1;
+        for (int i = inicio; i < inicio + tamanho; i++) {
+            hash = 31 * hash + dados[i];
+        }
+        int posicao = (hash ^ (hash >>> 16)) & (TAMANHO_CACHE - 1);
+        Literal literal = literais[posicao];
+        if (literal != null && Arrays.equals(literal.utf8, 0, literal.utf8.length, dados, inicio, inicio + tamanho)) {
+            return literal.nome;
+        }
+        String nome = internar(new String(dados, inicio, tamanho, StandardCharsets.UTF_8));
+        literais[posicao] = new Literal(Arrays.copyOfRange(dados, inicio, inicio + tamanho), nome);
+        return nome;
+    }
+
+    private void guardar(int id, String nome) {
+        String[] atual = nomes;
+        if (id >= atual.length) {
+            atual = Arrays.copyOf(atual, Math.max(atual.length * 2, id + 1));
+        }
+        atual[id] = nome;
+        nomes = atual;  // Publica o array atualizado para os leitores sem trava.
+    }
+}
@@ -1,43 +1,116 @@
 package Trabalho_2.gui;
 
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import javax.swing.*;
 
+import Trabalho_2.chat.Compressao;
+import Trabalho_2.chat.ContextoTls;
 import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Presenca;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.chat.TabelaNomes;
 
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /*
  * Classe que implementa a interface gráfica do cliente de chat usando Swing.
  * A janela possui área de exibição de mensagens, campo de entrada e botões de comando.
+ * A lista lateral de usuários é mantida pelo próprio cliente a partir das atualizações de
+ * presença (/presenca), sem pedir a lista completa ao servidor.
+ *
+ * As mensagens recebidas não geram uma tarefa na thread do Swing cada uma: a thread receptora
+ * só as enfileira, e um temporizador as trata em lote no máximo uma vez por quadro da tela.
+ * As mensagens são exibidas numa JList (que desenha apenas as linhas visíveis) sobre um buffer
+ * circular com as últimas linhas, de modo que salas movimentadas não travem a interface nem
+ * façam a memória crescer sem limite.
+ *
+ * Ao entrar, o cliente abre uma sessão retomável (/sessao). Se a conexão cair, ele tenta se reconectar
+ * com espera exponencial (com variação aleatória, para que muitos clientes não voltem juntos) e retoma
+ * a sessão informando a última sequência recebida: o servidor reenvia só as mensagens perdidas.
+ * Quando o próprio servidor avisa que vai reiniciar, a primeira tentativa espera o tempo sorteado por ele.
+ * A queda também é detectada pelos batimentos: o cliente responde aos PINGs do servidor e considera a
+ * conexão perdida se ficar mais de dois intervalos sem receber nada.
+ *
+ * Com -Dchat.tls=true, a conexão é cifrada (o servidor também precisa estar com o TLS ativo). Todas as
+ * conexões usam a mesma fábrica de sockets, cujo cache guarda a sessão TLS: as reconexões a retomam,
+ * com um handshake abreviado.
  */
 
 public class ClienteSwing extends JFrame {
     // Configurações de conexão com o servidor:
     private static final String HOST = "127.0.0.1";
     private static final int PORTA = 12345;
+
+    // TLS: se está ativo e o truststore com o certificado do servidor (vazio = os certificados confiáveis
+    // do JDK ou de javax.net.ssl.trustStore). O nome do servidor é conferido com o do certificado:
+    private static final boolean TLS = Boolean.getBoolean("chat.tls");
+    private static final String TRUSTSTORE = System.getProperty("chat.tls.truststore", "");
+    private static final String SENHA_TRUSTSTORE = System.getProperty("chat.tls.truststore.senha", "");
+    private static SSLSocketFactory fabricaTls;  // Criada na primeira conexão e mantida para as retomadas.
     
     // Formatação para data e horário das mensagens enviadas:
     private static final DateTimeFormatter FORMATO_HORARIO = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+
+    // Exibição: linhas mantidas na tela (-Dchat.cliente.linhas), intervalo entre as atualizações (~60 por
+    // segundo), máximo de mensagens tratadas por atualização e largura a partir da qual uma linha é quebrada:
+    private static final int LINHAS_MAXIMAS = Integer.getInteger("chat.cliente.linhas", 5000);
+    private static final int INTERVALO_QUADRO = 16;
+    private static final int MENSAGENS_POR_QUADRO = 2000;
+    private static final int LARGURA_LINHA = 200;
+
+    // Reconexão: espera antes da primeira tentativa, dobrada a cada falha até o máximo (em milissegundos):
+    private static final long ESPERA_INICIAL_RECONEXAO = 500;
+    private static final long ESPERA_MAXIMA_RECONEXAO = 30_000;
+    private static final int MARGEM_BATIMENTO = 5_000;  // Folga, além de dois intervalos entre PINGs, até desistir.
     
     // Componentes da interface gráfica:
-    private JTextArea areaTexto;
+    private JList<String> listaMensagens;
+    private JScrollPane painelMensagens;
+    private final ModeloLinhas modeloLinhas = new ModeloLinhas(LINHAS_MAXIMAS);
     private JTextField campoEntrada;
     private JButton botaoEnviar;
     private JButton botaoConectar;
+    private JButton botaoDesconectar;
     private JTextField campoNome;
     private JLabel labelStatus;
+    private final ModeloUsuarios modeloUsuarios = new ModeloUsuarios();
+    private JScrollPane painelUsuarios;
     
-    // Componentes de rede:
-    private Socket socket;
-    private ObjectInputStream entrada;
-    private ObjectOutputStream saida;
+    // Componentes de rede (trocados a cada reconexão; a entrada e a tabela de nomes ficam com a thread receptora):
+    private volatile Socket socket;
+    private volatile OutputStream saida;
     private String nomeUsuario;
-    private boolean conectado = false;  // Flag que indica se está conectado ao servidor.
+    private String salaAtual;  // Sala para onde vão as mensagens digitadas (null = todos).
+    private volatile boolean conectado = false;  // Flag que indica se está conectado ao servidor.
+    private volatile boolean ativo = false;      // O usuário quer estar conectado (reconecta se a conexão cair).
+
+    // Sessão retomável: token recebido do servidor, última sequência recebida (só acompanhada com sessão)
+    // e se a conexão atual está retomando a sessão em vez de entrar com o nome:
+    private volatile String tokenSessao;
+    private volatile long ultimaSequencia = 0;
+    private volatile boolean acompanharSequencia = false;
+    private boolean retomando = false;
+    private volatile long esperaReinicio = -1;  // Espera até reconectar sugerida pelo aviso de reinício (-1 = nenhuma).
+    private Presenca presenca;  // Usuários conectados, atualizados pelas mensagens de presença (usada só na thread do Swing).
+    private boolean presencaAlterada = false;
+
+    // Mensagens recebidas aguardando a próxima atualização da tela, e linhas a acrescentar nela:
+    private final ConcurrentLinkedQueue<Mensagem> recebidas = new ConcurrentLinkedQueue<>();
+    private final List<String> linhasPendentes = new ArrayList<>();
+    private boolean rolarAteFim = false;  // Rola até o fim mesmo que o usuário esteja vendo linhas anteriores.
+    private final Timer temporizadorTela = new Timer(INTERVALO_QUADRO, e -> descarregarRecebidas());
     
     // Método construtor:
     public ClienteSwing() {
@@ -51,13 +124,16 @@ public class ClienteSwing extends JFrame {
         initComponents(); // Cria e configura componentes.
         setupLayout();    // Organiza layout.
         setupEventListeners();  // Configura eventos dos botões.
+        temporizadorTela.start();
     }
     
     private void initComponents() {
-        // Área de exibição das mensagens:
-        areaTexto = new JTextArea();
-        areaTexto.setEditable(false);
-        areaTexto.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        // Área de exibição das mensagens (altura e largura fixas das linhas: a lista não mede todas as linhas
+        // a cada atualização, e a largura acompanha a da janela):
+        listaMensagens = new JList<>(modeloLinhas);
+        listaMensagens.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        listaMensagens.setFixedCellHeight(listaMensagens.getFontMetrics(listaMensagens.getFont()).getHeight());
+        listaMensagens.setFixedCellWidth(1);
         
         // Campo de entrada da mensagem:
         campoEntrada = new JTextField();
@@ -89,8 +165,9 @@ public class ClienteSwing extends JFrame {
         painelSuperior.add(labelStatus);
         
         // Painel central - Área de texto com scroll (JScrollPane permite rolagem quando há muitas mensagens).
-        JScrollPane scrollPane = new JScrollPane(areaTexto);
-        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        painelMensagens = new JScrollPane(listaMensagens);
+        painelMensagens.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        painelMensagens.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         
         // Painel inferior - entrada de mensagem
         JPanel painelInferior = new JPanel(new BorderLayout());
@@ -99,7 +176,7 @@ public class ClienteSwing extends JFrame {
         
         // Adiciona os painéis em seus respectivos lugares:
         add(painelSuperior, BorderLayout.NORTH);
-        add(scrollPane, BorderLayout.CENTER);
+        add(painelMensagens, BorderLayout.CENTER);
         add(painelInferior, BorderLayout.SOUTH);
         
         // Painel lateral com comandos, em layout vertical:
@@ -111,23 +188,33 @@ public class ClienteSwing extends JFrame {
         JButton btnUsuarios = new JButton("Listar Usuários");
         JButton btnAjuda = new JButton("Ajuda");
         JButton btnDesconectar = new JButton("Desconectar");
+        botaoDesconectar = btnDesconectar;
         
         // Enquanto o usuário não conectar, não poderá ver a lista de usuários nem desconectar:
         btnUsuarios.setEnabled(false);
         btnDesconectar.setEnabled(false);
         
+        // Lista de usuários conectados, atualizada pelas mensagens de presença:
+        JList<String> listaUsuarios = new JList<>(modeloUsuarios);
+        listaUsuarios.setPrototypeCellValue("Usuário0000000");  // Altura fixa das linhas: só as visíveis são medidas.
+        painelUsuarios = new JScrollPane(listaUsuarios);
+        painelUsuarios.setBorder(BorderFactory.createTitledBorder("Usuários"));
+        painelUsuarios.setAlignmentX(Component.LEFT_ALIGNMENT);
+
         // Adiciona os botões na interface (espaço de 5 px):
         painelComandos.add(btnUsuarios);
         painelComandos.add(Box.createVerticalStrut(5));
         painelComandos.add(btnAjuda);
         painelComandos.add(Box.createVerticalStrut(5));
         painelComandos.add(btnDesconectar);
+        painelComandos.add(Box.createVerticalStrut(5));
+        painelComandos.add(painelUsuarios);
         
         // Adiciona o painel de comandos:
         add(painelComandos, BorderLayout.EAST);
         
         // Event listeners para botões de comando:
-        btnUsuarios.addActionListener(e -> enviarComando("/usuarios"));
+        btnUsuarios.addActionListener(e -> alternarListaUsuarios());
         btnAjuda.addActionListener(e -> mostrarAjuda());
         btnDesconectar.addActionListener(e -> desconectar());
     }
@@ -162,27 +249,69 @@ public class ClienteSwing extends JFrame {
         }
         
         try {
-            socket = new Socket(HOST, PORTA);
-            saida = new ObjectOutputStream(socket.getOutputStream());
-            entrada = new ObjectInputStream(socket.getInputStream());
-            conectado = true;
+            presenca = new Presenca();
+            modeloUsuarios.substituir(presenca.getUsuarios());
+            painelUsuarios.setBorder(BorderFactory.createTitledBorder("Usuários"));
             nomeUsuario = nome;
+            tokenSessao = null;
+            retomando = false;
+            ativo = true;
+            abrirConexao();
             
             // Atualiza interface:
             atualizarInterface(true);
-            areaTexto.append("Conectando ao servidor...\n");
-            
-            // Inicia thread para receber mensagens:
-            Thread receptorMensagens = new Thread(this::receberMensagens);
-            receptorMensagens.setDaemon(true);  // Será finalizada junto com o programa principal.
-            receptorMensagens.start();
+            exibir("Conectando ao servidor...");
             
         } catch (IOException e) {
+            ativo = false;
             JOptionPane.showMessageDialog(this, "Erro ao conectar: " + e.getMessage());
             atualizarInterface(false);
         }
     }
     
+    // Abre o socket e inicia a thread que recebe as mensagens dele:
+    private void abrirConexao() throws IOException {
+        Socket novo = TLS ? abrirTls() : new Socket(HOST, PORTA);
+        DataInputStream entrada = new DataInputStream(new BufferedInputStream(novo.getInputStream()));
+        TabelaNomes tabelaNomes = new TabelaNomes();  // Nomes definidos pelo servidor no protocolo binário.
+        acompanharSequencia = false;
+        saida = novo.getOutputStream();
+        socket = novo;
+        saida.write(Protocolo.codificarQuadroPing(System.nanoTime(), 0));  // Anuncia que responde aos PINGs.
+        saida.write(Protocolo.codificarQuadroCompressao(Compressao.DEFLATE));  // E que entende quadros comprimidos.
+
+        // Inicia thread para receber mensagens:
+        Thread receptorMensagens = new Thread(() -> receberMensagens(novo, entrada, tabelaNomes));
+        receptorMensagens.setDaemon(true);  // Será finalizada junto com o programa principal.
+        receptorMensagens.start();
+    }
+
+    // Abre a conexão cifrada e conclui o handshake (abreviado, quando a sessão anterior ainda é válida):
+    private static Socket abrirTls() throws IOException {
+        SSLSocket novo = (SSLSocket) fabricaTls().createSocket(HOST, PORTA);
+        try {
+            SSLParameters parametros = novo.getSSLParameters();
+            parametros.setEndpointIdentificationAlgorithm("HTTPS");
+            novo.setSSLParameters(parametros);
+            novo.startHandshake();
+        } catch (IOException e) {
+            novo.close();
+            throw e;
+        }
+        return novo;
+    }
+
+    private static synchronized SSLSocketFactory fabricaTls() throws IOException {
+        if (fabricaTls == null) {
+            try {
+                fabricaTls = ContextoTls.cliente(TRUSTSTORE, SENHA_TRUSTSTORE.toCharArray()).getSocketFactory();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Erro ao configurar o TLS: " + e.getMessage(), e);
+            }
+        }
+        return fabricaTls;
+    }
+
     // ATualiza o estado visual da interface de acordo com o status de conexão:
     private void atualizarInterface(boolean conectado) {
         this.conectado = conectado;
@@ -216,50 +345,289 @@ public class ClienteSwing extends JFrame {
         }
     }
     
-    // Recebe e processa mensagens do servidor. Executa continuamente enquanto a conexão estiver ativa.
-    private void receberMensagens() {
+    // Recebe as mensagens do servidor enquanto a conexão estiver ativa. Elas são apenas enfileiradas
+    // aqui; o tratamento e a exibição acontecem em lote na thread do Swing (descarregarRecebidas).
+    // Os quadros comprimidos são descomprimidos no contexto da conexão e tratados um a um, na ordem:
+    private void receberMensagens(Socket conexao, DataInputStream entrada, TabelaNomes tabelaNomes) {
+        Compressao.Descompressor descompressor = new Compressao.Descompressor();
         try {
-            Mensagem mensagem;
-            while (conectado && (mensagem = (Mensagem) entrada.readObject()) != null) {
-                final Mensagem msg = mensagem;
-                
-                SwingUtilities.invokeLater(() -> {  // Garante que a interface seja atualizada na thread correta.
-                    // Processa mensagens do sistema:
-                    if ("SISTEMA".equals(msg.getRemetente())) {
-                        if ("SOLICITAR_NOME".equals(msg.getConteudo())) {
-                            try {
-                                Mensagem resposta = new Mensagem(nomeUsuario, null, nomeUsuario);
-                                saida.writeObject(resposta);
-                            } catch (IOException e) {
-                                areaTexto.append("Erro ao enviar nome.\n");
-                            }
-                            return;
-                        } else if (msg.getConteudo().startsWith("Nome já em uso")) { 
-                            JOptionPane.showMessageDialog(this, msg.getConteudo());
-                            desconectar();
-                            return;
-                        } else if (msg.getConteudo().startsWith("Bem-vindo")) {
-                            areaTexto.append(msg.getConteudo() + "\n");
-                            areaTexto.append("Digite suas mensagens abaixo. Use /privado <usuário> <mensagem> para mensagens privadas.\n\n");
-                            return;
-                        }
+            while (true) {
+                byte[] dados = Protocolo.lerQuadro(entrada);
+                if (Protocolo.ehComprimido(dados, 0, dados.length)) {
+                    for (byte[] quadro : descompressor.descomprimir(dados, 0, dados.length)) {
+                        tratarQuadro(conexao, quadro, tabelaNomes);
                     }
-                    
-                    // Exibir mensagem normal (já vem com horário do servidor):
-                    areaTexto.append(msg.toString() + "\n");
-                    areaTexto.setCaretPosition(areaTexto.getDocument().getLength());  // Rolagem automática para mostrar a mensagem mais recente.
-                });
+                } else {
+                    tratarQuadro(conexao, dados, tabelaNomes);
+                }
             }
         } catch (Exception e) {
-            if (conectado) {
-                SwingUtilities.invokeLater(() -> {
-                    areaTexto.append("Conexão perdida com o servidor.\n");
-                    atualizarInterface(false);
-                });
+            // A queda é tratada abaixo, como o fim da conexão.
+        } finally {
+            descompressor.liberar();
+        }
+        if (ativo && conexao == socket) {
+            SwingUtilities.invokeLater(() -> {
+                descarregarRecebidas();  // Exibe primeiro o que chegou antes da queda.
+                conexaoPerdida();
+            });
+        }
+    }
+
+    // Trata um quadro recebido. A sequência é registrada já na chegada, para valer mesmo que a conexão
+    // caia antes da exibição:
+    private void tratarQuadro(Socket conexao, byte[] dados, TabelaNomes tabelaNomes) throws IOException {
+        if (Protocolo.ehPing(dados, 0, dados.length)) {
+            responderPing(conexao, dados);
+            return;
+        }
+        Mensagem mensagem = Protocolo.decodificar(dados, 0, dados.length, tabelaNomes);
+        if (mensagem == null) {
+            return;  // Quadro de controle (como a resposta ao anúncio de compressão).
+        }
+        if (mensagem.getTipo() == Mensagem.Tipo.SESSAO) {
+            acompanharSequencia = !mensagem.getConteudo().isEmpty();
+        }
+        if (acompanharSequencia && mensagem.getSequencia() > 0) {
+            ultimaSequencia = mensagem.getSequencia();
+        }
+        recebidas.add(mensagem);
+    }
+
+    // Responde ao PING (na thread receptora) e ajusta o tempo máximo sem receber nada ao intervalo informado:
+    private void responderPing(Socket conexao, byte[] ping) throws IOException {
+        int intervalo = Protocolo.intervaloPing(ping, 0, ping.length);
+        if (intervalo > 0) {
+            conexao.setSoTimeout(2 * intervalo + MARGEM_BATIMENTO);
+        }
+        conexao.getOutputStream().write(Protocolo.codificarQuadroPong(Protocolo.marcaBatimento(ping, 0, ping.length)));
+    }
+
+    // Com uma sessão aberta, tenta se reconectar para retomá-la; sem sessão, apenas desconecta:
+    private void conexaoPerdida() {
+        atualizarInterface(false);
+        if (tokenSessao == null) {
+            ativo = false;
+            exibir("Conexão perdida com o servidor.");
+            return;
+        }
+        exibir("Conexão perdida. Tentando reconectar...");
+        labelStatus.setText("Reconectando...");
+        labelStatus.setForeground(Color.ORANGE);
+        botaoConectar.setEnabled(false);
+        campoNome.setEnabled(false);
+        botaoDesconectar.setEnabled(true);  // Desiste da reconexão.
+        Thread reconexao = new Thread(this::reconectar);
+        reconexao.setDaemon(true);
+        reconexao.start();
+    }
+
+    // Tenta abrir uma nova conexão, com espera exponencial entre as tentativas. A espera de cada uma é
+    // sorteada entre a metade e o total do intervalo atual, espalhando as reconexões após uma queda geral;
+    // depois de um aviso de reinício, a primeira é a que o servidor sorteou:
+    private void reconectar() {
+        long espera = ESPERA_INICIAL_RECONEXAO;
+        long primeira = esperaReinicio;
+        esperaReinicio = -1;
+        while (ativo) {
+            try {
+                Thread.sleep(primeira >= 0 ? primeira : espera / 2 + (long) (Math.random() * (espera / 2)));
+                primeira = -1;
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!ativo) {
+                return;
+            }
+            try {
+                abrirConexao();  // A retomada continua quando o servidor solicitar o nome.
+                SwingUtilities.invokeLater(() -> labelStatus.setText("Retomando sessão..."));
+                return;
+            } catch (IOException e) {
+                espera = Math.min(espera * 2, ESPERA_MAXIMA_RECONEXAO);
             }
         }
     }
+
+    // Executado pelo temporizador da tela: trata as mensagens recebidas desde a última atualização e
+    // acrescenta as linhas de uma só vez, rolando até o fim apenas se o usuário já estava nele:
+    private void descarregarRecebidas() {
+        Mensagem mensagem;
+        for (int i = 0; i < MENSAGENS_POR_QUADRO && (mensagem = recebidas.poll()) != null; i++) {
+            tratarRecebida(mensagem);
+        }
+        if (presencaAlterada) {
+            presencaAlterada = false;
+            modeloUsuarios.substituir(presenca.getUsuarios());
+            painelUsuarios.setBorder(BorderFactory.createTitledBorder("Usuários (" + modeloUsuarios.getSize() + ")"));
+        }
+        if (linhasPendentes.isEmpty()) {
+            return;
+        }
+        JScrollBar barra = painelMensagens.getVerticalScrollBar();
+        boolean noFim = rolarAteFim
+            || barra.getValue() + barra.getVisibleAmount() >= barra.getMaximum() - listaMensagens.getFixedCellHeight();
+        rolarAteFim = false;
+        modeloLinhas.adicionar(linhasPendentes);
+        linhasPendentes.clear();
+        if (noFim) {
+            listaMensagens.ensureIndexIsVisible(modeloLinhas.getSize() - 1);
+        }
+    }
+
+    // Trata uma mensagem recebida (na thread do Swing):
+    private void tratarRecebida(Mensagem msg) {
+        // Atualizações de presença alimentam a lista de usuários e não são exibidas:
+        if (msg.getTipo() == Mensagem.Tipo.PRESENCA) {
+            atualizarPresenca(msg);
+            return;
+        }
+        if (msg.getTipo() == Mensagem.Tipo.SESSAO) {
+            tratarSessao(msg.getConteudo());
+            return;
+        }
+
+        // Processa mensagens do sistema:
+        if ("SISTEMA".equals(msg.getRemetente())) {
+            if ("SOLICITAR_NOME".equals(msg.getConteudo())) {
+                if (tokenSessao != null) {
+                    retomarSessao();
+                } else {
+                    enviarNome();
+                }
+                return;
+            } else if (msg.getConteudo().startsWith("Nome já em uso")) {
+                JOptionPane.showMessageDialog(this, msg.getConteudo());
+                desconectar();
+                return;
+            } else if (msg.getConteudo().startsWith("Você entrou na sala #")) {
+                // Confirmação do servidor: as próximas mensagens vão para esta sala.
+                salaAtual = extrairSala(msg.getConteudo());
+                atualizarStatusSala();
+            } else if (msg.getConteudo().startsWith("Você saiu da sala #")) {
+                if (extrairSala(msg.getConteudo()).equals(salaAtual)) {
+                    salaAtual = null;
+                    atualizarStatusSala();
+                }
+            } else if (msg.getConteudo().startsWith("Servidor reiniciando")) {
+                esperaReinicio = extrairEspera(msg.getConteudo());  // A conexão cai logo em seguida.
+            } else if (msg.getConteudo().startsWith("Bem-vindo")) {
+                exibir(msg.getConteudo());
+                exibir("Digite suas mensagens abaixo. Use /privado <usuário> <mensagem> para mensagens privadas.");
+                exibir("");
+                enviarComando(Presenca.COMANDO);  // Passa a receber as entradas e saídas de usuários.
+                enviarComando("/sessao");         // Permite retomar a sessão se a conexão cair.
+                return;
+            }
+        }
+
+        // Exibir mensagem normal (já vem com horário do servidor):
+        exibir(msg.toString());
+    }
+
+    private void enviarNome() {
+        try {
+            Mensagem resposta = new Mensagem(nomeUsuario, null, nomeUsuario);
+            Protocolo.escrever(saida, resposta);
+        } catch (IOException e) {
+            exibir("Erro ao enviar nome.");
+        }
+    }
+
+    // Pede ao servidor a sessão do token, informando a última mensagem recebida:
+    private void retomarSessao() {
+        retomando = true;
+        acompanharSequencia = true;  // As respostas já pertencem à sessão.
+        try {
+            Mensagem pedido = new Mensagem(nomeUsuario, null, "/retomar " + tokenSessao + " " + ultimaSequencia);
+            pedido.setTipo(Mensagem.Tipo.COMANDO);
+            Protocolo.escrever(saida, pedido);
+        } catch (IOException e) {
+            exibir("Erro ao retomar a sessão.");
+        }
+    }
+
+    // Token da sessão aberta ou retomada; vazio quando a sessão pedida já expirou (entra de novo pelo nome):
+    private void tratarSessao(String token) {
+        if (token.isEmpty()) {
+            tokenSessao = null;
+            if (retomando) {
+                retomando = false;
+                exibir("A sessão anterior expirou. Entrando novamente como " + nomeUsuario + "...");
+                salaAtual = null;
+                presenca = new Presenca();
+                atualizarInterface(true);
+                enviarNome();
+            }
+            return;
+        }
+        tokenSessao = token;
+        if (retomando) {
+            retomando = false;
+            exibir("Conexão restabelecida.");
+            atualizarInterface(true);
+            atualizarStatusSala();
+            presenca = new Presenca();
+            enviarComando(Presenca.COMANDO);
+        }
+    }
+
+    // Agenda o texto para a próxima atualização da tela, uma linha da lista por linha do texto
+    // (linhas muito longas são quebradas, pois a lista não tem rolagem horizontal):
+    private void exibir(String texto) {
+        for (String linha : texto.split("\n")) {
+            while (linha.length() > LARGURA_LINHA) {
+                linhasPendentes.add(linha.substring(0, LARGURA_LINHA));
+                linha = "    " + linha.substring(LARGURA_LINHA);
+            }
+            linhasPendentes.add(linha);
+        }
+    }
     
+    // Aplica uma mensagem de presença; se alguma se perdeu, pede um novo instantâneo ao servidor:
+    private void atualizarPresenca(Mensagem mensagem) {
+        if (presenca == null) {
+            return;
+        }
+        switch (presenca.aplicar(mensagem)) {
+            case ATUALIZADA:
+                presencaAlterada = true;  // A lista na tela é trocada uma vez por atualização da tela.
+                break;
+            case LACUNA:
+                enviarComando(Presenca.COMANDO);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Mostra ou esconde a lista de usuários (mantida localmente, sem consultar o servidor):
+    private void alternarListaUsuarios() {
+        painelUsuarios.setVisible(!painelUsuarios.isVisible());
+        painelUsuarios.getParent().revalidate();
+    }
+
+    // Extrai o nome da sala das confirmações do servidor (ex.: "Você entrou na sala #geral."):
+    private String extrairSala(String confirmacao) {
+        String sala = confirmacao.substring(confirmacao.indexOf('#') + 1);
+        return sala.endsWith(".") ? sala.substring(0, sala.length() - 1) : sala;
+    }
+
+    // Espera do aviso "Servidor reiniciando: reconecte em <n> ms." (-1 se o aviso não a trouxer):
+    private long extrairEspera(String aviso) {
+        String[] partes = aviso.split(" ");
+        try {
+            return Long.parseLong(partes[partes.length - 2]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    // Mostra a sala atual ao lado do status de conexão:
+    private void atualizarStatusSala() {
+        labelStatus.setText(salaAtual == null ? "Conectado" : "Conectado (#" + salaAtual + ")");
+    }
+
     // Método auxiliar para obter o horário atual formatado:
     private String obterHorarioAtual() {
         return LocalDateTime.now().format(FORMATO_HORARIO);
@@ -280,30 +648,51 @@ public class ClienteSwing extends JFrame {
                 if (partes.length >= 3) {
                     String destinatario = partes[1];
                     String conteudo = partes[2];
-                    mensagem = new Mensagem(nomeUsuario, destinatario, "/privado:" + conteudo);
+                    mensagem = new Mensagem(nomeUsuario, destinatario, conteudo);
+                    mensagem.setTipo(Mensagem.Tipo.PRIVADA);
 
                     // Exibe data e hora do envio:
-                    areaTexto.append("[" + horarioAtual + "] (Mensagem privada para " + destinatario + ") " + nomeUsuario + ": " + conteudo + "\n");
+                    exibir("[" + horarioAtual + "] (Mensagem privada para " + destinatario + ") " + nomeUsuario + ": " + conteudo);
                 } else {
                     // Se o comando estiver mal formatado, avisa o usuário:
-                    areaTexto.append("Uso: /privado <usuário> <mensagem>\n");
+                    exibir("Uso: /privado <usuário> <mensagem>");
                     campoEntrada.setText("");
                     return;
                 }
+            } else if (texto.equals("/sair")) {
+                // Sai da sala atual (o servidor confirma e a sala atual volta a ser "todos"):
+                if (salaAtual == null) {
+                    exibir("Você não está em nenhuma sala.");
+                    campoEntrada.setText("");
+                    return;
+                }
+                mensagem = new Mensagem(nomeUsuario, null, "/sair " + salaAtual);
+                mensagem.setTipo(Mensagem.Tipo.COMANDO);
+            } else if (texto.startsWith("/")) {
+                // Demais comandos (/usuarios, /entrar, /salas, /historico, /buscar, /stats) são enviados ao servidor sem exibição local:
+                mensagem = new Mensagem(nomeUsuario, null, texto);
+                mensagem.setTipo(Mensagem.Tipo.COMANDO);
+            } else if (salaAtual != null) {
+                // Mensagem para a sala atual
+                mensagem = new Mensagem(nomeUsuario, null, texto);
+                mensagem.setSala(salaAtual);
+                mensagem.setTipo(Mensagem.Tipo.PUBLICA);
+                exibir("[" + horarioAtual + "] #" + salaAtual + " " + nomeUsuario + ": " + texto);
             } else {
                 // Mensagem pública
                 mensagem = new Mensagem(nomeUsuario, null, texto);
-                areaTexto.append("[" + horarioAtual + "] " + nomeUsuario + ": " + texto + "\n");
+                mensagem.setTipo(Mensagem.Tipo.PUBLICA);
+                exibir("[" + horarioAtual + "] " + nomeUsuario + ": " + texto);
             }
             
-            saida.writeObject(mensagem);  //Envia a mensagem ao servidor.
+            Protocolo.escrever(saida, mensagem);  //Envia a mensagem ao servidor.
             campoEntrada.setText("");
             
-            // Fazer scroll automático para mostrar a nova mensagem:
-            areaTexto.setCaretPosition(areaTexto.getDocument().getLength());
+            // Fazer scroll automático para mostrar a nova mensagem (na próxima atualização da tela):
+            rolarAteFim = true;
             
         } catch (IOException e) {
-            areaTexto.append("Erro ao enviar mensagem: " + e.getMessage() + "\n");
+            exibir("Erro ao enviar mensagem: " + e.getMessage());
         }
     }
     
@@ -313,9 +702,10 @@ public class ClienteSwing extends JFrame {
         
         try {
             Mensagem mensagem = new Mensagem(nomeUsuario, null, comando);
-            saida.writeObject(mensagem);
+            mensagem.setTipo(Mensagem.Tipo.COMANDO);
+            Protocolo.escrever(saida, mensagem);
         } catch (IOException e) {
-            areaTexto.append("Erro ao enviar comando: " + e.getMessage() + "\n");
+            exibir("Erro ao enviar comando: " + e.getMessage());
         }
     }
     
@@ -324,34 +714,77 @@ public class ClienteSwing extends JFrame {
         String ajuda = """
                 === COMANDOS DISPONÍVEIS ===
                 
-                /usuarios - Lista usuários conectados
+                /usuarios [prefixo] [página] - Lista usuários conectados
                 /privado <usuário> <mensagem> - Envia mensagem privada
+                /entrar <sala> - Entra em uma sala (as mensagens passam a ir para ela)
+                /sair - Sai da sala atual e volta a falar com todos
+                /salas - Lista as salas existentes
+                /historico [N] - Mostra as últimas N mensagens
+                /buscar <termos> [de:nome] [sala:nome] [desde:dd/MM/aaaa] - Procura no histórico
+                /stats - Mostra as métricas do servidor (na máquina do servidor)
                 
                 Para enviar mensagem pública, digite normalmente.
                 
                 === BOTÕES ===
-                Listar Usuários - Mostra usuários online
+                Listar Usuários - Mostra ou esconde a lista de usuários online
                 Desconectar - Sair do chat
                 """;
         
         JOptionPane.showMessageDialog(this, ajuda, "Ajuda", JOptionPane.INFORMATION_MESSAGE);
     }
     
-    // Encerra a conexão atualizando o status e fechando o socket:
+    // Encerra a conexão atualizando o status e fechando o socket. Com sessão aberta, avisa o servidor
+    // para encerrá-la (em vez de mantê-la à espera de uma reconexão):
     private void desconectar() {
+        if (tokenSessao != null) {
+            enviarComando("/desconectar");
+        }
+        ativo = false;
+        tokenSessao = null;
         conectado = false;
+        salaAtual = null;
+        presenca = null;
         try {
+            Socket socket = this.socket;
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
-            areaTexto.append("Desconectado do servidor.\n");
+            exibir("Desconectado do servidor.");
         } catch (IOException e) {
-            areaTexto.append("Erro ao desconectar: " + e.getMessage() + "\n");
+            exibir("Erro ao desconectar: " + e.getMessage());
         } finally {
             atualizarInterface(false);
         }
     }
     
+    // Modelo da lista de usuários: a cópia ordenada é trocada a cada lote de presença (no máximo
+    // alguns por segundo), e a JList só desenha as linhas visíveis:
+    private static class ModeloUsuarios extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+
+        private List<String> usuarios = new ArrayList<>();
+
+        void substituir(Collection<String> novos) {
+            int anterior = usuarios.size();
+            usuarios = new ArrayList<>(novos);
+            if (anterior > usuarios.size()) {
+                fireIntervalRemoved(this, usuarios.size(), anterior - 1);
+            } else if (anterior < usuarios.size()) {
+                fireIntervalAdded(this, anterior, usuarios.size() - 1);
+            }
+            int mantidos = Math.min(anterior, usuarios.size());
+            if (mantidos > 0) {
+                fireContentsChanged(this, 0, mantidos - 1);
+            }
+        }
+
+        @Override
+        public int getSize() { return usuarios.size(); }
+
+        @Override
+        public String getElementAt(int indice) { return usuarios.get(indice); }
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             try {
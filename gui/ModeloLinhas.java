@@ -0,0 +1,58 @@
+package Trabalho_2.gui;
+
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/*
+ * Modelo da lista de mensagens exibidas: um buffer circular com as últimas linhas recebidas.
+ * Ao passar da capacidade, as linhas mais antigas são descartadas, de modo que a memória do
+ * cliente não cresce com o tempo de uso. As linhas chegam em lotes (uma vez por quadro da tela),
+ * e cada lote gera no máximo um evento de remoção e um de inserção para a JList, que só desenha
+ * as linhas visíveis.
+ */
+class ModeloLinhas extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] linhas;
+    private int inicio = 0;   // Posição da linha mais antiga.
+    private int tamanho = 0;
+
+    ModeloLinhas(int capacidade) {
+        this.linhas = new String[Math.max(1, capacidade)];
+    }
+
+    // Acrescenta um lote de linhas; de um lote maior que a capacidade, só as últimas são guardadas:
+    void adicionar(List<String> novas) {
+        int capacidade = linhas.length;
+        int primeira = Math.max(0, novas.size() - capacidade);
+        int entram = novas.size() - primeira;
+        if (entram == 0) {
+            return;
+        }
+        int removidas = Math.max(0, tamanho + entram - capacidade);
+        if (removidas > 0) {
+            for (int i = 0; i < removidas; i++) {
+                linhas[(inicio + i) % capacidade] = null;
+            }
+            inicio = (inicio + removidas) % capacidade;
+            tamanho -= removidas;
+            fireIntervalRemoved(this, 0, removidas - 1);
+        }
+        for (int i = primeira; i < novas.size(); i++) {
+            linhas[(inicio + tamanho) % capacidade] = novas.get(i);
+            tamanho++;
+        }
+        fireIntervalAdded(this, tamanho - entram, tamanho - 1);
+    }
+
+    int getCapacidade() { return linhas.length; }
+
+    @Override
+    public int getSize() { return tamanho; }
+
+    @Override
+    public String getElementAt(int indice) {
+        return linhas[(inicio + indice) % linhas.length];
+    }
+}
@@ -0,0 +1,80 @@
+package Trabalho_2.historico;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/*
+ * Consulta do comando /buscar: termos que precisam aparecer todos no conteúdo, mais filtros opcionais
+ * por remetente (de:nome), sala (sala:nome) e período (desde:dd/MM/aaaa e ate:dd/MM/aaaa, inclusive).
+ * Ex.: /buscar reunião amanhã de:ana sala:geral desde:01/03/2024
+ */
+public class Consulta {
+    private static final DateTimeFormatter FORMATO_DATA = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private final List<String> termos;
+    private final String remetente;  // null = qualquer remetente.
+    private final String sala;       // null = qualquer destino.
+    private final long desde;        // Segundos desde 1970 (inclusive).
+    private final long ate;          // Segundos desde 1970 (inclusive).
+
+    public Consulta(List<String> termos, String remetente, String sala, long desde, long ate) {
+        this.termos = termos;
+        this.remetente = remetente;
+        this.sala = sala;
+        this.desde = desde;
+        this.ate = ate;
+    }
+
+    // Interpreta o argumento do /buscar; lança IllegalArgumentException com a explicação se ele for inválido:
+    public static Consulta interpretar(String argumento) {
+        StringBuilder texto = new StringBuilder();
+        String remetente = null;
+        String sala = null;
+        long desde = Long.MIN_VALUE;
+        long ate = Long.MAX_VALUE;
+        for (String parte : argumento.trim().split("\\s+")) {
+            if (parte.startsWith("de:") && parte.length() > 3) {
+                remetente = parte.substring(3);
+            } else if (parte.startsWith("sala:") && parte.length() > 5) {
+                sala = parte.substring(5);
+            } else if (parte.startsWith("desde:")) {
+                desde = inicioDoDia(data(parte.substring(6)));
+            } else if (parte.startsWith("ate:")) {
+                ate = inicioDoDia(data(parte.substring(4)).plusDays(1)) - 1;
+            } else {
+                texto.append(parte).append(' ');
+            }
+        }
+        List<String> termos = IndiceBusca.termos(texto.toString());
+        if (termos.isEmpty() && texto.toString().isBlank() && remetente == null && sala == null
+                && desde == Long.MIN_VALUE && ate == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("Uso: /buscar <termos> [de:nome] [sala:nome] [desde:dd/MM/aaaa] [ate:dd/MM/aaaa]");
+        }
+        if (termos.isEmpty() && !texto.toString().isBlank()) {
+            throw new IllegalArgumentException("Os termos da busca precisam ter ao menos duas letras ou dígitos.");
+        }
+        return new Consulta(termos, remetente, sala, desde, ate);
+    }
+
+    private static LocalDate data(String texto) {
+        try {
+            return LocalDate.parse(texto, FORMATO_DATA);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Data inválida: '" + texto + "' (use dd/MM/aaaa).");
+        }
+    }
+
+    private static long inicioDoDia(LocalDate data) {
+        return data.atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    public List<String> getTermos() { return termos; }
+    public boolean temTermos() { return !termos.isEmpty(); }
+    public String getRemetente() { return remetente; }
+    public String getSala() { return sala; }
+    public long getDesde() { return desde; }
+    public long getAte() { return ate; }
+}
@@ -0,0 +1,402 @@
+package Trabalho_2.historico;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.metricas.Contador;
+import Trabalho_2.metricas.Histograma;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Índice invertido, em memória, do conteúdo das mensagens do histórico. Cada registro do log é um
+ * documento identificado pelo seu número; cada termo do conteúdo (em minúsculas e sem acentos) aponta
+ * para a lista ordenada dos documentos em que aparece. O remetente e a sala também viram termos (com
+ * um prefixo que o texto não produz), para que os filtros sejam interseções de listas. Além das listas,
+ * o índice guarda por documento o horário, o remetente e o destino (pública, sala ou destinatário da
+ * privada), usados nos filtros e na visibilidade sem precisar ler o log.
+ *
+ * Os documentos novos entram num segmento aberto, atualizado pela escritora do log. Quando ele
+ * enche, é selado num segmento imutável e compacto (listas codificadas em deltas com varint). A
+ * compactação junta os segmentos selados em segmentos maiores (de quatro em quatro, por nível de
+ * tamanho) e descarta os documentos cujos registros já saíram do log. As consultas percorrem os
+ * segmentos do mais recente para o mais antigo e param ao encontrar o número pedido de resultados.
+ */
+public class IndiceBusca {
+    static final int DOCUMENTOS_POR_SEGMENTO = 64 * 1024;  // Tamanho do segmento aberto antes de ser selado.
+    private static final int FATOR_COMPACTACAO = 4;        // Segmentos do mesmo nível juntados de uma vez.
+    private static final int TAMANHO_MINIMO_TERMO = 2;
+    private static final int TAMANHO_MAXIMO_TERMO = 40;
+    static final long BASE_HORARIO = 1577836800L;  // 2020-01-01 UTC: horários guardados em segundos a partir daqui.
+
+    private volatile SegmentoIndice[] selados = new SegmentoIndice[0];  // Em ordem de número; trocado sob a trava.
+    private SegmentoAberto aberto;  // Protegido pela trava do índice; alterado apenas pela escritora.
+
+    private final Contador consultas;
+    private final Contador compactacoes;
+    private final Histograma duracaoConsulta;
+
+    // O índice passa a receber documentos a partir do número indicado (os anteriores podem ser
+    // reconstruídos com adicionarSelado):
+    public IndiceBusca(long primeiro, RegistroMetricas metricas) {
+        this.aberto = new SegmentoAberto(primeiro);
+        this.consultas = metricas.contador("chat_busca_consultas_total", "Consultas feitas com /buscar.");
+        this.compactacoes = metricas.contador("chat_busca_compactacoes_total",
+            "Junções de segmentos do índice de busca feitas em segundo plano.");
+        this.duracaoConsulta = metricas.duracao("chat_busca_duracao_segundos",
+            "Duração de cada consulta ao índice de busca.");
+        metricas.medidor("chat_busca_documentos", "Mensagens no índice de busca.", this::documentos);
+        metricas.medidor("chat_busca_segmentos", "Segmentos selados do índice de busca.", () -> selados.length);
+    }
+
+    // Termos de um texto, na ordem em que aparecem e sem repetição: sequências de letras e dígitos, em
+    // minúsculas e sem acentos. Termos muito curtos são ignorados e os muito longos, truncados:
+    public static List<String> termos(String texto) {
+        LinkedHashSet<String> termos = new LinkedHashSet<>();
+        if (texto == null) {
+            return new ArrayList<>();
+        }
+        String normalizado = texto;
+        for (int i = 0; i < texto.length(); i++) {
+            if (texto.charAt(i) >= 0x80) {
+                normalizado = Normalizer.normalize(texto, Normalizer.Form.NFD);  // Separa os acentos das letras.
+                break;
+            }
+        }
+        StringBuilder termo = new StringBuilder();
+        for (int i = 0; i <= normalizado.length(); i++) {
+            char c = i < normalizado.length() ? normalizado.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (termo.length() < TAMANHO_MAXIMO_TERMO) {
+                    termo.append(c);
+                }
+            } else if (termo.length() > 0) {
+                if (termo.length() >= TAMANHO_MINIMO_TERMO) {
+                    termos.add(termo.toString().toLowerCase(Locale.ROOT));
+                }
+                termo.setLength(0);
+            }
+        }
+        return new ArrayList<>(termos);
+    }
+
+    // Termos internos do remetente e da sala de uma mensagem:
+    static String termoRemetente(String nome) {
+        return "\u0000de:" + nome;
+    }
+
+    static String termoSala(String sala) {
+        return "\u0000sala:" + sala;
+    }
+
+    // Horário em segundos a partir de BASE_HORARIO, como guardado no índice:
+    static int horario(long millis) {
+        return segundos(Math.floorDiv(millis, 1000L));
+    }
+
+    static int segundos(long epoca) {
+        long relativo = epoca < Long.MIN_VALUE + BASE_HORARIO ? Long.MIN_VALUE : epoca - BASE_HORARIO;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, relativo));
+    }
+
+    // Indexa o registro de número informado (chamado apenas pela escritora, em ordem crescente). O
+    // segmento aberto cheio é selado fora da trava: só a escritora o altera, e as consultas só o leem:
+    public void indexar(long numero, Mensagem mensagem) {
+        synchronized (this) {
+            aberto.adicionar(numero, mensagem);
+        }
+        if (aberto.quantidade() >= DOCUMENTOS_POR_SEGMENTO) {
+            SegmentoIndice selado = aberto.selar();
+            synchronized (this) {
+                inserir(selado);
+                aberto = new SegmentoAberto(selado.primeiro() + selado.quantidade());
+            }
+        }
+    }
+
+    // Acrescenta um segmento construído à parte (ex.: reconstrução dos registros já existentes no log):
+    synchronized void adicionarSelado(SegmentoIndice segmento) {
+        if (segmento.quantidade() > 0) {
+            inserir(segmento);
+        }
+    }
+
+    private void inserir(SegmentoIndice segmento) {
+        SegmentoIndice[] atuais = selados;
+        int posicao = atuais.length;
+        while (posicao > 0 && atuais[posicao - 1].primeiro() > segmento.primeiro()) {
+            posicao--;
+        }
+        SegmentoIndice[] novos = new SegmentoIndice[atuais.length + 1];
+        System.arraycopy(atuais, 0, novos, 0, posicao);
+        novos[posicao] = segmento;
+        System.arraycopy(atuais, posicao, novos, posicao + 1, atuais.length - posicao);
+        selados = novos;
+    }
+
+    // Números dos registros mais recentes (do mais novo para o mais antigo) que atendem à consulta e
+    // que o usuário pode ver: públicas, das salas indicadas e privadas enviadas ou recebidas por ele.
+    // Registros anteriores ao mínimo (que já saíram do log) são ignorados:
+    public long[] buscar(Consulta consulta, String usuario, Set<String> salas, int limite, long minimo) {
+        long inicio = System.nanoTime();
+        long[] encontrados = new long[Math.max(0, limite)];
+        int quantidade;
+        SegmentoIndice[] atuais;
+        synchronized (this) {
+            quantidade = aberto.buscar(consulta, usuario, salas, encontrados, 0, minimo);
+            atuais = selados;
+        }
+        for (int i = atuais.length - 1; i >= 0 && quantidade < encontrados.length; i--) {
+            quantidade = atuais[i].buscar(consulta, usuario, salas, encontrados, quantidade, minimo);
+        }
+        consultas.incrementar();
+        duracaoConsulta.registrar(System.nanoTime() - inicio);
+        return Arrays.copyOf(encontrados, quantidade);
+    }
+
+    // Uma rodada de compactação (executada em segundo plano): remove os segmentos que saíram do log
+    // por inteiro e junta os demais enquanto houver o que juntar. Retorna quantas junções foram feitas:
+    public int compactar(long minimo) {
+        int feitas = 0;
+        List<SegmentoIndice> grupo;
+        while ((grupo = escolherGrupo(selados, minimo)) != null) {
+            SegmentoIndice ultimo = grupo.get(grupo.size() - 1);
+            SegmentoIndice novo = ultimo.primeiro() + ultimo.quantidade() <= minimo
+                ? null : SegmentoIndice.mesclar(grupo, minimo);
+            substituir(grupo, novo);
+            compactacoes.incrementar();
+            feitas++;
+        }
+        return feitas;
+    }
+
+    // Próximo grupo a compactar: um segmento já fora do log, um segmento com ao menos um quarto dos
+    // documentos fora do log, ou FATOR_COMPACTACAO segmentos vizinhos do mesmo nível de tamanho:
+    private static List<SegmentoIndice> escolherGrupo(SegmentoIndice[] segmentos, long minimo) {
+        for (SegmentoIndice segmento : segmentos) {
+            long fora = minimo - segmento.primeiro();
+            if (fora > 0 && (fora >= segmento.quantidade() || fora * 4 >= segmento.quantidade())) {
+                return List.of(segmento);
+            }
+        }
+        for (int i = 0; i + FATOR_COMPACTACAO <= segmentos.length; i++) {
+            int nivel = nivel(segmentos[i]);
+            int j = i + 1;
+            while (j < i + FATOR_COMPACTACAO && nivel(segmentos[j]) == nivel) {
+                j++;
+            }
+            if (j == i + FATOR_COMPACTACAO) {
+                return Arrays.asList(Arrays.copyOfRange(segmentos, i, j));
+            }
+        }
+        return null;
+    }
+
+    // Nível de tamanho: 0 até um segmento aberto, 1 até quatro, 2 até dezesseis...
+    private static int nivel(SegmentoIndice segmento) {
+        int nivel = 0;
+        for (long tamanho = DOCUMENTOS_POR_SEGMENTO; segmento.quantidade() > tamanho; tamanho *= FATOR_COMPACTACAO) {
+            nivel++;
+        }
+        return nivel;
+    }
+
+    // Troca o grupo (consecutivo) pelo segmento novo, ou o remove se o novo for null:
+    private synchronized void substituir(List<SegmentoIndice> grupo, SegmentoIndice novo) {
+        SegmentoIndice[] atuais = selados;
+        int inicio = Arrays.asList(atuais).indexOf(grupo.get(0));
+        List<SegmentoIndice> novos = new ArrayList<>(Arrays.asList(atuais).subList(0, inicio));
+        if (novo != null) {
+            novos.add(novo);
+        }
+        novos.addAll(Arrays.asList(atuais).subList(inicio + grupo.size(), atuais.length));
+        selados = novos.toArray(new SegmentoIndice[0]);
+    }
+
+    long documentos() {
+        long total;
+        synchronized (this) {
+            total = aberto.quantidade();
+        }
+        for (SegmentoIndice segmento : selados) {
+            total += segmento.quantidade();
+        }
+        return total;
+    }
+
+    /*
+     * Documentos de um segmento (aberto ou selado) e a consulta sobre eles. Cada documento é a posição
+     * do registro a partir do primeiro número do segmento; remetente -1 marca posições sem documento.
+     * O destino é -1 para mensagens públicas, (nome << 1) | 1 para salas e (nome << 1) para privadas,
+     * em que nome é o identificador do nome da sala ou do destinatário na tabela do segmento.
+     */
+    abstract static class Documentos {
+        static final int PUBLICA = -1;
+
+        abstract long primeiro();
+        abstract int quantidade();
+        abstract int[] postagens(String termo);  // Posições em ordem crescente, ou null se o termo não aparece.
+        abstract int contagem(String termo);      // Tamanho da lista do termo (0 se ele não aparece).
+        abstract int horario(int documento);
+        abstract int remetente(int documento);
+        abstract int destino(int documento);
+        abstract int nome(String nome);  // Identificador do nome no segmento, ou -1.
+
+        // Acrescenta aos encontrados (a partir de quantidade) os documentos aceitos, do mais recente
+        // para o mais antigo, e retorna a nova quantidade:
+        final int buscar(Consulta consulta, String usuario, Set<String> salas, long[] encontrados,
+                         int quantidade, long minimo) {
+            int total = quantidade();
+            int menor = (int) Math.max(0, Math.min(total, minimo - primeiro()));
+            if (quantidade >= encontrados.length || menor >= total) {
+                return quantidade;
+            }
+            List<String> termos = new ArrayList<>(consulta.getTermos());
+            if (consulta.getRemetente() != null) {
+                termos.add(termoRemetente(consulta.getRemetente()));
+            }
+            if (consulta.getSala() != null) {
+                termos.add(termoSala(consulta.getSala()));
+            }
+            int[] candidatos = candidatos(termos);
+            if (candidatos != null && candidatos.length == 0) {
+                return quantidade;
+            }
+            int remetente = consulta.getRemetente() == null ? -2 : nome(consulta.getRemetente());
+            int sala = consulta.getSala() == null ? -2 : nome(consulta.getSala());
+            if (remetente == -1 || sala == -1) {
+                return quantidade;  // Nome que não aparece neste segmento.
+            }
+            Filtro filtro = new Filtro(this, usuario, salas, remetente, sala < 0 ? -2 : (sala << 1) | 1,
+                segundos(consulta.getDesde()), segundos(consulta.getAte()));
+            if (candidatos == null) {
+                for (int documento = total - 1; documento >= menor && quantidade < encontrados.length; documento--) {
+                    if (filtro.aceita(documento)) {
+                        encontrados[quantidade++] = primeiro() + documento;
+                    }
+                }
+                return quantidade;
+            }
+            for (int i = candidatos.length - 1; i >= 0 && candidatos[i] >= menor && quantidade < encontrados.length; i--) {
+                if (filtro.aceita(candidatos[i])) {
+                    encontrados[quantidade++] = primeiro() + candidatos[i];
+                }
+            }
+            return quantidade;
+        }
+
+        // Interseção das listas dos termos: decodifica só a menor e filtra o resultado pelas demais, em
+        // ordem de tamanho. Retorna null se não há termos (todos os documentos são candidatos):
+        private int[] candidatos(List<String> termos) {
+            if (termos.isEmpty()) {
+                return null;
+            }
+            int[] contagens = new int[termos.size()];
+            Integer[] ordem = new Integer[termos.size()];
+            for (int i = 0; i < contagens.length; i++) {
+                contagens[i] = contagem(termos.get(i));
+                if (contagens[i] == 0) {
+                    return new int[0];
+                }
+                ordem[i] = i;
+            }
+            Arrays.sort(ordem, Comparator.comparingInt(i -> contagens[i]));
+            int[] resultado = postagens(termos.get(ordem[0]));
+            for (int i = 1; i < ordem.length && resultado.length > 0; i++) {
+                resultado = filtrar(resultado, termos.get(ordem[i]));
+            }
+            return resultado;
+        }
+
+        // Candidatos (em ordem crescente) que também estão na lista do termo:
+        int[] filtrar(int[] candidatos, String termo) {
+            int[] lista = postagens(termo);
+            return lista == null ? new int[0] : intersecao(candidatos, lista);
+        }
+    }
+
+    // Interseção de duas listas crescentes; a menor é procurada na maior por busca binária quando
+    // os tamanhos são muito diferentes:
+    static int[] intersecao(int[] menor, int[] maior) {
+        int[] resultado = new int[menor.length];
+        int quantidade = 0;
+        if ((long) menor.length * 16 < maior.length) {
+            int de = 0;
+            for (int valor : menor) {
+                int posicao = Arrays.binarySearch(maior, de, maior.length, valor);
+                if (posicao >= 0) {
+                    resultado[quantidade++] = valor;
+                    de = posicao + 1;
+                } else {
+                    de = -posicao - 1;
+                }
+            }
+        } else {
+            for (int i = 0, j = 0; i < menor.length && j < maior.length; ) {
+                if (menor[i] < maior[j]) {
+                    i++;
+                } else if (menor[i] > maior[j]) {
+                    j++;
+                } else {
+                    resultado[quantidade++] = menor[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return Arrays.copyOf(resultado, quantidade);
+    }
+
+    // Filtros e visibilidade de uma consulta já traduzidos para os identificadores de um segmento:
+    private static final class Filtro {
+        private final Documentos documentos;
+        private final int usuario;    // -1 se o usuário não aparece no segmento (vê só públicas e salas).
+        private final int[] salas;    // Destinos das salas do usuário, em ordem.
+        private final int remetente;  // -2 sem filtro.
+        private final int sala;       // -2 sem filtro.
+        private final int desde;
+        private final int ate;
+
+        Filtro(Documentos documentos, String usuario, Set<String> salas, int remetente, int sala, int desde, int ate) {
+            this.documentos = documentos;
+            this.usuario = documentos.nome(usuario);
+            this.salas = salas.stream().mapToInt(documentos::nome).filter(id -> id >= 0)
+                .map(id -> (id << 1) | 1).sorted().toArray();
+            this.remetente = remetente;
+            this.sala = sala;
+            this.desde = desde;
+            this.ate = ate;
+        }
+
+        boolean aceita(int documento) {
+            int de = documentos.remetente(documento);
+            if (de < 0 || (remetente != -2 && de != remetente)) {
+                return false;
+            }
+            int destino = documentos.destino(documento);
+            if (sala != -2 && destino != sala) {
+                return false;
+            }
+            int horario = documentos.horario(documento);
+            if (horario < desde || horario > ate) {
+                return false;
+            }
+            if (destino == Documentos.PUBLICA) {
+                return true;
+            }
+            if ((destino & 1) == 1) {
+                return Arrays.binarySearch(salas, destino) >= 0;
+            }
+            return usuario >= 0 && (de == usuario || destino >> 1 == usuario);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package Trabalho_2.historico;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.metricas.Contador;
+import Trabalho_2.metricas.Histograma;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Log persistente, somente de acréscimo, de todas as mensagens do chat (públicas, de salas e
+ * privadas), dividido em segmentos mapeados em memória.
+ *
+ * No caminho das mensagens, registrar() apenas codifica a mensagem e a coloca numa fila sem
+ * trava. Uma thread escritora esvazia a fila, anexa os registros ao segmento atual e faz uma
+ * única sincronização com o disco para todo o lote (group commit): quanto maior a carga, maior
+ * o lote e menor o custo de sincronização por mensagem.
+ *
+ * O histórico é lido direto dos segmentos mapeados, do fim para o começo, usando o índice.
+ * Apenas os segmentos mais recentes são mantidos; os mais antigos são apagados.
+ *
+ * A escritora também alimenta o índice de busca (IndiceBusca) com cada registro gravado, fora do
+ * caminho das mensagens. Ao abrir o log, uma thread de fundo reconstrói o índice dos registros já
+ * existentes e depois passa a compactá-lo periodicamente.
+ */
+public class LogMensagens {
+    private static final int LIMITE_PENDENTES = 100_000;   // Registros aguardando a escritora antes de descartar.
+    private static final int LOTE_MAXIMO = 8192;           // Registros anexados entre duas sincronizações.
+    private static final int LIMITE_VARREDURA = 20_000;    // Registros examinados por consulta ao histórico.
+    private static final long INTERVALO_COMPACTACAO = 5_000_000_000L;  // Entre as rodadas de compactação do índice.
+
+    private final Path diretorio;
+    private final int tamanhoSegmento;
+    private final int maximoSegmentos;
+    private final boolean sincronizar;
+
+    private volatile Segmento[] segmentos;  // Do mais antigo para o mais recente; trocado apenas pela escritora.
+    private final Queue<Pendente> pendentes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger quantidadePendentes = new AtomicInteger();
+    private final AtomicBoolean escritoraAcordada = new AtomicBoolean(false);
+    private final Thread escritora;
+    private final IndiceBusca indice;
+    private final Thread manutencaoIndice;
+    private volatile boolean aberto = true;
+
+    private final Contador registradas;
+    private final Contador descartadas;
+    private final Histograma tempoSincronizacao;
+    private final Histograma tamanhoLote;
+
+    public LogMensagens(Path diretorio, int tamanhoSegmento, int maximoSegmentos, boolean sincronizar,
+                        RegistroMetricas metricas) throws IOException {
+        this.diretorio = diretorio;
+        this.tamanhoSegmento = tamanhoSegmento;
+        this.maximoSegmentos = Math.max(1, maximoSegmentos);
+        this.sincronizar = sincronizar;
+        this.registradas = metricas.contador("chat_historico_registradas_total",
+            "Mensagens gravadas no log persistente.");
+        this.descartadas = metricas.contador("chat_historico_descartadas_total",
+            "Mensagens não gravadas porque a escritora do log estava sobrecarregada.");
+        this.tamanhoLote = metricas.histograma("chat_historico_lote",
+            "Mensagens gravadas por sincronização com o disco (group commit).");
+        this.tempoSincronizacao = metricas.duracao("chat_historico_sincronizacao_segundos",
+            "Duração de cada sincronização do log com o disco.");
+
+        Files.createDirectories(diretorio);
+        this.segmentos = abrirSegmentos();
+        long fimExistentes = proximoRegistro();
+        this.indice = new IndiceBusca(fimExistentes, metricas);
+        this.escritora = new Thread(this::escrever, "historico");
+        escritora.setDaemon(true);
+        escritora.start();
+        this.manutencaoIndice = new Thread(() -> manterIndice(fimExistentes), "indice-busca");
+        manutencaoIndice.setDaemon(true);
+        manutencaoIndice.start();
+    }
+
+    // Mensagem a gravar, junto com o seu quadro já codificado (para indexar sem decodificar de novo):
+    private static final class Pendente {
+        final byte[] quadro;
+        final Mensagem mensagem;
+
+        Pendente(byte[] quadro, Mensagem mensagem) {
+            this.quadro = quadro;
+            this.mensagem = mensagem;
+        }
+    }
+
+    // Reabre os segmentos existentes (nomeados pelo número do primeiro registro) ou cria o primeiro:
+    private Segmento[] abrirSegmentos() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> arquivos = Files.list(diretorio)) {
+            arquivos.map(arquivo -> arquivo.getFileName().toString())
+                    .filter(nome -> nome.matches("\\d{20}\\.log"))
+                    .forEach(nome -> bases.add(Long.parseLong(nome.substring(0, 20))));
+        }
+        Collections.sort(bases);
+        if (bases.isEmpty()) {
+            bases.add(0L);
+        }
+        Segmento[] abertos = new Segmento[bases.size()];
+        for (int i = 0; i < abertos.length; i++) {
+            abertos[i] = new Segmento(diretorio, bases.get(i), tamanhoSegmento);
+        }
+        return abertos;
+    }
+
+    // Chamado no caminho das mensagens: codifica e enfileira, sem esperar pelo disco.
+    public void registrar(Mensagem mensagem) {
+        if (!aberto) {
+            return;
+        }
+        byte[] quadro;
+        try {
+            quadro = Protocolo.codificarQuadro(mensagem);
+        } catch (IOException e) {
+            descartadas.incrementar();  // Mensagem maior que o quadro máximo.
+            return;
+        }
+        if (quantidadePendentes.incrementAndGet() > LIMITE_PENDENTES) {
+            quantidadePendentes.decrementAndGet();
+            descartadas.incrementar();
+            return;
+        }
+        pendentes.add(new Pendente(quadro, mensagem));
+        if (escritoraAcordada.compareAndSet(false, true)) {
+            LockSupport.unpark(escritora);
+        }
+    }
+
+    // Laço da thread escritora: anexa o que estiver pendente e sincroniza o lote de uma vez. O lote é
+    // limitado ao que já estava na fila no início dele (e a LOTE_MAXIMO), para que a escritora
+    // sincronize mesmo sob carga contínua, quando a fila nunca chega a esvaziar.
+    private void escrever() {
+        while (true) {
+            int lote = 0;
+            int restantes = Math.min(quantidadePendentes.get(), LOTE_MAXIMO);
+            Pendente pendente;
+            while (restantes-- > 0 && (pendente = pendentes.poll()) != null) {
+                quantidadePendentes.decrementAndGet();
+                try {
+                    indice.indexar(anexar(pendente.quadro), pendente.mensagem);
+                    lote++;
+                } catch (IOException e) {
+                    descartadas.incrementar();
+                    System.err.println("Erro ao gravar histórico: " + e.getMessage());
+                }
+            }
+            if (lote > 0) {
+                sincronizarLote(lote);
+                continue;
+            }
+            if (!aberto) {
+                return;
+            }
+            escritoraAcordada.set(false);
+            if (pendentes.isEmpty() && aberto) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // Anexa o quadro ao segmento atual (ou a um novo, se não couber) e retorna o número do registro:
+    private long anexar(byte[] quadro) throws IOException {
+        Segmento atual = segmentos[segmentos.length - 1];
+        if (!atual.cabe(quadro.length)) {
+            if (atual.quantidade() == 0) {
+                throw new IOException("Mensagem maior que o segmento");
+            }
+            atual.sincronizar();
+            atual = novoSegmento(atual.base + atual.quantidade());
+        }
+        atual.anexar(quadro);
+        return atual.base + atual.quantidade() - 1;
+    }
+
+    private void sincronizarLote(int lote) {
+        registradas.adicionar(lote);
+        tamanhoLote.registrar(lote);
+        if (sincronizar) {
+            long inicio = System.nanoTime();
+            segmentos[segmentos.length - 1].sincronizar();
+            tempoSincronizacao.registrar(System.nanoTime() - inicio);
+        }
+    }
+
+    // Cria o próximo segmento e apaga os mais antigos além do limite:
+    private Segmento novoSegmento(long base) throws IOException {
+        Segmento novo = new Segmento(diretorio, base, tamanhoSegmento);
+        Segmento[] atuais = segmentos;
+        int manter = Math.min(atuais.length, maximoSegmentos - 1);
+        Segmento[] proximos = Arrays.copyOfRange(atuais, atuais.length - manter, atuais.length + 1);
+        proximos[proximos.length - 1] = novo;
+        segmentos = proximos;
+        for (int i = 0; i < atuais.length - manter; i++) {
+            atuais[i].apagar();  // Leitores em andamento continuam usando o mapeamento já aberto.
+        }
+        return novo;
+    }
+
+    // Últimas n mensagens aceitas pelo filtro, da mais antiga para a mais recente:
+    public List<Mensagem> ultimas(int n, Predicate<Mensagem> filtro) {
+        ArrayDeque<Mensagem> encontradas = new ArrayDeque<>(n);
+        Segmento[] atuais = segmentos;
+        int examinadas = 0;
+        for (int s = atuais.length - 1; s >= 0 && encontradas.size() < n; s--) {
+            Segmento segmento = atuais[s];
+            for (int i = segmento.quantidade() - 1; i >= 0 && encontradas.size() < n; i--) {
+                if (++examinadas > LIMITE_VARREDURA) {
+                    return new ArrayList<>(encontradas);
+                }
+                byte[] conteudo = segmento.ler(i);
+                try {
+                    Mensagem mensagem = Protocolo.decodificar(conteudo, 0, conteudo.length, null);
+                    if (mensagem != null && filtro.test(mensagem)) {
+                        encontradas.addFirst(mensagem);
+                    }
+                } catch (IOException e) {
+                    // Registro corrompido: ignorado na leitura.
+                }
+            }
+        }
+        return new ArrayList<>(encontradas);
+    }
+
+    // Mensagens mais recentes que atendem à consulta, segundo o índice de busca, da mais antiga para a
+    // mais recente. O filtro confere a visibilidade de novo com a mensagem lida do log:
+    public List<Mensagem> buscar(Consulta consulta, String usuario, Set<String> salas, int limite,
+                                 Predicate<Mensagem> filtro) {
+        long[] numeros = indice.buscar(consulta, usuario, salas, limite, primeiroRegistro());
+        ArrayDeque<Mensagem> encontradas = new ArrayDeque<>(numeros.length);
+        for (long numero : numeros) {
+            Mensagem mensagem = ler(numero);
+            if (mensagem != null && filtro.test(mensagem)) {
+                encontradas.addFirst(mensagem);
+            }
+        }
+        return new ArrayList<>(encontradas);
+    }
+
+    // Lê o registro de número informado, ou null se ele já saiu do log (ou está corrompido):
+    private Mensagem ler(long numero) {
+        Segmento[] atuais = segmentos;
+        for (int s = atuais.length - 1; s >= 0; s--) {
+            Segmento segmento = atuais[s];
+            if (numero >= segmento.base) {
+                if (numero - segmento.base >= segmento.quantidade()) {
+                    return null;
+                }
+                byte[] conteudo = segmento.ler((int) (numero - segmento.base));
+                try {
+                    return Protocolo.decodificar(conteudo, 0, conteudo.length, null);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private long primeiroRegistro() {
+        return segmentos[0].base;
+    }
+
+    private long proximoRegistro() {
+        Segmento ultimo = segmentos[segmentos.length - 1];
+        return ultimo.base + ultimo.quantidade();
+    }
+
+    // Thread de fundo do índice: indexa os registros gravados antes da abertura do log (em segmentos
+    // do tamanho dos que a escritora sela) e depois compacta o índice periodicamente:
+    private void manterIndice(long fimExistentes) {
+        SegmentoAberto reconstruido = null;
+        for (long numero = primeiroRegistro(); numero < fimExistentes && aberto; numero++) {
+            if (reconstruido == null) {
+                reconstruido = new SegmentoAberto(numero);
+            }
+            reconstruido.adicionar(numero, ler(numero));
+            if (reconstruido.quantidade() >= IndiceBusca.DOCUMENTOS_POR_SEGMENTO || numero == fimExistentes - 1) {
+                indice.adicionarSelado(reconstruido.selar());
+                reconstruido = null;
+            }
+        }
+        while (aberto) {
+            indice.compactar(primeiroRegistro());
+            LockSupport.parkNanos(this, INTERVALO_COMPACTACAO);
+        }
+    }
+
+    // Para a escritora depois de gravar o que estiver pendente:
+    public void fechar() {
+        aberto = false;
+        LockSupport.unpark(manutencaoIndice);
+        LockSupport.unpark(escritora);
+        try {
+            escritora.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
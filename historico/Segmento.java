@@ -0,0 +1,118 @@
+package Trabalho_2.historico;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import Trabalho_2.chat.Protocolo;
+
+/*
+ * Um segmento do log de mensagens: um arquivo de dados com os registros em sequência e um
+ * arquivo de índice com a posição de cada registro, ambos mapeados em memória.
+ * Cada registro é o quadro binário da mensagem com os nomes como texto (o mesmo formato
+ * enviado pelo cliente), precedido do tamanho. Os arquivos recebem o número do primeiro
+ * registro no nome, por exemplo 00000000000000000000.log e 00000000000000000000.idx.
+ *
+ * Apenas a thread escritora do log anexa registros; a quantidade publicada é volátil, de modo
+ * que leitores concorrentes enxergam somente registros completos.
+ */
+class Segmento {
+    private static final int BYTES_POR_ENTRADA_INDICE = 4;
+
+    final long base;  // Número do primeiro registro do segmento.
+    private final Path arquivoDados;
+    private final Path arquivoIndice;
+    private final MappedByteBuffer dados;
+    private final MappedByteBuffer indice;
+    private final int capacidadeIndice;
+    private volatile int quantidade = 0;
+    private int posicao = 0;           // Próximo byte livre nos dados (usado apenas pelo escritor).
+    private int inicioNaoSincronizado = 0;
+    private int entradasNaoSincronizadas = 0;
+
+    // Abre (ou cria) o segmento; registros já existentes são recuperados percorrendo os dados:
+    Segmento(Path diretorio, long base, int tamanhoDados) throws IOException {
+        this.base = base;
+        this.arquivoDados = diretorio.resolve(String.format("%020d.log", base));
+        this.arquivoIndice = diretorio.resolve(String.format("%020d.idx", base));
+        this.capacidadeIndice = Math.max(1, tamanhoDados / 64);
+        this.dados = mapear(arquivoDados, tamanhoDados);
+        this.indice = mapear(arquivoIndice, capacidadeIndice * BYTES_POR_ENTRADA_INDICE);
+        recuperar();
+    }
+
+    private static MappedByteBuffer mapear(Path arquivo, int tamanho) throws IOException {
+        try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return canal.map(FileChannel.MapMode.READ_WRITE, 0, tamanho);  // O mapeamento continua válido após fechar o canal.
+        }
+    }
+
+    // Percorre os registros gravados (um tamanho zero marca o fim) e refaz o índice. Um registro
+    // incompleto no final, deixado por uma queda, é descartado:
+    private void recuperar() {
+        int lidos = 0;
+        int pos = 0;
+        while (pos + Protocolo.TAMANHO_CABECALHO <= dados.capacity() && lidos < capacidadeIndice) {
+            int tamanho = dados.getInt(pos);
+            if (tamanho <= 0 || tamanho > Protocolo.TAMANHO_MAXIMO_QUADRO
+                    || pos + Protocolo.TAMANHO_CABECALHO + tamanho > dados.capacity()) {
+                break;
+            }
+            indice.putInt(lidos * BYTES_POR_ENTRADA_INDICE, pos);
+            lidos++;
+            pos += Protocolo.TAMANHO_CABECALHO + tamanho;
+        }
+        posicao = inicioNaoSincronizado = pos;
+        quantidade = lidos;
+    }
+
+    // Verifica se um registro (quadro com prefixo) ainda cabe neste segmento, junto com a marca de fim:
+    boolean cabe(int tamanhoQuadro) {
+        return quantidade < capacidadeIndice && posicao + tamanhoQuadro + Protocolo.TAMANHO_CABECALHO <= dados.capacity();
+    }
+
+    // Anexa um quadro já com o prefixo de tamanho. O zero seguinte marca o fim para a recuperação:
+    void anexar(byte[] quadro) {
+        dados.put(posicao, quadro);
+        dados.putInt(posicao + quadro.length, 0);
+        indice.putInt(quantidade * BYTES_POR_ENTRADA_INDICE, posicao);
+        posicao += quadro.length;
+        entradasNaoSincronizadas++;
+        quantidade = quantidade + 1;  // Publica o registro para os leitores.
+    }
+
+    // Grava em disco o que foi anexado desde a última sincronização (dados antes do índice):
+    void sincronizar() {
+        if (entradasNaoSincronizadas == 0) {
+            return;
+        }
+        dados.force(inicioNaoSincronizado, posicao - inicioNaoSincronizado);
+        int primeiraEntrada = quantidade - entradasNaoSincronizadas;
+        indice.force(primeiraEntrada * BYTES_POR_ENTRADA_INDICE, entradasNaoSincronizadas * BYTES_POR_ENTRADA_INDICE);
+        inicioNaoSincronizado = posicao;
+        entradasNaoSincronizadas = 0;
+    }
+
+    int quantidade() {
+        return quantidade;
+    }
+
+    // Copia o conteúdo do registro i (sem o prefixo de tamanho) direto do mapeamento. Pode ser
+    // chamado por qualquer thread para registros já publicados:
+    byte[] ler(int i) {
+        int pos = indice.getInt(i * BYTES_POR_ENTRADA_INDICE);
+        int tamanho = dados.getInt(pos);
+        byte[] conteudo = new byte[tamanho];
+        dados.get(pos + Protocolo.TAMANHO_CABECALHO, conteudo);
+        return conteudo;
+    }
+
+    void apagar() throws IOException {
+        Files.deleteIfExists(arquivoDados);
+        Files.deleteIfExists(arquivoIndice);
+    }
+}
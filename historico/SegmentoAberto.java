@@ -0,0 +1,144 @@
+package Trabalho_2.historico;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import Trabalho_2.chat.Mensagem;
+
+/*
+ * Segmento do índice de busca que ainda recebe documentos, com listas de postagens crescentes em
+ * arrays comuns. É alterado apenas pela escritora do log e consultado sob a trava do índice; ao
+ * encher, é selado num SegmentoIndice.
+ */
+class SegmentoAberto extends IndiceBusca.Documentos {
+    private final long primeiro;
+    private final HashMap<String, Lista> postagens = new HashMap<>();
+    private final HashMap<String, Integer> nomes = new HashMap<>();
+    private final List<String> tabelaNomes = new ArrayList<>();
+    private int[] horarios = new int[1024];
+    private int[] remetentes = new int[1024];
+    private int[] destinos = new int[1024];
+    private int quantidade = 0;
+
+    SegmentoAberto(long primeiro) {
+        this.primeiro = primeiro;
+    }
+
+    // Lista de postagens que cresce conforme os documentos chegam:
+    private static final class Lista {
+        int[] documentos = new int[4];
+        int quantidade;
+
+        void adicionar(int documento) {
+            if (quantidade == documentos.length) {
+                documentos = Arrays.copyOf(documentos, quantidade * 2);
+            }
+            documentos[quantidade++] = documento;
+        }
+    }
+
+    // Adiciona o registro de número informado; posições puladas (registros não indexados) ficam vazias:
+    void adicionar(long numero, Mensagem mensagem) {
+        long posicao = numero - primeiro;
+        if (posicao < quantidade || posicao >= Integer.MAX_VALUE) {
+            return;
+        }
+        int documento = (int) posicao;
+        garantirCapacidade(documento + 1);
+        for (int vazio = quantidade; vazio < documento; vazio++) {
+            remetentes[vazio] = -1;
+        }
+        quantidade = documento + 1;
+        if (mensagem == null || mensagem.getRemetente() == null) {
+            remetentes[documento] = -1;
+            return;
+        }
+        horarios[documento] = IndiceBusca.horario(mensagem.getHorarioMillis());
+        remetentes[documento] = registrarNome(mensagem.getRemetente());
+        if (mensagem.getSala() != null) {
+            destinos[documento] = (registrarNome(mensagem.getSala()) << 1) | 1;
+        } else if (mensagem.getDestinatario() != null) {
+            destinos[documento] = registrarNome(mensagem.getDestinatario()) << 1;
+        } else {
+            destinos[documento] = PUBLICA;
+        }
+        for (String termo : IndiceBusca.termos(mensagem.getConteudo())) {
+            adicionarPostagem(termo, documento);
+        }
+        adicionarPostagem(IndiceBusca.termoRemetente(mensagem.getRemetente()), documento);
+        if (mensagem.getSala() != null) {
+            adicionarPostagem(IndiceBusca.termoSala(mensagem.getSala()), documento);
+        }
+    }
+
+    private void adicionarPostagem(String termo, int documento) {
+        postagens.computeIfAbsent(termo, t -> new Lista()).adicionar(documento);
+    }
+
+    private void garantirCapacidade(int capacidade) {
+        if (capacidade > horarios.length) {
+            int nova = Math.max(capacidade, horarios.length * 2);
+            horarios = Arrays.copyOf(horarios, nova);
+            remetentes = Arrays.copyOf(remetentes, nova);
+            destinos = Arrays.copyOf(destinos, nova);
+        }
+    }
+
+    private int registrarNome(String nome) {
+        Integer id = nomes.get(nome);
+        if (id == null) {
+            id = tabelaNomes.size();
+            nomes.put(nome, id);
+            tabelaNomes.add(nome);
+        }
+        return id;
+    }
+
+    // Cria o segmento imutável equivalente (os termos em ordem, com as listas codificadas):
+    SegmentoIndice selar() {
+        String[] termos = postagens.keySet().toArray(new String[0]);
+        Arrays.sort(termos);
+        SegmentoIndice.Codificador codificador = new SegmentoIndice.Codificador(termos.length);
+        for (String termo : termos) {
+            Lista lista = postagens.get(termo);
+            codificador.adicionar(termo, lista.documentos, lista.quantidade);
+        }
+        return codificador.construir(primeiro, tabelaNomes.toArray(new String[0]),
+            Arrays.copyOf(horarios, quantidade), Arrays.copyOf(remetentes, quantidade), Arrays.copyOf(destinos, quantidade));
+    }
+
+    @Override
+    long primeiro() { return primeiro; }
+
+    @Override
+    int quantidade() { return quantidade; }
+
+    @Override
+    int[] postagens(String termo) {
+        Lista lista = postagens.get(termo);
+        return lista == null ? null : Arrays.copyOf(lista.documentos, lista.quantidade);
+    }
+
+    @Override
+    int contagem(String termo) {
+        Lista lista = postagens.get(termo);
+        return lista == null ? 0 : lista.quantidade;
+    }
+
+    @Override
+    int horario(int documento) { return horarios[documento]; }
+
+    @Override
+    int remetente(int documento) { return remetentes[documento]; }
+
+    @Override
+    int destino(int documento) { return destinos[documento]; }
+
+    @Override
+    int nome(String nome) {
+        Integer id = nome == null ? null : nomes.get(nome);
+        return id == null ? -1 : id;
+    }
+}
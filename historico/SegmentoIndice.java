@@ -0,0 +1,286 @@
+package Trabalho_2.historico;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Segmento selado (imutável) do índice de busca. Os termos ficam num array ordenado, procurado por
+ * busca binária, e as listas de postagens ficam todas num único array de bytes, cada uma codificada
+ * como diferenças entre posições consecutivas em varint (em geral um byte por postagem). As listas
+ * longas têm uma entrada de salto a cada SALTO postagens (a última posição antes do bloco e onde o
+ * bloco começa), para que poucos candidatos sejam procurados nelas sem decodificá-las inteiras. Os
+ * dados por documento (horário, remetente e destino) ficam em arrays de int, indexados pela posição.
+ *
+ * Por ser imutável, é consultado sem trava; a compactação cria segmentos novos com mesclar().
+ */
+class SegmentoIndice extends IndiceBusca.Documentos {
+    private static final int SALTO = 128;  // Postagens por bloco das listas longas.
+
+    private final long primeiro;
+    private final String[] termos;
+    private final int[] inicios;     // Posição da lista de cada termo em dados.
+    private final int[] contagens;   // Postagens de cada termo.
+    private final byte[] dados;
+    private final int[] inicioSaltos; // Posição dos saltos de cada termo em saltos (-1 para listas curtas).
+    private final int[] saltos;       // Pares (última posição antes do bloco, início do bloco em dados).
+    private final String[] tabelaNomes;
+    private final HashMap<String, Integer> nomes;
+    private final int[] horarios;
+    private final int[] remetentes;
+    private final int[] destinos;
+
+    private SegmentoIndice(long primeiro, String[] termos, int[] inicios, int[] contagens, byte[] dados,
+                           int[] inicioSaltos, int[] saltos, String[] tabelaNomes, int[] horarios,
+                           int[] remetentes, int[] destinos) {
+        this.primeiro = primeiro;
+        this.termos = termos;
+        this.inicios = inicios;
+        this.contagens = contagens;
+        this.dados = dados;
+        this.inicioSaltos = inicioSaltos;
+        this.saltos = saltos;
+        this.tabelaNomes = tabelaNomes;
+        this.nomes = new HashMap<>(tabelaNomes.length * 2);
+        for (int i = 0; i < tabelaNomes.length; i++) {
+            nomes.put(tabelaNomes[i], i);
+        }
+        this.horarios = horarios;
+        this.remetentes = remetentes;
+        this.destinos = destinos;
+    }
+
+    // Monta um segmento recebendo os termos em ordem, cada um com a sua lista crescente de posições:
+    static final class Codificador {
+        private final String[] termos;
+        private final int[] inicios;
+        private final int[] contagens;
+        private final int[] inicioSaltos;
+        private byte[] dados = new byte[4096];
+        private int[] saltos = new int[256];
+        private int tamanho = 0;
+        private int tamanhoSaltos = 0;
+        private int quantidade = 0;
+
+        Codificador(int termos) {
+            this.termos = new String[termos];
+            this.inicios = new int[termos];
+            this.contagens = new int[termos];
+            this.inicioSaltos = new int[termos];
+        }
+
+        void adicionar(String termo, int[] documentos, int quantidadeDocumentos) {
+            if (quantidadeDocumentos == 0) {
+                return;
+            }
+            termos[quantidade] = termo;
+            inicios[quantidade] = tamanho;
+            contagens[quantidade] = quantidadeDocumentos;
+            inicioSaltos[quantidade] = quantidadeDocumentos > SALTO ? tamanhoSaltos : -1;
+            quantidade++;
+            int anterior = 0;
+            for (int i = 0; i < quantidadeDocumentos; i++) {
+                if (quantidadeDocumentos > SALTO && i % SALTO == 0) {
+                    if (tamanhoSaltos + 2 > saltos.length) {
+                        saltos = Arrays.copyOf(saltos, saltos.length * 2);
+                    }
+                    saltos[tamanhoSaltos++] = i == 0 ? -1 : anterior;
+                    saltos[tamanhoSaltos++] = tamanho;
+                }
+                escreverVarint(documentos[i] - anterior);
+                anterior = documentos[i];
+            }
+        }
+
+        private void escreverVarint(int valor) {
+            if (tamanho + 5 > dados.length) {
+                dados = Arrays.copyOf(dados, Math.max(dados.length * 2, tamanho + 5));
+            }
+            while ((valor & ~0x7F) != 0) {
+                dados[tamanho++] = (byte) ((valor & 0x7F) | 0x80);
+                valor >>>= 7;
+            }
+            dados[tamanho++] = (byte) valor;
+        }
+
+        SegmentoIndice construir(long primeiro, String[] tabelaNomes, int[] horarios, int[] remetentes, int[] destinos) {
+            return new SegmentoIndice(primeiro, Arrays.copyOf(termos, quantidade), Arrays.copyOf(inicios, quantidade),
+                Arrays.copyOf(contagens, quantidade), Arrays.copyOf(dados, tamanho), Arrays.copyOf(inicioSaltos, quantidade),
+                Arrays.copyOf(saltos, tamanhoSaltos), tabelaNomes, horarios, remetentes, destinos);
+        }
+    }
+
+    // Junta segmentos consecutivos (em ordem de número) num só, descartando os documentos anteriores
+    // ao mínimo. Os nomes são renumerados numa tabela comum e os termos são intercalados em ordem:
+    static SegmentoIndice mesclar(List<SegmentoIndice> segmentos, long minimo) {
+        SegmentoIndice ultimo = segmentos.get(segmentos.size() - 1);
+        long primeiro = Math.max(segmentos.get(0).primeiro, minimo);
+        int total = (int) (ultimo.primeiro + ultimo.quantidade() - primeiro);
+        int[] horarios = new int[total];
+        int[] remetentes = new int[total];
+        int[] destinos = new int[total];
+        Arrays.fill(remetentes, -1);  // Posições sem documento (entre segmentos não contíguos).
+
+        HashMap<String, Integer> nomes = new HashMap<>();
+        int[] deslocamentos = new int[segmentos.size()];
+        for (int s = 0; s < segmentos.size(); s++) {
+            SegmentoIndice segmento = segmentos.get(s);
+            int[] mapa = new int[segmento.tabelaNomes.length];
+            for (int i = 0; i < mapa.length; i++) {
+                mapa[i] = nomes.computeIfAbsent(segmento.tabelaNomes[i], nome -> nomes.size());
+            }
+            deslocamentos[s] = (int) (segmento.primeiro - primeiro);
+            for (int documento = 0; documento < segmento.quantidade(); documento++) {
+                int destino = documento + deslocamentos[s];
+                int remetente = segmento.remetentes[documento];
+                if (destino < 0 || remetente < 0) {
+                    continue;  // Fora do log ou posição sem documento.
+                }
+                int alvo = segmento.destinos[documento];
+                horarios[destino] = segmento.horarios[documento];
+                remetentes[destino] = mapa[remetente];
+                destinos[destino] = alvo == PUBLICA ? PUBLICA : (mapa[alvo >> 1] << 1) | (alvo & 1);
+            }
+        }
+        String[] tabelaNomes = new String[nomes.size()];
+        nomes.forEach((nome, id) -> tabelaNomes[id] = nome);
+
+        // Intercala os termos ordenados de todos os segmentos, concatenando as listas com as posições ajustadas:
+        int[] cursores = new int[segmentos.size()];
+        int maximoTermos = 0;
+        for (SegmentoIndice segmento : segmentos) {
+            maximoTermos += segmento.termos.length;
+        }
+        Codificador codificador = new Codificador(maximoTermos);
+        int[] lista = new int[64];
+        while (true) {
+            String termo = null;
+            for (int s = 0; s < segmentos.size(); s++) {
+                String[] termos = segmentos.get(s).termos;
+                if (cursores[s] < termos.length && (termo == null || termos[cursores[s]].compareTo(termo) < 0)) {
+                    termo = termos[cursores[s]];
+                }
+            }
+            if (termo == null) {
+                break;
+            }
+            int quantidade = 0;
+            for (int s = 0; s < segmentos.size(); s++) {
+                SegmentoIndice segmento = segmentos.get(s);
+                if (cursores[s] < segmento.termos.length && segmento.termos[cursores[s]].equals(termo)) {
+                    int[] documentos = segmento.decodificar(cursores[s]);
+                    if (quantidade + documentos.length > lista.length) {
+                        lista = Arrays.copyOf(lista, Math.max(lista.length * 2, quantidade + documentos.length));
+                    }
+                    for (int documento : documentos) {
+                        int posicao = documento + deslocamentos[s];
+                        if (posicao >= 0) {
+                            lista[quantidade++] = posicao;
+                        }
+                    }
+                    cursores[s]++;
+                }
+            }
+            codificador.adicionar(termo, lista, quantidade);
+        }
+        return codificador.construir(primeiro, tabelaNomes, horarios, remetentes, destinos);
+    }
+
+    // Decodifica a lista do termo de índice i:
+    private int[] decodificar(int i) {
+        int[] documentos = new int[contagens[i]];
+        decodificar(inicios[i], 0, documentos, documentos.length);
+        return documentos;
+    }
+
+    // Decodifica quantidade postagens a partir da posição em dados, somando as diferenças ao anterior:
+    private void decodificar(int posicao, int anterior, int[] destino, int quantidade) {
+        for (int j = 0; j < quantidade; j++) {
+            int valor = 0;
+            int deslocamento = 0;
+            byte b;
+            do {
+                b = dados[posicao++];
+                valor |= (b & 0x7F) << deslocamento;
+                deslocamento += 7;
+            } while (b < 0);
+            anterior += valor;
+            destino[j] = anterior;
+        }
+    }
+
+    // Com poucos candidatos e uma lista longa, decodifica só os blocos em que os candidatos podem estar:
+    @Override
+    int[] filtrar(int[] candidatos, String termo) {
+        int i = Arrays.binarySearch(termos, termo);
+        if (i < 0) {
+            return new int[0];
+        }
+        if (inicioSaltos[i] < 0 || (long) candidatos.length * 16 >= contagens[i]) {
+            return IndiceBusca.intersecao(candidatos, decodificar(i));
+        }
+        int blocos = (contagens[i] + SALTO - 1) / SALTO;
+        int base = inicioSaltos[i];
+        int[] bloco = new int[SALTO];
+        int blocoAtual = -1;
+        int tamanhoBloco = 0;
+        int[] resultado = new int[candidatos.length];
+        int quantidade = 0;
+        for (int candidato : candidatos) {
+            // Último bloco cuja posição anterior é menor que o candidato:
+            int inferior = Math.max(blocoAtual, 0);
+            int superior = blocos - 1;
+            while (inferior < superior) {
+                int meio = (inferior + superior + 1) >>> 1;
+                if (saltos[base + meio * 2] < candidato) {
+                    inferior = meio;
+                } else {
+                    superior = meio - 1;
+                }
+            }
+            if (inferior != blocoAtual) {
+                blocoAtual = inferior;
+                tamanhoBloco = Math.min(SALTO, contagens[i] - blocoAtual * SALTO);
+                int anterior = Math.max(0, saltos[base + blocoAtual * 2]);
+                decodificar(saltos[base + blocoAtual * 2 + 1], anterior, bloco, tamanhoBloco);
+            }
+            if (Arrays.binarySearch(bloco, 0, tamanhoBloco, candidato) >= 0) {
+                resultado[quantidade++] = candidato;
+            }
+        }
+        return Arrays.copyOf(resultado, quantidade);
+    }
+
+    @Override
+    long primeiro() { return primeiro; }
+
+    @Override
+    int quantidade() { return remetentes.length; }
+
+    @Override
+    int[] postagens(String termo) {
+        int i = Arrays.binarySearch(termos, termo);
+        return i < 0 ? null : decodificar(i);
+    }
+
+    @Override
+    int contagem(String termo) {
+        int i = Arrays.binarySearch(termos, termo);
+        return i < 0 ? 0 : contagens[i];
+    }
+
+    @Override
+    int horario(int documento) { return horarios[documento]; }
+
+    @Override
+    int remetente(int documento) { return remetentes[documento]; }
+
+    @Override
+    int destino(int documento) { return destinos[documento]; }
+
+    @Override
+    int nome(String nome) {
+        Integer id = nome == null ? null : nomes.get(nome);
+        return id == null ? -1 : id;
+    }
+}
@@ -0,0 +1,23 @@
+package Trabalho_2.metricas;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Contador monotônico de eventos. Baseado em LongAdder, para que muitas threads possam
+ * incrementá-lo ao mesmo tempo (ex.: uma por destinatário de um broadcast) sem disputa.
+ */
+public class Contador {
+    private final LongAdder valor = new LongAdder();
+
+    public void incrementar() {
+        valor.increment();
+    }
+
+    public void adicionar(long quantidade) {
+        valor.add(quantidade);
+    }
+
+    public long valor() {
+        return valor.sum();
+    }
+}
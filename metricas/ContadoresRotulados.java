@@ -0,0 +1,51 @@
+package Trabalho_2.metricas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Família de contadores separados pelo valor de um rótulo (ex.: um contador por usuário),
+ * exportada no Prometheus como nome{rotulo="valor"}. Para não crescer sem limite, aceita no
+ * máximo a quantidade de valores informada; os eventos de valores novos acima dela não são
+ * contados aqui (apenas nos contadores totais de quem a usa).
+ */
+public class ContadoresRotulados {
+    private final String rotulo;
+    private final int limiteValores;
+    private final ConcurrentHashMap<String, Contador> contadores = new ConcurrentHashMap<>();
+
+    ContadoresRotulados(String rotulo, int limiteValores) {
+        this.rotulo = rotulo;
+        this.limiteValores = limiteValores;
+    }
+
+    public void incrementar(String valor) {
+        Contador contador = contadores.get(valor);
+        if (contador == null) {
+            if (contadores.size() >= limiteValores) {
+                return;
+            }
+            contador = contadores.computeIfAbsent(valor, v -> new Contador());
+        }
+        contador.incrementar();
+    }
+
+    public long valor(String valor) {
+        Contador contador = contadores.get(valor);
+        return contador == null ? 0 : contador.valor();
+    }
+
+    String getRotulo() { return rotulo; }
+
+    // Valores atuais, do maior para o menor:
+    List<Map.Entry<String, Long>> ordenados() {
+        List<Map.Entry<String, Long>> valores = new ArrayList<>(contadores.size());
+        for (Map.Entry<String, Contador> entrada : contadores.entrySet()) {
+            valores.add(Map.entry(entrada.getKey(), entrada.getValue().valor()));
+        }
+        valores.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return valores;
+    }
+}
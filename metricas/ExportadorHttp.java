@@ -0,0 +1,39 @@
+package Trabalho_2.metricas;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Endpoint HTTP local (somente loopback) que publica as métricas no formato texto do
+ * Prometheus em /metrics. Usa o servidor HTTP embutido no JDK, com uma única thread:
+ * a exportação é rápida e raramente requisitada.
+ */
+public class ExportadorHttp {
+    private final HttpServer http;
+
+    public ExportadorHttp(int porta, RegistroMetricas registro) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), porta), 0);
+        http.createContext("/metrics", troca -> {
+            byte[] corpo = registro.exportarPrometheus().getBytes(StandardCharsets.UTF_8);
+            troca.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            troca.sendResponseHeaders(200, corpo.length);
+            try (OutputStream saida = troca.getResponseBody()) {
+                saida.write(corpo);
+            }
+        });
+        http.start();
+    }
+
+    public int getPorta() {
+        return http.getAddress().getPort();
+    }
+
+    public void parar() {
+        http.stop(0);
+    }
+}
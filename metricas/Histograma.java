@@ -0,0 +1,95 @@
+package Trabalho_2.metricas;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Histograma de valores inteiros não negativos (ex.: latências em nanossegundos) no estilo HDR:
+ * faixas exponenciais divididas em 64 sub-faixas lineares, o que mantém o erro relativo abaixo
+ * de 1,6% em qualquer ordem de grandeza com memória fixa (cerca de 30 KB).
+ * O registro é feito sem travas e pode ser chamado por várias threads ao mesmo tempo.
+ */
+public class Histograma {
+    private static final int BITS_SUB_FAIXA = 6;
+    private static final int SUB_FAIXAS = 1 << BITS_SUB_FAIXA;           // 64
+    private static final int BALDES = (64 - BITS_SUB_FAIXA) * SUB_FAIXAS; // Cobre todo o intervalo de long.
+
+    private final AtomicLongArray contagens = new AtomicLongArray(BALDES);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder soma = new LongAdder();
+
+    public void registrar(long valor) {
+        if (valor < 0) {
+            valor = 0;
+        }
+        contagens.incrementAndGet(indice(valor));
+        total.increment();
+        soma.add(valor);
+    }
+
+    public long contagem() {
+        return total.sum();
+    }
+
+    public long soma() {
+        return soma.sum();
+    }
+
+    public double media() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) soma.sum() / n;
+    }
+
+    // Valor abaixo do qual está a fração p (0 a 1) dos registros; 0 se o histograma está vazio:
+    public long percentil(double p) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long alvo = Math.max(1, (long) Math.ceil(p * n));
+        long acumulado = 0;
+        for (int i = 0; i < BALDES; i++) {
+            acumulado += contagens.get(i);
+            if (acumulado >= alvo) {
+                return maiorValor(i);
+            }
+        }
+        return maiorValor(BALDES - 1);
+    }
+
+    public long maximo() {
+        for (int i = BALDES - 1; i >= 0; i--) {
+            if (contagens.get(i) > 0) {
+                return maiorValor(i);
+            }
+        }
+        return 0;
+    }
+
+    // Zera o histograma (ex.: ao fim do aquecimento). Registros concorrentes podem ser perdidos ou mantidos:
+    public void limpar() {
+        for (int i = 0; i < BALDES; i++) {
+            contagens.set(i, 0);
+        }
+        total.reset();
+        soma.reset();
+    }
+
+    // Valores menores que 2 * SUB_FAIXAS têm balde próprio; os demais usam os 7 bits mais significativos:
+    private static int indice(long valor) {
+        if (valor < 2 * SUB_FAIXAS) {
+            return (int) valor;
+        }
+        int deslocamento = 63 - Long.numberOfLeadingZeros(valor) - BITS_SUB_FAIXA;
+        return deslocamento * SUB_FAIXAS + (int) (valor >>> deslocamento);
+    }
+
+    private static long maiorValor(int indice) {
+        if (indice < 2 * SUB_FAIXAS) {
+            return indice;
+        }
+        int deslocamento = indice / SUB_FAIXAS - 1;
+        long mantissa = indice % SUB_FAIXAS + SUB_FAIXAS;
+        return ((mantissa + 1) << deslocamento) - 1;
+    }
+}
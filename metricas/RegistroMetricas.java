@@ -0,0 +1,156 @@
+package Trabalho_2.metricas;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/*
+ * Registro das métricas de um processo: contadores (simples ou separados por rótulo), medidores
+ * (valores lidos na hora da exportação) e histogramas. As métricas são criadas uma única vez, na inicialização; quem
+ * as atualiza guarda a referência e não passa mais pelo registro.
+ * Exporta no formato texto do Prometheus (histogramas como "summary", com percentis) e num
+ * resumo legível, usado pelo comando /stats.
+ */
+public class RegistroMetricas {
+    private static final double[] PERCENTIS = {0.5, 0.9, 0.99, 0.999};
+    private static final int ROTULOS_NO_RESUMO = 10;  // Maiores valores de cada família exibidos por /stats.
+
+    private final Map<String, Metrica> metricas = new LinkedHashMap<>();
+
+    // Tipo da métrica no Prometheus, com o valor (contadores e medidores) ou o histograma:
+    private static final class Metrica {
+        final String tipo;
+        final String ajuda;
+        final LongSupplier valor;
+        final Histograma histograma;
+        final boolean duracao;  // Histograma em nanossegundos, exportado em segundos.
+        final ContadoresRotulados rotulados;
+
+        Metrica(String tipo, String ajuda, LongSupplier valor, Histograma histograma, boolean duracao) {
+            this(tipo, ajuda, valor, histograma, duracao, null);
+        }
+
+        Metrica(String tipo, String ajuda, LongSupplier valor, Histograma histograma, boolean duracao,
+                ContadoresRotulados rotulados) {
+            this.tipo = tipo;
+            this.ajuda = ajuda;
+            this.valor = valor;
+            this.histograma = histograma;
+            this.duracao = duracao;
+            this.rotulados = rotulados;
+        }
+    }
+
+    public synchronized Contador contador(String nome, String ajuda) {
+        Contador contador = new Contador();
+        contador(nome, ajuda, contador::valor);
+        return contador;
+    }
+
+    // Contador mantido fora do registro (ex.: um LongAdder já existente):
+    public synchronized void contador(String nome, String ajuda, LongSupplier valor) {
+        registrar(nome, new Metrica("counter", ajuda, valor, null, false));
+    }
+
+    // Um contador para cada valor do rótulo, até o limite de valores distintos:
+    public synchronized ContadoresRotulados contadorRotulado(String nome, String ajuda, String rotulo, int limiteValores) {
+        ContadoresRotulados contadores = new ContadoresRotulados(rotulo, limiteValores);
+        registrar(nome, new Metrica("counter", ajuda, null, null, false, contadores));
+        return contadores;
+    }
+
+    public synchronized void medidor(String nome, String ajuda, LongSupplier valor) {
+        registrar(nome, new Metrica("gauge", ajuda, valor, null, false));
+    }
+
+    // Histograma de valores sem unidade (ex.: quantidade de destinatários):
+    public synchronized Histograma histograma(String nome, String ajuda) {
+        Histograma histograma = new Histograma();
+        registrar(nome, new Metrica("summary", ajuda, null, histograma, false));
+        return histograma;
+    }
+
+    // Histograma de durações registradas em nanossegundos (o nome deve terminar em _segundos):
+    public synchronized Histograma duracao(String nome, String ajuda) {
+        Histograma histograma = new Histograma();
+        registrar(nome, new Metrica("summary", ajuda, null, histograma, true));
+        return histograma;
+    }
+
+    private void registrar(String nome, Metrica metrica) {
+        if (metricas.putIfAbsent(nome, metrica) != null) {
+            throw new IllegalArgumentException("Métrica já registrada: " + nome);
+        }
+    }
+
+    // Texto no formato de exposição do Prometheus (versão 0.0.4):
+    public synchronized String exportarPrometheus() {
+        StringBuilder texto = new StringBuilder();
+        for (Map.Entry<String, Metrica> entrada : metricas.entrySet()) {
+            String nome = entrada.getKey();
+            Metrica metrica = entrada.getValue();
+            texto.append("# HELP ").append(nome).append(' ').append(metrica.ajuda).append('\n');
+            texto.append("# TYPE ").append(nome).append(' ').append(metrica.tipo).append('\n');
+            if (metrica.rotulados != null) {
+                for (Map.Entry<String, Long> valor : metrica.rotulados.ordenados()) {
+                    texto.append(nome).append('{').append(metrica.rotulados.getRotulo()).append("=\"")
+                         .append(escapar(valor.getKey())).append("\"} ").append(valor.getValue()).append('\n');
+                }
+            } else if (metrica.histograma == null) {
+                texto.append(nome).append(' ').append(metrica.valor.getAsLong()).append('\n');
+            } else {
+                Histograma histograma = metrica.histograma;
+                double escala = metrica.duracao ? 1e-9 : 1;
+                for (double p : PERCENTIS) {
+                    texto.append(nome).append("{quantile=\"").append(p).append("\"} ")
+                         .append(numero(histograma.percentil(p) * escala)).append('\n');
+                }
+                texto.append(nome).append("_sum ").append(numero(histograma.soma() * escala)).append('\n');
+                texto.append(nome).append("_count ").append(histograma.contagem()).append('\n');
+            }
+        }
+        return texto.toString();
+    }
+
+    // Resumo legível (durações em milissegundos), uma métrica por linha:
+    public synchronized String resumo() {
+        StringBuilder texto = new StringBuilder();
+        for (Map.Entry<String, Metrica> entrada : metricas.entrySet()) {
+            Metrica metrica = entrada.getValue();
+            texto.append("• ").append(entrada.getKey()).append(": ");
+            if (metrica.rotulados != null) {
+                List<Map.Entry<String, Long>> valores = metrica.rotulados.ordenados();
+                if (valores.isEmpty()) {
+                    texto.append('-');
+                }
+                for (int i = 0; i < Math.min(valores.size(), ROTULOS_NO_RESUMO); i++) {
+                    texto.append(i > 0 ? ", " : "").append(valores.get(i).getKey()).append('=').append(valores.get(i).getValue());
+                }
+            } else if (metrica.histograma == null) {
+                texto.append(metrica.valor.getAsLong());
+            } else {
+                Histograma histograma = metrica.histograma;
+                double escala = metrica.duracao ? 1e-6 : 1;
+                String unidade = metrica.duracao ? " ms" : "";
+                texto.append("n=").append(histograma.contagem());
+                texto.append(String.format(Locale.ROOT, ", p50=%.3f, p99=%.3f, p999=%.3f, max=%.3f%s",
+                    histograma.percentil(0.5) * escala, histograma.percentil(0.99) * escala,
+                    histograma.percentil(0.999) * escala, histograma.maximo() * escala, unidade));
+            }
+            texto.append('\n');
+        }
+        return texto.toString();
+    }
+
+    // Valores de rótulo no formato do Prometheus (barra invertida, aspas e quebras de linha escapadas):
+    private static String escapar(String valor) {
+        return valor.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Inteiros sem casas decimais; frações com 9 dígitos significativos (a precisão do histograma é menor):
+    private static String numero(double valor) {
+        return valor == Math.rint(valor) ? String.valueOf((long) valor) : String.format(Locale.ROOT, "%.9g", valor);
+    }
+}
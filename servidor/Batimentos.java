@@ -0,0 +1,124 @@
+package Trabalho_2.servidor;
+
+import java.util.concurrent.TimeUnit;
+
+import Trabalho_2.metricas.Contador;
+import Trabalho_2.metricas.ContadoresRotulados;
+import Trabalho_2.metricas.Histograma;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Batimentos (PING/PONG) e encerramento das conexões silenciosas. Toda conexão entra numa roda de
+ * temporização ao ser aberta; qualquer quadro recebido conta como atividade. Quem não envia o nome
+ * dentro do prazo de login é encerrado. Os clientes que anunciam responder a batimentos (enviando um
+ * PING) recebem um PING a cada intervalo e são encerrados se não enviarem nada (o PONG ou qualquer
+ * outro quadro) até o tempo limite após um PING: a saída segue o caminho normal (aviso aos demais, ou
+ * sessão suspensa). Clientes antigos, que não entendem o PING, deixam de ser acompanhados após o login.
+ */
+class Batimentos {
+    private final long intervalo;    // Entre PINGs, em nanossegundos (0 = sem PINGs).
+    private final long tempoLimite;  // Tolerância após o intervalo até a conexão ser encerrada.
+    private final long tempoLogin;   // Prazo para o envio do nome (0 = sem prazo).
+    private final int intervaloMilissegundos;
+    private final RodaTempo<ClienteHandler> roda;
+    private volatile boolean ativa = false;  // Só acompanha conexões depois que a roda começa a girar.
+
+    private final Contador pings;
+    private final Contador pongs;
+    private final ContadoresRotulados encerradas;
+    private final Histograma ociosidade;
+    private final Histograma idaEVolta;
+
+    Batimentos(long intervalo, long tempoLimite, long tempoLogin, long resolucao, RegistroMetricas metricas) {
+        this.intervalo = Math.max(0, intervalo);
+        this.tempoLimite = Math.max(0, tempoLimite);
+        this.tempoLogin = Math.max(0, tempoLogin);
+        this.intervaloMilissegundos = (int) TimeUnit.NANOSECONDS.toMillis(this.intervalo);
+        // Uma volta da roda cobre o maior prazo usual, para que poucos itens precisem esperar outra volta:
+        long volta = Math.max(this.intervalo + this.tempoLimite, this.tempoLogin);
+        int fatias = (int) Math.min(4096, Math.max(64, volta / Math.max(1, resolucao) + 1));
+        this.roda = new RodaTempo<>(resolucao, fatias, System.nanoTime());
+
+        this.pings = metricas.contador("chat_batimentos_pings_total", "PINGs enviados aos clientes.");
+        this.pongs = metricas.contador("chat_batimentos_pongs_total", "PONGs recebidos dos clientes.");
+        this.encerradas = metricas.contadorRotulado("chat_conexoes_ociosas_encerradas_total",
+            "Conexões encerradas por silêncio, por motivo (sem_login ou sem_resposta).", "motivo", 8);
+        this.ociosidade = metricas.duracao("chat_conexoes_ociosidade_segundos",
+            "Tempo desde o último quadro recebido, medido a cada verificação de uma conexão acompanhada.");
+        this.idaEVolta = metricas.duracao("chat_batimentos_ida_e_volta_segundos",
+            "Tempo entre o envio de um PING e a chegada do PONG correspondente.");
+        metricas.medidor("chat_conexoes_acompanhadas", "Conexões na roda de verificação de ociosidade.", roda::tamanho);
+    }
+
+    boolean ativa() {
+        return ativa && (intervalo > 0 || tempoLogin > 0);
+    }
+
+    // Passa a girar a roda (chamado pela tarefa periódica do servidor):
+    void avancar() {
+        ativa = true;
+        roda.avancar(System.nanoTime(), this::verificar);
+    }
+
+    // Conexão nova: a primeira verificação é no prazo de login (ou no intervalo, sem prazo de login):
+    void acompanhar(ClienteHandler cliente) {
+        if (ativa()) {
+            roda.agendar(cliente, System.nanoTime() + (tempoLogin > 0 ? tempoLogin : intervalo));
+        }
+    }
+
+    // O cliente anunciou que responde a PINGs; volta para a roda se tinha deixado de ser acompanhado:
+    void passouAResponder(ClienteHandler cliente) {
+        if (intervalo > 0 && ativa() && cliente.getAcompanhado().compareAndSet(false, true)) {
+            roda.agendar(cliente, System.nanoTime() + intervalo);
+        }
+    }
+
+    void pongRecebido(long marca) {
+        pongs.incrementar();
+        idaEVolta.registrar(System.nanoTime() - marca);
+    }
+
+    private long verificar(ClienteHandler cliente, long agora) {
+        if (cliente.isDesconectado()) {
+            return RodaTempo.PARAR;
+        }
+        long ocioso = agora - cliente.getUltimaAtividade();
+        ociosidade.registrar(ocioso);
+
+        if (cliente.getNomeUsuario() == null) {
+            if (tempoLogin > 0 && ocioso >= tempoLogin) {
+                encerrar(cliente, "sem_login");
+                return RodaTempo.PARAR;
+            }
+            return cliente.getUltimaAtividade() + (tempoLogin > 0 ? tempoLogin : intervalo);
+        }
+        if (intervalo == 0 || !cliente.respondeBatimentos()) {
+            // Deixa de acompanhar, a menos que o anúncio tenha chegado enquanto isso:
+            cliente.getAcompanhado().set(false);
+            if (intervalo > 0 && cliente.respondeBatimentos() && cliente.getAcompanhado().compareAndSet(false, true)) {
+                return agora + intervalo;
+            }
+            return RodaTempo.PARAR;
+        }
+        // Sem resposta: nada foi recebido desde o último PING:
+        boolean semResposta = cliente.getUltimaAtividade() - cliente.getUltimoPing() < 0;
+        if (semResposta && agora - cliente.getUltimoPing() >= tempoLimite) {
+            encerrar(cliente, "sem_resposta");
+            return RodaTempo.PARAR;
+        }
+        if (agora - cliente.getUltimoPing() >= intervalo) {
+            cliente.enviarPing(agora, intervaloMilissegundos);
+            pings.incrementar();
+            semResposta = true;
+        }
+        // Próximo PING no intervalo, ou antes, quando vencer o prazo da resposta:
+        long ultimoPing = cliente.getUltimoPing();
+        return semResposta ? ultimoPing + Math.min(intervalo, tempoLimite) : ultimoPing + intervalo;
+    }
+
+    private void encerrar(ClienteHandler cliente, String motivo) {
+        encerradas.incrementar(motivo);
+        cliente.desconectar();
+    }
+}
@@ -0,0 +1,548 @@
+package Trabalho_2.servidor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.metricas.Contador;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Caixas postais para mensagens privadas enviadas a usuários desconectados. As mensagens
+ * ficam em memória até um limite global; acima dele, são acrescentadas a um arquivo por
+ * usuário, de modo que centenas de milhares de mensagens pendentes não façam o heap crescer.
+ * Cada caixa tem um limite de mensagens e cada mensagem expira após o tempo configurado.
+ * A caixa é esvaziada de uma só vez quando o usuário volta a se conectar.
+ *
+ * O mapa serve apenas para localizar a caixa; cada caixa tem a sua trava. Todo acesso aos
+ * arquivos roda numa única thread de disco, na ordem em que foi pedido, que mantém abertos
+ * os canais dos arquivos usados mais recentemente: quem deposita (no modo NIO, o reator)
+ * só enfileira a gravação.
+ *
+ * No arquivo, cada registro é o horário do depósito (8 bytes) seguido do quadro binário da
+ * mensagem com os nomes como texto. O arquivo sobrevive a reinícios do servidor.
+ *
+ * Só recebem mensagens offline os usuários conhecidos: os que se conectaram (a este ou a outro nó
+ * do cluster) dentro da validade das mensagens, até um limite de nomes, descartando os vistos há
+ * mais tempo. Cada um tem uma marca no diretório (um arquivo com o nome), relida ao iniciar.
+ */
+class CaixasPostais {
+    private static final int CANAIS_ABERTOS = 256;  // Arquivos mantidos abertos pela thread de disco.
+
+    private final Path diretorio;
+    private final int limitePorUsuario;
+    private final int limiteMemoria;
+    private final long validade;  // Em milissegundos.
+    private final int limiteConhecidos;
+
+    private final ConcurrentHashMap<String, Caixa> caixas = new ConcurrentHashMap<>();
+    private final AtomicInteger emMemoria = new AtomicInteger();
+    private final AtomicInteger emDisco = new AtomicInteger();
+    private final ExecutorService disco;
+
+    // Usuários conhecidos e o último login de cada um, do visto há mais tempo para o mais recente:
+    private final ReentrantLock travaConhecidos = new ReentrantLock();
+    private final LinkedHashMap<String, Long> conhecidos = new LinkedHashMap<>();
+
+    // Canais de gravação abertos, do usado há mais tempo para o mais recente (apenas a thread de disco os usa):
+    private final LinkedHashMap<String, FileChannel> canais = new LinkedHashMap<String, FileChannel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileChannel> maisAntigo) {
+            if (size() <= CANAIS_ABERTOS) {
+                return false;
+            }
+            fecharCanal(maisAntigo.getKey(), maisAntigo.getValue());
+            return true;
+        }
+    };
+
+    private final Contador depositadas;
+    private final Contador entregues;
+    private final Contador expiradas;
+    private final Contador recusadas;
+    private final Contador perdidas;
+
+    // Mensagens pendentes de um usuário. As mais antigas ficam em memória; depois que a primeira
+    // vai para o disco, as seguintes também vão, preservando a ordem. Uma caixa vazia é retirada
+    // do mapa na expiração e marcada como removida, para que quem ainda a tenha procure outra:
+    private static final class Caixa {
+        final ReentrantLock trava = new ReentrantLock();
+        final ArrayDeque<Pendente> memoria = new ArrayDeque<>();
+        int quantidadeEmDisco = 0;
+        long ultimoDeposito = 0;
+        boolean removida = false;
+
+        int tamanho() {
+            return memoria.size() + quantidadeEmDisco;
+        }
+    }
+
+    private static final class Pendente {
+        final long depositadaEm;
+        final Mensagem mensagem;
+
+        Pendente(long depositadaEm, Mensagem mensagem) {
+            this.depositadaEm = depositadaEm;
+            this.mensagem = mensagem;
+        }
+    }
+
+    CaixasPostais(Path diretorio, int limitePorUsuario, int limiteMemoria, long validade, int limiteConhecidos,
+                  RegistroMetricas metricas) {
+        this.diretorio = diretorio;
+        this.limitePorUsuario = limitePorUsuario;
+        this.limiteMemoria = limiteMemoria;
+        this.validade = validade;
+        this.limiteConhecidos = Math.max(1, limiteConhecidos);
+        this.disco = Executors.newSingleThreadExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "caixas-postais");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.depositadas = metricas.contador("chat_offline_depositadas_total",
+            "Mensagens privadas guardadas para usuários desconectados.");
+        this.entregues = metricas.contador("chat_offline_entregues_total",
+            "Mensagens guardadas entregues quando o usuário voltou.");
+        this.expiradas = metricas.contador("chat_offline_expiradas_total",
+            "Mensagens guardadas descartadas por expiração.");
+        this.recusadas = metricas.contador("chat_offline_recusadas_total",
+            "Mensagens recusadas porque a caixa do destinatário estava cheia.");
+        this.perdidas = metricas.contador("chat_offline_perdidas_total",
+            "Mensagens guardadas não entregues por erro na leitura do arquivo (ao menos uma por arquivo danificado).");
+        metricas.medidor("chat_offline_em_memoria", "Mensagens guardadas em memória.", emMemoria::get);
+        metricas.medidor("chat_offline_em_disco", "Mensagens guardadas em disco.", emDisco::get);
+        metricas.medidor("chat_offline_conhecidos", "Usuários que podem receber mensagens offline.", this::quantidadeConhecidos);
+    }
+
+    // Registra o login do usuário (neste ou em outro nó). A marca em disco só é regravada quando a
+    // anterior já tem um décimo da validade, para que logins frequentes não virem gravações:
+    void registrarUsuario(String usuario) {
+        long agora = System.currentTimeMillis();
+        List<String> esquecidos = new ArrayList<>();
+        Long anterior;
+        travaConhecidos.lock();
+        try {
+            anterior = conhecidos.remove(usuario);
+            conhecidos.put(usuario, agora);
+            esquecer(agora - validade, esquecidos);
+        } finally {
+            travaConhecidos.unlock();
+        }
+        try {
+            if (anterior == null || agora - anterior >= validade / 10) {
+                disco.execute(() -> marcar(usuario));
+            }
+            for (String esquecido : esquecidos) {
+                disco.execute(() -> desmarcar(esquecido));
+            }
+        } catch (RejectedExecutionException e) {
+            // O servidor está encerrando; a marca anterior (se houver) continua valendo.
+        }
+    }
+
+    // Se o usuário pode receber mensagens offline (conectou-se dentro da validade):
+    boolean conhecido(String usuario) {
+        travaConhecidos.lock();
+        try {
+            Long ultimoLogin = conhecidos.get(usuario);
+            return ultimoLogin != null && ultimoLogin >= System.currentTimeMillis() - validade;
+        } finally {
+            travaConhecidos.unlock();
+        }
+    }
+
+    private int quantidadeConhecidos() {
+        travaConhecidos.lock();
+        try {
+            return conhecidos.size();
+        } finally {
+            travaConhecidos.unlock();
+        }
+    }
+
+    // Retira (com a trava) os usuários vistos antes do limite e os mais antigos além da quantidade máxima:
+    private void esquecer(long limite, List<String> esquecidos) {
+        Iterator<Map.Entry<String, Long>> entradas = conhecidos.entrySet().iterator();
+        while (entradas.hasNext()) {
+            Map.Entry<String, Long> maisAntigo = entradas.next();
+            if (conhecidos.size() <= limiteConhecidos && maisAntigo.getValue() >= limite) {
+                return;
+            }
+            esquecidos.add(maisAntigo.getKey());
+            entradas.remove();
+        }
+    }
+
+    // Caixa do usuário (criada se necessário), já travada por quem chamou:
+    private Caixa travar(String usuario) {
+        while (true) {
+            Caixa caixa = caixas.get(usuario);
+            if (caixa == null) {
+                Caixa nova = new Caixa();
+                caixa = caixas.putIfAbsent(usuario, nova);
+                if (caixa == null) {
+                    caixa = nova;
+                }
+            }
+            caixa.trava.lock();
+            if (!caixa.removida) {
+                return caixa;
+            }
+            caixa.trava.unlock();
+        }
+    }
+
+    // Se há mensagens guardadas para o usuário desde o início deste servidor (sem olhar os arquivos):
+    boolean temMensagens(String usuario) {
+        Caixa caixa = caixas.get(usuario);
+        if (caixa == null) {
+            return false;
+        }
+        caixa.trava.lock();
+        try {
+            return !caixa.removida && caixa.tamanho() > 0;
+        } finally {
+            caixa.trava.unlock();
+        }
+    }
+
+    // Guarda a mensagem para o usuário; retorna false se a caixa dele está cheia. Acima do limite de
+    // memória, a gravação é enfileirada para a thread de disco ainda com a trava da caixa, na ordem dos depósitos:
+    boolean depositar(String usuario, Mensagem mensagem) {
+        Caixa caixa = travar(usuario);
+        try {
+            if (caixa.tamanho() >= limitePorUsuario) {
+                recusadas.incrementar();
+                return false;
+            }
+            long agora = System.currentTimeMillis();
+            if (caixa.quantidadeEmDisco == 0 && emMemoria.incrementAndGet() <= limiteMemoria) {
+                caixa.memoria.add(new Pendente(agora, mensagem));
+            } else {
+                if (caixa.quantidadeEmDisco == 0) {
+                    emMemoria.decrementAndGet();
+                }
+                try {
+                    disco.execute(() -> gravar(usuario, agora, mensagem));
+                } catch (RejectedExecutionException e) {
+                    recusadas.incrementar();  // O servidor está encerrando.
+                    return false;
+                }
+                caixa.quantidadeEmDisco++;
+                emDisco.incrementAndGet();
+            }
+            caixa.ultimoDeposito = agora;
+            depositadas.incrementar();
+            return true;
+        } finally {
+            caixa.trava.unlock();
+        }
+    }
+
+    // Retira todas as mensagens ainda válidas do usuário, na ordem em que foram depositadas. A leitura
+    // do arquivo é enfileirada com a trava da caixa (depois das gravações já pedidas e antes das que vierem)
+    // e esperada fora dela. O arquivo é lido mesmo sem caixa em memória, pois pode ter sido deixado antes de
+    // um reinício. Bloqueia até a leitura terminar, então não deve ser chamado de um reator:
+    List<Mensagem> retirar(String usuario) {
+        List<Mensagem> mensagens = new ArrayList<>();
+        List<Mensagem> doArquivo = new ArrayList<>();
+        long limite = System.currentTimeMillis() - validade;
+        Future<?> leitura;
+        Caixa caixa = travar(usuario);
+        try {
+            for (Pendente pendente : caixa.memoria) {
+                if (pendente.depositadaEm >= limite) {
+                    mensagens.add(pendente.mensagem);
+                } else {
+                    expiradas.incrementar();
+                }
+            }
+            int esperadas = caixa.quantidadeEmDisco;
+            emMemoria.addAndGet(-caixa.memoria.size());
+            emDisco.addAndGet(-esperadas);
+            caixa.memoria.clear();
+            caixa.quantidadeEmDisco = 0;
+            leitura = disco.submit(() -> lerArquivo(usuario, limite, esperadas, doArquivo));
+        } catch (RejectedExecutionException e) {
+            leitura = null;  // O servidor está encerrando; o arquivo fica para o próximo login.
+        } finally {
+            caixa.trava.unlock();
+        }
+        if (leitura != null) {
+            try {
+                leitura.get();
+                mensagens.addAll(doArquivo);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                System.err.println("Erro ao ler caixa postal de " + usuario + ": " + e.getCause());
+            }
+        }
+        entregues.adicionar(mensagens.size());
+        return mensagens;
+    }
+
+    // Remove as mensagens expiradas, as caixas vazias e os usuários não vistos dentro da validade
+    // (executado periodicamente):
+    void expirar() {
+        long limite = System.currentTimeMillis() - validade;
+        List<String> esquecidos = new ArrayList<>();
+        travaConhecidos.lock();
+        try {
+            esquecer(limite, esquecidos);
+        } finally {
+            travaConhecidos.unlock();
+        }
+        try {
+            for (String esquecido : esquecidos) {
+                disco.execute(() -> desmarcar(esquecido));
+            }
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        for (Map.Entry<String, Caixa> entrada : caixas.entrySet()) {
+            String usuario = entrada.getKey();
+            Caixa caixa = entrada.getValue();
+            caixa.trava.lock();
+            try {
+                while (!caixa.memoria.isEmpty() && caixa.memoria.peek().depositadaEm < limite) {
+                    caixa.memoria.poll();
+                    emMemoria.decrementAndGet();
+                    expiradas.incrementar();
+                }
+                // O arquivo só é apagado quando até a mensagem mais recente dele expirou:
+                if (caixa.quantidadeEmDisco > 0 && caixa.ultimoDeposito < limite) {
+                    try {
+                        disco.execute(() -> apagarArquivo(usuario));
+                    } catch (RejectedExecutionException e) {
+                        return;
+                    }
+                    emDisco.addAndGet(-caixa.quantidadeEmDisco);
+                    expiradas.adicionar(caixa.quantidadeEmDisco);
+                    caixa.quantidadeEmDisco = 0;
+                }
+                if (caixa.tamanho() == 0) {
+                    caixa.removida = true;
+                    caixas.remove(usuario, caixa);
+                }
+            } finally {
+                caixa.trava.unlock();
+            }
+        }
+    }
+
+    // Na thread de disco: apaga os arquivos de caixas e as marcas de execuções anteriores que já expiraram
+    // e volta a conhecer os usuários das marcas restantes (os que se conectaram desde o início vêm depois):
+    void recuperar() {
+        try {
+            disco.execute(this::recuperarArquivos);
+        } catch (RejectedExecutionException e) {
+            // O servidor está encerrando.
+        }
+    }
+
+    private void recuperarArquivos() {
+        if (!Files.isDirectory(diretorio)) {
+            return;
+        }
+        long limite = System.currentTimeMillis() - validade;
+        try (DirectoryStream<Path> arquivos = Files.newDirectoryStream(diretorio, "*.caixa")) {
+            for (Path arquivo : arquivos) {
+                if (Files.getLastModifiedTime(arquivo).toMillis() < limite) {
+                    Files.deleteIfExists(arquivo);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao limpar caixas postais antigas: " + e.getMessage());
+        }
+        List<Map.Entry<String, Long>> marcados = new ArrayList<>();
+        try (DirectoryStream<Path> arquivos = Files.newDirectoryStream(diretorio, "*.usuario")) {
+            for (Path arquivo : arquivos) {
+                long marcadoEm = Files.getLastModifiedTime(arquivo).toMillis();
+                if (marcadoEm < limite) {
+                    Files.deleteIfExists(arquivo);
+                } else {
+                    marcados.add(Map.entry(new String(Files.readAllBytes(arquivo), StandardCharsets.UTF_8), marcadoEm));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao ler os usuários conhecidos das caixas postais: " + e.getMessage());
+        }
+        marcados.sort(Map.Entry.comparingByValue());
+        List<String> esquecidos = new ArrayList<>();
+        travaConhecidos.lock();
+        try {
+            LinkedHashMap<String, Long> recentes = new LinkedHashMap<>(conhecidos);
+            conhecidos.clear();
+            for (Map.Entry<String, Long> marcado : marcados) {
+                if (!recentes.containsKey(marcado.getKey())) {
+                    conhecidos.put(marcado.getKey(), marcado.getValue());
+                }
+            }
+            conhecidos.putAll(recentes);
+            esquecer(limite, esquecidos);
+        } finally {
+            travaConhecidos.unlock();
+        }
+        for (String esquecido : esquecidos) {
+            desmarcar(esquecido);
+        }
+    }
+
+    // Termina as gravações enfileiradas e fecha os arquivos abertos:
+    void fechar() {
+        try {
+            disco.execute(() -> {
+                canais.forEach(this::fecharCanal);
+                canais.clear();
+            });
+        } catch (RejectedExecutionException e) {
+            return;  // Já fechadas.
+        }
+        disco.shutdown();
+        try {
+            disco.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Métodos auxiliares para o arquivo de cada usuário (nome derivado do nome de usuário), executados
+    // apenas na thread de disco:
+    private Path arquivo(String usuario) {
+        return diretorio.resolve(UUID.nameUUIDFromBytes(usuario.getBytes(StandardCharsets.UTF_8)) + ".caixa");
+    }
+
+    private Path marca(String usuario) {
+        return diretorio.resolve(UUID.nameUUIDFromBytes(usuario.getBytes(StandardCharsets.UTF_8)) + ".usuario");
+    }
+
+    // Apaga a marca de um usuário esquecido, a menos que ele tenha voltado enquanto a remoção esperava:
+    private void desmarcar(String usuario) {
+        if (!conhecido(usuario)) {
+            apagar(marca(usuario), usuario);
+        }
+    }
+
+    private void marcar(String usuario) {
+        try {
+            Files.createDirectories(diretorio);
+            Files.write(marca(usuario), usuario.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar a marca de " + usuario + " nas caixas postais: " + e.getMessage());
+        }
+    }
+
+    private void gravar(String usuario, long depositadaEm, Mensagem mensagem) {
+        try {
+            byte[] quadro = Protocolo.codificarQuadro(mensagem);
+            FileChannel canal = canais.get(usuario);
+            if (canal == null) {
+                Files.createDirectories(diretorio);
+                canal = FileChannel.open(arquivo(usuario), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+                canais.put(usuario, canal);
+            }
+            ByteBuffer registro = ByteBuffer.allocate(Long.BYTES + quadro.length);
+            registro.putLong(depositadaEm).put(quadro).flip();
+            while (registro.hasRemaining()) {
+                canal.write(registro);
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar caixa postal de " + usuario + ": " + e.getMessage());
+            FileChannel canal = canais.remove(usuario);
+            if (canal != null) {
+                fecharCanal(usuario, canal);
+            }
+        }
+    }
+
+    // Lê o arquivo do usuário e o apaga só se ele foi lido por inteiro. Se a leitura falha no meio (um
+    // registro cortado por uma queda do servidor, um erro de disco), as mensagens já lidas são entregues e o
+    // arquivo é guardado à parte (<arquivo>-<horário>.danificada), com as não lidas contadas como perdidas:
+    private void lerArquivo(String usuario, long limite, int esperadas, List<Mensagem> mensagens) {
+        FileChannel canal = canais.remove(usuario);
+        if (canal != null) {
+            fecharCanal(usuario, canal);
+        }
+        Path arquivo = arquivo(usuario);
+        if (!Files.exists(arquivo)) {
+            return;
+        }
+        int lidas = 0;
+        try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(arquivo)))) {
+            while (entrada.available() > 0) {
+                long depositadaEm = entrada.readLong();
+                byte[] conteudo = Protocolo.lerQuadro(entrada);
+                lidas++;
+                if (depositadaEm < limite) {
+                    expiradas.incrementar();
+                    continue;
+                }
+                Mensagem mensagem = Protocolo.decodificar(conteudo, 0, conteudo.length, null);
+                if (mensagem != null) {
+                    mensagens.add(mensagem);
+                }
+            }
+        } catch (IOException e) {
+            perdidas.adicionar(Math.max(1, esperadas - lidas));
+            Path danificado = arquivo.resolveSibling(arquivo.getFileName() + "-" + System.currentTimeMillis() + ".danificada");
+            System.err.println("Erro ao ler caixa postal de " + usuario + " (" + e
+                + "); o arquivo foi guardado em " + danificado);
+            try {
+                Files.move(arquivo, danificado);
+            } catch (IOException erroMover) {
+                System.err.println("Erro ao guardar caixa postal danificada de " + usuario + ": " + erroMover.getMessage());
+            }
+            return;
+        }
+        apagar(arquivo, usuario);
+    }
+
+    private void apagarArquivo(String usuario) {
+        FileChannel canal = canais.remove(usuario);
+        if (canal != null) {
+            fecharCanal(usuario, canal);
+        }
+        apagar(arquivo(usuario), usuario);
+    }
+
+    private void apagar(Path arquivo, String usuario) {
+        try {
+            Files.deleteIfExists(arquivo);
+        } catch (IOException e) {
+            System.err.println("Erro ao apagar caixa postal de " + usuario + ": " + e.getMessage());
+        }
+    }
+
+    private void fecharCanal(String usuario, FileChannel canal) {
+        try {
+            canal.close();
+        } catch (IOException e) {
+            System.err.println("Erro ao fechar caixa postal de " + usuario + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package Trabalho_2.servidor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/*
+ * TLS de uma conexão do modo NIO, feito com um SSLEngine sobre buffers: o reator continua lendo e
+ * escrevendo o canal sem bloquear, e nenhuma conexão ganha uma thread própria. O handshake avança
+ * conforme os bytes chegam; as tarefas demoradas dele (a troca de chaves e as assinaturas) rodam no
+ * executor do TLS, e ao final a conexão é devolvida ao reator para continuar de onde parou.
+ *
+ * Os quadros do broadcast, serializados uma única vez, são cifrados direto dos buffers compartilhados
+ * (o wrap lê de vários buffers de uma vez): vários quadros pequenos viram um único registro TLS, e
+ * vários registros saem numa única escrita no socket. Os buffers de trabalho (bytes cifrados lidos,
+ * texto decifrado e registros a enviar) pertencem ao reator e servem a todas as suas conexões; cada
+ * conexão só guarda uma cópia do que sobrou (um registro incompleto, texto ainda não processado ou
+ * bytes que o socket não aceitou), de modo que as conexões ociosas não ocupam os buffers do TLS.
+ * Usado apenas pela thread do reator, exceto as tarefas do handshake.
+ */
+class CanalTls {
+    private static final ByteBuffer[] NADA = {ByteBuffer.allocate(0)};  // Origem do wrap durante o handshake.
+
+    private final SocketChannel canal;
+    private final SSLEngine motor;
+    private final Buffers buffers;
+    private final Executor executorTarefas;
+    private final Runnable retomar;  // Devolve a conexão ao reator (tarefas concluídas ou handshake encerrado).
+    private final MetricasServidor metricas;
+    private final long inicio = System.nanoTime();
+    private final long inicioMillis = System.currentTimeMillis();
+
+    private ByteBuffer entradaRede;  // Bytes cifrados recebidos e ainda não decifrados (null = nenhum).
+    private ByteBuffer claro;        // Texto decifrado ainda não entregue à conexão (null = nenhum).
+    private ByteBuffer saidaRede;    // Registros que o socket ainda não aceitou (null = nenhum).
+    private volatile boolean emTarefa = false;
+    private boolean concluido = false;  // Handshake inicial concluído.
+
+    CanalTls(SocketChannel canal, SSLEngine motor, Buffers buffers, Executor executorTarefas, Runnable retomar,
+             MetricasServidor metricas) throws SSLException {
+        this.canal = canal;
+        this.motor = motor;
+        this.buffers = buffers;
+        this.executorTarefas = executorTarefas;
+        this.retomar = retomar;
+        this.metricas = metricas;
+        motor.beginHandshake();
+        buffers.ajustar(motor.getSession());
+    }
+
+    // Lê do canal os bytes cifrados disponíveis; retorna false no fim do stream:
+    boolean ler() throws IOException {
+        ByteBuffer rede = buffers.rede;
+        if (entradaRede == rede) {
+            rede.compact();
+        } else {
+            rede.clear();
+            if (entradaRede != null) {
+                rede.put(entradaRede);
+            }
+        }
+        int lidos = canal.read(rede);
+        rede.flip();
+        entradaRede = rede;
+        return lidos >= 0;
+    }
+
+    // Decifra o que for possível e transfere o texto para o destino, até enchê-lo; retorna os bytes
+    // transferidos (0 quando falta um registro completo ou o handshake espera por uma tarefa):
+    int decifrar(ByteBuffer destino) throws IOException {
+        int total = 0;
+        while (destino.hasRemaining()) {
+            if (claro != null && claro.hasRemaining()) {
+                int quantidade = Math.min(claro.remaining(), destino.remaining());
+                int limite = claro.limit();
+                claro.limit(claro.position() + quantidade);
+                destino.put(claro);
+                claro.limit(limite);
+                total += quantidade;
+            } else if (!desembrulhar()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    // Decifra um registro da entrada; retorna false se não houve progresso:
+    private boolean desembrulhar() throws IOException {
+        if (emTarefa || entradaRede == null || !entradaRede.hasRemaining()) {
+            return false;
+        }
+        ByteBuffer alvo = buffers.claro;
+        alvo.clear();
+        SSLEngineResult resultado = motor.unwrap(entradaRede, alvo);
+        alvo.flip();
+        claro = alvo;
+        switch (resultado.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                return false;  // Registro incompleto: espera mais bytes.
+            case BUFFER_OVERFLOW:
+                buffers.ajustar(motor.getSession());  // A sessão negociada pede buffers maiores.
+                return true;
+            case CLOSED:
+                throw new EOFException("Cliente encerrou a sessão TLS");
+            default:
+                break;
+        }
+        if (resultado.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            concluirHandshake();
+        }
+        avancarHandshake();
+        return resultado.bytesConsumed() > 0 || resultado.bytesProduced() > 0;
+    }
+
+    // Envia as respostas do handshake e dispara as tarefas que ele pede; para ao precisar de bytes do cliente:
+    private void avancarHandshake() throws IOException {
+        while (!emTarefa) {
+            HandshakeStatus estado = motor.getHandshakeStatus();
+            if (estado == HandshakeStatus.NEED_TASK) {
+                executarTarefas();
+                return;
+            }
+            if (estado != HandshakeStatus.NEED_WRAP || !descarregar()) {
+                return;
+            }
+            embrulhar(NADA, 0, 1);
+        }
+    }
+
+    // Cifra e escreve o máximo possível dos quadros, sem bloquear; retorna os bytes de texto consumidos.
+    // Durante o handshake nada é consumido: quando ele termina, a conexão é devolvida ao reator.
+    long escrever(ByteBuffer[] quadros, int inicio, int quantidade) throws IOException {
+        long consumidos = 0;
+        while (!emTarefa && descarregar() && querEmbrulhar(quadros, inicio, quantidade)) {
+            consumidos += embrulhar(quadros, inicio, quantidade);
+        }
+        if (!emTarefa && motor.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+            executarTarefas();
+        }
+        return consumidos;
+    }
+
+    private boolean querEmbrulhar(ByteBuffer[] quadros, int inicio, int quantidade) {
+        HandshakeStatus estado = motor.getHandshakeStatus();
+        if (estado == HandshakeStatus.NEED_WRAP) {
+            return true;
+        }
+        if (estado != HandshakeStatus.NOT_HANDSHAKING) {
+            return false;
+        }
+        for (int i = inicio; i < inicio + quantidade; i++) {
+            if (quadros[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Gera registros no buffer de saída do reator enquanto couberem (vários por escrita) e os escreve;
+    // o que o socket não aceitar fica guardado na conexão. Retorna os bytes de texto consumidos:
+    private long embrulhar(ByteBuffer[] quadros, int inicio, int quantidade) throws IOException {
+        ByteBuffer rede = buffers.saida;
+        rede.clear();
+        long consumidos = 0;
+        int registro = motor.getSession().getPacketBufferSize();
+        while (rede.remaining() >= registro && querEmbrulhar(quadros, inicio, quantidade)) {
+            SSLEngineResult resultado = motor.wrap(quadros, inicio, quantidade, rede);
+            if (resultado.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("Sessão TLS encerrada");
+            }
+            if (resultado.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                break;
+            }
+            consumidos += resultado.bytesConsumed();
+            if (resultado.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                concluirHandshake();
+            }
+        }
+        rede.flip();
+        if (!rede.hasRemaining()) {
+            throw new SSLException("SSLEngine não gerou registros (" + motor.getHandshakeStatus() + ")");
+        }
+        canal.write(rede);
+        if (rede.hasRemaining()) {
+            saidaRede = ByteBuffer.allocate(rede.remaining());
+            saidaRede.put(rede).flip();
+        }
+        return consumidos;
+    }
+
+    // Escreve os registros guardados; retorna true se não sobrou nenhum:
+    boolean descarregar() throws IOException {
+        if (saidaRede == null) {
+            return true;
+        }
+        canal.write(saidaRede);
+        if (saidaRede.hasRemaining()) {
+            return false;
+        }
+        saidaRede = null;
+        return true;
+    }
+
+    boolean temSaidaPendente() { return saidaRede != null; }
+
+    // As tarefas rodam fora do reator; enquanto isso, a conexão não lê nem escreve pelo TLS:
+    private void executarTarefas() {
+        emTarefa = true;
+        executorTarefas.execute(() -> {
+            try {
+                Runnable tarefa;
+                while ((tarefa = motor.getDelegatedTask()) != null) {
+                    tarefa.run();
+                }
+            } finally {
+                emTarefa = false;
+                retomar.run();
+            }
+        });
+    }
+
+    private void concluirHandshake() {
+        if (concluido) {
+            return;
+        }
+        concluido = true;
+        metricas.registrarHandshakeTls(motor.getSession(), inicio, inicioMillis);
+        retomar.run();  // Os quadros enfileirados durante o handshake podem ser enviados.
+    }
+
+    // Chamado ao fim de cada operação da conexão: copia para ela o que sobrou nos buffers do reator,
+    // que a próxima conexão vai usar:
+    void guardar() {
+        entradaRede = copiarSobra(entradaRede, buffers.rede);
+        claro = copiarSobra(claro, buffers.claro);
+    }
+
+    private static ByteBuffer copiarSobra(ByteBuffer buffer, ByteBuffer doReator) {
+        if (buffer == null || !buffer.hasRemaining()) {
+            return null;
+        }
+        if (buffer != doReator) {
+            return buffer;
+        }
+        ByteBuffer copia = ByteBuffer.allocate(buffer.remaining());
+        copia.put(buffer).flip();
+        return copia;
+    }
+
+    void fechar() {
+        if (!concluido) {
+            metricas.handshakesTlsFalhos.incrementar();
+            concluido = true;
+        }
+        motor.closeOutbound();
+        entradaRede = claro = saidaRede = null;
+    }
+
+    /*
+     * Buffers de trabalho de um reator, compartilhados pelas suas conexões com TLS. Os de rede são
+     * diretos (o socket os usa sem cópia intermediária) e comportam dois registros na leitura e
+     * alguns registros por escrita; só crescem, quando uma sessão pede registros maiores.
+     */
+    static final class Buffers {
+        private static final int REGISTROS_POR_ESCRITA = 4;
+
+        private ByteBuffer rede = ByteBuffer.allocate(0);
+        private ByteBuffer claro = ByteBuffer.allocate(0);
+        private ByteBuffer saida = ByteBuffer.allocate(0);
+
+        private void ajustar(SSLSession sessao) {
+            int registro = sessao.getPacketBufferSize();
+            if (rede.capacity() < 2 * registro) {
+                rede = ByteBuffer.allocateDirect(2 * registro);
+            }
+            if (saida.capacity() < REGISTROS_POR_ESCRITA * registro) {
+                saida = ByteBuffer.allocateDirect(REGISTROS_POR_ESCRITA * registro);
+            }
+            if (claro.capacity() < sessao.getApplicationBufferSize()) {
+                claro = ByteBuffer.allocate(sessao.getApplicationBufferSize());
+            }
+        }
+    }
+}
@@ -1,139 +1,762 @@
 package Trabalho_2.servidor;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.net.ssl.SSLSocket;
+
+import Trabalho_2.chat.Compressao;
 import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.chat.TabelaNomes;
+import Trabalho_2.historico.Consulta;
 
 /*
  * Classe responsável por gerenciar a comunicação com um cliente específico.
  * Cada instância desta classe representa uma conexão ativa com um cliente.
  * Implementa Runnable para executar em thread separada, permitindo múltiplos clientes simultâneos.
+ * No modo NIO não há thread própria: o Reator entrega cada mensagem recebida ao método receber().
+ * Com uma sessão aberta (/sessao), os envios passam por ela, e a queda da conexão apenas a suspende.
+ * Todo quadro recebido registra a atividade da conexão, usada pelos Batimentos para encerrar as silenciosas.
  */
 public class ClienteHandler implements Runnable {
     private Socket socket;
+    private byte[] recebidos;  // Bytes lidos do socket antes deste handler (cliente legado vindo de um reator).
     private Servidor servidor;
-    private ObjectInputStream entrada;
-    private ObjectOutputStream saida;
-    private String nomeUsuario;
-    
+    private Conexao conexao;
+    private volatile String nomeUsuario;
+    private final Set<String> salas = ConcurrentHashMap.newKeySet();  // Salas em que o usuário está.
+    private final AtomicBoolean desconectado = new AtomicBoolean(false);  // Garante que a saída seja processada uma única vez.
+    private volatile Sessao sessao;  // Sessão retomável do usuário (null se ele não abriu uma).
+    static final String COMANDO_RETOMAR = "/retomar ";  // Aceito antes do nome, no lugar dele.
+    private static final int TAMANHO_INICIAL_QUADRO = 1024;  // Buffer de leitura do modo com threads.
+
+    // Versão do protocolo negociada: o servidor responde no mesmo formato da resposta à solicitação de nome.
+    private volatile byte versaoProtocolo = Protocolo.VERSAO_SERIALIZADA;
+    private final BitSet nomesDefinidos = new BitSet();           // Identificadores de nomes já enviados a este cliente.
+    private final ReentrantLock travaEnvio = new ReentrantLock();  // Mantém a definição de um nome antes do seu primeiro uso.
+
+    // Limites de envio: o balde do usuário (compartilhado pelas conexões e reconexões com o mesmo nome; até o
+    // nome ser aceito, um balde só desta conexão) e o compartilhado pelo IP dele (null para loopback ou sem limite):
+    private static final long INTERVALO_AVISO_LIMITE = TimeUnit.SECONDS.toNanos(5);
+    private LimiteTaxa limiteUsuario;
+    private String nomeLimite;  // Nome cujo balde esta conexão reservou (null antes do nome ser aceito).
+    private LimiteTaxa limiteIp;
+    private InetAddress ip;
+    private long ultimoAvisoLimite = System.nanoTime() - INTERVALO_AVISO_LIMITE;
+
+    // Batimentos: último quadro recebido e último PING enviado (System.nanoTime()), se o cliente anunciou
+    // que responde a PINGs e se a conexão está na roda de verificação de ociosidade:
+    private volatile long ultimaAtividade = System.nanoTime();
+    private volatile long ultimoPing = ultimaAtividade;
+    private volatile boolean respondeBatimentos = false;
+    private final AtomicBoolean acompanhado = new AtomicBoolean(true);
+    private final AtomicBoolean compressaoNegociada = new AtomicBoolean(false);  // O anúncio é tratado uma única vez.
+    private final AtomicBoolean consultaEmAndamento = new AtomicBoolean(false);  // Uma consulta ao histórico por vez.
+
     // Método construtor - recebe o socket da conexão estabelecida com o cliente e a instância do servidor principal.
     public ClienteHandler(Socket socket, Servidor servidor) {
         this.socket = socket;
         this.servidor = servidor;
+        this.limiteUsuario = servidor.novoLimiteUsuario();
+    }
+
+    // Construtor de um cliente legado que o reator passou a uma thread própria, com os bytes que já leu dele:
+    ClienteHandler(Socket socket, Servidor servidor, byte[] recebidos) {
+        this(socket, servidor);
+        this.recebidos = recebidos;
+    }
+
+    // Construtor usado pelo modo NIO, em que a conexão já é gerenciada por um reator:
+    ClienteHandler(Conexao conexao, Servidor servidor) {
+        this.conexao = conexao;
+        this.servidor = servidor;
+        this.limiteUsuario = servidor.novoLimiteUsuario();
     }
-    
+
     // Gerencia configuração, autenticação e comunicação da conexão:
     @Override
     public void run() {
         try {
+            // Com TLS, o handshake termina antes de qualquer quadro:
+            if (socket instanceof SSLSocket) {
+                servidor.concluirHandshakeTls((SSLSocket) socket);
+            }
+
             // Configura streams:
-            saida = new ObjectOutputStream(socket.getOutputStream());
-            entrada = new ObjectInputStream(socket.getInputStream());
-            
-            // Solicita e valida nome do usuário:
-            solicitarNomeUsuario();
-            
-            // Loop principal de recebimento de mensagens (escuta mensagens até a desconexão):
-            Mensagem mensagem;
-            while ((mensagem = (Mensagem) entrada.readObject()) != null) {
-                processarMensagem(mensagem);
-            }
-            
-        } catch (IOException | ClassNotFoundException e) {
-            System.out.println("Conexão perdida com cliente: " + 
-                              (nomeUsuario != null ? nomeUsuario : "desconhecido"));
+            ConexaoSocket conexaoSocket = new ConexaoSocket(socket, recebidos, servidor.novaFilaSaida(),
+                servidor::iniciarEscritor, servidor.getMetricas(), servidor.getJanelaEnvio(), servidor.getLoteEnvio());
+            recebidos = null;
+            conexao = conexaoSocket;
+            DataInputStream entrada = conexaoSocket.getEntrada();
+
+            // Um cliente legado não usa quadros; o stream de objetos dele é lido até a desconexão:
+            if (detectarLegado(entrada)) {
+                conexaoSocket.ativarLegado();
+                iniciar();
+                receberLegado(entrada);
+                return;
+            }
+
+            // Solicita nome do usuário:
+            iniciar();
+
+            // Loop principal de recebimento de mensagens (escuta mensagens até a desconexão).
+            // O tamanho é validado antes de ler o quadro; acima do limite de taxa, a leitura é atrasada.
+            // O mesmo buffer serve a todos os quadros (nada guarda os bytes depois de receberQuadro):
+            byte[] quadro = new byte[TAMANHO_INICIAL_QUADRO];
+            while (!desconectado.get()) {
+                int tamanho = validarTamanhoQuadro(entrada.readInt());
+                if (tamanho > quadro.length) {
+                    quadro = new byte[Math.max(tamanho, Math.min(quadro.length * 2, servidor.getLimiteQuadro()))];
+                }
+                entrada.readFully(quadro, 0, tamanho);
+                long espera;
+                while ((espera = avaliarQuadro(tamanho)) > 0) {
+                    LockSupport.parkNanos(espera);
+                }
+                if (espera == 0) {
+                    receberQuadro(quadro, 0, tamanho);
+                }
+            }
+
+        } catch (IOException e) {
+            if (!servidor.isEncerrando()) {  // No encerramento, o próprio servidor fecha as conexões.
+                System.out.println("Conexão perdida com cliente: " +
+                                  (nomeUsuario != null ? nomeUsuario : "desconhecido"));
+            }
         } finally {
             desconectar();
         }
     }
-    
-    // Solicita nome, valida unicidade e confirma entrada do usuário no chat:
-    private void solicitarNomeUsuario() throws IOException, ClassNotFoundException {
-        // Solicita nome:
-        Mensagem solicitacao = new Mensagem("SISTEMA", null, "SOLICITAR_NOME");
-        saida.writeObject(solicitacao);
-        
-        // Recebe primeira resposta (nome enviado):
-        Mensagem resposta = (Mensagem) entrada.readObject();
-        String nomeDesejado = resposta.getConteudo();
-        
-        // Verificar se nome já existe, e se sim, continua solicitando até receber nome válido:
-        while (servidor.usuarioExiste(nomeDesejado) || nomeDesejado.trim().isEmpty() || nomeDesejado.contains(" ")) {
-            Mensagem erro = new Mensagem("SISTEMA", null, 
-                "Nome já em uso ou inválido (vazio ou contém espaço). Digite outro nome:");
-            saida.writeObject(erro);
-            resposta = (Mensagem) entrada.readObject();
-            nomeDesejado = resposta.getConteudo();
-        }
-        
+
+    public String getNomeUsuario() { return nomeUsuario; }
+    Sessao getSessao() { return sessao; }
+    boolean isDesconectado() { return desconectado.get(); }
+    long getUltimaAtividade() { return ultimaAtividade; }
+    long getUltimoPing() { return ultimoPing; }
+    boolean respondeBatimentos() { return respondeBatimentos; }
+    AtomicBoolean getAcompanhado() { return acompanhado; }
+    void setSessao(Sessao sessao) { this.sessao = sessao; }
+
+    boolean envioPendente() {
+        Conexao atual = conexao;
+        return atual != null && atual.envioPendente();
+    }
+
+    // Inicia o protocolo com o cliente solicitando o nome de usuário:
+    void iniciar() {
+        servidor.getMetricas().conexoesAbertas.incrementar();
+        if (!servidor.registrarConexao(this)) {
+            desconectar();  // Aceita durante o encerramento, depois que as conexões foram fechadas.
+            return;
+        }
+        ip = conexao.enderecoIp();
+        limiteIp = servidor.reservarLimiteIp(ip);
+        servidor.getBatimentos().acompanhar(this);
+        enviarMensagem(new Mensagem("SISTEMA", null, "SOLICITAR_NOME"));
+    }
+
+    // Espera um pouco pelos primeiros bytes do cliente (sem consumi-los): um cliente legado começa pelo cabeçalho
+    // do stream de objetos e só depois espera a solicitação de nome. Sem bytes no prazo, o cliente é atual:
+    private boolean detectarLegado(DataInputStream entrada) throws IOException {
+        int espera = servidor.getEsperaLegado();
+        if (espera <= 0) {
+            return false;
+        }
+        entrada.mark(Protocolo.TAMANHO_CABECALHO);
+        socket.setSoTimeout(espera);
+        try {
+            return entrada.readInt() == Protocolo.CABECALHO_LEGADO;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+            entrada.reset();
+        }
+    }
+
+    // Laço de recebimento de um cliente legado: cada objeto do stream é uma mensagem, sujeita aos mesmos
+    // limites de envio e de tamanho que um quadro:
+    private void receberLegado(InputStream entrada) throws IOException {
+        EntradaLegada legada = new EntradaLegada(entrada, servidor.getLimiteQuadro(), servidor.getMetricas());
+        MetricasServidor metricas = servidor.getMetricas();
+        while (!desconectado.get()) {
+            Mensagem mensagem = legada.ler();
+            long espera;
+            while ((espera = avaliarQuadro(legada.getTamanho())) > 0) {
+                LockSupport.parkNanos(espera);
+            }
+            if (espera == 0) {
+                long recebidoEm = System.nanoTime();
+                metricas.mensagensRecebidas.incrementar();
+                metricas.bytesRecebidos.adicionar(legada.getTamanho());
+                receber(mensagem);
+                metricas.latenciaEntrega.registrar(System.nanoTime() - recebidoEm);
+            }
+        }
+    }
+
+    // Valida o tamanho anunciado no prefixo de um quadro, antes de qualquer alocação. Um quadro acima do
+    // limite configurado encerra a conexão (não há como descartá-lo sem ler os bytes):
+    int validarTamanhoQuadro(int tamanho) throws IOException {
+        if (tamanho > servidor.getLimiteQuadro()) {
+            servidor.getMetricas().excessoTamanho.incrementar();
+            throw new StreamCorruptedException("Quadro maior que o limite: " + tamanho + " bytes");
+        }
+        return Protocolo.validarTamanho(tamanho);
+    }
+
+    // Aplica os limites de envio do usuário e do IP ao próximo quadro. Retorna 0 se o quadro pode ser
+    // processado, o tempo de espera em nanossegundos (ação atrasar) ou -1 se ele deve ser ignorado:
+    long avaliarQuadro(int tamanho) {
+        int bytes = Protocolo.TAMANHO_CABECALHO + tamanho;
+        long agora = System.nanoTime();
+        ultimaAtividade = agora;
+        long espera = limiteUsuario.consumir(bytes, agora);
+        if (espera == 0 && limiteIp != null) {
+            espera = limiteIp.consumir(bytes, agora);
+            if (espera > 0) {
+                limiteUsuario.devolver(bytes);
+            }
+        }
+        if (espera == 0) {
+            return 0;
+        }
+
+        MetricasServidor metricas = servidor.getMetricas();
+        metricas.limitadasPorUsuario.incrementar(nomeUsuario != null ? nomeUsuario : String.valueOf(ip));
+        switch (servidor.getAcaoLimite()) {
+            case ATRASAR:
+                metricas.limiteAtrasadas.incrementar();
+                return espera;
+            case DESCARTAR:
+                metricas.limiteDescartadas.incrementar();
+                if (agora - ultimoAvisoLimite >= INTERVALO_AVISO_LIMITE) {
+                    ultimoAvisoLimite = agora;
+                    enviarMensagem(new Mensagem("SISTEMA", nomeUsuario,
+                        "Você está enviando mensagens rápido demais; algumas foram descartadas."));
+                }
+                return -1;
+            default:
+                metricas.limiteDesconexoes.incrementar();
+                enviarMensagem(new Mensagem("SISTEMA", nomeUsuario,
+                    "Conexão encerrada: limite de envio de mensagens excedido."));
+                servidor.getSessoes().encerrar(this);  // Não pode voltar retomando a sessão.
+                desconectar();
+                return -1;
+        }
+    }
+
+    // Decodifica um quadro recebido; o formato da resposta de nome define a versão usada com este cliente, e a
+    // latência de entrega medida vai do quadro recebido até a mensagem estar na fila de todos os destinatários:
+    void receberQuadro(byte[] dados, int inicio, int tamanho) throws IOException {
+        MetricasServidor metricas = servidor.getMetricas();
+        long recebidoEm = System.nanoTime();
+        metricas.mensagensRecebidas.incrementar();
+        metricas.bytesRecebidos.adicionar(Protocolo.TAMANHO_CABECALHO + tamanho);
+        if (nomeUsuario == null) {
+            versaoProtocolo = Protocolo.versao(dados, inicio);
+        }
+        if (Protocolo.ehPing(dados, inicio, tamanho)) {
+            responderPing(Protocolo.marcaBatimento(dados, inicio, tamanho));
+            return;
+        }
+        if (Protocolo.ehPong(dados, inicio, tamanho)) {
+            servidor.getBatimentos().pongRecebido(Protocolo.marcaBatimento(dados, inicio, tamanho));
+            return;
+        }
+        if (Protocolo.ehCompressao(dados, inicio, tamanho)) {
+            negociarCompressao(Protocolo.algoritmoCompressao(dados, inicio, tamanho));
+            return;
+        }
+        if (Protocolo.ehDefinicaoNome(dados, inicio, tamanho)) {
+            // Só o servidor atribui identificadores; aceitar a definição alteraria a tabela de todos:
+            throw new StreamCorruptedException("Quadro de definição de nome enviado pelo cliente");
+        }
+        Mensagem mensagem = Protocolo.decodificar(dados, inicio, tamanho, servidor.getTabelaNomes());
+        if (mensagem != null) {
+            receber(mensagem);
+            metricas.latenciaEntrega.registrar(System.nanoTime() - recebidoEm);
+        }
+    }
+
+    // Trata uma mensagem recebida: enquanto o nome não foi aceito, ela é uma tentativa de nome
+    // (ou o pedido de retomada de uma sessão).
+    void receber(Mensagem mensagem) {
+        String conteudo = mensagem.getConteudo();
+        if (conteudo != null && conteudo.length() > servidor.getLimiteConteudo()) {
+            servidor.getMetricas().excessoTamanho.incrementar();
+            enviarMensagem(new Mensagem("SISTEMA", nomeUsuario,
+                "Mensagem muito longa (máximo de " + servidor.getLimiteConteudo() + " caracteres)."));
+            return;
+        }
+        if (nomeUsuario == null && mensagem.isTipoInformado() && mensagem.getTipo() == Mensagem.Tipo.COMANDO
+                && conteudo != null && conteudo.startsWith(COMANDO_RETOMAR)) {
+            retomarSessao(conteudo.substring(COMANDO_RETOMAR.length()).trim());
+        } else if (nomeUsuario == null) {
+            validarNomeUsuario(mensagem.getConteudo());
+        } else {
+            processarMensagem(comRemetente(mensagem));
+        }
+    }
+
+    // O remetente de uma mensagem é sempre o nome aceito nesta conexão, seja qual for o escrito pelo cliente
+    // no quadro: a participação nas salas, a visibilidade do histórico e o de: do /buscar dependem dele.
+    private Mensagem comRemetente(Mensagem mensagem) {
+        if (nomeUsuario.equals(mensagem.getRemetente())) {
+            return mensagem;
+        }
+        Mensagem corrigida = new Mensagem(nomeUsuario, mensagem.getDestinatario(), mensagem.getConteudo(),
+            mensagem.getHorarioMillis());
+        corrigida.setSala(mensagem.getSala());
+        if (mensagem.isTipoInformado()) {
+            corrigida.setTipo(mensagem.getTipo());
+        }
+        return corrigida;
+    }
+
+    // Valida unicidade do nome e confirma entrada do usuário no chat (ou solicita outro nome):
+    private void validarNomeUsuario(String nomeDesejado) {
+        // Verificar se nome é válido; se não for, continua solicitando até receber nome válido
+        // (quebras de linha também são recusadas, pois separam os nomes nas mensagens de presença, e o nome
+        // SISTEMA é reservado aos avisos do servidor):
+        if (nomeDesejado == null || nomeDesejado.trim().isEmpty() || "SISTEMA".equals(nomeDesejado)
+                || nomeDesejado.chars().anyMatch(Character::isWhitespace)) {
+            recusarNome();
+            return;
+        }
+
+        // O nome é atribuído antes do registro para que o broadcast nunca encontre um handler sem nome:
         this.nomeUsuario = nomeDesejado;
-        servidor.adicionarCliente(nomeUsuario, this);  // Registra cliente no servidor.
-        
+        if (!servidor.adicionarCliente(nomeUsuario, this)) {  // Reserva atômica: falha se o nome já está em uso.
+            this.nomeUsuario = null;
+            recusarNome();
+            return;
+        }
+
+        usarLimiteDoUsuario();
+
         // Confirma conexão para o cliente:
-        Mensagem confirmacao = new Mensagem("SISTEMA", nomeUsuario, 
+        Mensagem confirmacao = new Mensagem("SISTEMA", nomeUsuario,
             "Bem-vindo ao chat, " + nomeUsuario + "!");
-        saida.writeObject(confirmacao);
-        
+        enviarMensagem(confirmacao);
+
+        // Entrega as mensagens privadas recebidas enquanto estava desconectado:
+        servidor.entregarCaixaPostal(nomeUsuario);
+
         // Notifica outros usuários:
-        Mensagem notificacao = new Mensagem("SISTEMA", null, 
+        Mensagem notificacao = new Mensagem("SISTEMA", null,
             nomeUsuario + " entrou no chat!");
         servidor.broadcast(notificacao, nomeUsuario);
     }
-    
-    // Processa mensagens recebidas, identificando tipo de mensagem ou comando e tomando a ação devida:
+
+    // "/retomar <token> <última sequência recebida>": assume a sessão suspensa (ou meio aberta) do token.
+    // Se ela não existe mais, responde com uma mensagem de sessão vazia e continua aguardando o nome:
+    private void retomarSessao(String argumento) {
+        String[] partes = argumento.split("\\s+");
+        long ultima = 0;
+        if (partes.length == 2) {
+            try {
+                ultima = Long.parseLong(partes[1]);
+            } catch (NumberFormatException e) {
+                ultima = 0;
+            }
+        }
+        if (!servidor.getSessoes().retomar(partes[0], this, ultima)) {
+            Mensagem expirada = new Mensagem("SISTEMA", null, "");
+            expirada.setTipo(Mensagem.Tipo.SESSAO);
+            enviarMensagem(expirada);
+        }
+    }
+
+    // Chamado pela sessão retomada: este handler assume o nome, as salas e a sessão do anterior:
+    void assumir(ClienteHandler anterior) {
+        nomeUsuario = anterior.nomeUsuario;
+        salas.addAll(anterior.salas);
+        sessao = anterior.sessao;
+        usarLimiteDoUsuario();
+    }
+
+    // Passa a descontar os envios do balde do nome aceito, o mesmo de todas as conexões com ele, para que
+    // reconectar ou abrir outra conexão com o mesmo nome não renove as fichas:
+    private void usarLimiteDoUsuario() {
+        if (nomeLimite == null) {
+            nomeLimite = nomeUsuario;
+            limiteUsuario = servidor.reservarLimiteUsuario(nomeUsuario);
+        }
+    }
+
+    Set<String> getSalas() { return salas; }
+
+    private void recusarNome() {
+        Mensagem erro = new Mensagem("SISTEMA", null,
+            "Nome já em uso ou inválido (vazio ou contém espaço). Digite outro nome:");
+        enviarMensagem(erro);
+    }
+
+    // Processa mensagens recebidas pelo tipo informado (ou deduzido); só comandos passam pela tabela de comandos:
     private void processarMensagem(Mensagem mensagem) {
-        String conteudo = mensagem.getConteudo();
-        
-        // Comando para listar usuários:
-        if (conteudo.startsWith("/usuarios")) {
-            String lista = servidor.listarUsuarios();
-            Mensagem resposta = new Mensagem("SISTEMA", mensagem.getRemetente(), lista);  // Cria resposta direcionada apenas ao solicitante.
-            enviarMensagem(resposta);
-            return;
+        switch (mensagem.getTipo()) {
+            case PUBLICA:
+                enviarPublica(mensagem);
+                break;
+            case PRIVADA:
+                enviarPrivada(mensagem);
+                break;
+            case COMANDO:
+                if (!servidor.getComandos().executar(this, mensagem)) {
+                    // Clientes que não informam o tipo podem enviar texto comum começando com "/":
+                    if (mensagem.isTipoInformado()) {
+                        responder("Comando desconhecido: " + mensagem.getConteudo());
+                    } else {
+                        enviarPublica(mensagem);
+                    }
+                }
+                break;
+            default:  // Avisos do sistema só são criados pelo servidor.
+                break;
         }
-        
-        // Comando para mensagem privada:
-        if (conteudo.startsWith("/privado:")) {
-            String conteudoPrivado = conteudo.substring(9); // Remove "/privado:"
-            mensagem.setConteudo(conteudoPrivado);
-            servidor.enviarMensagemPrivada(mensagem);
+    }
+
+    // Mensagem para uma sala (apenas os membros a recebem) ou para todos (broadcast):
+    private void enviarPublica(Mensagem mensagem) {
+        if (mensagem.getSala() != null) {
+            servidor.enviarParaSala(mensagem);
             return;
         }
-        
-        // Mensagem para todos (broadcast):
+        servidor.registrarHistorico(mensagem);
+        servidor.broadcast(mensagem, mensagem.getRemetente());
+    }
+
+    void enviarPrivada(Mensagem mensagem) {
         if (mensagem.getDestinatario() == null) {
-            servidor.broadcast(mensagem, mensagem.getRemetente());
+            responder("Mensagem privada sem destinatário.");
+            return;
+        }
+        servidor.enviarMensagemPrivada(mensagem);
+    }
+
+    boolean usaProtocoloBinario() {
+        return versaoProtocolo != Protocolo.VERSAO_SERIALIZADA;
+    }
+
+    // Se o cliente está na mesma máquina do servidor (conexão por loopback):
+    boolean conexaoLocal() {
+        return ip != null && ip.isLoopbackAddress();
+    }
+
+    // Resposta do sistema direcionada apenas a este usuário:
+    void responder(String texto) {
+        enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, texto));
+    }
+
+    // Entra em uma sala, avisando o próprio usuário e os demais membros:
+    void entrarSala(String sala) {
+        if (!Salas.nomeValido(sala)) {
+            enviarMensagem(new Mensagem("SISTEMA", nomeUsuario,
+                "Nome de sala inválido (vazio, com espaço ou maior que " + Salas.TAMANHO_MAXIMO_NOME + " caracteres)."));
+            return;
+        }
+        if (!servidor.entrarSala(sala, nomeUsuario, this)) {
+            enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, "Você já está na sala #" + sala + "."));
+            return;
         }
+        salas.add(sala);
+        enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, "Você entrou na sala #" + sala + "."));
     }
-    
+
+    // Envia ao usuário as últimas N mensagens que ele pode ver (20 se N não for informado):
+    void enviarHistorico(String argumento) {
+        int quantidade = 20;
+        if (!argumento.isEmpty()) {
+            try {
+                quantidade = Integer.parseInt(argumento);
+            } catch (NumberFormatException e) {
+                quantidade = 0;
+            }
+            if (quantidade <= 0) {
+                enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, "Uso: /historico [quantidade]"));
+                return;
+            }
+        }
+        int pedidas = quantidade;
+        Set<String> salasUsuario = new HashSet<>(salas);
+        consultar(() -> {
+            List<Mensagem> mensagens = servidor.historico(nomeUsuario, salasUsuario, pedidas);
+            if (mensagens == null) {
+                enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, "O histórico está desativado neste servidor."));
+                return;
+            }
+            enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, mensagens.isEmpty()
+                ? "Nenhuma mensagem no histórico." : "Últimas " + mensagens.size() + " mensagens:"));
+            for (Mensagem mensagem : mensagens) {
+                enviarMensagem(mensagem);
+            }
+        });
+    }
+
+    // Envia ao usuário as mensagens mais recentes do histórico que atendem à busca e que ele pode ver:
+    void buscar(String argumento) {
+        Consulta consulta;
+        try {
+            consulta = Consulta.interpretar(argumento);
+        } catch (IllegalArgumentException e) {
+            enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, e.getMessage()));
+            return;
+        }
+        Set<String> salasUsuario = new HashSet<>(salas);
+        consultar(() -> {
+            List<Mensagem> mensagens = servidor.buscar(nomeUsuario, salasUsuario, consulta);
+            if (mensagens == null) {
+                enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, "O histórico está desativado neste servidor."));
+                return;
+            }
+            enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, mensagens.isEmpty()
+                ? "Nenhuma mensagem encontrada." : mensagens.size() + " mensagens encontradas:"));
+            for (Mensagem mensagem : mensagens) {
+                enviarMensagem(mensagem);
+            }
+        });
+    }
+
+    // Roda uma consulta ao histórico no executor de consultas do servidor, com as salas copiadas antes; as
+    // respostas são enfileiradas na conexão por ele. Enquanto uma consulta não termina, outra é recusada:
+    private void consultar(Runnable consulta) {
+        if (!consultaEmAndamento.compareAndSet(false, true)) {
+            responder("Aguarde o resultado da consulta anterior.");
+            return;
+        }
+        boolean aceita = servidor.executarConsulta(() -> {
+            try {
+                consulta.run();
+            } finally {
+                consultaEmAndamento.set(false);
+            }
+        });
+        if (!aceita) {
+            consultaEmAndamento.set(false);
+        }
+    }
+
+    // Sai de uma sala, avisando o próprio usuário e os demais membros:
+    void sairSala(String sala) {
+        if (!salas.remove(sala)) {
+            enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, "Você não está na sala #" + sala + "."));
+            return;
+        }
+        servidor.sairSala(sala, nomeUsuario, this);
+        enviarMensagem(new Mensagem("SISTEMA", nomeUsuario, "Você saiu da sala #" + sala + "."));
+    }
+
     // Método para enviar mensagem ao cliente específico:
     public void enviarMensagem(Mensagem mensagem) {
+        enviarQuadro(new QuadroCodificado(mensagem, servidor.getTabelaNomes()));
+    }
+
+    // Envia um quadro possivelmente compartilhado com outros destinatários (broadcast), passando pela
+    // sessão se houver uma (ela o guarda e o escreve na conexão atual, se o cliente estiver conectado):
+    void enviarQuadro(QuadroCodificado quadro) {
+        Sessao atual = sessao;
+        if (atual != null) {
+            atual.enviar(quadro);
+        } else {
+            escreverQuadro(quadro);
+        }
+    }
+
+    // Escreve o quadro nesta conexão, no formato deste cliente:
+    void escreverQuadro(QuadroCodificado quadro) {
         try {
-            saida.writeObject(mensagem);
+            if (versaoProtocolo == Protocolo.VERSAO_SERIALIZADA) {
+                conexao.enviar(quadro.paraVersao(Protocolo.VERSAO_SERIALIZADA));
+                servidor.getMetricas().mensagensEnviadas.incrementar();
+                return;
+            }
+            TabelaNomes tabela = servidor.getTabelaNomes();
+            Mensagem mensagem = quadro.getMensagem();
+            ByteBuffer bytes = quadro.paraVersao(Protocolo.VERSAO_BINARIA);  // Codificado antes de procurar as definições.
+            travaEnvio.lock();
+            try {
+                definirNome(mensagem.getRemetente(), tabela);
+                definirNome(mensagem.getDestinatario(), tabela);
+                definirNome(mensagem.getSala(), tabela);
+                conexao.enviar(bytes);
+            } finally {
+                travaEnvio.unlock();
+            }
+            servidor.getMetricas().mensagensEnviadas.incrementar();
         } catch (IOException e) {
-            System.err.println("Erro ao enviar mensagem para " + nomeUsuario);
+            servidor.getMetricas().escritasFalhas.incrementar();
+            System.err.println("Erro ao enviar mensagem para " + nomeUsuario + ": " + e.getMessage());
             desconectar();
         }
     }
-    
-    // Remove usuário que quer se desconectar do servidor, notifica os demais e fecha recursos de rede:
-    private void desconectar() {
+
+    // Envia várias mensagens como um único quadro composto, escrito de uma só vez no socket
+    // (ocupa uma única posição na fila de saída):
+    void enviarLote(List<Mensagem> mensagens) {
+        List<QuadroCodificado> quadros = new ArrayList<>(mensagens.size());
+        for (Mensagem mensagem : mensagens) {
+            quadros.add(new QuadroCodificado(mensagem, servidor.getTabelaNomes()));
+        }
+        Sessao atual = sessao;
+        if (atual != null) {
+            atual.enviarLote(quadros);
+        } else {
+            escreverLote(quadros);
+        }
+    }
+
+    void escreverLote(List<QuadroCodificado> codificados) {
         try {
-            if (nomeUsuario != null) {
-                servidor.removerCliente(nomeUsuario);
-                
-                // Notifica outros usuários:
-                Mensagem despedida = new Mensagem("SISTEMA", null, 
-                    nomeUsuario + " saiu do chat!");
-                servidor.broadcast(despedida, nomeUsuario);
-            }
-            
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            TabelaNomes tabela = servidor.getTabelaNomes();
+            travaEnvio.lock();
+            try {
+                List<ByteBuffer> quadros = new ArrayList<>(codificados.size());
+                int total = 0;
+                for (QuadroCodificado quadroCodificado : codificados) {
+                    Mensagem mensagem = quadroCodificado.getMensagem();
+                    ByteBuffer quadro = quadroCodificado.paraVersao(versaoProtocolo);
+                    if (versaoProtocolo != Protocolo.VERSAO_SERIALIZADA) {
+                        definirNome(mensagem.getRemetente(), tabela);
+                        definirNome(mensagem.getDestinatario(), tabela);
+                        definirNome(mensagem.getSala(), tabela);
+                    }
+                    total += quadro.remaining();
+                    quadros.add(quadro);
+                }
+                ByteBuffer lote = ByteBuffer.allocate(total);
+                for (ByteBuffer quadro : quadros) {
+                    lote.put(quadro);
+                }
+                lote.flip();
+                conexao.enviar(lote);
+            } finally {
+                travaEnvio.unlock();
             }
+            servidor.getMetricas().mensagensEnviadas.adicionar(codificados.size());
+        } catch (IOException e) {
+            servidor.getMetricas().escritasFalhas.incrementar();
+            System.err.println("Erro ao enviar mensagens para " + nomeUsuario + ": " + e.getMessage());
+            desconectar();
+        }
+    }
+
+    // Um PING do cliente anuncia que ele responde aos PINGs do servidor (e é respondido com um PONG):
+    private void responderPing(long marca) throws IOException {
+        conexao.enviarControle(ByteBuffer.wrap(Protocolo.codificarQuadroPong(marca)));
+        if (!respondeBatimentos) {
+            respondeBatimentos = true;
+            servidor.getBatimentos().passouAResponder(this);
+        }
+    }
+
+    // Responde ao anúncio de compressão do cliente com o algoritmo usado daqui em diante (NENHUMA se ela está
+    // desativada, se o limite de conexões comprimidas foi atingido ou se o cliente não anunciou o deflate).
+    // Só os quadros enviados ao cliente são comprimidos; os recebidos dele seguem sempre sem compressão:
+    private void negociarCompressao(byte algoritmo) throws IOException {
+        if (!compressaoNegociada.compareAndSet(false, true)) {
+            return;
+        }
+        CompressorSaida compressor = algoritmo == Compressao.DEFLATE ? servidor.novoCompressor() : null;
+        if (compressor != null) {
+            conexao.ativarCompressao(compressor);  // Liberado pela conexão ao fechar, mesmo se o envio abaixo falhar.
+        }
+        conexao.enviarControle(ByteBuffer.wrap(Protocolo.codificarQuadroCompressao(
+            compressor != null ? Compressao.DEFLATE : Compressao.NENHUMA)));
+    }
+
+    // Envia um PING com a marca de tempo (devolvida no PONG) e o intervalo entre PINGs:
+    void enviarPing(long marca, int intervalo) {
+        ultimoPing = marca;
+        try {
+            conexao.enviarControle(ByteBuffer.wrap(Protocolo.codificarQuadroPing(marca, intervalo)));
         } catch (IOException e) {
-            System.err.println("Erro ao desconectar cliente: " + e.getMessage());
+            desconectar();
+        }
+    }
+
+    // Envia a definição do nome antes do primeiro quadro que o referencia por identificador. O quadro já
+    // foi codificado: se o nome tinha identificador naquele momento, ainda tem (eles nunca são removidos),
+    // e um nome sem identificador foi como texto e não precisa de definição:
+    private void definirNome(String nome, TabelaNomes tabela) throws IOException {
+        if (nome == null) {
+            return;
+        }
+        int id = tabela.procurar(nome);
+        if (id >= 0 && !nomesDefinidos.get(id)) {
+            conexao.enviarControle(ByteBuffer.wrap(Protocolo.codificarQuadroDefinicao(id, nome)));
+            nomesDefinidos.set(id);
+        }
+    }
+
+    // Fecha a conexão. Sem sessão (ou com ela encerrada), o usuário sai do chat; com sessão, ela fica
+    // suspensa aguardando a reconexão, e o usuário só sai quando ela expirar:
+    void desconectar() {
+        if (!desconectado.compareAndSet(false, true)) {
+            return;
+        }
+        servidor.getMetricas().conexoesEncerradas.incrementar();
+        servidor.removerConexao(this);
+
+        servidor.getPresenca().cancelar(this);
+        Sessao atual = sessao;
+        if (atual == null || !atual.suspender(this)) {
+            sairDoChat();
+        }
+        fecharConexao();
+    }
+
+    // Remove o usuário das salas e da lista de clientes e notifica os demais (exceto no encerramento do
+    // servidor, em que todos saem juntos e já receberam o aviso de reinício):
+    void sairDoChat() {
+        if (nomeUsuario != null) {
+            for (String sala : salas) {
+                servidor.sairSala(sala, nomeUsuario, this);
+            }
+            salas.clear();
+            servidor.removerCliente(nomeUsuario, this);
+
+            // Notifica outros usuários:
+            if (servidor.isEncerrando()) {
+                return;
+            }
+            Mensagem despedida = new Mensagem("SISTEMA", null,
+                nomeUsuario + " saiu do chat!");
+            servidor.broadcast(despedida, nomeUsuario);
+        }
+    }
+
+    private void fecharConexao() {
+        if (limiteIp != null) {
+            servidor.liberarLimiteIp(ip);
+        }
+        if (nomeLimite != null) {
+            servidor.liberarLimiteUsuario(nomeLimite);
+        }
+
+        if (conexao != null) {
+            conexao.fechar();
+        } else if (socket != null) {
+            try {
+                socket.close();  // Falhou antes de configurar os streams.
+            } catch (IOException e) {
+                System.err.println("Erro ao desconectar cliente: " + e.getMessage());
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,551 @@
+package Trabalho_2.servidor;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.metricas.Contador;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Liga vários servidores de chat em um cluster por TCP. Cada nó é identificado pelo endereço
+ * que anuncia aos pares (host:porta do cluster) e mantém:
+ *   - uma conexão de saída para cada par, usada apenas para enviar (com fila própria e uma
+ *     thread escritora que agrupa os registros e envia um PING quando fica ociosa);
+ *   - as conexões de entrada abertas pelos pares, usadas apenas para receber.
+ *
+ * O diretório de usuários é compartilhado por anúncios: ao conectar, o nó envia o seu endereço,
+ * os pares que conhece e todos os seus usuários (OLA); depois, apenas as entradas e saídas.
+ * Um par recém-descoberto é repassado aos demais (NO), de modo que basta configurar um único
+ * par conhecido para formar a malha completa.
+ *
+ * Um broadcast é encaminhado uma única vez para cada nó, que faz a entrega aos seus próprios
+ * clientes; mensagens privadas vão apenas para o nó onde o destinatário está conectado.
+ * Se a conexão de entrada de um nó fecha ou fica sem receber nada pelo tempo limite, os
+ * usuários dele são retirados do diretório imediatamente.
+ *
+ * A unicidade de nomes entre nós é verificada no diretório local: dois nós aceitando o mesmo
+ * nome no mesmo instante ainda podem ficar com usuários homônimos.
+ *
+ * A porta do cluster escuta apenas no endereço do nó (loopback, por padrão). Com um segredo
+ * compartilhado, quem aceita a conexão envia um desafio aleatório e só lê o OLA depois de receber
+ * o HMAC-SHA256 dele calculado com o segredo; fora do loopback, o segredo é obrigatório. O segredo
+ * autentica os nós, mas o tráfego segue sem cifra: o cluster deve ficar numa rede privada.
+ */
+class Cluster {
+    // Tipos de registro trocados entre os nós (o primeiro byte de cada registro):
+    private static final byte OLA = 1;      // Endereço do nó, pares conhecidos e usuários locais.
+    private static final byte ENTROU = 2;   // Usuário conectou no nó remetente.
+    private static final byte SAIU = 3;     // Usuário desconectou do nó remetente.
+    private static final byte PING = 4;     // Mantém a conexão viva enquanto não há outros registros.
+    private static final byte PUBLICA = 5;  // Broadcast para entregar aos clientes locais.
+    private static final byte SALA = 6;     // Mensagem para os membros locais de uma sala.
+    private static final byte PRIVADA = 7;  // Mensagem para um usuário conectado no nó destino.
+    private static final byte NO = 8;       // Endereço de um par recém-descoberto.
+
+    private static final int CAPACIDADE_FILA = 10_000;    // Registros aguardando envio para cada par.
+    private static final int TAMANHO_BUFFER = 64 * 1024;
+    private static final long ESPERA_MAXIMA_RECONEXAO = 5_000;  // Em milissegundos.
+    private static final int TAMANHO_DESAFIO = 16;  // Bytes aleatórios enviados a cada conexão de entrada.
+    private static final String ALGORITMO_AUTENTICACAO = "HmacSHA256";
+
+    private final Servidor servidor;
+    private final String endereco;  // Identificador deste nó.
+    private final String escuta;  // Endereço local da porta do cluster.
+    private final int porta;
+    private final SecretKeySpec segredo;  // null sem segredo compartilhado.
+    private final SecureRandom aleatorio = new SecureRandom();
+    private final long intervalo;     // Em milissegundos: PING quando ocioso e primeira espera de reconexão.
+    private final int tempoLimite;    // Em milissegundos: silêncio de um par até considerá-lo perdido.
+    private ServerSocket servidorPares;
+    private volatile boolean rodando = true;
+
+    private final ConcurrentHashMap<String, Par> pares = new ConcurrentHashMap<>();          // Conexões de saída.
+    private final ConcurrentHashMap<String, Socket> entradas = new ConcurrentHashMap<>();    // Conexão de entrada atual de cada nó.
+    private final ConcurrentHashMap<String, String> diretorio = new ConcurrentHashMap<>();   // Usuário remoto -> nó.
+    private final ConcurrentHashMap<String, Set<String>> usuariosPorNo = new ConcurrentHashMap<>();
+
+    private final Contador encaminhadas;
+    private final Contador recebidas;
+    private final Contador descartadas;
+    private final Contador nosPerdidos;
+
+    Cluster(Servidor servidor, String endereco, String escuta, int porta, String segredo, long intervalo,
+            int tempoLimite, RegistroMetricas metricas) {
+        this.servidor = servidor;
+        this.endereco = endereco;
+        this.escuta = escuta;
+        this.porta = porta;
+        this.segredo = segredo.isEmpty() ? null
+            : new SecretKeySpec(segredo.getBytes(StandardCharsets.UTF_8), ALGORITMO_AUTENTICACAO);
+        this.intervalo = Math.max(50, intervalo);
+        this.tempoLimite = Math.max(tempoLimite, (int) this.intervalo * 2);
+        this.encaminhadas = metricas.contador("chat_cluster_encaminhadas_total",
+            "Registros enviados aos outros nós (um por nó, não por usuário remoto).");
+        this.recebidas = metricas.contador("chat_cluster_recebidas_total",
+            "Mensagens recebidas de outros nós.");
+        this.descartadas = metricas.contador("chat_cluster_descartadas_total",
+            "Registros descartados porque a conexão com o nó estava cheia ou fora do ar.");
+        this.nosPerdidos = metricas.contador("chat_cluster_nos_perdidos_total",
+            "Vezes em que um nó saiu do cluster (conexão fechada ou tempo limite).");
+        metricas.medidor("chat_cluster_nos", "Nós com conexão de saída ativa.", this::nosConectados);
+        metricas.medidor("chat_cluster_usuarios_remotos", "Usuários conectados em outros nós.", diretorio::size);
+    }
+
+    // Abre a porta do cluster e conecta aos pares configurados (lista separada por vírgulas):
+    void iniciar(String paresIniciais) throws IOException {
+        InetSocketAddress local = new InetSocketAddress(escuta, porta);
+        if (local.isUnresolved()) {
+            throw new IOException("Endereço do cluster desconhecido: " + escuta);
+        }
+        if (segredo == null && !local.getAddress().isLoopbackAddress()) {
+            throw new IOException("a porta do cluster fora do loopback exige um segredo (chat.cluster.segredo)");
+        }
+        servidorPares = new ServerSocket();
+        servidorPares.bind(local);
+        Thread aceitadora = new Thread(this::aceitar, "cluster-aceitar");
+        aceitadora.setDaemon(true);
+        aceitadora.start();
+        for (String par : paresIniciais.split(",")) {
+            conectar(par.trim());
+        }
+        System.out.println("Cluster: nó " + endereco + " escutando em " + escuta + ":" + porta);
+    }
+
+    String getEndereco() { return endereco; }
+
+    // Nó onde o usuário está conectado (null se não estiver em nenhum outro nó):
+    String noDoUsuario(String usuario) {
+        return diretorio.get(usuario);
+    }
+
+    // Métodos chamados pelo Servidor para avisar ou encaminhar aos outros nós:
+    void anunciarEntrada(String usuario) {
+        enviarATodos(registro(ENTROU, usuario));
+    }
+
+    void anunciarSaida(String usuario) {
+        enviarATodos(registro(SAIU, usuario));
+    }
+
+    void encaminharPublica(Mensagem mensagem) {
+        enviarATodos(registro(PUBLICA, mensagem));
+    }
+
+    void encaminharSala(Mensagem mensagem) {
+        enviarATodos(registro(SALA, mensagem));
+    }
+
+    // Envia a mensagem privada apenas ao nó do destinatário; retorna false se não foi possível:
+    boolean encaminharPrivada(String no, Mensagem mensagem) {
+        Par par = pares.get(no);
+        byte[] dados = registro(PRIVADA, mensagem);
+        return par != null && dados != null && par.enviar(dados);
+    }
+
+    private void enviarATodos(byte[] dados) {
+        if (dados == null) {
+            return;
+        }
+        for (Par par : pares.values()) {
+            par.enviar(dados);  // O mesmo array é compartilhado por todas as filas.
+        }
+    }
+
+    // Cria a conexão de saída para um par ainda desconhecido e avisa os demais sobre ele:
+    private void conectar(String par) {
+        if (par.isEmpty() || par.equals(endereco) || !rodando) {
+            return;
+        }
+        Par novo = new Par(par);
+        if (pares.putIfAbsent(par, novo) != null) {
+            return;
+        }
+        byte[] aviso = registro(NO, par);
+        for (Par outro : pares.values()) {
+            if (outro != novo) {
+                outro.enviar(aviso);
+            }
+        }
+        novo.iniciar();
+    }
+
+    // Laço de aceitação das conexões de entrada, uma thread leitora para cada par:
+    private void aceitar() {
+        while (rodando) {
+            try {
+                Socket socket = servidorPares.accept();
+                Thread leitora = new Thread(() -> receber(socket), "cluster-entrada");
+                leitora.setDaemon(true);
+                leitora.start();
+            } catch (IOException e) {
+                if (rodando) {
+                    System.err.println("Cluster: erro ao aceitar conexão: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Lê os registros de um par. O primeiro é sempre OLA, que identifica o nó e traz seus usuários:
+    private void receber(Socket socket) {
+        String no = null;
+        try {
+            socket.setSoTimeout(tempoLimite);  // Sem nenhum registro (nem PING) nesse tempo, o nó é dado como perdido.
+            DataInputStream entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream(), TAMANHO_BUFFER));
+            autenticar(socket, entrada);
+            if (entrada.readByte() != OLA) {
+                throw new IOException("registro inicial inválido");
+            }
+            no = entrada.readUTF();
+            int quantidadePares = entrada.readInt();
+            List<String> conhecidos = new ArrayList<>();
+            for (int i = 0; i < quantidadePares; i++) {
+                conhecidos.add(entrada.readUTF());
+            }
+            int quantidadeUsuarios = entrada.readInt();
+            Set<String> usuarios = ConcurrentHashMap.newKeySet();
+            for (int i = 0; i < quantidadeUsuarios; i++) {
+                usuarios.add(entrada.readUTF());
+            }
+            registrarNo(no, socket, usuarios);
+            conectar(no);
+            for (String par : conhecidos) {
+                conectar(par);
+            }
+
+            while (rodando) {
+                processarRegistro(no, entrada);
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("Cluster: " + (no != null ? "nó " + no : socket.getRemoteSocketAddress())
+                + " não respondeu em " + tempoLimite + " ms");
+        } catch (IOException e) {
+            // Conexão encerrada pelo par ou registro inválido.
+        } finally {
+            if (no != null) {
+                perderNo(no, socket);
+            }
+            fecharSocket(socket);
+        }
+    }
+
+    // Com um segredo, desafia quem conectou e confere a resposta antes de ler qualquer registro:
+    private void autenticar(Socket socket, DataInputStream entrada) throws IOException {
+        if (segredo == null) {
+            return;
+        }
+        byte[] desafio = new byte[TAMANHO_DESAFIO];
+        aleatorio.nextBytes(desafio);
+        OutputStream saida = socket.getOutputStream();
+        saida.write(desafio);
+        saida.flush();
+        byte[] resposta = new byte[responder(desafio).length];
+        entrada.readFully(resposta);
+        if (!MessageDigest.isEqual(resposta, responder(desafio))) {
+            System.err.println("Cluster: conexão recusada de " + socket.getRemoteSocketAddress() + " (segredo inválido)");
+            throw new IOException("autenticação inválida");
+        }
+    }
+
+    // Resposta esperada para um desafio: o HMAC dele com o segredo compartilhado:
+    private byte[] responder(byte[] desafio) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(ALGORITMO_AUTENTICACAO);
+            mac.init(segredo);
+            return mac.doFinal(desafio);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HMAC indisponível: " + e.getMessage(), e);
+        }
+    }
+
+    private void processarRegistro(String no, DataInputStream entrada) throws IOException {
+        byte tipo = entrada.readByte();
+        switch (tipo) {
+            case PING:
+                break;
+            case ENTROU: {
+                String usuario = entrada.readUTF();
+                diretorio.put(usuario, no);
+                usuariosPorNo.computeIfAbsent(no, n -> ConcurrentHashMap.newKeySet()).add(usuario);
+                servidor.getTabelaNomes().id(usuario);
+                servidor.getPresenca().entrou(usuario);
+                servidor.usuarioRemotoEntrou(usuario, no);
+                break;
+            }
+            case SAIU: {
+                String usuario = entrada.readUTF();
+                if (diretorio.remove(usuario, no)) {
+                    servidor.getPresenca().saiu(usuario);
+                }
+                Set<String> usuarios = usuariosPorNo.get(no);
+                if (usuarios != null) {
+                    usuarios.remove(usuario);
+                }
+                break;
+            }
+            case NO:
+                conectar(entrada.readUTF());
+                break;
+            case PUBLICA:
+            case SALA:
+            case PRIVADA: {
+                byte[] conteudo = Protocolo.lerQuadro(entrada);
+                Mensagem mensagem = Protocolo.decodificar(conteudo, 0, conteudo.length, null);
+                if (mensagem == null) {
+                    break;
+                }
+                recebidas.incrementar();
+                if (tipo == PUBLICA) {
+                    servidor.receberPublicaRemota(mensagem);
+                } else if (tipo == SALA) {
+                    servidor.receberSalaRemota(mensagem);
+                } else {
+                    servidor.receberPrivadaRemota(mensagem);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Tipo de registro desconhecido: " + tipo);
+        }
+    }
+
+    // Substitui os usuários conhecidos do nó pelos que ele acabou de anunciar (ex.: após reiniciar):
+    private void registrarNo(String no, Socket socket, Set<String> usuarios) {
+        Socket anterior = entradas.put(no, socket);
+        if (anterior != null) {
+            fecharSocket(anterior);
+        }
+        Set<String> antigos = usuariosPorNo.put(no, usuarios);
+        if (antigos != null) {
+            for (String usuario : antigos) {
+                if (diretorio.remove(usuario, no) && !usuarios.contains(usuario)) {
+                    servidor.getPresenca().saiu(usuario);
+                }
+            }
+        }
+        for (String usuario : usuarios) {
+            diretorio.put(usuario, no);
+            servidor.getPresenca().entrou(usuario);
+            servidor.usuarioRemotoEntrou(usuario, no);
+        }
+        System.out.println("Cluster: nó " + no + " conectado (" + usuarios.size() + " usuários)");
+    }
+
+    // Retira do diretório os usuários do nó, a menos que ele já tenha reconectado por outra conexão:
+    private void perderNo(String no, Socket socket) {
+        if (!entradas.remove(no, socket)) {
+            return;
+        }
+        Set<String> usuarios = usuariosPorNo.remove(no);
+        int removidos = 0;
+        if (usuarios != null) {
+            for (String usuario : usuarios) {
+                if (diretorio.remove(usuario, no)) {
+                    servidor.getPresenca().saiu(usuario);
+                    removidos++;
+                }
+            }
+        }
+        if (!rodando) {
+            return;
+        }
+        nosPerdidos.incrementar();
+        System.out.println("Cluster: nó " + no + " saiu (" + removidos + " usuários removidos)");
+        if (removidos > 0) {
+            servidor.avisarNoPerdido(no, removidos);
+        }
+    }
+
+    private int nosConectados() {
+        int conectados = 0;
+        for (Par par : pares.values()) {
+            if (par.conectado) {
+                conectados++;
+            }
+        }
+        return conectados;
+    }
+
+    // Codificação dos registros: tipo seguido de um nome (writeUTF) ou de um quadro de mensagem com
+    // os nomes como texto, o mesmo formato gravado no histórico:
+    private static byte[] registro(byte tipo, String nome) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(3 + nome.length());
+            DataOutputStream saida = new DataOutputStream(bytes);
+            saida.writeByte(tipo);
+            saida.writeUTF(nome);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            return null;  // Nome maior que o limite do writeUTF.
+        }
+    }
+
+    private byte[] registro(byte tipo, Mensagem mensagem) {
+        try {
+            byte[] quadro = Protocolo.codificarQuadro(mensagem);
+            byte[] dados = new byte[1 + quadro.length];
+            dados[0] = tipo;
+            System.arraycopy(quadro, 0, dados, 1, quadro.length);
+            return dados;
+        } catch (IOException e) {
+            descartadas.incrementar();  // Mensagem maior que o quadro máximo.
+            return null;
+        }
+    }
+
+    private static void fecharSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Encerrando: nada a fazer.
+        }
+    }
+
+    void parar() {
+        rodando = false;
+        try {
+            if (servidorPares != null) {
+                servidorPares.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Cluster: erro ao fechar: " + e.getMessage());
+        }
+        for (Par par : pares.values()) {
+            par.parar();
+        }
+        for (Socket socket : entradas.values()) {
+            fecharSocket(socket);
+        }
+    }
+
+    /*
+     * Conexão de saída para um par. Os registros vão para uma fila limitada e uma thread
+     * escritora os envia, esvaziando o buffer apenas quando a fila fica vazia. Se a conexão
+     * cai, a fila é descartada e a thread tenta reconectar com espera crescente; o OLA enviado
+     * na reconexão refaz o diretório do par.
+     */
+    private class Par {
+        private final String endereco;
+        private final BlockingQueue<byte[]> fila = new LinkedBlockingQueue<>(CAPACIDADE_FILA);
+        private volatile boolean conectado = false;
+        private volatile Socket socket;
+        private Thread escritora;
+
+        Par(String endereco) {
+            this.endereco = endereco;
+        }
+
+        void iniciar() {
+            escritora = new Thread(this::executar, "cluster-saida-" + endereco);
+            escritora.setDaemon(true);
+            escritora.start();
+        }
+
+        boolean enviar(byte[] dados) {
+            if (!conectado || !fila.offer(dados)) {
+                descartadas.incrementar();
+                return false;
+            }
+            encaminhadas.incrementar();
+            return true;
+        }
+
+        private void executar() {
+            long espera = intervalo;
+            while (rodando) {
+                try {
+                    conectarEEnviar();
+                    espera = intervalo;
+                } catch (IOException e) {
+                    // Par fora do ar: tenta de novo mais tarde.
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    conectado = false;
+                    fila.clear();
+                    if (socket != null) {
+                        fecharSocket(socket);
+                    }
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(espera);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                espera = Math.min(espera * 2, ESPERA_MAXIMA_RECONEXAO);
+            }
+        }
+
+        private void conectarEEnviar() throws IOException, InterruptedException {
+            int separador = endereco.lastIndexOf(':');
+            if (separador <= 0) {
+                throw new IOException("Endereço de par inválido: " + endereco);
+            }
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(endereco.substring(0, separador),
+                Integer.parseInt(endereco.substring(separador + 1))), tempoLimite);
+            DataOutputStream saida = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TAMANHO_BUFFER));
+            if (segredo != null) {
+                socket.setSoTimeout(tempoLimite);
+                byte[] desafio = new byte[TAMANHO_DESAFIO];
+                new DataInputStream(socket.getInputStream()).readFully(desafio);
+                socket.setSoTimeout(0);
+                saida.write(responder(desafio));
+            }
+
+            // Os registros aceitos a partir daqui chegam depois do OLA, que já traz a lista atual de usuários:
+            conectado = true;
+            saida.writeByte(OLA);
+            saida.writeUTF(Cluster.this.endereco);
+            List<String> conhecidos = new ArrayList<>(pares.keySet());
+            saida.writeInt(conhecidos.size());
+            for (String par : conhecidos) {
+                saida.writeUTF(par);
+            }
+            List<String> usuarios = servidor.usuariosLocais();
+            saida.writeInt(usuarios.size());
+            for (String usuario : usuarios) {
+                saida.writeUTF(usuario);
+            }
+            saida.flush();
+
+            byte[] ping = {PING};
+            while (rodando) {
+                byte[] dados = fila.poll(intervalo, TimeUnit.MILLISECONDS);
+                saida.write(dados != null ? dados : ping);
+                while ((dados = fila.poll()) != null) {
+                    saida.write(dados);
+                }
+                saida.flush();  // Uma escrita para tudo o que se acumulou na fila.
+            }
+        }
+
+        void parar() {
+            if (escritora != null) {
+                escritora.interrupt();
+            }
+            if (socket != null) {
+                fecharSocket(socket);
+            }
+        }
+    }
+}
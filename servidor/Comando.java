@@ -0,0 +1,13 @@
+package Trabalho_2.servidor;
+
+import Trabalho_2.chat.Mensagem;
+
+/*
+ * Tratamento de um comando do chat (ex.: /usuarios), registrado em Comandos pelo seu verbo.
+ * O argumento é o texto após o verbo: sem os espaços das pontas quando separado por espaço,
+ * ou exatamente como enviado quando separado por dois-pontos (ex.: /privado:texto).
+ */
+@FunctionalInterface
+public interface Comando {
+    void executar(ClienteHandler cliente, Mensagem mensagem, String argumento);
+}
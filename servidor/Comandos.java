@@ -0,0 +1,137 @@
+package Trabalho_2.servidor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import Trabalho_2.chat.Mensagem;
+
+/*
+ * Tabela de comandos do chat, indexada pelo verbo (o texto entre a barra e o primeiro espaço ou
+ * dois-pontos). Só é consultada para mensagens do tipo COMANDO: mensagens comuns são despachadas
+ * pelo tipo, sem examinar o conteúdo. Novos comandos são incluídos com registrar(), sem alterar
+ * o ClienteHandler.
+ */
+public class Comandos {
+    private final ConcurrentHashMap<String, Comando> comandos = new ConcurrentHashMap<>();
+
+    // Tabela com os comandos padrão do servidor:
+    static Comandos padrao(Servidor servidor) {
+        Comandos comandos = new Comandos();
+        comandos.registrar("usuarios", (cliente, mensagem, argumento) -> listarUsuarios(servidor, cliente, argumento));
+        comandos.registrar("presenca", (cliente, mensagem, argumento) -> {
+            if (cliente.usaProtocoloBinario()) {
+                servidor.getPresenca().assinar(cliente);
+            } else {
+                cliente.responder("As atualizações de presença exigem o protocolo binário. Use /usuarios.");
+            }
+        });
+        comandos.registrar("salas", (cliente, mensagem, argumento) ->
+            cliente.responder(servidor.listarSalas()));
+        comandos.registrar("entrar", (cliente, mensagem, argumento) -> {
+            if (argumento.isEmpty()) {
+                cliente.responder("Uso: /entrar <sala>");
+            } else {
+                cliente.entrarSala(argumento);
+            }
+        });
+        comandos.registrar("sair", (cliente, mensagem, argumento) -> {
+            if (argumento.isEmpty()) {
+                cliente.responder("Uso: /sair <sala>");
+            } else {
+                cliente.sairSala(argumento);
+            }
+        });
+        comandos.registrar("historico", (cliente, mensagem, argumento) -> cliente.enviarHistorico(argumento));
+        comandos.registrar("buscar", (cliente, mensagem, argumento) -> cliente.buscar(argumento));
+        comandos.registrar("sessao", (cliente, mensagem, argumento) -> {
+            if (cliente.usaProtocoloBinario()) {
+                servidor.getSessoes().abrir(cliente);
+            } else {
+                cliente.responder("Sessões retomáveis exigem o protocolo binário.");
+            }
+        });
+        comandos.registrar("desconectar", (cliente, mensagem, argumento) -> {
+            servidor.getSessoes().encerrar(cliente);
+            cliente.desconectar();
+        });
+        // As métricas trazem nomes de usuários (nos rótulos dos limites) e detalhes do servidor: assim como o
+        // endpoint HTTP, que só escuta em loopback, o comando só responde a conexões da própria máquina:
+        comandos.registrar("stats", (cliente, mensagem, argumento) -> {
+            if (cliente.conexaoLocal()) {
+                cliente.responder(servidor.estatisticas());
+            } else {
+                cliente.responder("O comando /stats só está disponível na máquina do servidor.");
+            }
+        });
+        // Forma antiga de mensagem privada, mantida para clientes que não informam o tipo da mensagem:
+        comandos.registrar("privado", (cliente, mensagem, argumento) -> {
+            mensagem.setConteudo(argumento);
+            cliente.enviarPrivada(mensagem);
+        });
+        return comandos;
+    }
+
+    // /usuarios [prefixo] [página]: um número sozinho é tratado como a página da lista completa:
+    private static void listarUsuarios(Servidor servidor, ClienteHandler cliente, String argumento) {
+        String[] partes = argumento.isEmpty() ? new String[0] : argumento.split("\\s+");
+        String prefixo = "";
+        String pagina = "1";
+        if (partes.length == 1 && !partes[0].chars().allMatch(Character::isDigit)) {
+            prefixo = partes[0];
+        } else if (partes.length == 1) {
+            pagina = partes[0];
+        } else if (partes.length == 2) {
+            prefixo = partes[0];
+            pagina = partes[1];
+        }
+        int numero;
+        try {
+            numero = partes.length > 2 ? 0 : Integer.parseInt(pagina);
+        } catch (NumberFormatException e) {
+            numero = 0;
+        }
+        if (numero <= 0) {
+            cliente.responder("Uso: /usuarios [prefixo] [página]");
+            return;
+        }
+        cliente.responder(servidor.listarUsuarios(prefixo, numero));
+    }
+
+    // Registra um comando; falha se o verbo já estiver em uso:
+    public void registrar(String verbo, Comando comando) {
+        if (comandos.putIfAbsent(verbo, comando) != null) {
+            throw new IllegalArgumentException("Comando já registrado: /" + verbo);
+        }
+    }
+
+    public Set<String> verbos() {
+        return comandos.keySet();
+    }
+
+    // Executa o comando da mensagem; retorna false se o verbo não está registrado:
+    public boolean executar(ClienteHandler cliente, Mensagem mensagem) {
+        String texto = mensagem.getConteudo();
+        if (texto == null) {
+            return false;
+        }
+        int inicio = texto.startsWith("/") ? 1 : 0;
+        int fim = inicio;
+        while (fim < texto.length() && texto.charAt(fim) != ' ' && texto.charAt(fim) != ':') {
+            fim++;
+        }
+        Comando comando = comandos.get(texto.substring(inicio, fim));
+        if (comando == null) {
+            return false;
+        }
+        String argumento;
+        if (fim == texto.length()) {
+            argumento = "";
+        } else if (texto.charAt(fim) == ':') {
+            argumento = texto.substring(fim + 1);
+        } else {
+            argumento = texto.substring(fim + 1).trim();
+        }
+        comando.executar(cliente, mensagem, argumento);
+        return true;
+    }
+}
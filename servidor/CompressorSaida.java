@@ -0,0 +1,109 @@
+package Trabalho_2.servidor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import Trabalho_2.chat.Compressao;
+
+/*
+ * Compressão dos quadros enviados a uma conexão que a negociou. O escritor da conexão entrega cada
+ * trecho novo do seu lote, e os quadros dele são trocados, no próprio array, por quadros comprimidos
+ * no contexto de deflate da conexão (que acumula o histórico das mensagens anteriores). Lotes abaixo
+ * do limite seguem sem compressão: para poucos bytes, o custo de CPU não compensa a economia.
+ *
+ * Os quadros comprimidos não passam do tamanho máximo do protocolo: a entrada é dividida em blocos
+ * de até BLOCO bytes, sempre em fronteiras de quadros, e um quadro maior que o bloco segue sem
+ * compressão, na mesma ordem.
+ */
+class CompressorSaida {
+    private static final int BLOCO = 32 * 1024;
+
+    private final Deflater compressor;
+    private final int limite;
+    private final MetricasServidor metricas;
+    private final Runnable aoLiberar;
+    private byte[] entrada = new byte[4096];
+    private boolean liberado = false;
+
+    CompressorSaida(int nivel, int limite, MetricasServidor metricas, Runnable aoLiberar) {
+        this.compressor = Compressao.novoCompressor(Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, nivel)));
+        this.limite = Math.max(0, limite);
+        this.metricas = metricas;
+        this.aoLiberar = aoLiberar;
+    }
+
+    // Substitui os quadros de lote[inicio, fim) pelos quadros a enviar e retorna o novo fim. Chamado
+    // apenas pelo escritor da conexão (a trava só o protege de liberar(), chamado ao fechar):
+    synchronized int comprimir(ByteBuffer[] lote, int inicio, int fim) {
+        long total = 0;
+        for (int i = inicio; i < fim; i++) {
+            total += lote[i].remaining();
+        }
+        if (liberado || total == 0) {
+            return fim;
+        }
+        if (total < limite) {
+            metricas.compressaoAbaixoLimite.adicionar(total);
+            return fim;
+        }
+
+        long comeco = System.nanoTime();
+        long bytesEntrada = 0;
+        long bytesSaida = 0;
+        int destino = inicio;  // Nunca passa de i: cada quadro gerado substitui pelo menos um quadro lido.
+        int acumulados = 0;
+        for (int i = inicio; i < fim; i++) {
+            ByteBuffer quadro = lote[i];
+            int tamanho = quadro.remaining();
+            if (tamanho > BLOCO) {
+                if (acumulados > 0) {
+                    lote[destino++] = comprimirBloco(acumulados);
+                    bytesEntrada += acumulados;
+                    bytesSaida += lote[destino - 1].remaining();
+                    acumulados = 0;
+                }
+                lote[destino++] = quadro;
+                continue;
+            }
+            if (acumulados + tamanho > BLOCO) {
+                lote[destino++] = comprimirBloco(acumulados);
+                bytesEntrada += acumulados;
+                bytesSaida += lote[destino - 1].remaining();
+                acumulados = 0;
+            }
+            garantirCapacidade(acumulados + tamanho);
+            quadro.duplicate().get(entrada, acumulados, tamanho);  // O quadro pode ser compartilhado.
+            acumulados += tamanho;
+        }
+        if (acumulados > 0) {
+            lote[destino++] = comprimirBloco(acumulados);
+            bytesEntrada += acumulados;
+            bytesSaida += lote[destino - 1].remaining();
+        }
+        Arrays.fill(lote, destino, fim, null);
+        metricas.tempoCompressao.registrar(System.nanoTime() - comeco);
+        metricas.compressaoEntrada.adicionar(bytesEntrada);
+        metricas.compressaoSaida.adicionar(bytesSaida);
+        return destino;
+    }
+
+    private ByteBuffer comprimirBloco(int tamanho) {
+        return ByteBuffer.wrap(Compressao.comprimir(compressor, entrada, tamanho));
+    }
+
+    private void garantirCapacidade(int capacidade) {
+        if (capacidade > entrada.length) {
+            entrada = Arrays.copyOf(entrada, Math.max(capacidade, Math.min(BLOCO, entrada.length * 2)));
+        }
+    }
+
+    // Devolve a memória nativa do deflate; chamado ao fechar a conexão (os lotes seguintes não são comprimidos):
+    synchronized void liberar() {
+        if (!liberado) {
+            liberado = true;
+            compressor.end();
+            aoLiberar.run();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package Trabalho_2.servidor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/*
+ * Representa o meio de transporte de uma conexão com um cliente. O ClienteHandler usa esta
+ * interface para enviar quadros sem saber se o socket é atendido por uma thread dedicada
+ * (ConexaoSocket) ou por um reator NIO compartilhado (ConexaoReator).
+ */
+interface Conexao {
+    // Envia um quadro já codificado (prefixo de tamanho incluído) ao cliente. O buffer pode ser
+    // uma visão somente leitura compartilhada com outras conexões e não deve ser modificado.
+    // O quadro é enfileirado sem bloquear e escrito pelo escritor da conexão; lança IOException
+    // se a conexão foi fechada ou se a fila de saída estourou com a política de desconectar:
+    void enviar(ByteBuffer quadro) throws IOException;
+
+    // Enfileira um quadro de controle (ex.: definição de nome), que é escrito antes das próximas mensagens:
+    void enviarControle(ByteBuffer quadro) throws IOException;
+
+    // Passa a comprimir os próximos lotes de quadros com o compressor negociado, que é liberado ao fechar:
+    void ativarCompressao(CompressorSaida compressor);
+
+    // Se ainda há quadros enfileirados ou em escrita (usado para esvaziar as filas no encerramento):
+    boolean envioPendente();
+
+    // Fecha a conexão de rede:
+    void fechar();
+
+    // Endereço do cliente, usado nas mensagens de log:
+    String enderecoRemoto();
+
+    // Endereço IP do cliente, usado para os limites de envio por IP (null se desconhecido):
+    InetAddress enderecoIp();
+}
@@ -0,0 +1,413 @@
+package Trabalho_2.servidor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLEngine;
+
+import Trabalho_2.chat.Protocolo;
+
+/*
+ * Conexão não bloqueante atendida por um Reator. Mantém um buffer de leitura próprio, onde os
+ * bytes recebidos são acumulados até formarem quadros completos, e uma fila de saída limitada
+ * que qualquer thread pode alimentar; apenas a thread do reator escreve efetivamente no canal.
+ * Cada escrita reúne os quadros pendentes até o limite de bytes do lote. Com a janela de envio ativa,
+ * um lote que atinge o limite é escrito sem esperar a janela vencer.
+ * Quando o cliente excede o limite de envio (com a ação atrasar), os quadros ficam no buffer
+ * de leitura e o canal deixa de ser lido até o reator retomar a conexão no prazo calculado.
+ * Com o TLS ativo, a leitura e a escrita passam pelo CanalTls da conexão, e os quadros chegam ao
+ * buffer de leitura já decifrados.
+ * Sem TLS, a solicitação de nome espera pelos primeiros bytes do cliente (ou pelo prazo): se eles são o
+ * cabeçalho do stream de um cliente legado, a conexão sai do reator e passa a uma thread própria.
+ */
+class ConexaoReator implements Conexao {
+    private static final int TAMANHO_INICIAL_LEITURA = 1024;  // Suficiente para mensagens comuns de chat.
+    private static final int QUADROS_POR_ESCRITA = 64;        // Máximo de quadros reunidos em uma escrita.
+
+    private final SocketChannel canal;
+    private final Reator reator;
+    private final ClienteHandler handler;
+    private SelectionKey chave;
+
+    private ByteBuffer entrada = ByteBuffer.allocate(TAMANHO_INICIAL_LEITURA);
+    private final FilaSaida saida;
+    private final MetricasServidor metricas;
+    private final AtomicBoolean escritaAgendada = new AtomicBoolean(false);  // Evita agendar a mesma conexão várias vezes.
+    private volatile long agendadaEm;  // Instante do agendamento, usado pela janela de envio do reator.
+    private volatile boolean naJanela;  // Se o agendamento ainda está na fila do reator, esperando a janela.
+    private final int limiteLote;
+    private final boolean janelaAtiva;
+    private final AtomicLong bytesEnfileirados = new AtomicLong();  // Desde a última vez que o reator esvaziou a fila.
+
+    // Quadros retirados da fila e ainda não escritos por completo (usados apenas pela thread do reator):
+    private final ByteBuffer[] lote = new ByteBuffer[QUADROS_POR_ESCRITA];
+    private int inicioLote = 0;
+    private int fimLote = 0;
+    private long bytesLote = 0;
+    private volatile CompressorSaida compressor;  // Definido quando o cliente negocia a compressão.
+    private final CanalTls tls;     // null sem TLS.
+    private long retomarEm;         // Prazo para voltar a ler o canal, enquanto a leitura está suspensa.
+    private boolean leituraSuspensa = false;
+    private boolean iniciada = false;  // Se o nome já foi solicitado ao cliente.
+    private long iniciarEm;         // Prazo para solicitar o nome sem esperar pelos bytes do cliente.
+    private byte[] recebidosLegado;  // Bytes já lidos de um cliente legado, entregues à thread que o atende.
+
+    ConexaoReator(SocketChannel canal, Reator reator, Servidor servidor) throws IOException {
+        this.canal = canal;
+        this.reator = reator;
+        this.saida = servidor.novaFilaSaida();
+        this.metricas = servidor.getMetricas();
+        this.limiteLote = Math.max(1, servidor.getLoteEnvio());
+        this.janelaAtiva = servidor.getJanelaEnvio() > 0;
+        SSLEngine motor = servidor.novoMotorTls();
+        this.tls = motor == null ? null : new CanalTls(canal, motor, reator.getBuffersTls(),
+            servidor.getExecutorTls(), () -> reator.retomarTls(this), metricas);
+        this.handler = new ClienteHandler(this, servidor);
+    }
+
+    ClienteHandler getHandler() { return handler; }
+
+    void setChave(SelectionKey chave) { this.chave = chave; }
+
+    long getAgendadaEm() { return agendadaEm; }
+
+    long getRetomarEm() { return retomarEm; }
+
+    long getIniciarEm() { return iniciarEm; }
+
+    SocketChannel getCanal() { return canal; }
+
+    byte[] getRecebidosLegado() { return recebidosLegado; }
+
+    // Chamado pelo reator ao registrar a conexão: solicita o nome ao cliente, ou retorna false se a
+    // solicitação espera pelos primeiros bytes dele até o prazo (espera em milissegundos):
+    boolean iniciar(int espera) {
+        if (tls != null || espera <= 0) {
+            iniciarProtocolo();
+            return true;
+        }
+        iniciarEm = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(espera);
+        return false;
+    }
+
+    // Chamado pelo reator quando o prazo vence sem que os bytes do cliente tenham decidido:
+    void iniciarAdiada() throws IOException {
+        if (!iniciada && chave.isValid()) {
+            iniciarProtocolo();
+            processarEntrada();  // Bytes que chegaram sem completar o cabeçalho de um cliente legado.
+        }
+    }
+
+    private void iniciarProtocolo() {
+        iniciada = true;
+        handler.iniciar();
+    }
+
+    // Decide pelos primeiros bytes recebidos se o cliente é legado e, nesse caso, o entrega ao reator.
+    // Retorna true se o protocolo com quadros começou e a entrada pode ser processada:
+    private boolean decidirInicio() {
+        int recebidos = entrada.position();
+        if (!Protocolo.inicioLegado(entrada.array(), entrada.arrayOffset(), recebidos)) {
+            iniciarProtocolo();
+            return true;
+        }
+        if (recebidos >= Protocolo.TAMANHO_CABECALHO) {
+            recebidosLegado = Arrays.copyOfRange(entrada.array(), entrada.arrayOffset(), entrada.arrayOffset() + recebidos);
+            chave.cancel();
+            reator.transferirLegado(this);
+        }
+        return false;
+    }
+
+    // Chamado pelo reator quando há bytes disponíveis para leitura; retorna false se o cliente desconectou:
+    boolean ler() throws IOException {
+        if (tls != null) {
+            boolean aberto = tls.ler();
+            decifrarEntrada();
+            return aberto;
+        }
+        int lidos = canal.read(entrada);
+        if (lidos < 0) {
+            return false;
+        }
+        if (iniciada || decidirInicio()) {
+            processarEntrada();
+        }
+        return true;
+    }
+
+    // Extrai todos os quadros completos acumulados no buffer. Se os limites de envio mandam esperar,
+    // o quadro fica no buffer e a leitura é suspensa (o cliente passa a sentir a contrapressão do TCP):
+    private void processarEntrada() throws IOException {
+        entrada.flip();
+        while (entrada.remaining() >= Protocolo.TAMANHO_CABECALHO && canal.isOpen()) {
+            int tamanho = handler.validarTamanhoQuadro(entrada.getInt(entrada.position()));
+            int total = Protocolo.TAMANHO_CABECALHO + tamanho;
+            if (entrada.remaining() < total) {
+                break;
+            }
+            long espera = handler.avaliarQuadro(tamanho);
+            if (espera > 0) {
+                suspenderLeitura(espera);
+                break;
+            }
+            if (espera == 0) {
+                int inicio = entrada.position() + Protocolo.TAMANHO_CABECALHO;
+                handler.receberQuadro(entrada.array(), entrada.arrayOffset() + inicio, tamanho);
+            }
+            entrada.position(entrada.position() + total);
+        }
+        entrada.compact();
+
+        ajustarBufferLeitura();
+    }
+
+    // Com TLS: entrega o texto decifrado em partes que cabem no buffer de leitura, extraindo os quadros
+    // a cada parte, até acabar o que foi recebido ou a leitura ser suspensa:
+    private void decifrarEntrada() throws IOException {
+        try {
+            while (!leituraSuspensa && canal.isOpen() && tls.decifrar(entrada) > 0) {
+                processarEntrada();
+            }
+        } finally {
+            tls.guardar();
+        }
+    }
+
+    // Chamado pelo reator quando o handshake TLS avança fora da leitura (uma tarefa concluída ou o fim
+    // do handshake): continua a entrada e a saída que esperavam por ele:
+    void retomarTls() throws IOException {
+        if (!canal.isOpen()) {
+            return;
+        }
+        if (!leituraSuspensa) {
+            decifrarEntrada();
+        }
+        escreverPendentes();
+    }
+
+    private void suspenderLeitura(long espera) {
+        leituraSuspensa = true;
+        retomarEm = System.nanoTime() + espera;
+        chave.interestOps(chave.interestOps() & ~SelectionKey.OP_READ);
+        reator.adiarLeitura(this);
+    }
+
+    // Chamado pelo reator quando o prazo vence: processa os quadros guardados e volta a ler o canal:
+    void retomarLeitura() throws IOException {
+        if (!canal.isOpen()) {
+            return;
+        }
+        leituraSuspensa = false;
+        processarEntrada();
+        if (tls != null && !leituraSuspensa) {
+            decifrarEntrada();  // Texto que já estava decifrado, aguardando a retomada.
+        }
+        if (!leituraSuspensa && chave.isValid()) {
+            chave.interestOps(chave.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // Aumenta o buffer quando um quadro não cabe nele e o devolve ao tamanho inicial quando fica vazio:
+    private void ajustarBufferLeitura() throws IOException {
+        if (entrada.position() >= Protocolo.TAMANHO_CABECALHO) {
+            int total = Protocolo.TAMANHO_CABECALHO + Protocolo.validarTamanho(entrada.getInt(0));
+            if (total > entrada.capacity()) {
+                ByteBuffer maior = ByteBuffer.allocate(total);
+                entrada.flip();
+                maior.put(entrada);
+                entrada = maior;
+            }
+        } else if (entrada.position() == 0 && entrada.capacity() > TAMANHO_INICIAL_LEITURA) {
+            entrada = ByteBuffer.allocate(TAMANHO_INICIAL_LEITURA);
+        }
+    }
+
+    // Pode ser chamado por qualquer thread: enfileira o quadro e avisa o reator:
+    @Override
+    public void enviar(ByteBuffer quadro) throws IOException {
+        if (!canal.isOpen()) {
+            throw new IOException("Conexão fechada");
+        }
+        int tamanho = quadro.remaining();
+        if (!saida.oferecer(quadro)) {
+            throw new IOException("Fila de saída cheia (cliente lento)");
+        }
+        agendarEscrita(tamanho);
+    }
+
+    @Override
+    public void enviarControle(ByteBuffer quadro) throws IOException {
+        if (!canal.isOpen()) {
+            throw new IOException("Conexão fechada");
+        }
+        int tamanho = quadro.remaining();
+        saida.oferecerControle(quadro);
+        agendarEscrita(tamanho);
+    }
+
+    @Override
+    public void ativarCompressao(CompressorSaida compressor) {
+        this.compressor = compressor;
+        if (!canal.isOpen()) {
+            compressor.liberar();
+        }
+    }
+
+    // Agenda a escrita do quadro enfileirado. Com a janela ativa, o quadro que faz os bytes enfileirados
+    // atingirem o limite do lote antecipa a escrita, como o escritor do modo com threads:
+    private void agendarEscrita(int tamanho) {
+        if (escritaAgendada.compareAndSet(false, true)) {
+            agendadaEm = System.nanoTime();
+            naJanela = true;
+            reator.agendarEscrita(this);
+        }
+        if (janelaAtiva) {
+            long enfileirados = bytesEnfileirados.addAndGet(tamanho);
+            if (enfileirados >= limiteLote && enfileirados - tamanho < limiteLote) {
+                reator.anteciparEscrita(this);
+            }
+        }
+    }
+
+    // Chamado pelo reator ao retirar o agendamento da fila, quando a janela vence:
+    void sairDaJanela() {
+        naJanela = false;
+    }
+
+    // Executado apenas na thread do reator: escreve o máximo possível sem bloquear, reunindo
+    // vários quadros pendentes em uma única escrita (gathering write).
+    void escreverPendentes() throws IOException {
+        while (true) {
+            completarLote();
+            if (inicioLote == fimLote) {
+                if (tls != null && !tls.descarregar()) {
+                    chave.interestOps(chave.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                chave.interestOps(chave.interestOps() & ~SelectionKey.OP_WRITE);
+                if (naJanela) {
+                    return;  // Escrita antecipada: o agendamento na fila do reator escreve o que chegar até a janela vencer.
+                }
+                escritaAgendada.set(false);
+
+                // Um quadro pode ter chegado entre o fim do laço e a liberação da flag:
+                if (saida.estaVazia() || !escritaAgendada.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+
+            long inicio = System.nanoTime();
+            long escritos;
+            try {
+                escritos = tls != null ? tls.escrever(lote, inicioLote, fimLote - inicioLote)
+                    : canal.write(lote, inicioLote, fimLote - inicioLote);
+            } catch (IOException e) {
+                metricas.escritasFalhas.incrementar();
+                throw e;
+            }
+            metricas.tempoEscrita.registrar(System.nanoTime() - inicio);
+            metricas.bytesEnviados.adicionar(escritos);
+            metricas.escritasSocket.incrementar();
+            bytesLote -= escritos;
+            int enviados = 0;
+            while (inicioLote < fimLote && !lote[inicioLote].hasRemaining()) {
+                lote[inicioLote++] = null;  // Não retém quadros já enviados.
+                enviados++;
+            }
+            metricas.quadrosEscritos.adicionar(enviados);
+            metricas.quadrosPorLote.registrar(enviados);
+            if (inicioLote < fimLote) {
+                if (tls == null || tls.temSaidaPendente()) {
+                    // Buffer de envio do socket cheio: aguarda o Selector avisar que é possível escrever.
+                    chave.interestOps(chave.interestOps() | SelectionKey.OP_WRITE);
+                } else {
+                    // Handshake TLS em andamento: o CanalTls devolve a conexão ao reator quando ele terminar.
+                    chave.interestOps(chave.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            inicioLote = fimLote = 0;
+            bytesLote = 0;
+        }
+    }
+
+    // Move os quadros pendentes para o início do lote e o completa com os próximos da fila,
+    // até o limite de quadros ou de bytes. Com a compressão ativa, só os quadros novos são comprimidos
+    // (os pendentes podem já estar escritos em parte):
+    private void completarLote() {
+        if (inicioLote > 0) {
+            System.arraycopy(lote, inicioLote, lote, 0, fimLote - inicioLote);
+            Arrays.fill(lote, fimLote - inicioLote, fimLote, null);
+            fimLote -= inicioLote;
+            inicioLote = 0;
+        }
+        int novos = fimLote;
+        if (janelaAtiva) {
+            bytesEnfileirados.set(0);  // Quadros enfileirados durante a retirada contam para o próximo lote.
+        }
+        ByteBuffer quadro;
+        while (fimLote < lote.length && bytesLote < limiteLote && (quadro = saida.proximo()) != null) {
+            lote[fimLote++] = quadro;
+            bytesLote += quadro.remaining();
+        }
+        CompressorSaida compressor = this.compressor;
+        if (compressor != null && fimLote > novos) {
+            fimLote = compressor.comprimir(lote, novos, fimLote);
+            bytesLote = 0;
+            for (int i = 0; i < fimLote; i++) {
+                bytesLote += lote[i].remaining();
+            }
+        }
+    }
+
+    // A escrita continua agendada enquanto houver quadros ou registros do TLS que o socket não aceitou:
+    @Override
+    public boolean envioPendente() {
+        return canal.isOpen() && (!saida.estaVazia() || escritaAgendada.get());
+    }
+
+    @Override
+    public void fechar() {
+        try {
+            canal.close();  // Também cancela a chave registrada no Selector.
+        } catch (IOException e) {
+            System.err.println("Erro ao fechar canal: " + e.getMessage());
+        }
+        saida.limpar();
+        if (tls != null) {
+            tls.fechar();
+        }
+        CompressorSaida compressor = this.compressor;
+        if (compressor != null) {
+            compressor.liberar();
+        }
+    }
+
+    @Override
+    public String enderecoRemoto() {
+        try {
+            return String.valueOf(canal.getRemoteAddress());
+        } catch (IOException e) {
+            return "desconhecido";
+        }
+    }
+
+    @Override
+    public InetAddress enderecoIp() {
+        try {
+            return ((InetSocketAddress) canal.getRemoteAddress()).getAddress();
+        } catch (IOException | ClassCastException e) {
+            return null;
+        }
+    }
+}
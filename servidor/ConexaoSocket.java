@@ -0,0 +1,245 @@
+package Trabalho_2.servidor;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLSocket;
+
+import Trabalho_2.chat.Protocolo;
+
+/*
+ * Conexão baseada em Socket bloqueante, usada quando cada cliente possui sua própria thread.
+ * Os quadros enviados por outras threads (broadcast, mensagens privadas, respostas de comandos)
+ * vão para uma fila de saída limitada, consumida por uma thread escritora da própria conexão.
+ * Assim, um cliente que não lê suas mensagens bloqueia apenas o seu escritor, nunca quem envia.
+ * Quando o socket possui um SocketChannel (aceito pelo ServerSocketChannel do servidor), os
+ * quadros compartilhados são escritos direto do buffer, sem cópias. Sem ele (com TLS, num SSLSocket),
+ * os quadros do lote passam por um buffer e saem juntos no flush, em poucos registros TLS.
+ *
+ * O escritor agrupa os quadros pendentes (até um limite de bytes) em uma única escrita com
+ * vários buffers (gathering write); com a janela de envio ativa, um lote ainda pequeno espera
+ * um pouco por mais quadros, de modo que rajadas de mensagens virem poucas escritas grandes.
+ *
+ * Com um cliente legado, que não usa quadros, os quadros da versão 0 são convertidos em trechos do
+ * stream de objetos dele antes da escrita.
+ */
+class ConexaoSocket implements Conexao {
+    private static final int TAMANHO_BUFFER_LEITURA = 1024;  // Pequeno para caber em memória com muitos clientes.
+    private static final int QUADROS_POR_ESCRITA = 64;       // Máximo de quadros reunidos em uma escrita.
+    private static final int TAMANHO_BUFFER_ESCRITA = 16 * 1024;  // Um registro TLS cheio.
+
+    private final Socket socket;
+    private final DataInputStream entrada;
+    private final WritableByteChannel saida;
+    private final BufferedOutputStream saidaBufferizada;  // Sem SocketChannel; descarregada a cada lote.
+    private final FilaSaida fila;
+    private final MetricasServidor metricas;
+    private final long janela;      // Espera máxima por mais quadros, em nanossegundos (0 = sem espera).
+    private final int limiteLote;   // Bytes a partir dos quais o lote é escrito sem esperar.
+    private final ByteBuffer[] lote = new ByteBuffer[QUADROS_POR_ESCRITA];  // Usado apenas pelo escritor.
+    private volatile CompressorSaida compressor;  // Definido quando o cliente negocia a compressão.
+    private volatile Thread escritor;  // Definida quando a thread escritora começa a executar.
+    private final AtomicBoolean escritorAcordado = new AtomicBoolean(false);  // Evita unpark a cada quadro.
+    private volatile boolean legado = false;  // Cliente legado: escreve o stream de objetos em vez dos quadros.
+    private volatile boolean aberta = true;
+
+    // Os bytes recebidos (null se nenhum) são os que já foram lidos do socket antes da conexão existir:
+    ConexaoSocket(Socket socket, byte[] recebidos, FilaSaida fila, Executor executorEscritor, MetricasServidor metricas,
+                  long janela, int limiteLote) throws IOException {
+        this.socket = socket;
+        this.fila = fila;
+        this.metricas = metricas;
+        this.janela = janela;
+        this.limiteLote = Math.max(1, limiteLote);
+        InputStream entradaSocket = socket.getInputStream();
+        if (recebidos != null) {
+            entradaSocket = new SequenceInputStream(new ByteArrayInputStream(recebidos), entradaSocket);
+        }
+        this.entrada = new DataInputStream(new BufferedInputStream(entradaSocket, TAMANHO_BUFFER_LEITURA));
+        if (socket.getChannel() != null && !(socket instanceof SSLSocket)) {  // O do SSLSocket é o canal cru.
+            this.saidaBufferizada = null;
+            this.saida = socket.getChannel();
+        } else {
+            this.saidaBufferizada = new BufferedOutputStream(socket.getOutputStream(), TAMANHO_BUFFER_ESCRITA);
+            this.saida = Channels.newChannel(saidaBufferizada);
+        }
+
+        // O escritor é do mesmo tipo da thread leitora: virtual no modo virtual, de plataforma no modo threads.
+        executorEscritor.execute(this::escreverFila);
+    }
+
+    DataInputStream getEntrada() { return entrada; }
+
+    // Passa a atender um cliente legado: escreve o cabeçalho do stream de objetos, antes de qualquer quadro,
+    // e converte os próximos quadros em trechos desse stream:
+    void ativarLegado() throws IOException {
+        ByteBuffer cabecalho = ByteBuffer.allocate(Protocolo.TAMANHO_CABECALHO).putInt(Protocolo.CABECALHO_LEGADO);
+        cabecalho.flip();
+        while (cabecalho.hasRemaining()) {
+            saida.write(cabecalho);
+        }
+        if (saidaBufferizada != null) {
+            saidaBufferizada.flush();
+        }
+        legado = true;
+    }
+
+    @Override
+    public void enviar(ByteBuffer quadro) throws IOException {
+        if (!aberta) {
+            throw new IOException("Conexão fechada");
+        }
+        if (!fila.oferecer(quadro)) {
+            throw new IOException("Fila de saída cheia (cliente lento)");
+        }
+        acordarEscritor();
+    }
+
+    @Override
+    public void enviarControle(ByteBuffer quadro) throws IOException {
+        if (!aberta) {
+            throw new IOException("Conexão fechada");
+        }
+        fila.oferecerControle(quadro);
+        acordarEscritor();
+    }
+
+    @Override
+    public void ativarCompressao(CompressorSaida compressor) {
+        this.compressor = compressor;
+        if (!aberta) {
+            compressor.liberar();
+        }
+    }
+
+    private void acordarEscritor() {
+        if (escritorAcordado.compareAndSet(false, true)) {
+            LockSupport.unpark(escritor);
+        }
+    }
+
+    // Laço da thread escritora: esvazia a fila em lotes e dorme até o próximo quadro.
+    private void escreverFila() {
+        escritor = Thread.currentThread();
+        try {
+            while (aberta) {
+                int quadros = juntarLote();
+                CompressorSaida compressor = this.compressor;
+                if (quadros > 0 && compressor != null) {
+                    quadros = compressor.comprimir(lote, 0, quadros);
+                }
+                if (quadros > 0) {
+                    escreverLote(quadros);
+                    continue;
+                }
+                escritorAcordado.set(false);
+                if (fila.estaVazia() && aberta) {
+                    LockSupport.park(this);
+                }
+            }
+        } catch (IOException e) {
+            metricas.escritasFalhas.incrementar();
+            // A thread leitora percebe o socket fechado e faz a desconexão do usuário.
+            fechar();
+        }
+    }
+
+    // Retira da fila os quadros da próxima escrita, até o limite de quadros ou de bytes. Com a janela
+    // ativa, espera por mais quadros enquanto o lote não atingir o limite e o prazo não vencer:
+    private int juntarLote() throws IOException {
+        int quadros = 0;
+        long bytes = 0;
+        long prazo = 0;
+        while (quadros < lote.length && bytes < limiteLote && aberta) {
+            ByteBuffer quadro = fila.proximo();
+            if (quadro != null) {
+                if (legado) {
+                    quadro = Protocolo.paraStreamLegado(quadro);
+                }
+                lote[quadros++] = quadro;
+                bytes += quadro.remaining();
+                continue;
+            }
+            if (quadros == 0 || janela <= 0) {
+                break;
+            }
+            long agora = System.nanoTime();
+            if (prazo == 0) {
+                prazo = agora + janela;
+            } else if (agora - prazo >= 0) {
+                break;
+            }
+            LockSupport.parkNanos(this, prazo - agora);
+        }
+        return quadros;
+    }
+
+    // Escreve o lote inteiro. No SocketChannel, uma única chamada envia vários quadros:
+    private void escreverLote(int quadros) throws IOException {
+        long inicio = System.nanoTime();
+        long bytes = 0;
+        int escritas = 0;
+        int primeiro = 0;
+        while (primeiro < quadros) {
+            if (saida instanceof GatheringByteChannel) {
+                bytes += ((GatheringByteChannel) saida).write(lote, primeiro, quadros - primeiro);
+            } else {
+                bytes += saida.write(lote[primeiro]);
+            }
+            escritas++;
+            while (primeiro < quadros && !lote[primeiro].hasRemaining()) {
+                lote[primeiro++] = null;  // Não retém quadros já enviados.
+            }
+        }
+        if (saidaBufferizada != null) {
+            saidaBufferizada.flush();
+        }
+        metricas.tempoEscrita.registrar(System.nanoTime() - inicio);
+        metricas.bytesEnviados.adicionar(bytes);
+        metricas.escritasSocket.adicionar(escritas);
+        metricas.quadrosEscritos.adicionar(quadros);
+        metricas.quadrosPorLote.registrar(quadros);
+    }
+
+    // O escritor só baixa a flag depois de esvaziar a fila e escrever o último lote:
+    @Override
+    public boolean envioPendente() {
+        return aberta && (!fila.estaVazia() || escritorAcordado.get());
+    }
+
+    @Override
+    public void fechar() {
+        aberta = false;
+        LockSupport.unpark(escritor);
+        fila.limpar();
+        CompressorSaida compressor = this.compressor;
+        if (compressor != null) {
+            compressor.liberar();
+        }
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao fechar socket: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String enderecoRemoto() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public InetAddress enderecoIp() {
+        return socket.getInetAddress();
+    }
+}
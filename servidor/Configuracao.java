@@ -0,0 +1,153 @@
+package Trabalho_2.servidor;
+
+/*
+ * Classe que reúne as configurações do servidor. Os valores padrão podem ser alterados na
+ * inicialização através de propriedades do sistema, por exemplo:
+ *     java -Dchat.modo=nio -Dchat.porta=12345 Trabalho_2.servidor.Servidor
+ */
+public class Configuracao {
+    // Modos de execução disponíveis para atender as conexões:
+    public static final String MODO_THREADS = "threads";  // Uma thread de plataforma por cliente.
+    public static final String MODO_VIRTUAL = "virtual";  // Uma thread virtual por cliente (requer JDK 21).
+    public static final String MODO_NIO = "nio";          // Poucos reatores com Selector multiplexando todas as conexões.
+
+    public int porta = inteiro("chat.porta", 12345);
+    public String modo = texto("chat.modo", MODO_THREADS);
+    public int reatores = inteiro("chat.reatores", Runtime.getRuntime().availableProcessors());  // Uma thread reatora por núcleo.
+    public int filaConexoes = inteiro("chat.filaConexoes", 1024);  // Backlog do ServerSocket para picos de conexões.
+
+    // Encerramento: se o socket de escuta é herdado do processo que iniciou o servidor (ativação por socket do
+    // systemd ou inetd, que o mantém aberto entre reinícios; a porta configurada é ignorada), prazo para esvaziar
+    // as filas de saída antes de fechar as conexões e janela em que cada cliente sorteia a espera até reconectar,
+    // ambos em milissegundos:
+    public boolean portaHerdada = Boolean.parseBoolean(texto("chat.porta.herdada", "false"));
+    public int prazoEncerramento = inteiro("chat.encerramento.prazo", 5_000);
+    public int janelaReconexao = inteiro("chat.encerramento.janelaReconexao", 10_000);
+
+    // Fila de saída de cada cliente: quantidade máxima de mensagens pendentes e o que fazer quando ela enche
+    // (descartar-antigas, descartar-novas ou desconectar):
+    public int capacidadeFilaSaida = inteiro("chat.filaSaida.capacidade", 1024);
+    public String politicaFilaSaida = texto("chat.filaSaida.politica", "descartar-antigas");
+
+    // Agrupamento das escritas: quanto tempo (em microssegundos) o escritor espera por mais quadros antes de
+    // escrever um lote ainda pequeno (0 = escreve assim que houver algo) e o máximo de bytes por escrita.
+    // Janelas maiores reduzem as chamadas de sistema por mensagem em troca de latência; no modo NIO o
+    // prazo tem resolução de 1 ms quando o reator está ocioso:
+    public int janelaEnvio = inteiro("chat.envio.janela", 0);
+    public int loteEnvio = inteiro("chat.envio.lote", 64 * 1024);
+
+    // Compressão dos quadros enviados aos clientes que a anunciam: se é oferecida, tamanho mínimo do lote
+    // em bytes para ser comprimido (lotes menores seguem sem compressão), nível do deflate (1 a 9) e máximo
+    // de conexões comprimidas ao mesmo tempo (cada contexto de deflate ocupa cerca de 256 KB fora do heap):
+    public boolean compressao = Boolean.parseBoolean(texto("chat.compressao", "true"));
+    public int limiteCompressao = inteiro("chat.compressao.limite", 256);
+    public int nivelCompressao = inteiro("chat.compressao.nivel", 1);
+    public int conexoesCompressao = inteiro("chat.compressao.conexoes", 1000);
+
+    // TLS: se as conexões dos clientes são cifradas, o keystore com o certificado e a chave do servidor
+    // (PKCS12 ou JKS) e sua senha, e o cache de sessões usado nas retomadas (quantidade máxima e validade
+    // em segundos). Com o TLS ativo, todos os clientes precisam usá-lo:
+    public boolean tls = Boolean.parseBoolean(texto("chat.tls", "false"));
+    public String keystoreTls = texto("chat.tls.keystore", "");
+    public String senhaTls = texto("chat.tls.senha", "");
+    public int sessoesTls = inteiro("chat.tls.sessoes", 20_000);
+    public int validadeSessaoTls = inteiro("chat.tls.sessoes.validade", 86_400);
+
+    // Clientes legados (a primeira versão do ClienteSwing, que troca as mensagens por um stream contínuo de
+    // objetos, sem quadros): quanto tempo, em milissegundos, uma conexão sem TLS espera pelos primeiros bytes
+    // do cliente antes de solicitar o nome (0 = sem suporte a eles). Clientes que falam primeiro, como o
+    // ClienteSwing atual, não esperam:
+    public int esperaLegado = inteiro("chat.legado.espera", 100);
+
+    // Opções de TCP das conexões aceitas: TCP_NODELAY (o agrupamento já é feito pelo servidor, então o
+    // algoritmo de Nagle fica desligado por padrão) e o tamanho do buffer de envio (0 = padrão do sistema):
+    public boolean tcpSemAtraso = Boolean.parseBoolean(texto("chat.tcp.semAtraso", "true"));
+    public int bufferEnvio = inteiro("chat.tcp.bufferEnvio", 0);
+
+    // Limites de envio de cada usuário e de cada endereço IP, em mensagens e bytes por segundo (0 = sem limite;
+    // conexões de loopback não têm limite por IP), rajada tolerada em segundos de taxa e o que fazer com o
+    // excedente (atrasar a leitura, descartar ou desconectar):
+    public int limiteMensagens = inteiro("chat.limite.mensagens", 20);
+    public int limiteBytes = inteiro("chat.limite.bytes", 64 * 1024);
+    public int limiteIpMensagens = inteiro("chat.limite.ip.mensagens", 200);
+    public int limiteIpBytes = inteiro("chat.limite.ip.bytes", 1024 * 1024);
+    public int rajadaLimite = inteiro("chat.limite.rajada", 2);
+    public String acaoLimite = texto("chat.limite.acao", "atrasar");
+
+    // Tamanho máximo de um quadro recebido, em bytes (verificado antes de alocar o quadro; maiores encerram a
+    // conexão), e do conteúdo de uma mensagem, em caracteres:
+    public int limiteQuadro = inteiro("chat.limite.quadro", 16 * 1024);
+    public int limiteConteudo = inteiro("chat.limite.conteudo", 4000);
+
+    // Observabilidade: porta do endpoint HTTP de métricas em loopback (0 = desativado) e limite de
+    // avisos de entrada/saída exibidos no console por segundo:
+    public int portaMetricas = inteiro("chat.metricas.porta", 0);
+    public int limiteLog = inteiro("chat.log.limite", 20);
+
+    // Histórico persistente: diretório dos segmentos (vazio = desativado), tamanho de cada segmento em MB,
+    // quantos segmentos manter, se cada lote é sincronizado com o disco e o máximo de mensagens por /historico:
+    public String diretorioHistorico = texto("chat.historico.diretorio", "dados/historico");
+    public int tamanhoSegmentoHistorico = inteiro("chat.historico.segmento", 64);
+    public int segmentosHistorico = inteiro("chat.historico.segmentos", 8);
+    public boolean sincronizarHistorico = Boolean.parseBoolean(texto("chat.historico.sincronizar", "true"));
+    public int maximoHistorico = inteiro("chat.historico.maximo", 500);
+    public int resultadosBusca = inteiro("chat.busca.resultados", 20);  // Máximo de mensagens por /buscar.
+
+    // Caixas postais de mensagens privadas para usuários desconectados: limite por usuário, total mantido
+    // em memória antes de gravar em disco, validade em horas, diretório dos arquivos e máximo de usuários
+    // lembrados (só quem se conectou dentro da validade pode receber mensagens offline):
+    public int limiteCaixaPostal = inteiro("chat.offline.limite", 1000);
+    public int memoriaCaixasPostais = inteiro("chat.offline.memoria", 50_000);
+    public int validadeCaixaPostal = inteiro("chat.offline.validade", 24);
+    public String diretorioCaixasPostais = texto("chat.offline.diretorio", "dados/offline");
+    public int conhecidosCaixasPostais = inteiro("chat.offline.conhecidos", 100_000);
+
+    // Cluster: porta em que este nó recebe os outros nós (0 = servidor sozinho), endereço anunciado aos pares
+    // (padrão 127.0.0.1:<porta>), endereço local em que a porta escuta (padrão: o host do anunciado), segredo
+    // compartilhado pelos nós (obrigatório se a porta não escuta em loopback), pares conhecidos (host:porta
+    // separados por vírgula; basta um), intervalo dos PINGs e tempo sem notícias de um nó até os usuários dele
+    // serem removidos, em milissegundos:
+    public int portaCluster = inteiro("chat.cluster.porta", 0);
+    public String enderecoCluster = texto("chat.cluster.endereco", "");
+    public String escutaCluster = texto("chat.cluster.escuta", "");
+    public String segredoCluster = texto("chat.cluster.segredo", "");
+    public String paresCluster = texto("chat.cluster.pares", "");
+    public int intervaloCluster = inteiro("chat.cluster.intervalo", 500);
+    public int tempoLimiteCluster = inteiro("chat.cluster.tempoLimite", 2000);
+
+    // Presença: intervalo entre os lotes de entradas/saídas enviados aos assinantes, em milissegundos, e
+    // quantos nomes cada página de /usuarios mostra:
+    public int intervaloPresenca = inteiro("chat.presenca.intervalo", 200);
+    public int paginaUsuarios = inteiro("chat.usuarios.pagina", 50);
+
+    // Batimentos: intervalo entre os PINGs enviados aos clientes que os respondem e tolerância após ele até
+    // a conexão silenciosa ser encerrada, prazo para uma conexão nova enviar o nome e resolução da roda de
+    // verificação, todos em milissegundos (0 no intervalo ou no prazo desativa a respectiva verificação):
+    public int intervaloBatimento = inteiro("chat.batimento.intervalo", 15_000);
+    public int tempoLimiteBatimento = inteiro("chat.batimento.tempoLimite", 10_000);
+    public int tempoLogin = inteiro("chat.conexao.tempoLogin", 30_000);
+    public int resolucaoBatimento = inteiro("chat.batimento.resolucao", 100);
+
+    // Sessões retomáveis (/sessao): por quantos segundos a sessão de quem perdeu a conexão fica suspensa,
+    // com o nome reservado, e quantas das últimas mensagens enviadas a cada usuário ela guarda para reenvio:
+    public int carenciaSessao = inteiro("chat.sessao.carencia", 30);
+    public int mensagensSessao = inteiro("chat.sessao.mensagens", 1000);
+
+    // Métodos auxiliares para leitura das propriedades do sistema:
+    static String texto(String propriedade, String padrao) {
+        return System.getProperty(propriedade, padrao).trim();
+    }
+
+    static int inteiro(String propriedade, int padrao) {
+        String valor = System.getProperty(propriedade);
+        if (valor == null) {
+            return padrao;
+        }
+        try {
+            return Integer.parseInt(valor.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Valor inválido para " + propriedade + ": " + valor + " (usando " + padrao + ")");
+            return padrao;
+        }
+    }
+}
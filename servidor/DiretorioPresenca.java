@@ -0,0 +1,118 @@
+package Trabalho_2.servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Presenca;
+import Trabalho_2.chat.TabelaNomes;
+import Trabalho_2.metricas.Contador;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Lista ordenada dos usuários conectados (deste nó e dos outros nós do cluster) e envio das
+ * atualizações de presença aos clientes que as assinaram. Cada entrada ou saída recebe um número
+ * de sequência e fica pendente até a próxima publicação periódica, que envia todos os eventos do
+ * intervalo num único lote, codificado uma vez e compartilhado entre os assinantes.
+ *
+ * O instantâneo de quem assina é montado e enfileirado dentro da trava, de modo que todo lote
+ * publicado depois dele traga os eventos seguintes; lotes já montados antes podem chegar depois
+ * do instantâneo, mas só com eventos que ele já contém, e o cliente os ignora pela sequência.
+ */
+class DiretorioPresenca {
+    private final TabelaNomes tabelaNomes;
+    private final NavigableSet<String> usuarios = new ConcurrentSkipListSet<>();
+    private final Set<ClienteHandler> assinantes = ConcurrentHashMap.newKeySet();
+
+    private final Object trava = new Object();
+    private long sequencia = 0;           // Último evento registrado.
+    private long primeiroPendente = 1;    // Sequência do primeiro evento ainda não publicado.
+    private List<String> pendentes = new ArrayList<>();  // "+nome" ou "-nome", em ordem.
+
+    private final Contador eventos;
+    private final Contador lotes;
+    private final Contador instantaneos;
+
+    DiretorioPresenca(TabelaNomes tabelaNomes, RegistroMetricas metricas) {
+        this.tabelaNomes = tabelaNomes;
+        this.eventos = metricas.contador("chat_presenca_eventos_total",
+            "Entradas e saídas de usuários registradas na presença.");
+        this.lotes = metricas.contador("chat_presenca_lotes_total",
+            "Lotes de eventos de presença publicados aos assinantes.");
+        this.instantaneos = metricas.contador("chat_presenca_instantaneos_total",
+            "Instantâneos da lista de usuários enviados a quem assinou a presença.");
+        metricas.medidor("chat_presenca_assinantes", "Clientes que recebem as atualizações de presença.", assinantes::size);
+    }
+
+    void entrou(String usuario) {
+        synchronized (trava) {
+            if (usuarios.add(usuario)) {
+                registrar("+" + usuario);
+            }
+        }
+    }
+
+    void saiu(String usuario) {
+        synchronized (trava) {
+            if (usuarios.remove(usuario)) {
+                registrar("-" + usuario);
+            }
+        }
+    }
+
+    private void registrar(String evento) {
+        sequencia++;
+        pendentes.add(evento);
+        eventos.incrementar();
+    }
+
+    // Passa a enviar as atualizações ao cliente, começando por um instantâneo (repetido se ele já assinava):
+    void assinar(ClienteHandler cliente) {
+        synchronized (trava) {
+            assinantes.add(cliente);
+            cliente.enviarLote(Presenca.instantaneo(sequencia, usuarios));
+        }
+        instantaneos.incrementar();
+    }
+
+    void cancelar(ClienteHandler cliente) {
+        assinantes.remove(cliente);
+    }
+
+    // Envia aos assinantes os eventos pendentes (executado periodicamente):
+    void publicar() {
+        List<String> lote;
+        long primeiro;
+        synchronized (trava) {
+            if (pendentes.isEmpty()) {
+                return;
+            }
+            lote = pendentes;
+            primeiro = primeiroPendente;
+            pendentes = new ArrayList<>();
+            primeiroPendente = sequencia + 1;
+        }
+        if (assinantes.isEmpty()) {
+            return;
+        }
+        for (Mensagem mensagem : Presenca.lote(primeiro, lote)) {
+            QuadroCodificado quadro = new QuadroCodificado(mensagem, tabelaNomes);
+            for (ClienteHandler assinante : assinantes) {
+                assinante.enviarQuadro(quadro);
+            }
+        }
+        lotes.incrementar();
+    }
+
+    // Usuários em ordem alfabética, opcionalmente só os que começam com o prefixo (visão, sem cópia):
+    NavigableSet<String> usuarios(String prefixo) {
+        if (prefixo.isEmpty()) {
+            return usuarios;
+        }
+        return usuarios.subSet(prefixo, true, prefixo + Character.MAX_VALUE, false);
+    }
+}
@@ -0,0 +1,60 @@
+package Trabalho_2.servidor;
+
+import java.io.*;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+
+/*
+ * Leitura das mensagens de um cliente legado, que escreve todas elas num único ObjectOutputStream, sem
+ * prefixo de tamanho. O ObjectInputStream dura a conexão inteira, e os bytes lidos são contados: cada
+ * mensagem passa pelos mesmos limites de envio que um quadro, e uma que ultrapasse o tamanho máximo de
+ * um quadro encerra a conexão antes de ser montada por inteiro.
+ */
+class EntradaLegada extends FilterInputStream {
+    private final int limite;
+    private final MetricasServidor metricas;
+    private final ObjectInputStream objetos;
+    private int lidos;  // Bytes da mensagem atual.
+
+    EntradaLegada(InputStream entrada, int limite, MetricasServidor metricas) throws IOException {
+        super(entrada);
+        this.limite = limite;
+        this.metricas = metricas;
+        this.objetos = Protocolo.abrirLegado(this);
+    }
+
+    // Lê a próxima mensagem; getTamanho() informa em seguida quantos bytes ela ocupou no stream:
+    Mensagem ler() throws IOException {
+        lidos = 0;
+        return Protocolo.lerLegado(objetos);
+    }
+
+    int getTamanho() { return lidos; }
+
+    @Override
+    public int read() throws IOException {
+        int lido = super.read();
+        if (lido >= 0) {
+            contar(1);
+        }
+        return lido;
+    }
+
+    @Override
+    public int read(byte[] destino, int inicio, int tamanho) throws IOException {
+        int lidos = super.read(destino, inicio, tamanho);
+        if (lidos > 0) {
+            contar(lidos);
+        }
+        return lidos;
+    }
+
+    private void contar(int bytes) throws IOException {
+        lidos += bytes;
+        if (lidos > limite) {
+            metricas.excessoTamanho.incrementar();
+            throw new StreamCorruptedException("Mensagem maior que o limite: mais de " + limite + " bytes");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package Trabalho_2.servidor;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Fila limitada de quadros aguardando envio para um cliente. Qualquer thread pode enfileirar
+ * sem bloquear; apenas o escritor da conexão (thread dedicada ou reator) consome a fila.
+ * Quando a fila está cheia, a política de estouro decide se a mensagem mais antiga ou a nova
+ * é descartada, ou se o cliente lento deve ser desconectado.
+ *
+ * Quadros de controle (definições de nomes) ficam em uma fila separada, sem limite, e nunca
+ * são descartados: o escritor sempre os envia antes da próxima mensagem, garantindo que o
+ * cliente conheça um nome antes de recebê-lo como identificador.
+ */
+class FilaSaida {
+    enum PoliticaEstouro { DESCARTAR_ANTIGAS, DESCARTAR_NOVAS, DESCONECTAR }
+
+    private final Queue<ByteBuffer> quadros = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> controle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger tamanho = new AtomicInteger();
+    private final AtomicLong descartadas = new AtomicLong();
+    private final LongAdder descartadasServidor;  // Contador compartilhado por todas as conexões.
+    private final int capacidade;
+    private final PoliticaEstouro politica;
+    private ByteBuffer retido;  // Mensagem retirada enquanto havia controle pendente (usado apenas pelo escritor).
+
+    FilaSaida(int capacidade, PoliticaEstouro politica, LongAdder descartadasServidor) {
+        this.capacidade = capacidade;
+        this.politica = politica;
+        this.descartadasServidor = descartadasServidor;
+    }
+
+    // Enfileira uma mensagem; retorna false se a política manda desconectar o cliente lento:
+    boolean oferecer(ByteBuffer quadro) {
+        if (tamanho.incrementAndGet() > capacidade) {
+            switch (politica) {
+                case DESCARTAR_NOVAS:
+                    tamanho.decrementAndGet();
+                    registrarDescarte();
+                    return true;
+                case DESCONECTAR:
+                    tamanho.decrementAndGet();
+                    registrarDescarte();
+                    return false;
+                case DESCARTAR_ANTIGAS:
+                    if (quadros.poll() != null) {
+                        tamanho.decrementAndGet();
+                        registrarDescarte();
+                    }
+                    break;
+            }
+        }
+        quadros.add(quadro);
+        return true;
+    }
+
+    // Enfileira um quadro de controle, que não conta para o limite e nunca é descartado:
+    void oferecerControle(ByteBuffer quadro) {
+        controle.add(quadro);
+    }
+
+    // Retorna o próximo quadro a ser escrito (ou null se não houver nada pendente).
+    // Todo controle enfileirado antes de uma mensagem é entregue antes dela:
+    ByteBuffer proximo() {
+        ByteBuffer quadro = controle.poll();
+        if (quadro != null) {
+            return quadro;
+        }
+        if (retido != null) {
+            quadro = retido;
+            retido = null;
+            return quadro;
+        }
+        quadro = quadros.poll();
+        if (quadro == null) {
+            return null;
+        }
+        tamanho.decrementAndGet();
+        ByteBuffer pendente = controle.poll();
+        if (pendente != null) {
+            retido = quadro;
+            return pendente;
+        }
+        return quadro;
+    }
+
+    boolean estaVazia() {
+        return controle.isEmpty() && retido == null && quadros.isEmpty();
+    }
+
+    int tamanho() { return tamanho.get(); }
+
+    long getDescartadas() { return descartadas.get(); }
+
+    void limpar() {
+        quadros.clear();
+        controle.clear();
+        retido = null;
+        tamanho.set(0);
+    }
+
+    private void registrarDescarte() {
+        descartadas.incrementAndGet();
+        descartadasServidor.increment();
+    }
+
+    // Converte o valor da configuração (ex.: "descartar-antigas") para a política correspondente:
+    static PoliticaEstouro politica(String valor) {
+        try {
+            return PoliticaEstouro.valueOf(valor.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Política de estouro inválida: " + valor + " (usando descartar-antigas)");
+            return PoliticaEstouro.DESCARTAR_ANTIGAS;
+        }
+    }
+}
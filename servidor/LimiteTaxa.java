@@ -0,0 +1,83 @@
+package Trabalho_2.servidor;
+
+/*
+ * Balde de fichas duplo (mensagens por segundo e bytes por segundo) que limita o envio de um
+ * usuário ou de um endereço IP. As fichas são recalculadas a partir do tempo decorrido a cada
+ * verificação, sem alocações nem threads de recarga. Cada balde acumula no máximo a rajada
+ * configurada (em segundos de taxa), de modo que um cliente parado não junta fichas sem limite.
+ */
+class LimiteTaxa {
+    // O que fazer com um quadro que excede o limite:
+    enum Acao { ATRASAR, DESCARTAR, DESCONECTAR }
+
+    private final double mensagensPorNano;  // 0 = sem limite de mensagens.
+    private final double bytesPorNano;      // 0 = sem limite de bytes.
+    private final double capacidadeMensagens;
+    private final double capacidadeBytes;
+    private double mensagens;
+    private double bytes;
+    private long ultimaRecarga = System.nanoTime();
+    int conexoes = 0;  // Conexões que compartilham o limite (alterado apenas dentro do mapa de limites do servidor).
+
+    // O balde de bytes comporta ao menos um quadro do tamanho máximo, que de outra forma nunca passaria:
+    LimiteTaxa(int mensagensPorSegundo, int bytesPorSegundo, int rajada, int maiorQuadro) {
+        this.mensagensPorNano = Math.max(0, mensagensPorSegundo) / 1e9;
+        this.bytesPorNano = Math.max(0, bytesPorSegundo) / 1e9;
+        this.capacidadeMensagens = Math.max(1, (double) mensagensPorSegundo * Math.max(1, rajada));
+        this.capacidadeBytes = Math.max(maiorQuadro, (double) bytesPorSegundo * Math.max(1, rajada));
+        this.mensagens = capacidadeMensagens;
+        this.bytes = capacidadeBytes;
+    }
+
+    // Consome as fichas de um quadro e retorna 0; se não houver fichas suficientes, nada é consumido e
+    // o retorno é quanto falta, em nanossegundos, para que haja:
+    synchronized long consumir(int tamanho, long agora) {
+        long decorrido = agora - ultimaRecarga;
+        if (decorrido > 0) {
+            mensagens = Math.min(capacidadeMensagens, mensagens + decorrido * mensagensPorNano);
+            bytes = Math.min(capacidadeBytes, bytes + decorrido * bytesPorNano);
+            ultimaRecarga = agora;
+        }
+        double faltaMensagens = mensagensPorNano > 0 ? 1 - mensagens : 0;
+        double faltaBytes = bytesPorNano > 0 ? tamanho - bytes : 0;
+        if (faltaMensagens <= 0 && faltaBytes <= 0) {
+            if (mensagensPorNano > 0) {
+                mensagens -= 1;
+            }
+            if (bytesPorNano > 0) {
+                bytes -= tamanho;
+            }
+            return 0;
+        }
+        double espera = Math.max(faltaMensagens > 0 ? faltaMensagens / mensagensPorNano : 0,
+                                 faltaBytes > 0 ? faltaBytes / bytesPorNano : 0);
+        return Math.max(1, (long) Math.ceil(espera));
+    }
+
+    // Se o balde já recuperou todas as fichas (um balde novo seria igual a ele):
+    synchronized boolean cheio(long agora) {
+        long decorrido = Math.max(0, agora - ultimaRecarga);
+        return (mensagensPorNano == 0 || mensagens + decorrido * mensagensPorNano >= capacidadeMensagens)
+            && (bytesPorNano == 0 || bytes + decorrido * bytesPorNano >= capacidadeBytes);
+    }
+
+    // Devolve as fichas de um quadro que acabou barrado por outro limite (ex.: o do IP):
+    synchronized void devolver(int tamanho) {
+        if (mensagensPorNano > 0) {
+            mensagens = Math.min(capacidadeMensagens, mensagens + 1);
+        }
+        if (bytesPorNano > 0) {
+            bytes = Math.min(capacidadeBytes, bytes + tamanho);
+        }
+    }
+
+    // Converte o valor da configuração (ex.: "desconectar") para a ação correspondente:
+    static Acao acao(String valor) {
+        try {
+            return Acao.valueOf(valor.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ação de limite inválida: " + valor + " (usando atrasar)");
+            return Acao.ATRASAR;
+        }
+    }
+}
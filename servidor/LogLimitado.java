@@ -0,0 +1,37 @@
+package Trabalho_2.servidor;
+
+/*
+ * Log de console com limite de linhas por segundo. Sob muitas entradas e saídas simultâneas,
+ * as linhas além do limite são apenas contadas, e a quantidade suprimida é informada quando
+ * a próxima linha é exibida, evitando que o console se torne o gargalo do servidor.
+ */
+class LogLimitado {
+    private static final long UM_SEGUNDO = 1_000_000_000L;
+
+    private final int limitePorSegundo;
+    private long inicioJanela = System.nanoTime();
+    private int exibidas = 0;
+    private int suprimidas = 0;
+
+    LogLimitado(int limitePorSegundo) {
+        this.limitePorSegundo = limitePorSegundo;
+    }
+
+    synchronized void registrar(String linha) {
+        long agora = System.nanoTime();
+        if (agora - inicioJanela >= UM_SEGUNDO) {
+            inicioJanela = agora;
+            exibidas = 0;
+        }
+        if (exibidas >= limitePorSegundo) {
+            suprimidas++;
+            return;
+        }
+        if (suprimidas > 0) {
+            System.out.println("(" + suprimidas + " avisos suprimidos)");
+            suprimidas = 0;
+        }
+        System.out.println(linha);
+        exibidas++;
+    }
+}
@@ -0,0 +1,91 @@
+package Trabalho_2.servidor;
+
+import javax.net.ssl.SSLSession;
+
+import Trabalho_2.metricas.Contador;
+import Trabalho_2.metricas.ContadoresRotulados;
+import Trabalho_2.metricas.Histograma;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Métricas do servidor de chat. Os campos são atualizados diretamente no caminho das
+ * mensagens (contadores e histogramas sem trava); o registro é usado apenas para exportar
+ * os valores no endpoint HTTP e no comando /stats.
+ */
+class MetricasServidor {
+    final RegistroMetricas registro = new RegistroMetricas();
+
+    final Contador conexoesAbertas = registro.contador("chat_conexoes_abertas_total",
+        "Conexões de clientes iniciadas.");
+    final Contador conexoesEncerradas = registro.contador("chat_conexoes_encerradas_total",
+        "Conexões de clientes encerradas.");
+    final Contador mensagensRecebidas = registro.contador("chat_mensagens_recebidas_total",
+        "Quadros recebidos dos clientes.");
+    final Contador bytesRecebidos = registro.contador("chat_bytes_recebidos_total",
+        "Bytes recebidos dos clientes, incluindo o prefixo de tamanho.");
+    final Contador mensagensEnviadas = registro.contador("chat_mensagens_enviadas_total",
+        "Quadros entregues às filas de saída (um por destinatário).");
+    final Contador bytesEnviados = registro.contador("chat_bytes_enviados_total",
+        "Bytes escritos nos sockets dos clientes.");
+    final Contador escritasFalhas = registro.contador("chat_escritas_falhas_total",
+        "Envios que falharam (conexão fechada, fila cheia com a política desconectar ou erro de escrita).");
+    final Contador escritasSocket = registro.contador("chat_escritas_socket_total",
+        "Chamadas de escrita nos sockets dos clientes (uma chamada de sistema cada).");
+    final Contador quadrosEscritos = registro.contador("chat_quadros_escritos_total",
+        "Quadros escritos nos sockets dos clientes.");
+    final Histograma quadrosPorLote = registro.histograma("chat_escrita_lote_quadros",
+        "Quadros reunidos em cada lote de escrita de um destinatário.");
+    final Contador compressaoEntrada = registro.contador("chat_compressao_entrada_bytes_total",
+        "Bytes de quadros comprimidos antes da compressão.");
+    final Contador compressaoSaida = registro.contador("chat_compressao_saida_bytes_total",
+        "Bytes dos quadros comprimidos gerados a partir deles.");
+    final Contador compressaoAbaixoLimite = registro.contador("chat_compressao_abaixo_limite_bytes_total",
+        "Bytes enviados sem compressão a conexões comprimidas por estarem em lotes menores que o limite.");
+    final Histograma tempoCompressao = registro.duracao("chat_compressao_duracao_segundos",
+        "Tempo de CPU gasto comprimindo cada lote de escrita.");
+    final Contador handshakesTls = registro.contador("chat_tls_handshakes_total",
+        "Handshakes TLS concluídos, completos ou com sessão retomada.");
+    final Contador sessoesTlsRetomadas = registro.contador("chat_tls_sessoes_retomadas_total",
+        "Handshakes TLS que retomaram uma sessão anterior, sem a troca de chaves completa.");
+    final Contador handshakesTlsFalhos = registro.contador("chat_tls_handshakes_falhos_total",
+        "Conexões encerradas por erro antes de concluir o handshake TLS.");
+    final Histograma tempoHandshakeTls = registro.duracao("chat_tls_handshake_duracao_segundos",
+        "Tempo entre a conexão aceita e o fim do handshake TLS.");
+    final Contador limiteAtrasadas = registro.contador("chat_limite_atrasadas_total",
+        "Quadros cuja leitura foi atrasada por exceder o limite de taxa.");
+    final Contador limiteDescartadas = registro.contador("chat_limite_descartadas_total",
+        "Quadros descartados por exceder o limite de taxa.");
+    final Contador limiteDesconexoes = registro.contador("chat_limite_desconexoes_total",
+        "Conexões encerradas por exceder o limite de taxa.");
+    final Contador excessoTamanho = registro.contador("chat_limite_tamanho_total",
+        "Quadros ou conteúdos recusados por exceder o tamanho máximo.");
+    final ContadoresRotulados limitadasPorUsuario = registro.contadorRotulado("chat_limite_usuario_total",
+        "Quadros que excederam o limite de taxa, por usuário (ou IP antes do nome ser aceito).", "usuario", 10_000);
+    final Histograma fanout = registro.histograma("chat_broadcast_destinatarios",
+        "Destinatários de cada broadcast ou mensagem de sala.");
+    final Histograma latenciaEntrega = registro.duracao("chat_entrega_latencia_segundos",
+        "Tempo entre o recebimento de um quadro e sua entrega nas filas de saída de todos os destinatários.");
+    final Histograma tempoEscrita = registro.duracao("chat_escrita_duracao_segundos",
+        "Duração de cada lote de escrita no socket de um destinatário.");
+
+    MetricasServidor() {
+        // Chamadas de sistema por mensagem, em milésimos (1000 = uma escrita por quadro):
+        registro.medidor("chat_escritas_por_mil_quadros",
+            "Chamadas de escrita a cada mil quadros enviados; cai à medida que as escritas são agrupadas.",
+            () -> quadrosEscritos.valor() == 0 ? 0 : escritasSocket.valor() * 1000 / quadrosEscritos.valor());
+        // Tamanho comprimido em milésimos do original (menor = mais economia):
+        registro.medidor("chat_compressao_por_mil_bytes",
+            "Bytes gerados pela compressão a cada mil bytes comprimidos.",
+            () -> compressaoEntrada.valor() == 0 ? 0 : compressaoSaida.valor() * 1000 / compressaoEntrada.valor());
+    }
+
+    // Registra um handshake TLS concluído, iniciado em `inicio` (nanoTime). Uma sessão criada antes do
+    // início do handshake (em `inicioMillis`) só pode ter vindo do cache, ou seja, foi retomada:
+    void registrarHandshakeTls(SSLSession sessao, long inicio, long inicioMillis) {
+        handshakesTls.incrementar();
+        tempoHandshakeTls.registrar(System.nanoTime() - inicio);
+        if (sessao.getCreationTime() < inicioMillis) {
+            sessoesTlsRetomadas.incrementar();
+        }
+    }
+}
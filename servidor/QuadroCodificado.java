@@ -0,0 +1,54 @@
+package Trabalho_2.servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.chat.TabelaNomes;
+
+/*
+ * Mensagem já codificada, compartilhada entre todos os destinatários de um broadcast.
+ * Cada formato do protocolo é codificado no máximo uma vez (na primeira vez em que algum
+ * destinatário precisa dele) e cada conexão recebe apenas uma visão somente leitura dos
+ * mesmos bytes, com posição independente.
+ *
+ * Cada quadro recebe um número de sequência global, enviado no formato binário: ao retomar uma
+ * sessão, o cliente informa o último número recebido e o servidor reenvia o que veio depois dele.
+ */
+final class QuadroCodificado {
+    private static final AtomicLong PROXIMA_SEQUENCIA = new AtomicLong(1);
+
+    private final Mensagem mensagem;
+    private final TabelaNomes tabela;
+    private final long sequencia = PROXIMA_SEQUENCIA.getAndIncrement();
+    private volatile ByteBuffer binario;      // Versão 1, nomes como identificadores da tabela.
+    private volatile ByteBuffer serializado;  // Versão 0, para clientes antigos.
+
+    QuadroCodificado(Mensagem mensagem, TabelaNomes tabela) {
+        this.mensagem = mensagem;
+        this.tabela = tabela;
+    }
+
+    Mensagem getMensagem() { return mensagem; }
+    long getSequencia() { return sequencia; }
+
+    // Retorna uma visão própria (somente leitura) dos bytes do quadro no formato pedido:
+    ByteBuffer paraVersao(byte versao) throws IOException {
+        if (versao == Protocolo.VERSAO_SERIALIZADA) {
+            ByteBuffer bytes = serializado;
+            if (bytes == null) {
+                bytes = ByteBuffer.wrap(Protocolo.codificarQuadroSerializado(mensagem)).asReadOnlyBuffer();
+                serializado = bytes;
+            }
+            return bytes.duplicate();
+        }
+        ByteBuffer bytes = binario;
+        if (bytes == null) {
+            bytes = ByteBuffer.wrap(Protocolo.codificarQuadro(mensagem, tabela, sequencia)).asReadOnlyBuffer();
+            binario = bytes;
+        }
+        return bytes.duplicate();
+    }
+}
@@ -0,0 +1,290 @@
+package Trabalho_2.servidor;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Thread reatora do modo NIO. Cada reator possui seu próprio Selector e multiplexa um
+ * subconjunto das conexões: lê os quadros que chegam, repassa as mensagens ao ClienteHandler
+ * de cada conexão e escreve os quadros pendentes quando o socket permite.
+ * Com a janela de envio ativa, a escrita de uma conexão é adiada até a janela vencer, para
+ * que os quadros que chegarem nesse meio-tempo saiam na mesma escrita (a menos que o lote atinja o limite
+ * de bytes antes disso, quando a escrita é antecipada). Conexões que excederam
+ * o limite de envio têm a leitura suspensa e são retomadas pelo reator quando o prazo vence.
+ * Conexões novas sem TLS esperam um pouco pelos primeiros bytes antes da solicitação de nome; as de
+ * clientes legados deixam o Selector e passam a uma thread própria.
+ */
+class Reator implements Runnable {
+    private final Servidor servidor;
+    private final Selector seletor;
+    private final Queue<SocketChannel> novosCanais = new ConcurrentLinkedQueue<>();     // Conexões aceitas aguardando registro.
+    private final Queue<ConexaoReator> escritasPendentes = new ConcurrentLinkedQueue<>();  // Conexões com quadros para enviar.
+    private final Queue<ConexaoReator> escritasAntecipadas = new ConcurrentLinkedQueue<>();  // Lotes cheios antes da janela.
+    private final Queue<ConexaoReator> tlsRetomadas = new ConcurrentLinkedQueue<>();  // Handshakes TLS que avançaram.
+    private final CanalTls.Buffers buffersTls = new CanalTls.Buffers();  // Compartilhados pelas conexões com TLS.
+    private final PriorityQueue<ConexaoReator> leiturasAdiadas =  // Usada apenas pela thread do reator.
+        new PriorityQueue<>(Comparator.comparingLong(ConexaoReator::getRetomarEm));
+    // Também usadas apenas pela thread do reator. Todas as conexões esperam o mesmo prazo, então a ordem
+    // de registro já é a ordem dos prazos:
+    private final Queue<ConexaoReator> iniciosAdiados = new ArrayDeque<>();  // Aguardando os primeiros bytes.
+    private final Queue<ConexaoReator> legados = new ArrayDeque<>();  // Clientes legados saindo do Selector.
+    private final int esperaLegado;  // Espera pelos primeiros bytes, em milissegundos (0 = sem espera).
+    private final long janela;  // Espera antes de escrever, em nanossegundos (0 = sem espera).
+    private volatile boolean rodando = true;
+
+    Reator(Servidor servidor) throws IOException {
+        this.servidor = servidor;
+        this.seletor = Selector.open();
+        this.janela = servidor.getJanelaEnvio();
+        this.esperaLegado = servidor.getEsperaLegado();
+    }
+
+    // Chamado pela thread que aceita conexões; o registro em si acontece na thread do reator:
+    void registrar(SocketChannel canal) {
+        novosCanais.add(canal);
+        seletor.wakeup();
+    }
+
+    // Chamado na thread do reator quando uma conexão suspende a leitura até getRetomarEm():
+    void adiarLeitura(ConexaoReator conexao) {
+        leiturasAdiadas.add(conexao);
+    }
+
+    // Chamado na thread do reator quando a conexão se revela um cliente legado, depois de cancelar a chave.
+    // O canal só volta ao modo bloqueante depois do próximo select, que conclui o cancelamento:
+    void transferirLegado(ConexaoReator conexao) {
+        legados.add(conexao);
+        seletor.wakeup();
+    }
+
+    // Chamado por qualquer thread que enfileirou quadros em uma conexão deste reator:
+    void agendarEscrita(ConexaoReator conexao) {
+        escritasPendentes.add(conexao);
+        seletor.wakeup();
+    }
+
+    // Chamado por qualquer thread cujo quadro completou o lote de uma conexão ainda dentro da janela:
+    void anteciparEscrita(ConexaoReator conexao) {
+        escritasAntecipadas.add(conexao);
+        seletor.wakeup();
+    }
+
+    // Chamado pela tarefa do handshake TLS ao terminar (ou pelo próprio reator, ao fim do handshake):
+    void retomarTls(ConexaoReator conexao) {
+        tlsRetomadas.add(conexao);
+        seletor.wakeup();
+    }
+
+    CanalTls.Buffers getBuffersTls() { return buffersTls; }
+
+    @Override
+    public void run() {
+        long espera = 0;  // Tempo até a próxima escrita ou leitura adiada vencer (0 = nenhuma).
+        while (rodando) {
+            try {
+                if (espera > 0) {
+                    seletor.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(espera)));
+                } else {
+                    seletor.select();
+                }
+                transferirLegados();
+                registrarNovosCanais();
+                retomarTls();
+                escreverAntecipadas();
+                long esperaEscrita = processarEscritasPendentes();
+
+                Iterator<SelectionKey> chaves = seletor.selectedKeys().iterator();
+                while (chaves.hasNext()) {
+                    SelectionKey chave = chaves.next();
+                    chaves.remove();
+                    processarChave(chave);
+                }
+
+                // Depois das leituras, para que uma suspensão feita agora já conte no próximo prazo:
+                espera = menorEspera(esperaEscrita, menorEspera(retomarLeituras(), iniciarAdiadas()));
+            } catch (IOException | ClosedSelectorException e) {
+                if (rodando) {
+                    System.err.println("Erro no reator: " + e.getMessage());
+                }
+            }
+        }
+        fecharTudo();
+    }
+
+    private void registrarNovosCanais() {
+        SocketChannel canal;
+        while ((canal = novosCanais.poll()) != null) {
+            ConexaoReator conexao = null;
+            try {
+                conexao = new ConexaoReator(canal, this, servidor);
+                canal.configureBlocking(false);
+                conexao.setChave(canal.register(seletor, SelectionKey.OP_READ, conexao));
+                if (!conexao.iniciar(esperaLegado)) {  // Envia a solicitação de nome ao cliente (ou espera por ele).
+                    iniciosAdiados.add(conexao);
+                }
+            } catch (IOException e) {
+                System.err.println("Erro ao registrar conexão: " + e.getMessage());
+                if (conexao != null) {
+                    conexao.fechar();
+                } else {
+                    fecharCanal(canal);
+                }
+            }
+        }
+    }
+
+    // Entrega os clientes legados, já fora do Selector, às threads que os atendem:
+    private void transferirLegados() {
+        ConexaoReator conexao;
+        while ((conexao = legados.poll()) != null) {
+            try {
+                servidor.atenderLegado(conexao.getCanal(), conexao.getRecebidosLegado());
+            } catch (IOException e) {
+                System.err.println("Erro ao transferir cliente legado: " + e.getMessage());
+                fecharCanal(conexao.getCanal());
+            }
+        }
+    }
+
+    private static void fecharCanal(SocketChannel canal) {
+        try {
+            canal.close();
+        } catch (IOException e) {
+            System.err.println("Erro ao fechar canal: " + e.getMessage());
+        }
+    }
+
+    // Continua as conexões cujo handshake TLS avançou fora da leitura:
+    private void retomarTls() {
+        ConexaoReator conexao;
+        while ((conexao = tlsRetomadas.poll()) != null) {
+            try {
+                conexao.retomarTls();
+            } catch (IOException | CancelledKeyException e) {
+                conexao.getHandler().desconectar();
+            }
+        }
+    }
+
+    // Retoma as leituras cujo prazo venceu e retorna quanto falta para a próxima (0 = nenhuma):
+    private long retomarLeituras() {
+        ConexaoReator conexao;
+        long agora = System.nanoTime();
+        while ((conexao = leiturasAdiadas.peek()) != null) {
+            long restante = conexao.getRetomarEm() - agora;
+            if (restante > 0) {
+                return restante;
+            }
+            leiturasAdiadas.poll();
+            try {
+                conexao.retomarLeitura();
+            } catch (IOException | CancelledKeyException e) {
+                conexao.getHandler().desconectar();
+            }
+        }
+        return 0;
+    }
+
+    // Solicita o nome às conexões cujo prazo de espera pelos primeiros bytes venceu e retorna quanto falta
+    // para o próximo (0 = nenhum):
+    private long iniciarAdiadas() {
+        ConexaoReator conexao;
+        long agora = System.nanoTime();
+        while ((conexao = iniciosAdiados.peek()) != null) {
+            long restante = conexao.getIniciarEm() - agora;
+            if (restante > 0) {
+                return restante;
+            }
+            iniciosAdiados.poll();
+            try {
+                conexao.iniciarAdiada();
+            } catch (IOException | CancelledKeyException e) {
+                conexao.getHandler().desconectar();
+            }
+        }
+        return 0;
+    }
+
+    private static long menorEspera(long a, long b) {
+        return a == 0 ? b : b == 0 ? a : Math.min(a, b);
+    }
+
+    // Escreve as conexões agendadas cuja janela já venceu (na ordem do agendamento) e retorna
+    // quanto falta para a próxima vencer:
+    private long processarEscritasPendentes() {
+        ConexaoReator conexao;
+        long agora = janela > 0 ? System.nanoTime() : 0;
+        while ((conexao = escritasPendentes.peek()) != null) {
+            if (janela > 0) {
+                long restante = conexao.getAgendadaEm() + janela - agora;
+                if (restante > 0) {
+                    return restante;
+                }
+            }
+            escritasPendentes.poll();  // Única consumidora: é a mesma conexão examinada acima.
+            conexao.sairDaJanela();
+            escrever(conexao);
+        }
+        return 0;
+    }
+
+    // Escreve os lotes que atingiram o limite de bytes antes de a janela vencer. O agendamento continua na
+    // fila e, quando a janela vence, escreve o que tiver chegado depois:
+    private void escreverAntecipadas() {
+        ConexaoReator conexao;
+        while ((conexao = escritasAntecipadas.poll()) != null) {
+            escrever(conexao);
+        }
+    }
+
+    private void processarChave(SelectionKey chave) {
+        ConexaoReator conexao = (ConexaoReator) chave.attachment();
+        try {
+            if (chave.isValid() && chave.isReadable() && !conexao.ler()) {
+                conexao.getHandler().desconectar();  // Fim do stream: cliente fechou a conexão.
+                return;
+            }
+            if (chave.isValid() && chave.isWritable()) {
+                conexao.escreverPendentes();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            conexao.getHandler().desconectar();
+        }
+    }
+
+    private void escrever(ConexaoReator conexao) {
+        try {
+            conexao.escreverPendentes();
+        } catch (IOException | CancelledKeyException e) {
+            conexao.getHandler().desconectar();
+        }
+    }
+
+    // Solicita o encerramento do reator; o fechamento acontece na própria thread do reator:
+    void parar() {
+        rodando = false;
+        seletor.wakeup();
+    }
+
+    // Fecha todas as conexões registradas e o Selector:
+    private void fecharTudo() {
+        try {
+            for (SelectionKey chave : seletor.keys()) {
+                ((ConexaoReator) chave.attachment()).fechar();
+            }
+            for (ConexaoReator conexao : legados) {
+                fecharCanal(conexao.getCanal());
+            }
+            seletor.close();
+        } catch (IOException e) {
+            System.err.println("Erro ao parar reator: " + e.getMessage());
+        }
+    }
+}
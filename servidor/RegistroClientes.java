@@ -0,0 +1,94 @@
+package Trabalho_2.servidor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Registro dos clientes conectados, sem trava global no caminho das mensagens.
+ * Os nomes são reservados de forma atômica (putIfAbsent), e o broadcast percorre um
+ * instantâneo imutável (array) dos handlers, reconstruído apenas depois de entradas e saídas.
+ * A reconstrução é feita sob demanda pelo primeiro broadcast após uma mudança, de modo que
+ * uma rajada de entradas custa uma única cópia.
+ */
+class RegistroClientes {
+    private static final ClienteHandler[] VAZIO = new ClienteHandler[0];
+
+    // Array de handlers associado à versão do registro a partir da qual foi montado:
+    private static final class Instantaneo {
+        final long versao;
+        final ClienteHandler[] handlers;
+
+        Instantaneo(long versao, ClienteHandler[] handlers) {
+            this.versao = versao;
+            this.handlers = handlers;
+        }
+    }
+
+    private final ConcurrentHashMap<String, ClienteHandler> clientes = new ConcurrentHashMap<>();
+    private final AtomicLong versao = new AtomicLong();  // Incrementada a cada entrada ou saída.
+    private final AtomicReference<Instantaneo> instantaneo = new AtomicReference<>(new Instantaneo(0, VAZIO));
+
+    // Reserva o nome para o handler; retorna false se outro cliente já o utiliza:
+    boolean reservar(String nome, ClienteHandler handler) {
+        if (clientes.putIfAbsent(nome, handler) != null) {
+            return false;
+        }
+        versao.incrementAndGet();
+        return true;
+    }
+
+    // Remove o nome apenas se ainda pertencer a este handler:
+    boolean remover(String nome, ClienteHandler handler) {
+        if (!clientes.remove(nome, handler)) {
+            return false;
+        }
+        versao.incrementAndGet();
+        return true;
+    }
+
+    // Troca o handler do nome (sessão retomada por outra conexão), se ele ainda pertencer ao antigo:
+    boolean substituir(String nome, ClienteHandler antigo, ClienteHandler novo) {
+        if (!clientes.replace(nome, antigo, novo)) {
+            return false;
+        }
+        versao.incrementAndGet();
+        return true;
+    }
+
+    ClienteHandler buscar(String nome) {
+        return clientes.get(nome);
+    }
+
+    boolean contem(String nome) {
+        return clientes.containsKey(nome);
+    }
+
+    int tamanho() {
+        return clientes.size();
+    }
+
+    Set<String> nomes() {
+        return clientes.keySet();
+    }
+
+    // Retorna o array atual de handlers. O array não deve ser modificado por quem o recebe.
+    ClienteHandler[] instantaneo() {
+        Instantaneo atual = instantaneo.get();
+        long versaoAtual = versao.get();
+        if (atual.versao == versaoAtual) {
+            return atual.handlers;
+        }
+
+        // Mudanças feitas antes da leitura da versão já estão visíveis para os valores do mapa:
+        ClienteHandler[] handlers = clientes.values().toArray(VAZIO);
+        Instantaneo novo = new Instantaneo(versaoAtual, handlers);
+
+        // Publica o novo instantâneo somente se ninguém publicou um mais recente enquanto ele era montado:
+        while (atual.versao < versaoAtual && !instantaneo.compareAndSet(atual, novo)) {
+            atual = instantaneo.get();
+        }
+        return handlers;
+    }
+}
@@ -0,0 +1,99 @@
+package Trabalho_2.servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Roda de temporização (hashed timing wheel) para acompanhar muitos prazos sem um temporizador por
+ * item: o tempo é dividido em fatias de tamanho fixo, e cada item fica na fila da fatia do seu prazo.
+ * Uma única thread avança a roda, examinando apenas as fatias vencidas; prazos além de uma volta
+ * completa ficam na fatia correspondente e são devolvidos a ela até a volta certa.
+ *
+ * Agendar custa uma inserção numa fila sem trava. Os itens não são movidos quando algo muda antes do
+ * prazo: quem os verifica calcula o próximo prazo a partir do estado atual (ex.: a última atividade),
+ * de modo que o caminho das mensagens só precisa atualizar um campo.
+ */
+class RodaTempo<T> {
+    // Chamada quando o prazo do item vence; retorna o próximo prazo (em System.nanoTime()) ou PARAR para
+    // deixar de acompanhar o item:
+    static final long PARAR = Long.MIN_VALUE;
+
+    interface Verificacao<T> {
+        long verificar(T item, long agora);
+    }
+
+    private static final class Entrada<T> {
+        final T item;
+        final long prazo;
+
+        Entrada(T item, long prazo) {
+            this.item = item;
+            this.prazo = prazo;
+        }
+    }
+
+    private final long resolucao;  // Duração de uma fatia, em nanossegundos.
+    private final ConcurrentLinkedQueue<Entrada<T>>[] fatias;
+    private final AtomicInteger tamanho = new AtomicInteger();
+    private volatile long proximaFatia;  // Início da próxima fatia a examinar.
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    RodaTempo(long resolucao, int quantidadeFatias, long agora) {
+        this.resolucao = Math.max(1, resolucao);
+        this.fatias = new ConcurrentLinkedQueue[Math.max(1, quantidadeFatias)];
+        for (int i = 0; i < fatias.length; i++) {
+            fatias[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.proximaFatia = agora - Math.floorMod(agora, this.resolucao);
+    }
+
+    // Agenda a verificação do item para o prazo (um prazo já vencido vai para a próxima fatia examinada):
+    void agendar(T item, long prazo) {
+        inserir(new Entrada<>(item, prazo - proximaFatia < 0 ? proximaFatia : prazo));
+        tamanho.incrementAndGet();
+    }
+
+    int tamanho() {
+        return tamanho.get();
+    }
+
+    // Examina as fatias vencidas até agora (apenas uma thread pode avançar a roda). Se a roda ficou parada
+    // por mais de uma volta, cada fatia é examinada uma única vez e todos os prazos vencidos são tratados:
+    void avancar(long agora, Verificacao<T> verificacao) {
+        List<Entrada<T>> vencidas = new ArrayList<>();
+        for (int examinadas = 0; agora - proximaFatia >= 0 && examinadas < fatias.length; examinadas++) {
+            long fimFatia = proximaFatia + resolucao;
+            ConcurrentLinkedQueue<Entrada<T>> fila = fatias[indice(proximaFatia)];
+            Entrada<T> entrada;
+            while ((entrada = fila.poll()) != null) {
+                vencidas.add(entrada);
+            }
+            proximaFatia = fimFatia;  // Reagendamentos a partir daqui vão para as fatias seguintes.
+            for (Entrada<T> vencida : vencidas) {
+                if (vencida.prazo - fimFatia >= 0 && vencida.prazo - agora > 0) {
+                    fila.add(vencida);  // Prazo numa volta seguinte da roda.
+                    continue;
+                }
+                tamanho.decrementAndGet();
+                long proximo = verificacao.verificar(vencida.item, agora);
+                if (proximo != PARAR) {
+                    agendar(vencida.item, proximo);
+                }
+            }
+            vencidas.clear();
+        }
+        if (agora - proximaFatia >= 0) {
+            proximaFatia = agora - Math.floorMod(agora, resolucao) + resolucao;  // Alinha após o atraso.
+        }
+    }
+
+    private void inserir(Entrada<T> entrada) {
+        fatias[indice(entrada.prazo)].add(entrada);
+    }
+
+    private int indice(long instante) {
+        return (int) Math.floorMod(Math.floorDiv(instante, resolucao), (long) fatias.length);
+    }
+}
@@ -0,0 +1,77 @@
+package Trabalho_2.servidor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Índice de salas do chat: associa cada sala ao registro de seus membros. O envio de uma
+ * mensagem para a sala percorre apenas o instantâneo dos membros dela, de modo que o custo
+ * é proporcional ao tamanho da sala e não ao total de usuários conectados.
+ * Salas são criadas na primeira entrada e removidas quando o último membro sai.
+ */
+class Salas {
+    static final int TAMANHO_MAXIMO_NOME = 32;
+
+    private final ConcurrentHashMap<String, RegistroClientes> salas = new ConcurrentHashMap<>();
+
+    // Valida o nome de uma sala (não vazio, sem espaços de nenhum tipo, como tabulações, quebras de linha
+    // ou o espaço sem quebra, e com tamanho limitado):
+    static boolean nomeValido(String sala) {
+        return sala != null && !sala.isEmpty() && sala.length() <= TAMANHO_MAXIMO_NOME
+                && sala.codePoints().noneMatch(c -> Character.isWhitespace(c) || Character.isSpaceChar(c));
+    }
+
+    // Adiciona o usuário à sala (criando-a se necessário); retorna false se ele já era membro.
+    // A alteração é feita dentro do compute para não competir com a remoção de uma sala vazia:
+    boolean entrar(String sala, String usuario, ClienteHandler handler) {
+        boolean[] entrou = new boolean[1];
+        salas.compute(sala, (nome, membros) -> {
+            if (membros == null) {
+                membros = new RegistroClientes();
+            }
+            entrou[0] = membros.reservar(usuario, handler);
+            return membros;
+        });
+        return entrou[0];
+    }
+
+    // Remove o usuário da sala (e a sala, se ficar vazia); retorna false se ele não era membro:
+    boolean sair(String sala, String usuario, ClienteHandler handler) {
+        boolean[] saiu = new boolean[1];
+        salas.computeIfPresent(sala, (nome, membros) -> {
+            saiu[0] = membros.remover(usuario, handler);
+            return membros.tamanho() == 0 ? null : membros;
+        });
+        return saiu[0];
+    }
+
+    // Troca o handler de um membro (sessão retomada por outra conexão), sem avisar os demais membros:
+    void substituir(String sala, String usuario, ClienteHandler antigo, ClienteHandler novo) {
+        salas.computeIfPresent(sala, (nome, membros) -> {
+            membros.substituir(usuario, antigo, novo);
+            return membros;
+        });
+    }
+
+    // Membros da sala (ou null se a sala não existe):
+    RegistroClientes membros(String sala) {
+        return salas.get(sala);
+    }
+
+    int quantidade() {
+        return salas.size();
+    }
+
+    // Texto com as salas existentes e a quantidade de membros (resposta ao comando /salas):
+    String listar() {
+        if (salas.isEmpty()) {
+            return "Nenhuma sala criada. Use /entrar <sala> para criar uma.";
+        }
+        StringBuilder lista = new StringBuilder("Salas:\n");
+        for (Map.Entry<String, RegistroClientes> sala : salas.entrySet()) {
+            lista.append("• #").append(sala.getKey())
+                 .append(" (").append(sala.getValue().tamanho()).append(" membros)\n");
+        }
+        return lista.toString();
+    }
+}
@@ -2,158 +2,1065 @@ package Trabalho_2.servidor;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+import Trabalho_2.chat.ContextoTls;
 import Trabalho_2.chat.Mensagem;
+import Trabalho_2.chat.Protocolo;
+import Trabalho_2.chat.TabelaNomes;
+import Trabalho_2.historico.Consulta;
+import Trabalho_2.historico.LogMensagens;
+import Trabalho_2.metricas.ExportadorHttp;
 
 /*
  * Classe responsável por implementar um servidor de chat TCP que permite a conexão entre
  * múltiplos cliente conectados simultaneamente. Aceita as conexões, gerencia usuários
- * conectados e envio de mensagens, além de listar usuários conectados.
+ * conectados e envio de mensagens, além de listar usuários conectados. Ao parar, avisa os usuários,
+ * esvazia as filas de saída e só então fecha as conexões; ao reiniciar, passa o canal de escuta ao
+ * servidor seguinte sem fechá-lo.
  */
 public class Servidor {
-    private static final int PORTA = 12345;
-    private ServerSocket serverSocket;
+    private final Configuracao configuracao;
+    private ServerSocketChannel canalServidor;
+    private Reator[] reatores;
+    private ExecutorService executorVirtual;    // Usado no modo com threads virtuais.
+    private ExportadorHttp exportadorMetricas;
+    private volatile LogMensagens historico;   // Log persistente das mensagens (null se desativado).
+    private ScheduledExecutorService manutencao;  // Tarefas periódicas (expiração das caixas postais).
+    private volatile Cluster cluster;            // Ligação com os outros nós (null se o servidor está sozinho).
+    private SSLContext contextoTls;              // Contexto (e cache de sessões) do TLS; null se desativado.
+    private ExecutorService executorTls;         // Tarefas dos handshakes TLS do modo NIO.
+    private ExecutorService executorConsultas;   // Leituras do disco pedidas pelos clientes (/historico, caixas postais).
+
+    private final RegistroClientes clientes = new RegistroClientes(); // Registro sem trava global dos clientes conectados.
+    private final Salas salas = new Salas();  // Membros de cada sala, para entregar mensagens só a quem está nela.
+    private final TabelaNomes tabelaNomes = new TabelaNomes();  // Identificadores dos nomes no protocolo binário.
+    private final Comandos comandos = Comandos.padrao(this);  // Comandos do chat (/usuarios, /salas...), indexados pelo verbo.
+    private final LongAdder mensagensDescartadas = new LongAdder();  // Total descartado pelas filas de saída cheias.
+    private final AtomicInteger conexoesComprimidas = new AtomicInteger();  // Contextos de deflate em uso.
+    private final MetricasServidor metricas = new MetricasServidor();
+    private final LogLimitado logConexoes;  // Avisos de entrada e saída, limitados para não dominar o console.
+    private final CaixasPostais caixasPostais;  // Mensagens privadas guardadas para usuários desconectados.
+    private final DiretorioPresenca presenca;   // Usuários conectados em ordem e atualizações aos assinantes.
+    private final Sessoes sessoes;              // Sessões retomáveis após a queda da conexão.
+    private final Batimentos batimentos;        // PINGs e encerramento das conexões silenciosas.
+    private final ConcurrentHashMap<InetAddress, LimiteTaxa> limitesIp = new ConcurrentHashMap<>();  // Compartilhados pelas conexões de cada IP.
+    private final ConcurrentHashMap<String, LimiteTaxa> limitesUsuario = new ConcurrentHashMap<>();  // Por nome aceito, entre as conexões dele.
+    private final LimiteTaxa.Acao acaoLimite;
+    private volatile boolean rodando = false;
 
-    private Map<String, ClienteHandler> clientes; // Mapa thread-safe para armazenar clientes conectados.
-    private boolean rodando = false;
+    // Encerramento: todas as conexões abertas (com ou sem nome), se o encerramento começou, se as conexões já
+    // foram fechadas (as que chegarem depois são recusadas), o servidor que assume o canal de escuta num
+    // reinício e a liberação de quem espera este servidor começar a aceitar conexões:
+    private final Set<ClienteHandler> conexoes = ConcurrentHashMap.newKeySet();
+    private volatile boolean encerrando = false;
+    private volatile boolean conexoesFechadas = false;
+    private volatile Servidor sucessor;
+    private final CountDownLatch pronto = new CountDownLatch(1);
+    private int proximoReator = 0;  // Próximo reator do rodízio das conexões aceitas.
     
     // Método construtor:
     public Servidor() {
-        clientes = new ConcurrentHashMap<>();
+        this(new Configuracao());
+    }
+
+    public Servidor(Configuracao configuracao) {
+        this.configuracao = configuracao;
+        this.logConexoes = new LogLimitado(configuracao.limiteLog);
+        this.acaoLimite = LimiteTaxa.acao(configuracao.acaoLimite);
+        this.caixasPostais = new CaixasPostais(Paths.get(configuracao.diretorioCaixasPostais),
+            configuracao.limiteCaixaPostal, configuracao.memoriaCaixasPostais,
+            TimeUnit.HOURS.toMillis(configuracao.validadeCaixaPostal), configuracao.conhecidosCaixasPostais,
+            metricas.registro);
+        this.presenca = new DiretorioPresenca(tabelaNomes, metricas.registro);
+        this.sessoes = new Sessoes(this, TimeUnit.SECONDS.toNanos(configuracao.carenciaSessao),
+            configuracao.mensagensSessao, metricas.registro);
+        this.batimentos = new Batimentos(TimeUnit.MILLISECONDS.toNanos(configuracao.intervaloBatimento),
+            TimeUnit.MILLISECONDS.toNanos(configuracao.tempoLimiteBatimento),
+            TimeUnit.MILLISECONDS.toNanos(configuracao.tempoLogin),
+            TimeUnit.MILLISECONDS.toNanos(Math.max(1, configuracao.resolucaoBatimento)), metricas.registro);
+        tabelaNomes.id("SISTEMA");  // Remetente dos avisos do servidor.
+        metricas.registro.medidor("chat_usuarios_conectados", "Usuários com nome aceito.", clientes::tamanho);
+        metricas.registro.medidor("chat_salas", "Salas existentes.", salas::quantidade);
+        metricas.registro.medidor("chat_compressao_conexoes", "Conexões com a compressão ativa.", conexoesComprimidas::get);
+        metricas.registro.contador("chat_mensagens_descartadas_total",
+            "Mensagens descartadas por filas de saída cheias.", mensagensDescartadas::sum);
     }
     
-    // Inicializa o servidor (cria o ServerSocket e entra em loop para aceitar conexões):
+    public TabelaNomes getTabelaNomes() { return tabelaNomes; }
+    public Comandos getComandos() { return comandos; }
+    public long getMensagensDescartadas() { return mensagensDescartadas.sum(); }
+    MetricasServidor getMetricas() { return metricas; }
+    DiretorioPresenca getPresenca() { return presenca; }
+    Sessoes getSessoes() { return sessoes; }
+    Batimentos getBatimentos() { return batimentos; }
+    boolean isEncerrando() { return encerrando; }
+
+    // Registra uma conexão nova; retorna false se as conexões já foram fechadas pelo encerramento. A flag é
+    // verificada depois da inserção: ou o encerramento vê a conexão no conjunto, ou ela vê a flag:
+    boolean registrarConexao(ClienteHandler handler) {
+        conexoes.add(handler);
+        return !conexoesFechadas;
+    }
+
+    void removerConexao(ClienteHandler handler) {
+        conexoes.remove(handler);
+    }
+
+    // Resumo das métricas (resposta ao comando /stats):
+    public String estatisticas() {
+        return "Estatísticas do servidor:\n" + metricas.registro.resumo();
+    }
+
+    // Cria a fila de saída de uma nova conexão, com o limite e a política de estouro configurados:
+    FilaSaida novaFilaSaida() {
+        return new FilaSaida(configuracao.capacidadeFilaSaida,
+            FilaSaida.politica(configuracao.politicaFilaSaida), mensagensDescartadas);
+    }
+
+    // Agrupamento das escritas: espera máxima por mais quadros (em nanossegundos) e bytes por escrita:
+    long getJanelaEnvio() {
+        return TimeUnit.MICROSECONDS.toNanos(Math.max(0, configuracao.janelaEnvio));
+    }
+
+    int getLoteEnvio() {
+        return configuracao.loteEnvio;
+    }
+
+    // Cria o compressor de uma conexão que anunciou o deflate (null se a compressão está desativada ou se o
+    // limite de conexões comprimidas foi atingido). Com TLS não há compressão: o contexto de deflate mistura
+    // o texto de outros usuários com o token de sessão do cliente, e o tamanho dos registros cifrados
+    // revelaria o token aos poucos (ataques do tipo CRIME):
+    CompressorSaida novoCompressor() {
+        if (!configuracao.compressao || contextoTls != null) {
+            return null;
+        }
+        if (conexoesComprimidas.incrementAndGet() > configuracao.conexoesCompressao) {
+            conexoesComprimidas.decrementAndGet();
+            return null;
+        }
+        return new CompressorSaida(configuracao.nivelCompressao, configuracao.limiteCompressao, metricas,
+            conexoesComprimidas::decrementAndGet);
+    }
+
+    // Limites de envio: um balde por usuário (por conexão até o nome ser aceito) e um compartilhado por
+    // endereço IP (exceto loopback):
+    LimiteTaxa novoLimiteUsuario() {
+        return new LimiteTaxa(configuracao.limiteMensagens, configuracao.limiteBytes,
+            configuracao.rajadaLimite, Protocolo.TAMANHO_CABECALHO + configuracao.limiteQuadro);
+    }
+
+    LimiteTaxa reservarLimiteIp(InetAddress ip) {
+        if (ip == null || ip.isLoopbackAddress()
+                || (configuracao.limiteIpMensagens <= 0 && configuracao.limiteIpBytes <= 0)) {
+            return null;
+        }
+        return limitesIp.compute(ip, (endereco, limite) -> {
+            if (limite == null) {
+                limite = new LimiteTaxa(configuracao.limiteIpMensagens, configuracao.limiteIpBytes,
+                    configuracao.rajadaLimite, Protocolo.TAMANHO_CABECALHO + configuracao.limiteQuadro);
+            }
+            limite.conexoes++;
+            return limite;
+        });
+    }
+
+    // Libera o limite do IP quando a última conexão dele termina:
+    void liberarLimiteIp(InetAddress ip) {
+        limitesIp.computeIfPresent(ip, (endereco, limite) -> --limite.conexoes == 0 ? null : limite);
+    }
+
+    // Balde do usuário, o mesmo para todas as conexões com o nome aceito. Ao fim da última conexão ele
+    // continua no mapa até se encher de novo (esquecerLimitesUsuario), para que reconectar não renove as fichas:
+    LimiteTaxa reservarLimiteUsuario(String nomeUsuario) {
+        return limitesUsuario.compute(nomeUsuario, (nome, limite) -> {
+            if (limite == null) {
+                limite = novoLimiteUsuario();
+            }
+            limite.conexoes++;
+            return limite;
+        });
+    }
+
+    void liberarLimiteUsuario(String nomeUsuario) {
+        limitesUsuario.computeIfPresent(nomeUsuario, (nome, limite) -> {
+            limite.conexoes--;
+            return limite;
+        });
+    }
+
+    // Remove os baldes de usuários sem conexões que já se encheram: um novo seria igual (executado periodicamente):
+    private void esquecerLimitesUsuario() {
+        long agora = System.nanoTime();
+        for (String nomeUsuario : limitesUsuario.keySet()) {
+            limitesUsuario.computeIfPresent(nomeUsuario,
+                (nome, limite) -> limite.conexoes == 0 && limite.cheio(agora) ? null : limite);
+        }
+    }
+
+    LimiteTaxa.Acao getAcaoLimite() { return acaoLimite; }
+    int getLimiteQuadro() { return Math.min(configuracao.limiteQuadro, Protocolo.TAMANHO_MAXIMO_QUADRO); }
+    int getLimiteConteudo() { return configuracao.limiteConteudo; }
+
+    // Espera pelos primeiros bytes de uma conexão nova, em milissegundos, para reconhecer os clientes legados
+    // (0 = não espera; com TLS, nenhum cliente é legado):
+    int getEsperaLegado() { return contextoTls != null ? 0 : Math.max(0, configuracao.esperaLegado); }
+
+    // Motor TLS de uma conexão aceita no modo NIO (null se o TLS está desativado):
+    SSLEngine novoMotorTls() {
+        if (contextoTls == null) {
+            return null;
+        }
+        SSLEngine motor = contextoTls.createSSLEngine();
+        motor.setUseClientMode(false);
+        return motor;
+    }
+
+    ExecutorService getExecutorTls() { return executorTls; }
+
+    // Inicializa o servidor no modo escolhido na configuração e aceita conexões até ele parar:
     public void iniciar() {
+        if (preparar(null)) {
+            aceitarConexoes();
+        }
+    }
+
+    // Prepara o servidor para aceitar conexões, no canal de escuta recebido de outro servidor (reinício
+    // na mesma JVM) ou num canal próprio. No modo NIO, poucas threads reatoras (uma por núcleo)
+    // multiplexam todas as conexões; no modo virtual, cada cliente recebe uma thread virtual em vez de
+    // uma thread de plataforma:
+    private boolean preparar(ServerSocketChannel herdado) {
         try {
-            serverSocket = new ServerSocket(PORTA);
-            rodando = true;
-            
-            System.out.println("=== SERVIDOR DE CHAT TCP ===");
-            System.out.println("Servidor iniciado na porta " + PORTA);
-            System.out.println("Aguardando conexões...\n");
-            
-            // Loop principal - aceita conexões continuamente:
-            while (rodando) {
-                try {
-                    Socket clienteSocket = serverSocket.accept(); // Bloqueia até uma nova conexão chegar.
-                    ClienteHandler handler = new ClienteHandler(clienteSocket, this); // Cria um handler para este cliente.
-                    new Thread(handler).start(); // Inicia uma nova thread para cada cliente.
-                } catch (IOException e) {
-                    if (rodando) {
-                        System.err.println("Erro ao aceitar conexão: " + e.getMessage());
+            if (!iniciarTls()) {
+                return false;
+            }
+            iniciarExportadorMetricas();
+            abrirHistorico();
+            iniciarConsultas();
+            iniciarManutencao();
+            iniciarCluster();
+            try {
+                canalServidor = herdado != null ? herdado : abrirCanal();
+                if (Configuracao.MODO_NIO.equalsIgnoreCase(configuracao.modo)) {
+                    reatores = new Reator[Math.max(1, configuracao.reatores)];
+                    for (int i = 0; i < reatores.length; i++) {
+                        reatores[i] = new Reator(this);
+                        Thread thread = new Thread(reatores[i], "reator-" + i);
+                        thread.start();
                     }
+                } else if (Configuracao.MODO_VIRTUAL.equalsIgnoreCase(configuracao.modo)) {
+                    executorVirtual = novoExecutorVirtual();
                 }
+            } catch (IOException e) {
+                System.err.println("Erro ao iniciar servidor: " + e.getMessage());
+                return false;
+            }
+            rodando = true;
+            exibirInicio();
+            return true;
+        } finally {
+            pronto.countDown();
+        }
+    }
+
+    // Abre o canal de escuta na porta configurada. O canal (em modo bloqueante) dá a cada socket aceito um
+    // SocketChannel, usado para escrever os quadros compartilhados do broadcast sem cópias. Com a porta
+    // herdada, usa o socket de escuta recebido como entrada padrão (a única forma de um processo Java receber
+    // um socket aberto): quem o criou (systemd, inetd) o mantém aberto entre os reinícios, e as conexões que
+    // chegam enquanto nenhum processo aceita esperam na fila do sistema:
+    private ServerSocketChannel abrirCanal() throws IOException {
+        if (configuracao.portaHerdada) {
+            Channel herdado = System.inheritedChannel();
+            if (!(herdado instanceof ServerSocketChannel)) {
+                throw new IOException("a entrada padrão não é um socket de escuta herdado");
             }
+            ServerSocketChannel canal = (ServerSocketChannel) herdado;
+            canal.configureBlocking(true);
+            return canal;
+        }
+        ServerSocketChannel canal = ServerSocketChannel.open();
+        canal.bind(new InetSocketAddress(configuracao.porta), configuracao.filaConexoes);
+        return canal;
+    }
+
+    // Carrega o keystore do TLS, se ativado; sem ele o servidor não inicia (em vez de aceitar conexões
+    // sem cifrar). As tarefas dos handshakes do modo NIO rodam num executor com uma thread por núcleo:
+    private boolean iniciarTls() {
+        if (!configuracao.tls) {
+            return true;
+        }
+        try {
+            contextoTls = ContextoTls.servidor(configuracao.keystoreTls, configuracao.senhaTls.toCharArray(),
+                configuracao.sessoesTls, configuracao.validadeSessaoTls);
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Erro ao carregar o keystore do TLS (" + configuracao.keystoreTls + "): " + e.getMessage());
+            return false;
+        }
+        AtomicInteger threads = new AtomicInteger();
+        executorTls = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), tarefa -> {
+            Thread thread = new Thread(tarefa, "tls-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        return true;
+    }
+
+    // Com TLS, conclui o handshake de uma conexão dos modos com threads, na thread do próprio cliente e
+    // com o mesmo prazo do login (um cliente que não o completa não prende a thread para sempre):
+    void concluirHandshakeTls(SSLSocket socket) throws IOException {
+        long inicio = System.nanoTime();
+        long inicioMillis = System.currentTimeMillis();
+        try {
+            socket.setSoTimeout(Math.max(0, configuracao.tempoLogin));
+            socket.startHandshake();
+            socket.setSoTimeout(0);
         } catch (IOException e) {
-            System.err.println("Erro ao iniciar servidor: " + e.getMessage());
+            metricas.handshakesTlsFalhos.incrementar();
+            throw e;
         }
+        metricas.registrarHandshakeTls(socket.getSession(), inicio, inicioMillis);
     }
-    
-    // Adiciona um novo cliente à lista de clientes conectados:
-    public synchronized void adicionarCliente(String nomeUsuario, ClienteHandler handler) {
-        clientes.put(nomeUsuario, handler);
+
+    // Publica as métricas em http://127.0.0.1:<porta>/metrics, se configurado:
+    private void iniciarExportadorMetricas() {
+        if (configuracao.portaMetricas <= 0) {
+            return;
+        }
+        try {
+            exportadorMetricas = new ExportadorHttp(configuracao.portaMetricas, metricas.registro);
+            System.out.println("Métricas disponíveis em http://127.0.0.1:" + exportadorMetricas.getPorta() + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Erro ao iniciar endpoint de métricas: " + e.getMessage());
+        }
+    }
+
+    // Abre (ou recupera) o log persistente de mensagens no diretório configurado:
+    private void abrirHistorico() {
+        if (configuracao.diretorioHistorico.isEmpty()) {
+            return;
+        }
+        try {
+            historico = new LogMensagens(Paths.get(configuracao.diretorioHistorico),
+                configuracao.tamanhoSegmentoHistorico * 1024 * 1024, configuracao.segmentosHistorico,
+                configuracao.sincronizarHistorico, metricas.registro);
+        } catch (IOException e) {
+            System.err.println("Erro ao abrir histórico (continuando sem histórico): " + e.getMessage());
+        }
+    }
+
+    // As consultas que leem o disco (/historico, /buscar e a entrega das caixas postais) rodam num executor
+    // próprio, e as respostas são enfileiradas na conexão por ele: na thread que recebe as mensagens (no modo
+    // NIO, o reator de muitas conexões), uma varredura longa atrasaria todos os clientes atendidos por ela:
+    private void iniciarConsultas() {
+        AtomicInteger threads = new AtomicInteger();
+        executorConsultas = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), tarefa -> {
+            Thread thread = new Thread(tarefa, "consulta-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Executa uma consulta no executor de consultas (ou na própria thread, se o servidor não foi iniciado,
+    // como nos benchmarks em memória). Retorna false se o servidor já está encerrando:
+    boolean executarConsulta(Runnable consulta) {
+        ExecutorService executor = executorConsultas;
+        if (executor == null) {
+            consulta.run();
+            return true;
+        }
+        try {
+            executor.execute(consulta);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // Agenda as tarefas periódicas numa única thread de fundo:
+    private void iniciarManutencao() {
+        manutencao = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "manutencao");
+            thread.setDaemon(true);
+            return thread;
+        });
+        caixasPostais.recuperar();
+        manutencao.scheduleWithFixedDelay(caixasPostais::expirar, 1, 1, TimeUnit.MINUTES);
+        manutencao.scheduleWithFixedDelay(presenca::publicar, configuracao.intervaloPresenca,
+            configuracao.intervaloPresenca, TimeUnit.MILLISECONDS);
+        manutencao.scheduleWithFixedDelay(sessoes::expirar, 1, 1, TimeUnit.SECONDS);
+        manutencao.scheduleWithFixedDelay(this::esquecerLimitesUsuario, 1, 1, TimeUnit.SECONDS);
+        if (configuracao.intervaloBatimento > 0 || configuracao.tempoLogin > 0) {
+            int resolucao = Math.max(1, configuracao.resolucaoBatimento);
+            manutencao.scheduleAtFixedRate(batimentos::avancar, 0, resolucao, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Entra no cluster, se uma porta de cluster foi configurada:
+    private void iniciarCluster() {
+        if (configuracao.portaCluster <= 0) {
+            return;
+        }
+        String endereco = configuracao.enderecoCluster.isEmpty()
+            ? "127.0.0.1:" + configuracao.portaCluster : configuracao.enderecoCluster;
+        String escuta = configuracao.escutaCluster.isEmpty()  // Padrão: o host do endereço anunciado.
+            ? endereco.substring(0, Math.max(0, endereco.lastIndexOf(':'))) : configuracao.escutaCluster;
+        Cluster novo = new Cluster(this, endereco, escuta, configuracao.portaCluster, configuracao.segredoCluster,
+            configuracao.intervaloCluster, configuracao.tempoLimiteCluster, metricas.registro);
+        try {
+            novo.iniciar(configuracao.paresCluster);
+            cluster = novo;
+        } catch (IOException e) {
+            System.err.println("Erro ao iniciar cluster (servidor seguirá sozinho): " + e.getMessage());
+        }
+    }
+
+    // Exibe o cabeçalho de inicialização no console:
+    private void exibirInicio() {
+        int porta = configuracao.porta;
+        try {
+            porta = ((InetSocketAddress) canalServidor.getLocalAddress()).getPort();  // Difere se herdada.
+        } catch (IOException | ClassCastException e) {
+            // Mantém a porta configurada.
+        }
+        System.out.println("=== SERVIDOR DE CHAT TCP ===");
+        System.out.println("Servidor iniciado na porta " + porta + " (modo " + configuracao.modo
+            + (contextoTls != null ? ", TLS" : "") + ")");
+        System.out.println("Aguardando conexões...\n");
+    }
+
+    // Loop principal - aceita conexões continuamente e as entrega ao modo em uso. A thread bloqueada no
+    // accept só percebe o fim do servidor com a próxima conexão; se o canal continua aberto (reinício),
+    // essa conexão vai para o servidor sucessor:
+    private void aceitarConexoes() {
+        while (rodando) {
+            try {
+                SocketChannel canal = canalServidor.accept();  // Bloqueia até uma nova conexão chegar.
+                if (rodando) {
+                    despachar(canal);
+                } else {
+                    encaminhar(canal);
+                }
+            } catch (IOException e) {
+                if (rodando) {
+                    System.err.println("Erro ao aceitar conexão: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Entrega uma conexão aceita aos reatores do modo NIO, em rodízio, ou a uma thread própria
+    // (de plataforma ou virtual) nos outros modos:
+    private void despachar(SocketChannel canal) throws IOException {
+        configurarCanal(canal);
+        if (reatores != null) {
+            reatores[proximoReator].registrar(canal);
+            proximoReator = (proximoReator + 1) % reatores.length;
+            return;
+        }
+        Socket clienteSocket = canal.socket();
+        if (contextoTls != null) {
+            // O SSLSocket em modo servidor envolve o socket aceito; o handshake fica para a thread do cliente:
+            clienteSocket = contextoTls.getSocketFactory().createSocket(clienteSocket, null,
+                clienteSocket.getPort(), true);
+            ((SSLSocket) clienteSocket).setUseClientMode(false);
+        }
+        executar(new ClienteHandler(clienteSocket, this)); // Cria um handler para este cliente.
+    }
+
+    // Atende numa thread própria um cliente legado reconhecido por um reator: o stream de objetos dele só é
+    // lido de forma bloqueante. Os bytes que o reator já leu do canal são entregues antes dos do socket:
+    void atenderLegado(SocketChannel canal, byte[] recebidos) throws IOException {
+        canal.configureBlocking(true);
+        executar(new ClienteHandler(canal.socket(), this, recebidos));
+    }
+
+    private void executar(ClienteHandler handler) {
+        if (executorVirtual != null) {
+            executorVirtual.execute(handler);  // Threads virtuais são baratas: milhares bloqueadas em leitura não consomem threads do sistema.
+        } else {
+            new Thread(handler).start(); // Inicia uma nova thread para cada cliente.
+        }
+    }
+
+    // Passa ao sucessor uma conexão aceita depois do fim do servidor, ou a fecha se não houver um:
+    private void encaminhar(SocketChannel canal) throws IOException {
+        Servidor proximo = sucessor;
+        if (proximo == null) {
+            canal.close();
+            return;
+        }
+        try {
+            proximo.pronto.await();  // O sucessor só inicia depois que este libera as portas e os diretórios.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            canal.close();
+            return;
+        }
+        if (proximo.rodando) {
+            proximo.despachar(canal);
+        } else {
+            proximo.encaminhar(canal);
+        }
+    }
+
+    // Threads virtuais só existem a partir do JDK 21; o executor é obtido por reflexão para que o
+    // projeto continue compilando com JDKs anteriores (nesse caso o modo virtual recai no modo threads):
+    private static ExecutorService novoExecutorVirtual() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Threads virtuais indisponíveis neste JDK (requer JDK 21); usando o modo threads.");
+            return null;
+        }
+    }
+
+    // Inicia a thread escritora de uma conexão bloqueante, do mesmo tipo das threads leitoras do modo atual:
+    void iniciarEscritor(Runnable escritor) {
+        if (executorVirtual != null) {
+            executorVirtual.execute(escritor);
+        } else {
+            Thread thread = new Thread(escritor, "escritor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Aplica as opções de TCP configuradas a uma conexão recém-aceita:
+    private void configurarCanal(SocketChannel canal) {
+        try {
+            canal.setOption(StandardSocketOptions.TCP_NODELAY, configuracao.tcpSemAtraso);
+            if (configuracao.bufferEnvio > 0) {
+                canal.setOption(StandardSocketOptions.SO_SNDBUF, configuracao.bufferEnvio);
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao configurar conexão: " + e.getMessage());
+        }
+    }
+
+    // Adiciona um novo cliente à lista de clientes conectados. A reserva do nome é atômica:
+    // retorna false (sem adicionar) se outro cliente já usa o nome.
+    public boolean adicionarCliente(String nomeUsuario, ClienteHandler handler) {
+        Cluster nos = cluster;
+        if (nos != null && nos.noDoUsuario(nomeUsuario) != null) {
+            return false;  // Nome em uso em outro nó.
+        }
+        if (!clientes.reservar(nomeUsuario, handler)) {
+            return false;
+        }
+        caixasPostais.registrarUsuario(nomeUsuario);
+        tabelaNomes.id(nomeUsuario);  // Só nomes aceitos ganham identificador no protocolo binário.
+        presenca.entrou(nomeUsuario);
+        if (nos != null) {
+            nos.anunciarEntrada(nomeUsuario);
+        }
 
         // Imprime na tela um aviso de conexão do novo cliente:
-        System.out.println("Cliente conectado: " + nomeUsuario + 
-                          " (Total: " + clientes.size() + " clientes)");
-        listarClientesAtivos();
+        logConexoes.registrar("Cliente conectado: " + nomeUsuario +
+                              " (Total: " + clientes.tamanho() + " clientes)");
+        return true;
     }
     
-    // Remove um cliente da lista de clientes conectados:
-    public synchronized void removerCliente(String nomeUsuario) {
-        clientes.remove(nomeUsuario);
+    // Remove um cliente da lista de clientes conectados (apenas se o nome ainda pertencer a este handler):
+    public void removerCliente(String nomeUsuario, ClienteHandler handler) {
+        if (!clientes.remover(nomeUsuario, handler)) {
+            return;
+        }
+        presenca.saiu(nomeUsuario);
+        Cluster nos = cluster;
+        if (nos != null) {
+            nos.anunciarSaida(nomeUsuario);
+        }
 
-        // Imprime na tela (em broadcast) um aviso de que um usuário se desconectou:
-        System.out.println("Cliente desconectado: " + nomeUsuario + 
-                          " (Total: " + clientes.size() + " clientes)");
-        listarClientesAtivos();
+        // Imprime na tela um aviso de que um usuário se desconectou:
+        logConexoes.registrar("Cliente desconectado: " + nomeUsuario +
+                              " (Total: " + clientes.tamanho() + " clientes)");
     }
     
-    // Envia uma mensagem para todos os clientes conectados, exceto o remetente:
-    public synchronized void broadcast(Mensagem mensagem, String remetente) {
-        for (Map.Entry<String, ClienteHandler> entry : clientes.entrySet()) {
-            if (!entry.getKey().equals(remetente)) {
-                entry.getValue().enviarMensagem(mensagem);
+    // Passa o nome e as salas do usuário para o handler da conexão que retomou a sessão dele (o nome
+    // continua reservado, então não há aviso de entrada nem de saída):
+    void substituirCliente(String nomeUsuario, ClienteHandler antigo, ClienteHandler novo) {
+        clientes.substituir(nomeUsuario, antigo, novo);
+        for (String sala : novo.getSalas()) {
+            salas.substituir(sala, nomeUsuario, antigo, novo);
+        }
+    }
+
+    // Envia uma mensagem para todos os clientes conectados, exceto o remetente, inclusive nos outros
+    // nós do cluster (um único encaminhamento por nó):
+    public void broadcast(Mensagem mensagem, String remetente) {
+        entregarATodos(mensagem, remetente);
+        Cluster nos = cluster;
+        if (nos != null) {
+            nos.encaminharPublica(mensagem);
+        }
+    }
+
+    // Entrega aos clientes deste nó. A mensagem é codificada uma única vez e os mesmos bytes são
+    // entregues a todos os destinatários:
+    private void entregarATodos(Mensagem mensagem, String remetente) {
+        QuadroCodificado quadro = new QuadroCodificado(mensagem, tabelaNomes);
+        int destinatarios = 0;
+        for (ClienteHandler handler : clientes.instantaneo()) {
+            if (!handler.getNomeUsuario().equals(remetente)) {
+                handler.enviarQuadro(quadro);
+                destinatarios++;
             }
         }
+        metricas.fanout.registrar(destinatarios);
     }
     
-    // Envia mensagem privada para usuário específico:
-    public synchronized void enviarMensagemPrivada(Mensagem mensagem) {
-        ClienteHandler destinatario = clientes.get(mensagem.getDestinatario());
+    // Coloca o usuário em uma sala e avisa os membros; retorna false se ele já estava nela:
+    public boolean entrarSala(String sala, String usuario, ClienteHandler handler) {
+        if (!salas.entrar(sala, usuario, handler)) {
+            return false;
+        }
+        tabelaNomes.id(sala);
+        notificarSala(sala, usuario, usuario + " entrou na sala #" + sala + "!");
+        return true;
+    }
+
+    // Retira o usuário de uma sala e avisa os membros restantes:
+    public void sairSala(String sala, String usuario, ClienteHandler handler) {
+        if (salas.sair(sala, usuario, handler)) {
+            notificarSala(sala, usuario, usuario + " saiu da sala #" + sala + "!");
+        }
+    }
+
+    private void notificarSala(String sala, String usuario, String texto) {
+        Mensagem aviso = new Mensagem("SISTEMA", null, texto);
+        aviso.setSala(sala);
+        enviarParaMembros(aviso, usuario);
+        encaminharSala(aviso);
+    }
+
+    private void encaminharSala(Mensagem mensagem) {
+        Cluster nos = cluster;
+        if (nos != null) {
+            nos.encaminharSala(mensagem);
+        }
+    }
+
+    // Envia uma mensagem apenas aos membros da sala indicada na mensagem (exceto o remetente), que é sempre
+    // o nome aceito na conexão de origem. Se o remetente não for membro da sala, recebe uma mensagem de erro:
+    public void enviarParaSala(Mensagem mensagem) {
+        RegistroClientes membros = salas.membros(mensagem.getSala());
+        if (membros == null || !membros.contem(mensagem.getRemetente())) {
+            ClienteHandler remetente = clientes.buscar(mensagem.getRemetente());
+            if (remetente != null) {
+                remetente.enviarMensagem(new Mensagem("SISTEMA", mensagem.getRemetente(),
+                    "Você não está na sala #" + mensagem.getSala() + ". Use /entrar " + mensagem.getSala()));
+            }
+            return;
+        }
+        registrarHistorico(mensagem);
+        enviarParaMembros(mensagem, mensagem.getRemetente());
+        encaminharSala(mensagem);
+    }
+
+    // Fan-out de uma sala: percorre somente o instantâneo de membros dela, com a mensagem codificada uma vez:
+    private void enviarParaMembros(Mensagem mensagem, String remetente) {
+        RegistroClientes membros = salas.membros(mensagem.getSala());
+        if (membros == null) {
+            return;
+        }
+        QuadroCodificado quadro = new QuadroCodificado(mensagem, tabelaNomes);
+        int destinatarios = 0;
+        for (ClienteHandler handler : membros.instantaneo()) {
+            if (!handler.getNomeUsuario().equals(remetente)) {
+                handler.enviarQuadro(quadro);
+                destinatarios++;
+            }
+        }
+        metricas.fanout.registrar(destinatarios);
+    }
+
+    // Lista as salas existentes (resposta ao comando /salas):
+    public String listarSalas() {
+        return salas.listar();
+    }
+
+    // Envia mensagem privada para usuário específico, neste ou em outro nó do cluster. Se ele se conectou
+    // (a qualquer nó) dentro da validade das caixas postais mas está offline, a mensagem fica na caixa
+    // postal dele até o próximo login:
+    public void enviarMensagemPrivada(Mensagem mensagem) {
+        String nomeDestinatario = mensagem.getDestinatario();
+        ClienteHandler destinatario = clientes.buscar(nomeDestinatario);
         if (destinatario != null) {
+            registrarHistorico(mensagem);
             destinatario.enviarMensagem(mensagem);
-        } else {
-            // Enviar mensagem de erro para o remetente caso o destinatário não exista:
-            ClienteHandler remetente = clientes.get(mensagem.getRemetente());
-            if (remetente != null) {
-                Mensagem erro = new Mensagem("SISTEMA", mensagem.getRemetente(),
-                    "Usuário '" + mensagem.getDestinatario() + "' não encontrado!");
-                remetente.enviarMensagem(erro);
+            return;
+        }
+        Cluster nos = cluster;
+        String no = nos != null ? nos.noDoUsuario(nomeDestinatario) : null;
+        if (no != null && nos.encaminharPrivada(no, mensagem)) {
+            registrarHistorico(mensagem);
+            return;
+        }
+
+        String aviso;
+        if (!caixasPostais.conhecido(nomeDestinatario)) {
+            aviso = "Usuário '" + nomeDestinatario + "' não encontrado!";
+        } else if (caixasPostais.depositar(nomeDestinatario, mensagem)) {
+            registrarHistorico(mensagem);
+            aviso = "Usuário '" + nomeDestinatario + "' está offline. A mensagem será entregue no próximo login.";
+            if (clientes.contem(nomeDestinatario)) {
+                entregarCaixaPostal(nomeDestinatario);  // Conectou entre a busca e o depósito.
             }
+        } else {
+            aviso = "A caixa de mensagens de '" + nomeDestinatario + "' está cheia. Tente mais tarde.";
+        }
+
+        // Avisa o remetente sobre o destino da mensagem:
+        ClienteHandler remetente = clientes.buscar(mensagem.getRemetente());
+        if (remetente != null) {
+            remetente.enviarMensagem(new Mensagem("SISTEMA", mensagem.getRemetente(), aviso));
+        }
+    }
+
+    // Entrega de uma só vez, no executor de consultas, as mensagens guardadas enquanto o usuário estava desconectado:
+    void entregarCaixaPostal(String usuario) {
+        executarConsulta(() -> retirarCaixaPostal(usuario));
+    }
+
+    private void retirarCaixaPostal(String usuario) {
+        ClienteHandler handler = clientes.buscar(usuario);
+        if (handler == null) {
+            return;
+        }
+        List<Mensagem> mensagens = caixasPostais.retirar(usuario);
+        if (mensagens.isEmpty()) {
+            return;
         }
+        List<Mensagem> lote = new ArrayList<>(mensagens.size() + 1);
+        lote.add(new Mensagem("SISTEMA", usuario,
+            "Você recebeu " + mensagens.size() + " mensagens privadas enquanto estava offline:"));
+        lote.addAll(mensagens);
+        handler.enviarLote(lote);
     }
     
-    // Gera uma string com a lista de todos os usuários conectados (resposta ao comando /usuarios):
-    public synchronized String listarUsuarios() {
-        if (clientes.isEmpty()) {
-            return "Nenhum usuário conectado.";
+    // Lista uma página dos usuários conectados neste nó e nos outros nós do cluster, opcionalmente só
+    // os que começam com o prefixo (resposta ao comando /usuarios). Apenas a página pedida é formatada:
+    public String listarUsuarios(String prefixo, int pagina) {
+        int tamanhoPagina = Math.max(1, configuracao.paginaUsuarios);
+        int inicio = (pagina - 1) * tamanhoPagina;
+        Cluster nos = cluster;
+        StringBuilder nomes = new StringBuilder();
+        int total = 0;
+        for (String usuario : presenca.usuarios(prefixo)) {
+            if (total >= inicio && total < inicio + tamanhoPagina) {
+                nomes.append("• ").append(usuario);
+                String no = nos != null ? nos.noDoUsuario(usuario) : null;
+                if (no != null) {
+                    nomes.append(" (").append(no).append(")");
+                }
+                nomes.append("\n");
+            }
+            total++;
         }
-        
-        StringBuilder lista = new StringBuilder("Usuários conectados:\n");
-        for (String usuario : clientes.keySet()) {
-            lista.append("• ").append(usuario).append("\n");
+        String filtro = prefixo.isEmpty() ? "" : " começando com '" + prefixo + "'";
+        if (total == 0) {
+            return "Nenhum usuário conectado" + filtro + ".";
+        }
+        int paginas = (total + tamanhoPagina - 1) / tamanhoPagina;
+        if (pagina > paginas) {
+            return "A página " + pagina + " não existe (" + paginas + " página(s) de usuários" + filtro + ").";
+        }
+        StringBuilder lista = new StringBuilder("Usuários conectados").append(filtro)
+            .append(" (").append(inicio + 1).append("-").append(Math.min(total, inicio + tamanhoPagina))
+            .append(" de ").append(total).append("):\n").append(nomes);
+        if (paginas > 1) {
+            lista.append("Página ").append(pagina).append(" de ").append(paginas)
+                .append(". Use /usuarios [prefixo] [página] para ver as demais.\n");
         }
         return lista.toString();
     }
-    
-    // Exibe clientes ativos no console do servidor:
-    private void listarClientesAtivos() {
-        if (clientes.isEmpty()) {
-            System.out.println("Nenhum cliente conectado.\n");
-        } else {
-            System.out.print("Clientes ativos: ");
-            System.out.println(String.join(", ", clientes.keySet()) + "\n");
+
+    // Nomes dos usuários conectados neste nó (anunciados aos outros nós do cluster):
+    List<String> usuariosLocais() {
+        return new ArrayList<>(clientes.nomes());
+    }
+
+    // Métodos chamados pelo cluster com as mensagens vindas de outros nós. A entrega é apenas local;
+    // os avisos do SISTEMA não entram no histórico, como acontece com os deste nó:
+    void receberPublicaRemota(Mensagem mensagem) {
+        if (!"SISTEMA".equals(mensagem.getRemetente())) {
+            registrarHistorico(mensagem);
+        }
+        entregarATodos(mensagem, mensagem.getRemetente());
+    }
+
+    void receberSalaRemota(Mensagem mensagem) {
+        if (!"SISTEMA".equals(mensagem.getRemetente())) {
+            registrarHistorico(mensagem);
+        }
+        enviarParaMembros(mensagem, mensagem.getRemetente());
+    }
+
+    // Usuário que entrou em outro nó: passa a ser conhecido aqui, e o que ficou na caixa postal dele neste
+    // nó é encaminhado a ele (no executor de consultas, pois a retirada lê o disco):
+    void usuarioRemotoEntrou(String usuario, String no) {
+        caixasPostais.registrarUsuario(usuario);
+        if (caixasPostais.temMensagens(usuario)) {
+            executarConsulta(() -> encaminharCaixaPostal(usuario, no));
+        }
+    }
+
+    private void encaminharCaixaPostal(String usuario, String no) {
+        Cluster nos = cluster;
+        if (nos == null) {
+            return;
+        }
+        for (Mensagem mensagem : caixasPostais.retirar(usuario)) {
+            if (!nos.encaminharPrivada(no, mensagem)) {
+                caixasPostais.depositar(usuario, mensagem);  // O nó saiu: a mensagem espera o próximo login.
+            }
+        }
+    }
+
+    // Mensagem privada para um usuário deste nó; se ele saiu nesse meio-tempo, vai para a caixa postal:
+    void receberPrivadaRemota(Mensagem mensagem) {
+        String nomeDestinatario = mensagem.getDestinatario();
+        ClienteHandler destinatario = clientes.buscar(nomeDestinatario);
+        if (destinatario != null) {
+            registrarHistorico(mensagem);
+            destinatario.enviarMensagem(mensagem);
+        } else if (caixasPostais.conhecido(nomeDestinatario) && caixasPostais.depositar(nomeDestinatario, mensagem)) {
+            registrarHistorico(mensagem);
         }
     }
+
+    // Avisa os usuários deste nó que os usuários de outro nó saíram junto com ele:
+    void avisarNoPerdido(String no, int usuarios) {
+        entregarATodos(new Mensagem("SISTEMA", null,
+            "Conexão com o servidor " + no + " perdida: " + usuarios + " usuários saíram do chat."), null);
+    }
     
-    // Verifica se um usuário com determinado nome já está conectado:
-    public synchronized boolean usuarioExiste(String nomeUsuario) {
-        return clientes.containsKey(nomeUsuario);
+    // Grava a mensagem de um usuário no histórico persistente (sem esperar pelo disco):
+    void registrarHistorico(Mensagem mensagem) {
+        LogMensagens log = historico;
+        if (log != null) {
+            log.registrar(mensagem);
+        }
+    }
+
+    // Últimas mensagens do histórico visíveis para o usuário: públicas, das salas em que ele está e
+    // privadas enviadas ou recebidas por ele. Retorna null se o histórico está desativado:
+    List<Mensagem> historico(String usuario, Set<String> salasUsuario, int quantidade) {
+        LogMensagens log = historico;
+        if (log == null) {
+            return null;
+        }
+        return log.ultimas(Math.min(quantidade, configuracao.maximoHistorico), mensagem -> visivel(mensagem, usuario, salasUsuario));
+    }
+
+    // Mensagens mais recentes do histórico que atendem à consulta do /buscar e que o usuário pode ver
+    // (as mesmas regras do /historico). Retorna null se o histórico está desativado:
+    List<Mensagem> buscar(String usuario, Set<String> salasUsuario, Consulta consulta) {
+        LogMensagens log = historico;
+        if (log == null) {
+            return null;
+        }
+        return log.buscar(consulta, usuario, salasUsuario, configuracao.resultadosBusca,
+            mensagem -> visivel(mensagem, usuario, salasUsuario));
+    }
+
+    // O remetente gravado é o atribuído pelo servidor (ClienteHandler.comRemetente), não o escrito pelo cliente:
+    private static boolean visivel(Mensagem mensagem, String usuario, Set<String> salasUsuario) {
+        if (mensagem.getSala() != null) {
+            return salasUsuario.contains(mensagem.getSala());
+        }
+        return mensagem.getDestinatario() == null
+            || usuario.equals(mensagem.getDestinatario()) || usuario.equals(mensagem.getRemetente());
+    }
+
+    // Verifica se um usuário com determinado nome já está conectado (neste ou em outro nó):
+    public boolean usuarioExiste(String nomeUsuario) {
+        Cluster nos = cluster;
+        return clientes.contem(nomeUsuario) || (nos != null && nos.noDoUsuario(nomeUsuario) != null);
     }
     
-    // Para o servidor (fecha o ServerSocket):
-    public void parar() {
+    // Para o servidor, com o encerramento coordenado (não faz nada se ele já parou):
+    public synchronized void parar() {
+        if (!encerrando) {
+            encerrando = true;
+            encerrar(true);
+        }
+    }
+
+    // Reinicia o servidor na mesma JVM com uma nova configuração, sem fechar o canal de escuta: as conexões
+    // que chegam durante o encerramento esperam na fila do sistema e são aceitas pelo novo servidor, que só
+    // inicia depois que este libera as portas (métricas, cluster) e os diretórios (histórico, caixas postais).
+    // A porta da nova configuração é ignorada. Retorna o novo servidor, que aceita conexões numa thread
+    // própria, ou null se este já parou ou se o novo não pôde iniciar:
+    public synchronized Servidor reiniciar(Configuracao novaConfiguracao) {
+        if (encerrando) {
+            return null;
+        }
+        encerrando = true;
+        Servidor novo = new Servidor(novaConfiguracao);
+        sucessor = novo;
+        encerrar(false);
+        if (!novo.preparar(canalServidor)) {
+            novo.parar();  // Fecha o canal: as conexões pendentes são recusadas.
+            return null;
+        }
+        new Thread(novo::aceitarConexoes, "servidor").start();
+        return novo;
+    }
+
+    // Encerramento coordenado: para de aceitar conexões, avisa os usuários do reinício (com uma espera
+    // sorteada até a reconexão, para que não voltem todos ao mesmo tempo) ou do encerramento, espera as
+    // filas de saída esvaziarem até o prazo configurado e só então fecha as conexões, os reatores e o
+    // restante. Com a porta herdada, o socket de escuta continua aberto com quem iniciou o servidor, então
+    // parar também é um reinício:
+    private void encerrar(boolean fecharCanal) {
         rodando = false;
         try {
-            if (serverSocket != null) {
-                serverSocket.close();
+            if (fecharCanal && canalServidor != null) {
+                canalServidor.close();
+            }
+            avisarEncerramento(!fecharCanal || configuracao.portaHerdada);
+            drenar();
+            conexoesFechadas = true;
+            for (ClienteHandler handler : conexoes) {
+                handler.desconectar();
+            }
+            if (reatores != null) {
+                for (Reator reator : reatores) {
+                    reator.parar();
+                }
+            }
+            if (exportadorMetricas != null) {
+                exportadorMetricas.parar();
+            }
+            if (executorConsultas != null) {
+                executorConsultas.shutdown();  // As consultas em andamento terminam antes do histórico fechar.
+                executorConsultas.awaitTermination(configuracao.prazoEncerramento, TimeUnit.MILLISECONDS);
+            }
+            caixasPostais.fechar();  // Termina as gravações das caixas postais enfileiradas.
+            if (historico != null) {
+                historico.fechar();  // Grava as mensagens pendentes antes de encerrar.
+            }
+            if (manutencao != null) {
+                manutencao.shutdownNow();
+            }
+            if (cluster != null) {
+                cluster.parar();
+            }
+            if (executorVirtual != null) {
+                executorVirtual.shutdown();  // Não aceita novas tarefas; as conexões ativas terminam ao fechar seus sockets.
+            }
+            if (executorTls != null) {
+                executorTls.shutdownNow();
             }
         } catch (IOException e) {
             System.err.println("Erro ao fechar servidor: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Avisa cada usuário conectado do reinício, com a espera sugerida até reconectar sorteada na janela
+    // configurada (o cliente a usa no lugar da sua própria espera inicial), ou do encerramento:
+    private void avisarEncerramento(boolean reinicio) {
+        int janela = Math.max(0, configuracao.janelaReconexao);
+        for (ClienteHandler handler : conexoes) {
+            String nome = handler.getNomeUsuario();
+            if (nome == null) {
+                continue;
+            }
+            if (reinicio) {
+                long espera = janela > 0 ? ThreadLocalRandom.current().nextLong(janela) : 0;
+                handler.enviarMensagem(new Mensagem("SISTEMA", nome, "Servidor reiniciando: reconecte em " + espera + " ms."));
+            } else {
+                handler.enviarMensagem(new Mensagem("SISTEMA", nome, "Servidor encerrado."));
+            }
+        }
+    }
+
+    // Espera, até o prazo de encerramento, que todas as conexões escrevam o que têm enfileirado:
+    private void drenar() {
+        long prazo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, configuracao.prazoEncerramento));
+        while (true) {
+            int pendentes = 0;
+            for (ClienteHandler handler : conexoes) {
+                if (handler.envioPendente()) {
+                    pendentes++;
+                }
+            }
+            if (pendentes == 0) {
+                return;
+            }
+            if (System.nanoTime() - prazo >= 0) {
+                System.out.println("Prazo de encerramento esgotado: " + pendentes + " conexões ainda tinham mensagens a enviar.");
+                return;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
     
     public static void main(String[] args) {
-        Servidor servidor = new Servidor();
+        Configuracao configuracao = new Configuracao();
+        if (args.length > 0) {
+            configuracao.modo = args[0];  // Permite escolher o modo na linha de comando (ex.: "nio").
+        }
+        AtomicReference<Servidor> servidor = new AtomicReference<>(new Servidor(configuracao));
+
+        // SIGTERM (ou Ctrl+C) também faz o encerramento coordenado:
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servidor.get().parar(), "encerramento"));
         
-        // Cria thread para permitir parada do servidor via console:
-        new Thread(() -> {
-            Scanner scanner = new Scanner(System.in);
-            System.out.println("Digite 'sair' para parar o servidor.");
-            while (true) {
-                String comando = scanner.nextLine();
-                if ("sair".equalsIgnoreCase(comando)) {
-                    System.out.println("Parando servidor...");
-                    servidor.parar();
-                    break;
+        // Cria thread para permitir parada ou reinício do servidor via console. Com a porta herdada, a entrada
+        // padrão é o socket de escuta, e o servidor é parado pelo sinal de quem o iniciou:
+        if (!configuracao.portaHerdada) {
+            new Thread(() -> {
+                Scanner scanner = new Scanner(System.in);
+                System.out.println("Digite 'sair' para parar o servidor ou 'reiniciar' para reiniciá-lo sem fechar a porta.");
+                while (scanner.hasNextLine()) {
+                    String comando = scanner.nextLine();
+                    if ("sair".equalsIgnoreCase(comando)) {
+                        System.out.println("Parando servidor...");
+                        servidor.get().parar();
+                        break;
+                    }
+                    if ("reiniciar".equalsIgnoreCase(comando)) {
+                        System.out.println("Reiniciando servidor...");
+                        Configuracao nova = new Configuracao();  // Relê as propriedades do sistema.
+                        nova.modo = configuracao.modo;
+                        Servidor novo = servidor.get().reiniciar(nova);
+                        if (novo == null) {
+                            System.err.println("Falha ao reiniciar; servidor parado.");
+                            break;
+                        }
+                        servidor.set(novo);
+                    }
                 }
-            }
-            scanner.close();
-        }).start();
+                scanner.close();
+            }).start();
+        }
         
-        servidor.iniciar();  // Inicia server na thread principal.
+        servidor.get().iniciar();  // Inicia server na thread principal.
     }
-}
\ No newline at end of file
+}
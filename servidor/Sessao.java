@@ -0,0 +1,141 @@
+package Trabalho_2.servidor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import Trabalho_2.chat.Mensagem;
+
+/*
+ * Sessão de um usuário que pode sobreviver à queda da conexão. Todo quadro enviado ao usuário passa
+ * pela sessão, que guarda os últimos num buffer circular e os escreve na conexão atual (se houver).
+ * Quando a conexão cai, a sessão fica suspensa: o nome continua reservado e as mensagens continuam
+ * sendo guardadas até a carência expirar. Ao retomar, a nova conexão assume as salas e os registros
+ * da antiga e recebe apenas os quadros posteriores ao último que o cliente informou ter recebido.
+ *
+ * Os métodos são sincronizados: a ordem dos quadros no buffer é a mesma em que foram escritos na
+ * conexão, e a troca de conexão não intercala com envios em andamento.
+ */
+class Sessao {
+    private final String token;
+    private final String usuario;
+    private final int capacidade;
+    private final ArrayDeque<QuadroCodificado> enviados;
+    private long maiorDescartado = 0;  // Maior sequência que já saiu do buffer (para detectar perdas).
+
+    private ClienteHandler dono;   // Handler registrado nas salas e na lista de clientes.
+    private ClienteHandler atual;  // Conexão ativa (null enquanto suspensa).
+    private long suspensaEm;       // System.nanoTime() da queda da conexão.
+    private boolean encerrada = false;
+
+    Sessao(String token, ClienteHandler dono, int capacidade) {
+        this.token = token;
+        this.usuario = dono.getNomeUsuario();
+        this.capacidade = Math.max(1, capacidade);
+        this.enviados = new ArrayDeque<>(Math.min(this.capacidade, 64));
+        this.dono = dono;
+        this.atual = dono;
+    }
+
+    String getToken() { return token; }
+    String getUsuario() { return usuario; }
+    synchronized ClienteHandler getDono() { return dono; }
+    synchronized boolean suspensa() { return atual == null && !encerrada; }
+
+    synchronized void enviar(QuadroCodificado quadro) {
+        guardar(quadro);
+        if (atual != null) {
+            atual.escreverQuadro(quadro);
+        }
+    }
+
+    synchronized void enviarLote(List<QuadroCodificado> quadros) {
+        for (QuadroCodificado quadro : quadros) {
+            guardar(quadro);
+        }
+        if (atual != null) {
+            atual.escreverLote(quadros);
+        }
+    }
+
+    private void guardar(QuadroCodificado quadro) {
+        if (enviados.size() == capacidade) {
+            maiorDescartado = Math.max(maiorDescartado, enviados.poll().getSequencia());
+        }
+        enviados.add(quadro);
+    }
+
+    // A conexão do handler caiu: a sessão fica suspensa. Retorna false se a sessão já foi encerrada
+    // (o usuário deve sair do chat normalmente); uma conexão já substituída é apenas ignorada:
+    synchronized boolean suspender(ClienteHandler handler) {
+        if (encerrada) {
+            return false;
+        }
+        if (atual == handler) {
+            atual = null;
+            suspensaEm = System.nanoTime();
+        }
+        return true;
+    }
+
+    // Passa a sessão para a nova conexão e reenvia o que veio depois da sequência informada pelo
+    // cliente. Retorna quantos quadros foram reenviados, ou -1 se a sessão já foi encerrada:
+    synchronized int retomar(ClienteHandler novo, long ultima, Servidor servidor) {
+        if (encerrada) {
+            return -1;
+        }
+        if (atual != null) {
+            atual.desconectar();  // Conexão meio aberta: o cliente já sabe que ela caiu.
+        }
+        ClienteHandler antigo = dono;
+        novo.assumir(antigo);
+        servidor.substituirCliente(usuario, antigo, novo);
+        dono = novo;
+        atual = novo;
+
+        // Reenvia a partir da posição da última sequência recebida; se ela não está no buffer (foi
+        // recebida antes da sessão ou já saiu dele), reenvia todas as sequências maiores que ela:
+        List<QuadroCodificado> pendentes = new ArrayList<>();
+        boolean encontrada = false;
+        for (QuadroCodificado quadro : enviados) {
+            if (quadro.getSequencia() == ultima) {
+                encontrada = true;
+                pendentes.clear();
+            } else if (encontrada || quadro.getSequencia() > ultima) {
+                pendentes.add(quadro);
+            }
+        }
+        if (!encontrada && maiorDescartado > ultima) {
+            novo.escreverQuadro(new QuadroCodificado(new Mensagem("SISTEMA", usuario,
+                "Algumas mensagens anteriores à reconexão foram perdidas."), servidor.getTabelaNomes()));
+        }
+        if (!pendentes.isEmpty()) {
+            novo.escreverLote(pendentes);
+        }
+
+        Mensagem aviso = new Mensagem("SISTEMA", usuario,
+            pendentes.size() + " mensagens recebidas enquanto estava desconectado.");
+        Mensagem confirmacao = new Mensagem("SISTEMA", usuario, token);
+        confirmacao.setTipo(Mensagem.Tipo.SESSAO);
+        enviar(new QuadroCodificado(aviso, servidor.getTabelaNomes()));
+        enviar(new QuadroCodificado(confirmacao, servidor.getTabelaNomes()));
+        return pendentes.size();
+    }
+
+    // Encerra a sessão se ela está suspensa há mais que a carência (em nanossegundos):
+    synchronized boolean expirarSe(long agora, long carencia) {
+        if (encerrada || atual != null || agora - suspensaEm < carencia) {
+            return false;
+        }
+        encerrada = true;
+        enviados.clear();
+        return true;
+    }
+
+    // Encerra a sessão a pedido do usuário (ou do servidor), que em seguida é desconectado e sai do chat:
+    synchronized void encerrar() {
+        encerrada = true;
+        atual = null;
+        enviados.clear();
+    }
+}
@@ -0,0 +1,100 @@
+package Trabalho_2.servidor;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+import Trabalho_2.chat.Mensagem;
+import Trabalho_2.metricas.Contador;
+import Trabalho_2.metricas.RegistroMetricas;
+
+/*
+ * Sessões retomáveis dos clientes, indexadas pelo token entregue a cada um. O token é aleatório
+ * (16 bytes de SecureRandom em Base64 sem preenchimento) e é a única credencial para assumir a
+ * sessão, por isso só é enviado ao próprio usuário. Sessões suspensas por mais que a carência
+ * são encerradas pela tarefa periódica expirar(), e só então o usuário sai do chat.
+ */
+class Sessoes {
+    private final ConcurrentHashMap<String, Sessao> sessoes = new ConcurrentHashMap<>();
+    private final SecureRandom aleatorio = new SecureRandom();
+    private final Servidor servidor;
+    private final long carencia;   // Em nanossegundos.
+    private final int capacidade;  // Quadros guardados por sessão.
+
+    private final Contador criadas;
+    private final Contador retomadas;
+    private final Contador expiradas;
+    private final Contador reenviadas;
+
+    Sessoes(Servidor servidor, long carencia, int capacidade, RegistroMetricas metricas) {
+        this.servidor = servidor;
+        this.carencia = carencia;
+        this.capacidade = capacidade;
+        this.criadas = metricas.contador("chat_sessoes_criadas_total", "Sessões retomáveis criadas.");
+        this.retomadas = metricas.contador("chat_sessoes_retomadas_total",
+            "Sessões retomadas por uma nova conexão do cliente.");
+        this.expiradas = metricas.contador("chat_sessoes_expiradas_total",
+            "Sessões encerradas por ficarem suspensas além da carência.");
+        this.reenviadas = metricas.contador("chat_sessoes_reenviadas_total",
+            "Mensagens reenviadas ao retomar uma sessão.");
+        metricas.medidor("chat_sessoes_suspensas", "Sessões aguardando a reconexão do cliente.",
+            () -> sessoes.values().stream().filter(Sessao::suspensa).count());
+    }
+
+    // Cria a sessão do cliente (ou reaproveita a que ele já tem) e envia o token a ele:
+    void abrir(ClienteHandler cliente) {
+        Sessao sessao = cliente.getSessao();
+        if (sessao == null) {
+            String token = novoToken();
+            sessao = new Sessao(token, cliente, capacidade);
+            sessoes.put(token, sessao);
+            cliente.setSessao(sessao);
+            criadas.incrementar();
+        }
+        Mensagem mensagem = new Mensagem("SISTEMA", cliente.getNomeUsuario(), sessao.getToken());
+        mensagem.setTipo(Mensagem.Tipo.SESSAO);
+        cliente.enviarMensagem(mensagem);
+    }
+
+    // Passa a sessão do token para o cliente recém-conectado; retorna false se ela não existe mais:
+    boolean retomar(String token, ClienteHandler cliente, long ultima) {
+        Sessao sessao = sessoes.get(token);
+        if (sessao == null) {
+            return false;
+        }
+        int reenviados = sessao.retomar(cliente, ultima, servidor);
+        if (reenviados < 0) {
+            return false;
+        }
+        retomadas.incrementar();
+        reenviadas.adicionar(reenviados);
+        return true;
+    }
+
+    // Encerra a sessão do cliente (ex.: /desconectar), se houver:
+    void encerrar(ClienteHandler cliente) {
+        Sessao sessao = cliente.getSessao();
+        if (sessao != null) {
+            sessoes.remove(sessao.getToken(), sessao);
+            sessao.encerrar();
+        }
+    }
+
+    // Encerra as sessões suspensas há mais que a carência, tirando os usuários do chat (executado periodicamente):
+    void expirar() {
+        long agora = System.nanoTime();
+        for (Sessao sessao : sessoes.values()) {
+            if (sessao.expirarSe(agora, carencia)) {
+                sessoes.remove(sessao.getToken(), sessao);
+                expiradas.incrementar();
+                sessao.getDono().sairDoChat();
+            }
+        }
+    }
+
+    private String novoToken() {
+        byte[] bytes = new byte[16];
+        aleatorio.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}